@@ -0,0 +1,107 @@
+package ftp.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import ftp.protocolo.EntradaProtocolo;
+import ftp.servidor.MotorConexoes;
+import ftp.servidor.Servidor;
+
+/**
+ * Árvores de arquivos e servidor local usados pelos benchmarks JMH. O servidor grava em "root"
+ * no diretório atual, como sempre; rode os benchmarks fora de um diretório com dados reais.
+ */
+public final class AmbienteBenchmark {
+    public static final String PASTA_SERVIDOR = "benchmark-jmh|1";
+    public static final String NOME_NO_SERVIDOR = "benchmark-jmh_1";
+
+    public enum Forma {
+        /** 10.000 arquivos de até 2 KB em 100 pastas. */
+        MUITOS_PEQUENOS,
+        /** 4 arquivos de 32 MB. */
+        POUCOS_GRANDES,
+        /** 50 cadeias de 25 pastas aninhadas, com 2 arquivos de 4 KB em cada nível. */
+        PROFUNDA
+    }
+
+    private AmbienteBenchmark() {
+    }
+
+    public static Path gerarArvore(Forma forma) throws IOException {
+        Path raiz = Files.createTempDirectory("ftp-jmh-" + forma.name().toLowerCase());
+        Random aleatorio = new Random(42);
+        switch (forma) {
+            case MUITOS_PEQUENOS -> {
+                for (int i = 0; i < 10_000; i++) {
+                    gravar(raiz.resolve("pasta" + (i % 100)).resolve("arquivo" + i + ".txt"), aleatorio.nextInt(2048), aleatorio);
+                }
+            }
+            case POUCOS_GRANDES -> {
+                for (int i = 0; i < 4; i++) {
+                    gravar(raiz.resolve("grande" + i + ".bin"), 32 * 1024 * 1024, aleatorio);
+                }
+            }
+            case PROFUNDA -> {
+                for (int cadeia = 0; cadeia < 50; cadeia++) {
+                    Path pasta = raiz.resolve("cadeia" + cadeia);
+                    for (int nivel = 0; nivel < 25; nivel++) {
+                        pasta = pasta.resolve("nivel" + nivel);
+                        gravar(pasta.resolve("a.dat"), 4096, aleatorio);
+                        gravar(pasta.resolve("b.dat"), 4096, aleatorio);
+                    }
+                }
+            }
+        }
+        return raiz;
+    }
+
+    // Bytes de um alfabeto de 16 símbolos: comprimem mais ou menos à metade, como texto comum
+    private static void gravar(Path arquivo, int tamanho, Random aleatorio) throws IOException {
+        Files.createDirectories(arquivo.getParent());
+        byte[] conteudo = new byte[tamanho];
+        for (int i = 0; i < tamanho; i++) {
+            conteudo[i] = (byte) ('a' + aleatorio.nextInt(16));
+        }
+        Files.write(arquivo, conteudo);
+    }
+
+    public static void apagar(Path raiz) throws IOException {
+        if (raiz == null || !Files.exists(raiz)) return;
+        try (Stream<Path> caminhos = Files.walk(raiz)) {
+            caminhos.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** Servidor com threads virtuais numa porta livre do loopback, sem log. */
+    public static Servidor iniciarServidor() throws InterruptedException {
+        Servidor servidor = new Servidor(0, mensagem -> { }, MotorConexoes.THREADS_VIRTUAIS, Servidor.LIMITE_CONEXOES_PADRAO);
+        Thread thread = new Thread(servidor::start, "benchmark-servidor");
+        thread.setDaemon(true);
+        thread.start();
+        while (!servidor.isRunning()) {
+            Thread.sleep(10);
+        }
+        return servidor;
+    }
+
+    /** Envia um comando e exige uma resposta 200 ou 150. */
+    public static String comando(PrintWriter saida, EntradaProtocolo entrada, String comando) throws IOException {
+        saida.println(comando);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !(resposta.startsWith("200") || resposta.startsWith("150"))) {
+            throw new IOException(comando + ": " + resposta);
+        }
+        return resposta;
+    }
+
+    public static void pararServidor(Servidor servidor) throws IOException {
+        servidor.stop();
+        apagar(Path.of(Servidor.getRoot(), NOME_NO_SERVIDOR));
+    }
+}
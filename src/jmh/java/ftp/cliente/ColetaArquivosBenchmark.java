@@ -0,0 +1,54 @@
+package ftp.cliente;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ftp.benchmark.AmbienteBenchmark;
+
+/** Varredura e ordenação da pasta local que o cliente faz antes de cada upload. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColetaArquivosBenchmark {
+    @Param({"MUITOS_PEQUENOS", "POUCOS_GRANDES", "PROFUNDA"})
+    public AmbienteBenchmark.Forma forma;
+
+    private Path arvore;
+    private File pasta;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        arvore = AmbienteBenchmark.gerarArvore(forma);
+        pasta = arvore.toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void encerrar() throws IOException {
+        AmbienteBenchmark.apagar(arvore);
+    }
+
+    @Benchmark
+    public List<File> coletarTodosArquivos() {
+        return SessaoFtp.coletarTodosArquivos(pasta);
+    }
+}
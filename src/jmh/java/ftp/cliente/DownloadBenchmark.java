@@ -0,0 +1,105 @@
+package ftp.cliente;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ftp.benchmark.AmbienteBenchmark;
+import ftp.protocolo.EntradaProtocolo;
+import ftp.protocolo.Protocolo;
+import ftp.servidor.Servidor;
+
+/**
+ * Download de uma pasta por um servidor no loopback, em ZIP e em quadros. O cliente só descarta
+ * os bytes, então o tempo é o do servidor (listagem, compressão e envio) mais o loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({"MUITOS_PEQUENOS", "POUCOS_GRANDES", "PROFUNDA"})
+    public AmbienteBenchmark.Forma forma;
+
+    private Path arvore;
+    private Servidor servidor;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        arvore = AmbienteBenchmark.gerarArvore(forma);
+        servidor = AmbienteBenchmark.iniciarServidor();
+        try (Socket socket = new Socket("localhost", servidor.getPortaLocal());
+             EntradaProtocolo entrada = new EntradaProtocolo(socket.getInputStream());
+             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
+            entrada.lerLinha();
+            AmbienteBenchmark.comando(saida, entrada, "OPTS " + Protocolo.RECURSO_V2);
+            AmbienteBenchmark.comando(saida, entrada, "UPLOAD_FOLDER " + AmbienteBenchmark.PASTA_SERVIDOR);
+            File base = arvore.toFile();
+            String resposta = new EnvioJanelado(socket, entrada, 64, true).enviar(base, SessaoFtp.coletarTodosArquivos(base), (a, t, c) -> { });
+            if (resposta == null || !resposta.startsWith("226")) {
+                throw new IOException("Upload inicial falhou: " + resposta);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void encerrar() throws IOException {
+        AmbienteBenchmark.pararServidor(servidor);
+        AmbienteBenchmark.apagar(arvore);
+    }
+
+    @Benchmark
+    public long zip() throws Exception {
+        try (Socket socket = new Socket("localhost", servidor.getPortaLocal());
+             EntradaProtocolo entrada = new EntradaProtocolo(socket.getInputStream());
+             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
+            entrada.lerLinha();
+            AmbienteBenchmark.comando(saida, entrada, "DOWNLOAD_FOLDER " + AmbienteBenchmark.NOME_NO_SERVIDOR);
+            // O servidor fecha a conexão no fim do ZIP
+            return entrada.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public long quadros() throws Exception {
+        try (Socket socket = new Socket("localhost", servidor.getPortaLocal());
+             EntradaProtocolo entrada = new EntradaProtocolo(socket.getInputStream());
+             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
+            entrada.lerLinha();
+            AmbienteBenchmark.comando(saida, entrada, "DOWNLOAD_RAW " + AmbienteBenchmark.NOME_NO_SERVIDOR);
+            DataInputStream dados = new DataInputStream(entrada);
+            long total = 0;
+            int tamanhoCaminho;
+            while ((tamanhoCaminho = dados.readInt()) != Protocolo.FIM_QUADROS) {
+                dados.skipNBytes(tamanhoCaminho);
+                long tamanho = dados.readLong();
+                dados.skipNBytes(tamanho);
+                total += tamanho;
+            }
+            entrada.lerLinha();
+            saida.println("QUIT");
+            return total;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ftp.cliente;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ftp.benchmark.AmbienteBenchmark;
+import ftp.protocolo.EntradaProtocolo;
+import ftp.protocolo.Protocolo;
+import ftp.servidor.Servidor;
+
+/**
+ * Upload de uma pasta inteira para um servidor no loopback, passando por
+ * ClienteHandler.receberArquivos em cada modo: quadros v2, janela em texto e confirmação por arquivo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+    @Param({"MUITOS_PEQUENOS", "POUCOS_GRANDES", "PROFUNDA"})
+    public AmbienteBenchmark.Forma forma;
+
+    @Param({"V2", "JANELA", "CONFIRMACAO"})
+    public String modo;
+
+    private Path arvore;
+    private List<File> arquivos;
+    private Servidor servidor;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        arvore = AmbienteBenchmark.gerarArvore(forma);
+        arquivos = SessaoFtp.coletarTodosArquivos(arvore.toFile());
+        servidor = AmbienteBenchmark.iniciarServidor();
+    }
+
+    @TearDown(Level.Trial)
+    public void encerrar() throws IOException {
+        AmbienteBenchmark.pararServidor(servidor);
+        AmbienteBenchmark.apagar(arvore);
+    }
+
+    @Benchmark
+    public String upload() throws Exception {
+        try (Socket socket = new Socket("localhost", servidor.getPortaLocal());
+             EntradaProtocolo entrada = new EntradaProtocolo(socket.getInputStream());
+             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
+            socket.setTcpNoDelay(true);
+            entrada.lerLinha();
+            boolean quadros = modo.equals("V2");
+            if (!modo.equals("CONFIRMACAO")) {
+                AmbienteBenchmark.comando(saida, entrada, "OPTS " + Protocolo.RECURSO_JANELA + " 64");
+            }
+            if (quadros) {
+                AmbienteBenchmark.comando(saida, entrada, "OPTS " + Protocolo.RECURSO_V2);
+            }
+            AmbienteBenchmark.comando(saida, entrada, "UPLOAD_FOLDER " + AmbienteBenchmark.PASTA_SERVIDOR);
+
+            String resposta;
+            if (modo.equals("CONFIRMACAO")) {
+                resposta = enviarComConfirmacao(socket, saida, entrada);
+            } else {
+                resposta = new EnvioJanelado(socket, entrada, 64, quadros).enviar(arvore.toFile(), arquivos, (a, t, c) -> { });
+            }
+            if (resposta == null || !resposta.startsWith("226")) {
+                throw new IOException("Upload falhou: " + resposta);
+            }
+            return resposta;
+        }
+    }
+
+    private String enviarComConfirmacao(Socket socket, PrintWriter saida, EntradaProtocolo entrada) throws IOException {
+        OutputStream dados = socket.getOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (File arquivo : arquivos) {
+            saida.println("FILE:" + ManifestoLocal.caminhoRelativo(arvore.toFile(), arquivo));
+            saida.println(arquivo.length());
+            try (FileInputStream fis = new FileInputStream(arquivo)) {
+                int lidos;
+                while ((lidos = fis.read(buffer)) != -1) {
+                    dados.write(buffer, 0, lidos);
+                }
+            }
+            dados.flush();
+            if (!"OK".equals(entrada.lerLinha())) {
+                throw new IOException("Servidor não confirmou " + arquivo);
+            }
+        }
+        saida.println("END_FOLDER");
+        return entrada.lerLinha();
+    }
+}
@@ -0,0 +1,67 @@
+package ftp.servidor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ftp.benchmark.AmbienteBenchmark;
+
+/**
+ * Geração do ZIP do DOWNLOAD_FOLDER sem rede: o ZipParalelo escreve num stream que descarta
+ * tudo, então o tempo é o de leitura dos arquivos e compressão.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+    @Param({"MUITOS_PEQUENOS", "POUCOS_GRANDES", "PROFUNDA"})
+    public AmbienteBenchmark.Forma forma;
+
+    @Param({"-1", "1", "0"})
+    public int nivel;
+
+    private Path arvore;
+    private List<ArquivoPasta> arquivos;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        arvore = AmbienteBenchmark.gerarArvore(forma);
+        File base = arvore.toFile();
+        arquivos = new ArrayList<>();
+        for (File arquivo : OperacoesPasta.listarArquivosParaDownload(base)) {
+            arquivos.add(ArquivoPasta.deArquivo(OperacoesPasta.caminhoRelativo(base, arquivo), arquivo, null));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void encerrar() throws IOException {
+        AmbienteBenchmark.apagar(arvore);
+    }
+
+    @Benchmark
+    public int escreverZip() throws IOException {
+        new ZipParalelo(OutputStream.nullOutputStream(), nivel).escrever(arquivos);
+        return arquivos.size();
+    }
+}
@@ -0,0 +1,76 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ftp.benchmark.AmbienteBenchmark;
+
+/**
+ * FolderIdUtil: o percurso de calcularTamanhoPasta em cada forma de árvore, o obterId com o
+ * cache já preenchido e o tratamento dos nomes "nome_id" que o LIST e o download fazem por pasta.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FolderIdBenchmark {
+    private static final String[] NOMES = {"relatorios_1234567890", "pasta sem id", "fotos_2024_ferias_987654321",
+            "termina_com_", "_123", "projeto_final_v2_42"};
+
+    @Param({"MUITOS_PEQUENOS", "POUCOS_GRANDES", "PROFUNDA"})
+    public AmbienteBenchmark.Forma forma;
+
+    private Path arvore;
+    private File pasta;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        arvore = AmbienteBenchmark.gerarArvore(forma);
+        pasta = arvore.toFile();
+        FolderIdUtil.obterId(pasta);
+    }
+
+    @TearDown(Level.Trial)
+    public void encerrar() throws IOException {
+        AmbienteBenchmark.apagar(arvore);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long calcularTamanhoPasta() {
+        return FolderIdUtil.calcularTamanhoPasta(pasta);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String obterIdComCache() throws IOException {
+        return FolderIdUtil.obterId(pasta);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void extrairIdENome(Blackhole buraco) {
+        for (String nome : NOMES) {
+            buraco.consume(FolderIdUtil.extrairId(nome));
+            buraco.consume(FolderIdUtil.extrairNomeOriginal(nome));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ftp.benchmark;
+
+import ftp.servidor.MotorConexoes;
+import ftp.servidor.Servidor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compara os motores de conexão do servidor quando muitos clientes conectam ao mesmo tempo.
+ * Cada cliente simula uma sessão lenta: recebe a saudação, faz um CHECK_FOLDER e mantém a
+ * conexão aberta por alguns milissegundos antes do QUIT.
+ *
+ * Uso: BenchmarkConexoesSimultaneas [clientes] [retencaoMs]
+ */
+public class BenchmarkConexoesSimultaneas {
+    public static void main(String[] args) throws Exception {
+        int clientes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long retencaoMs = args.length > 1 ? Long.parseLong(args[1]) : 200;
+
+        System.out.printf("%d clientes simultâneos, sessões de %d ms%n%n", clientes, retencaoMs);
+        System.out.printf("%-26s %10s %12s %12s %12s %8s%n", "Motor", "Total (ms)", "p50 (ms)", "p99 (ms)", "Máx (ms)", "Falhas");
+
+        for (MotorConexoes motor : MotorConexoes.values()) {
+            executar(motor, clientes, retencaoMs);
+        }
+    }
+
+    private static void executar(MotorConexoes motor, int clientes, long retencaoMs) throws Exception {
+        Servidor servidor = new Servidor(0, mensagem -> { }, motor, clientes);
+        Thread threadServidor = new Thread(servidor::start, "benchmark-servidor");
+        threadServidor.start();
+        while (!servidor.isRunning()) {
+            Thread.sleep(10);
+        }
+        int porta = servidor.getPortaLocal();
+
+        long[] latencias = new long[clientes];
+        AtomicInteger falhas = new AtomicInteger();
+        CountDownLatch largada = new CountDownLatch(1);
+        CountDownLatch fim = new CountDownLatch(clientes);
+        List<Thread> threads = new ArrayList<>(clientes);
+
+        for (int i = 0; i < clientes; i++) {
+            final int indice = i;
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    largada.await();
+                    latencias[indice] = sessao(porta, retencaoMs);
+                } catch (Exception e) {
+                    falhas.incrementAndGet();
+                    latencias[indice] = -1;
+                } finally {
+                    fim.countDown();
+                }
+            }));
+        }
+
+        long inicio = System.nanoTime();
+        largada.countDown();
+        fim.await();
+        long totalMs = (System.nanoTime() - inicio) / 1_000_000;
+
+        servidor.stop();
+        threadServidor.join();
+
+        long[] validas = Arrays.stream(latencias).filter(l -> l >= 0).sorted().toArray();
+        System.out.printf("%-26s %10d %12.1f %12.1f %12.1f %8d%n", motor, totalMs,
+                percentil(validas, 0.50), percentil(validas, 0.99),
+                validas.length == 0 ? 0.0 : validas[validas.length - 1] / 1e6, falhas.get());
+    }
+
+    /** Devolve o tempo, em nanossegundos, até o cliente ser atendido (saudação + primeira resposta). */
+    private static long sessao(int porta, long retencaoMs) throws IOException, InterruptedException {
+        long inicio = System.nanoTime();
+        try (Socket socket = new Socket("localhost", porta);
+             BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
+            socket.setSoTimeout(120000);
+
+            String saudacao = entrada.readLine();
+            if (saudacao == null || !saudacao.startsWith("220")) {
+                throw new IOException("Saudação inesperada: " + saudacao);
+            }
+            saida.println("CHECK_FOLDER benchmark|0");
+            entrada.readLine();
+            long atendido = System.nanoTime() - inicio;
+
+            Thread.sleep(retencaoMs);
+            saida.println("QUIT");
+            entrada.readLine();
+            return atendido;
+        }
+    }
+
+    private static double percentil(long[] ordenadas, double p) {
+        if (ordenadas.length == 0) return 0.0;
+        int indice = (int) Math.ceil(p * ordenadas.length) - 1;
+        return ordenadas[Math.max(0, indice)] / 1e6;
+    }
+}
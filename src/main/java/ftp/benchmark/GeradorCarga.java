@@ -0,0 +1,403 @@
+package ftp.benchmark;
+
+import ftp.protocolo.EntradaProtocolo;
+import ftp.servidor.MotorConexoes;
+import ftp.servidor.Servidor;
+import utils.LogAssincrono;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Gerador de carga sem interface: N clientes sintéticos repetem operações sorteadas de um mix
+ * (LIST, CHECK_FOLDER, UPLOAD_FOLDER, DOWNLOAD_FOLDER) contra um servidor iniciado no próprio
+ * processo ou num host:porta. Cada operação abre uma conexão, como o cliente gráfico. Depois do
+ * aquecimento, mede vazão e latências (p50, p99, p99.9) por operação e grava os resultados em
+ * JSON para comparar execuções.
+ *
+ * Uso: GeradorCarga [--alvo=local|host:porta] [--clientes=32] [--aquecimento=10] [--duracao=30]
+ *                   [--mix=LIST:40,CHECK_FOLDER:30,UPLOAD_FOLDER:10,DOWNLOAD_FOLDER:20]
+ *                   [--pastas=8] [--arquivos=20] [--tamanho=65536]
+ *                   [--motor=THREADS_VIRTUAIS] [--limite=1000] [--blocos] [--log=arquivo]
+ *                   [--saida=carga-AAAAMMDD-HHMMSS.json]
+ *
+ * Os uploads usam o modo com confirmação por arquivo, que todos os motores aceitam. Com
+ * --alvo=local o servidor grava em "root" no diretório atual.
+ */
+public class GeradorCarga {
+    enum Operacao { LIST, CHECK_FOLDER, UPLOAD_FOLDER, DOWNLOAD_FOLDER }
+
+    private static final String PREFIXO_PASTA = "carga";
+
+    /** Latências (ns) de um cliente para uma operação; cada cliente tem as suas, sem sincronização. */
+    private static final class Amostras {
+        private long[] valores = new long[1024];
+        private int tamanho = 0;
+        private long erros = 0;
+        private long bytes = 0;
+
+        void adicionar(long nanos) {
+            if (tamanho == valores.length) {
+                valores = Arrays.copyOf(valores, tamanho * 2);
+            }
+            valores[tamanho++] = nanos;
+        }
+
+        void juntar(Amostras outras) {
+            for (int i = 0; i < outras.tamanho; i++) {
+                adicionar(outras.valores[i]);
+            }
+            erros += outras.erros;
+            bytes += outras.bytes;
+        }
+
+        long[] ordenadas() {
+            long[] copia = Arrays.copyOf(valores, tamanho);
+            Arrays.sort(copia);
+            return copia;
+        }
+    }
+
+    private final Map<String, String> opcoes;
+    private final Map<Operacao, Integer> mix = new EnumMap<>(Operacao.class);
+    private final int clientes;
+    private final int pastas;
+    private String host = "localhost";
+    private int porta;
+    private Path arvores;
+    private volatile boolean medindo = false;
+    private volatile boolean parar = false;
+
+    GeradorCarga(Map<String, String> opcoes) {
+        this.opcoes = opcoes;
+        this.clientes = inteiro("clientes", 32);
+        this.pastas = inteiro("pastas", 8);
+        for (String item : opcoes.getOrDefault("mix", "LIST:40,CHECK_FOLDER:30,UPLOAD_FOLDER:10,DOWNLOAD_FOLDER:20").split(",")) {
+            String[] partes = item.split(":");
+            mix.put(Operacao.valueOf(partes[0].trim().toUpperCase()), Integer.parseInt(partes[1].trim()));
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("O mix precisa de ao menos uma operação com peso positivo");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opcoes = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Argumento inválido: " + arg);
+            }
+            int igual = arg.indexOf('=');
+            opcoes.put(igual < 0 ? arg.substring(2) : arg.substring(2, igual), igual < 0 ? "true" : arg.substring(igual + 1));
+        }
+        new GeradorCarga(opcoes).executar();
+        System.exit(0);
+    }
+
+    private void executar() throws Exception {
+        arvores = gerarArvores();
+        Servidor servidor = null;
+        LogAssincrono log = null;
+        try {
+            String alvo = opcoes.getOrDefault("alvo", "local");
+            if (alvo.equals("local")) {
+                Consumer<String> logger = mensagem -> { };
+                if (opcoes.containsKey("log")) {
+                    log = LogAssincrono.paraArquivo(Paths.get(opcoes.get("log")));
+                    logger = log;
+                }
+                servidor = new Servidor(0, logger, MotorConexoes.valueOf(opcoes.getOrDefault("motor", "THREADS_VIRTUAIS")),
+                        inteiro("limite", Servidor.LIMITE_CONEXOES_PADRAO), opcoes.containsKey("blocos"));
+                new Thread(servidor::start, "carga-servidor").start();
+                while (!servidor.isRunning()) {
+                    Thread.sleep(10);
+                }
+                porta = servidor.getPortaLocal();
+            } else {
+                host = alvo.substring(0, alvo.lastIndexOf(':'));
+                porta = Integer.parseInt(alvo.substring(alvo.lastIndexOf(':') + 1));
+            }
+
+            System.out.printf("Alvo %s:%d, %d clientes, mix %s%n", host, porta, clientes, mix);
+            for (int i = 0; i < pastas; i++) {
+                upload(arvores.resolve("p" + i).toFile(), PREFIXO_PASTA + i + "|" + i, new Amostras());
+            }
+            medir();
+        } finally {
+            if (servidor != null) {
+                servidor.stop();
+            }
+            if (log != null) {
+                log.fechar();
+            }
+            apagar(arvores);
+        }
+    }
+
+    private void medir() throws Exception {
+        long aquecimentoMs = inteiro("aquecimento", 10) * 1000L;
+        long duracaoMs = inteiro("duracao", 30) * 1000L;
+
+        List<Map<Operacao, Amostras>> resultados = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clientes; i++) {
+            Map<Operacao, Amostras> amostras = new EnumMap<>(Operacao.class);
+            for (Operacao operacao : Operacao.values()) {
+                amostras.put(operacao, new Amostras());
+            }
+            resultados.add(amostras);
+            int indice = i;
+            threads.add(Thread.ofVirtual().name("carga-cliente-" + i).start(() -> cliente(indice, amostras)));
+        }
+
+        System.out.printf("Aquecimento de %d s...%n", aquecimentoMs / 1000);
+        Thread.sleep(aquecimentoMs);
+        medindo = true;
+        long inicio = System.nanoTime();
+        System.out.printf("Medindo por %d s...%n", duracaoMs / 1000);
+        Thread.sleep(duracaoMs);
+        medindo = false;
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        parar = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<Operacao, Amostras> total = new EnumMap<>(Operacao.class);
+        for (Operacao operacao : Operacao.values()) {
+            Amostras soma = new Amostras();
+            for (Map<Operacao, Amostras> amostras : resultados) {
+                soma.juntar(amostras.get(operacao));
+            }
+            total.put(operacao, soma);
+        }
+        relatar(total, segundos);
+    }
+
+    private void cliente(int indice, Map<Operacao, Amostras> amostras) {
+        int pesoTotal = mix.values().stream().mapToInt(Integer::intValue).sum();
+        ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+        while (!parar) {
+            Operacao operacao = sortear(aleatorio.nextInt(pesoTotal));
+            Amostras destino = amostras.get(operacao);
+            // Só conta o que começou e terminou dentro da fase medida
+            boolean contar = medindo;
+            long inicio = System.nanoTime();
+            try {
+                Amostras alvo = contar ? destino : new Amostras();
+                executar(operacao, indice, aleatorio, alvo);
+                long duracao = System.nanoTime() - inicio;
+                if (contar && medindo) {
+                    destino.adicionar(duracao);
+                }
+            } catch (Exception e) {
+                if (contar && medindo) {
+                    destino.erros++;
+                }
+            }
+        }
+    }
+
+    private Operacao sortear(int sorteio) {
+        for (Map.Entry<Operacao, Integer> entrada : mix.entrySet()) {
+            sorteio -= entrada.getValue();
+            if (sorteio < 0) return entrada.getKey();
+        }
+        throw new IllegalStateException();
+    }
+
+    private void executar(Operacao operacao, int cliente, Random aleatorio, Amostras amostras) throws IOException {
+        int pasta = aleatorio.nextInt(pastas);
+        switch (operacao) {
+            case LIST -> comando("LIST", amostras);
+            case CHECK_FOLDER -> comando("CHECK_FOLDER " + PREFIXO_PASTA + pasta + "|" + pasta, amostras);
+            // Cada cliente sobrescreve só a própria pasta, para os downloads nunca pegarem uma troca no meio
+            case UPLOAD_FOLDER -> upload(arvores.resolve("p" + pasta).toFile(), PREFIXO_PASTA + "-cliente" + cliente + "|" + cliente, amostras);
+            case DOWNLOAD_FOLDER -> download(PREFIXO_PASTA + pasta + "_" + pasta, amostras);
+        }
+    }
+
+    /** LIST e CHECK_FOLDER: lê até a resposta final (2xx ou 4xx/5xx de uma linha). */
+    private void comando(String comando, Amostras amostras) throws IOException {
+        try (Conexao conexao = new Conexao()) {
+            conexao.saida.println(comando);
+            String linha;
+            while ((linha = conexao.entrada.lerLinha()) != null) {
+                amostras.bytes += linha.length() + 1;
+                if (linha.startsWith("226") || linha.startsWith("250") || linha.startsWith("450")) return;
+                if (linha.startsWith("5")) throw new IOException(comando + ": " + linha);
+            }
+            throw new IOException(comando + ": conexão encerrada");
+        }
+    }
+
+    private void upload(File pasta, String pastaInfo, Amostras amostras) throws IOException {
+        try (Conexao conexao = new Conexao()) {
+            conexao.esperar("UPLOAD_FOLDER " + pastaInfo, "150");
+            OutputStream dados = conexao.socket.getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            for (File arquivo : listarArquivos(pasta)) {
+                conexao.saida.println("FILE:" + pasta.toPath().relativize(arquivo.toPath()).toString().replace(File.separatorChar, '/'));
+                conexao.saida.println(arquivo.length());
+                try (FileInputStream fis = new FileInputStream(arquivo)) {
+                    int lidos;
+                    while ((lidos = fis.read(buffer)) != -1) {
+                        dados.write(buffer, 0, lidos);
+                    }
+                }
+                dados.flush();
+                amostras.bytes += arquivo.length();
+                if (!"OK".equals(conexao.entrada.lerLinha())) {
+                    throw new IOException("Servidor não confirmou " + arquivo.getName());
+                }
+            }
+            conexao.esperar("END_FOLDER", "226");
+        }
+    }
+
+    private void download(String nome, Amostras amostras) throws IOException {
+        try (Conexao conexao = new Conexao()) {
+            conexao.esperar("DOWNLOAD_FOLDER " + nome, "150");
+            // A conexão continua aberta depois do ZIP; o fim vem do diretório central
+            ZipInputStream zip = new ZipInputStream(conexao.entrada);
+            while (zip.getNextEntry() != null) {
+                amostras.bytes += zip.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+    }
+
+    private final class Conexao implements AutoCloseable {
+        final Socket socket;
+        final EntradaProtocolo entrada;
+        final PrintWriter saida;
+
+        Conexao() throws IOException {
+            socket = new Socket(host, porta);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(120000);
+            entrada = new EntradaProtocolo(socket.getInputStream());
+            saida = new PrintWriter(socket.getOutputStream(), true);
+            String saudacao = entrada.lerLinha();
+            if (saudacao == null || !saudacao.startsWith("220")) {
+                throw new IOException("Saudação inesperada: " + saudacao);
+            }
+        }
+
+        void esperar(String comando, String codigo) throws IOException {
+            saida.println(comando);
+            String resposta = entrada.lerLinha();
+            if (resposta == null || !resposta.startsWith(codigo)) {
+                throw new IOException(comando + ": " + resposta);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private void relatar(Map<Operacao, Amostras> total, double segundos) throws IOException {
+        System.out.printf("%n%-16s %10s %8s %10s %10s %10s %10s %10s%n", "Operação", "Operações", "Erros", "Ops/s", "MB/s",
+                "p50 (ms)", "p99 (ms)", "p99.9 (ms)");
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"data\": \"").append(LocalDateTime.now()).append("\",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"opcoes\": {");
+        String separador = "";
+        for (Map.Entry<String, String> opcao : opcoes.entrySet()) {
+            json.append(separador).append('"').append(opcao.getKey()).append("\": \"").append(opcao.getValue().replace("\"", "\\\"")).append('"');
+            separador = ", ";
+        }
+        json.append("},\n");
+        json.append(String.format(Locale.ROOT, "  \"clientes\": %d,%n  \"segundos\": %.3f,%n  \"operacoes\": {%n", clientes, segundos));
+
+        separador = "";
+        for (Operacao operacao : Operacao.values()) {
+            if (!mix.containsKey(operacao)) continue;
+            Amostras amostras = total.get(operacao);
+            long[] ordenadas = amostras.ordenadas();
+            double vazao = ordenadas.length / segundos;
+            double mbs = amostras.bytes / segundos / (1024 * 1024);
+            double p50 = percentil(ordenadas, 0.50), p99 = percentil(ordenadas, 0.99), p999 = percentil(ordenadas, 0.999);
+            double maximo = ordenadas.length == 0 ? 0 : ordenadas[ordenadas.length - 1] / 1e6;
+            System.out.printf("%-16s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", operacao, ordenadas.length, amostras.erros,
+                    vazao, mbs, p50, p99, p999);
+            json.append(separador).append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"operacoes\": %d, \"erros\": %d, \"ops_s\": %.3f, \"bytes\": %d, \"p50_ms\": %.3f, \"p99_ms\": %.3f, \"p999_ms\": %.3f, \"max_ms\": %.3f}",
+                    operacao, ordenadas.length, amostras.erros, vazao, amostras.bytes, p50, p99, p999, maximo));
+            separador = ",\n";
+        }
+        json.append("\n  }\n}\n");
+
+        String padrao = "carga-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json";
+        Path saida = Paths.get(opcoes.getOrDefault("saida", padrao));
+        Files.writeString(saida, json, StandardCharsets.UTF_8);
+        System.out.println("\nResultados gravados em " + saida.toAbsolutePath());
+    }
+
+    private static double percentil(long[] ordenadas, double p) {
+        if (ordenadas.length == 0) return 0.0;
+        int indice = (int) Math.ceil(p * ordenadas.length) - 1;
+        return ordenadas[Math.max(0, indice)] / 1e6;
+    }
+
+    /** Pastas de origem p0..pN, cada uma com arquivos de tamanho aleatório em três subpastas. */
+    private Path gerarArvores() throws IOException {
+        Path raiz = Files.createTempDirectory("ftp-carga");
+        int arquivos = inteiro("arquivos", 20);
+        int tamanhoMaximo = inteiro("tamanho", 64 * 1024);
+        Random aleatorio = new Random(7);
+        for (int p = 0; p < pastas; p++) {
+            for (int a = 0; a < arquivos; a++) {
+                Path arquivo = raiz.resolve("p" + p).resolve("sub" + (a % 3)).resolve("arquivo" + a + ".dat");
+                Files.createDirectories(arquivo.getParent());
+                byte[] conteudo = new byte[aleatorio.nextInt(tamanhoMaximo + 1)];
+                aleatorio.nextBytes(conteudo);
+                Files.write(arquivo, conteudo);
+            }
+        }
+        return raiz;
+    }
+
+    private static List<File> listarArquivos(File pasta) throws IOException {
+        try (Stream<Path> caminhos = Files.walk(pasta.toPath())) {
+            return caminhos.filter(Files::isRegularFile).sorted().map(Path::toFile).toList();
+        }
+    }
+
+    private static void apagar(Path raiz) throws IOException {
+        if (raiz == null) return;
+        try (Stream<Path> caminhos = Files.walk(raiz)) {
+            caminhos.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private int inteiro(String opcao, int padrao) {
+        return opcoes.containsKey(opcao) ? Integer.parseInt(opcoes.get(opcao)) : padrao;
+    }
+}
@@ -1,6 +1,8 @@
 package ftp.cliente;
 
+import ftp.protocolo.Protocolo;
 import utils.FolderIdUtil;
+import utils.LogAssincrono;
 import styles.CustomTableCellRenderer;
 import styles.CustomTableHeaderRenderer;
 
@@ -12,19 +14,25 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.*;
-import java.net.Socket;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.Map;
 
 public class Cliente extends JFrame {
     private static final String HOST_PADRAO = "localhost";
     private static final int PORTA_PADRAO = 12381;
+    // Opções do download: rótulo e nível de compressão do ZIP (null = sem ZIP, em quadros)
+    private static final String[] FORMATOS_DOWNLOAD = {"ZIP (padrão)", "ZIP rápido", "ZIP máximo", "ZIP sem compressão", "Sem ZIP"};
+    private static final Integer[] NIVEIS_DOWNLOAD = {null, 1, 9, 0, null};
+    // Ordens da lista de pastas: rótulo, ordem do LIST e se é decrescente
+    private static final String[] ORDENS_LISTA = {"Nome (A-Z)", "Nome (Z-A)", "Maiores primeiro", "Menores primeiro",
+            "Mais recentes", "Mais antigas"};
+    private static final SessaoFtp.OrdemPastas[] ORDENS_PASTAS = {SessaoFtp.OrdemPastas.NOME, SessaoFtp.OrdemPastas.NOME,
+            SessaoFtp.OrdemPastas.TAMANHO, SessaoFtp.OrdemPastas.TAMANHO, SessaoFtp.OrdemPastas.DATA, SessaoFtp.OrdemPastas.DATA};
+    private static final boolean[] ORDENS_DECRESCENTES = {false, true, true, false, true, false};
+    private static final int PAGINA_PASTAS = 500;
 
     /* --- Componentes da Interface --- */
     private JLabel statusLabel;
@@ -41,6 +49,13 @@ public class Cliente extends JFrame {
 
     private JButton selecionarPastaButton;
     private JButton refreshButton;
+    private JComboBox<String> formatoDownloadCombo;
+    private JTextField filtroField;
+    private JComboBox<String> ordemCombo;
+    private JButton maisButton;
+    private JSpinner conexoesSpinner;
+    private JCheckBox comprimirUploadCheck;
+    private JCheckBox manterSincronizadaCheck;
 
     /* --- Estado da Aplicação --- */
     private File pastaSelecionada;
@@ -48,6 +63,10 @@ public class Cliente extends JFrame {
     private String hostAtual;
     private int portaAtual;
     private boolean conectado = false;
+    private volatile ClienteFtp clienteFtp; // Pool de conexões do servidor testado por último
+    private SincronizacaoContinua sincronizacao; // Só usado na EDT
+    private String proximaPagina; // Cursor do LIST para "Carregar mais"; null depois da última página
+    private int geracaoLista; // Descarta páginas de uma listagem que já foi recomeçada
 
     /* --- Utilidades --- */
     private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy, HH:mm:ss:SSS");
@@ -56,6 +75,25 @@ public class Cliente extends JFrame {
     private final Color COR_INFO = new Color(0, 100, 200);
     private final Color COR_PADRAO = Color.BLACK;
     private final Color COR_TIMESTAMP = Color.GRAY;
+    private static final int MAXIMO_CARACTERES_LOG = 1_000_000;
+    private final Map<Color, SimpleAttributeSet> estilos = new HashMap<>(); // Só usado na EDT
+    private final LogAssincrono log = new LogAssincrono("log-cliente", this::exibirLote);
+    private final OuvinteTransferencia ouvinte = new OuvinteTransferencia() {
+        @Override
+        public void registrar(Tipo tipo, String mensagem) {
+            gerarMensagemLog(mensagem, switch (tipo) {
+                case PADRAO -> COR_PADRAO;
+                case INFO -> COR_INFO;
+                case SUCESSO -> COR_SUCESSO;
+                case ERRO -> COR_ERRO;
+            });
+        }
+
+        @Override
+        public void andamento(String texto) {
+            SwingUtilities.invokeLater(() -> statusLabel.setText(texto));
+        }
+    };
 
     public Cliente() {
         hostAtual = HOST_PADRAO;
@@ -147,19 +185,16 @@ public class Cliente extends JFrame {
             boolean sucesso = false;
             String mensagemErro = "";
 
+            // A conexão do teste fica no pool e já serve para a listagem que vem em seguida
+            ClienteFtp novoCliente = new ClienteFtp(novoHost, novaPorta, ouvinte);
             try {
                 gerarMensagemLog("Testando conexão com " + novoHost + ": " + novaPorta, COR_INFO);
-                try (Socket socket = new Socket(novoHost, novaPorta)) {
-                    BufferedReader entrada =  new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    socket.setSoTimeout(50000);
-                    String resposta = entrada.readLine();
-                    if (resposta != null) {
-                        sucesso = true;
-                        gerarMensagemLog("Conexão bem-sucedida. Resposta: " + resposta, COR_SUCESSO);
-                    }
-                }
+                String resposta = novoCliente.testar();
+                sucesso = true;
+                gerarMensagemLog("Conexão bem-sucedida. Resposta: " + resposta, COR_SUCESSO);
             }
             catch (IOException ex) {
+                novoCliente.close();
                 mensagemErro = ex.getMessage();
                 gerarMensagemLog("Erro na conexão: " + ex.getMessage(), COR_ERRO);
             }
@@ -170,6 +205,8 @@ public class Cliente extends JFrame {
             SwingUtilities.invokeLater(() -> {
                 conectarButton.setEnabled(true);
                 if (conexaoSucesso) {
+                    if (clienteFtp != null) clienteFtp.close();
+                    clienteFtp = novoCliente;
                     hostAtual = novoHost;
                     portaAtual = novaPorta;
                     conectado = true;
@@ -177,6 +214,7 @@ public class Cliente extends JFrame {
                     conexaoStatusLabel.setForeground(new Color(0, 128, 0));
                     mostrarSucesso("Conexão estabelecida com sucesso!\nServidor: " + hostAtual + ":" + portaAtual);
                     atualizarPastasServidor();
+                    atualizarSincronizacao();
                 } else {
                     conectado = false;
                     conexaoStatusLabel.setText("Erro na conexão");
@@ -193,9 +231,11 @@ public class Cliente extends JFrame {
         selecionarPastaButton.setEnabled(conectado);
         downloadButton.setEnabled(conectado);
         refreshButton.setEnabled(conectado);
+        maisButton.setEnabled(conectado && proximaPagina != null);
 
         // O botão de upload depende da conexão E de uma pasta selecionada
         uploadButton.setEnabled(conectado && pastaSelecionada != null);
+        manterSincronizadaCheck.setEnabled(conectado && pastaSelecionada != null);
 
         // Atualiza o título da janela
         if (conectado) {
@@ -215,8 +255,22 @@ public class Cliente extends JFrame {
         uploadButton = new JButton("Enviar para o servidor");
         uploadButton.addActionListener(this::uploadPasta);
 
+        conexoesSpinner = new JSpinner(new SpinnerNumberModel(1, 1, Protocolo.CONEXOES_PARALELAS_MAXIMO, 1));
+        conexoesSpinner.setToolTipText("Conexões de dados usadas no upload; com mais de uma, a pasta é enviada inteira em paralelo");
+
         panel.add(selecionarPastaButton);
         panel.add(uploadButton);
+        panel.add(new JLabel("Conexões:"));
+        panel.add(conexoesSpinner);
+
+        comprimirUploadCheck = new JCheckBox("Comprimir");
+        comprimirUploadCheck.setToolTipText("Comprime cada arquivo antes de enviar; arquivos que não encolhem seguem sem compressão");
+        panel.add(comprimirUploadCheck);
+
+        manterSincronizadaCheck = new JCheckBox("Manter sincronizada");
+        manterSincronizadaCheck.setToolTipText("Observa a pasta e envia só o que mudar, logo depois de cada alteração");
+        manterSincronizadaCheck.addActionListener(e -> atualizarSincronizacao());
+        panel.add(manterSincronizadaCheck);
 
         panel.add(Box.createHorizontalStrut(20));
 
@@ -231,6 +285,22 @@ public class Cliente extends JFrame {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(new TitledBorder("Pastas no servidor"));
 
+        JPanel filtroPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 5));
+        filtroField = new JTextField(20);
+        filtroField.setToolTipText("Mostra só as pastas cujo nome começa com este texto (Enter aplica)");
+        filtroField.addActionListener(e -> {
+            if (conectado) atualizarPastasServidor();
+        });
+        ordemCombo = new JComboBox<>(ORDENS_LISTA);
+        ordemCombo.addActionListener(e -> {
+            if (conectado) atualizarPastasServidor();
+        });
+        filtroPanel.add(new JLabel("Filtrar:"));
+        filtroPanel.add(filtroField);
+        filtroPanel.add(new JLabel("Ordem:"));
+        filtroPanel.add(ordemCombo);
+        panel.add(filtroPanel, BorderLayout.NORTH);
+
         String[] colunas = {"ID", "Nome da Pasta", "Tamanho"};
         tableModel = new DefaultTableModel(colunas, 0) {
             @Override
@@ -272,11 +342,22 @@ public class Cliente extends JFrame {
             }
         });
 
+        maisButton = new JButton("Carregar mais");
+        maisButton.setEnabled(false);
+        maisButton.addActionListener(e -> carregarPastas(proximaPagina));
+
         downloadButton = new JButton("Baixar pasta selecionada");
         downloadButton.addActionListener(this::downloadPasta);
 
+        formatoDownloadCombo = new JComboBox<>(FORMATOS_DOWNLOAD);
+        formatoDownloadCombo.setToolTipText("\"Sem ZIP\" baixa os arquivos como estão, mais rápido na rede local. "
+                + "Arquivos já comprimidos (imagens, vídeos, ZIPs) nunca são recomprimidos.");
+
         buttonPanel.add(refreshButton);
+        buttonPanel.add(maisButton);
         buttonPanel.add(downloadButton);
+        buttonPanel.add(new JLabel("Formato:"));
+        buttonPanel.add(formatoDownloadCombo);
 
         panel.add(buttonPanel, BorderLayout.SOUTH);
         return panel;
@@ -325,6 +406,7 @@ public class Cliente extends JFrame {
             gerarMensagemLog("ID gerado para a pasta: " + pastaSelecionadaId, COR_PADRAO);
 
             atualizarEstadoControles();
+            atualizarSincronizacao();
 
         } catch (IOException ex) {
             mostrarErro("Erro ao selecionar pasta: " + ex.getMessage());
@@ -362,97 +444,55 @@ public class Cliente extends JFrame {
         }).start();
     }
 
-    private void executarUpload() {
-        gerarMensagemLog("=== INICIANDO UPLOAD ===", COR_INFO);
-        gerarMensagemLog("Conectando ao servidor " + hostAtual + ":" + portaAtual, COR_INFO);
-
-        try (Socket socket = new Socket(hostAtual, portaAtual);
-             BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
-
-            socket.setTcpNoDelay(true);
-            socket.setSoTimeout(30000);
-            gerarMensagemLog("Socket configurado - TCP_NODELAY: true, SO_TIMEOUT: 30s", COR_PADRAO);
-
-            String resposta = entrada.readLine();
-            gerarMensagemLog("SERVIDOR (conexão): " + resposta, COR_PADRAO);
-
-            String infoPasta = pastaSelecionada.getName() + "|" + pastaSelecionadaId;
-            gerarMensagemLog("ENVIANDO: UPLOAD_FOLDER " + infoPasta, COR_INFO);
-            saida.println("UPLOAD_FOLDER " + infoPasta);
-
-            resposta = entrada.readLine();
-            gerarMensagemLog("SERVIDOR (upload): " + resposta, COR_PADRAO);
-
-            if (resposta.startsWith("150")) {
-                List<File> todosArquivos = coletarTodosArquivos(pastaSelecionada);
-                enviarArquivosComConfirmacao(todosArquivos, socket, saida, entrada);
-
-                saida.println("END_FOLDER");
-                resposta = entrada.readLine();
-                gerarMensagemLog("SERVIDOR (fim): " + resposta, COR_PADRAO);
-
-                if (!resposta.startsWith("226")) {
-                    throw new Exception("Upload falhou - resposta final: " + resposta);
-                }
-                gerarMensagemLog("=== UPLOAD CONCLUÍDO COM SUCESSO ===", COR_SUCESSO);
-            } else {
-                throw new Exception("Servidor recusou o upload: " + resposta);
-            }
-        } catch (Exception e) {
-            gerarMensagemLog("ERRO CRÍTICO: " + e.getClass().getSimpleName() + " - " + e.getMessage(), COR_ERRO);
-            throw new RuntimeException(e);
-        }
+    private void executarUpload() throws IOException {
+        clienteFtp.enviar(pastaSelecionada, pastaSelecionadaId, (Integer) conexoesSpinner.getValue(), comprimirUploadCheck.isSelected());
     }
 
-    private List<File> coletarTodosArquivos(File pastaRaiz) {
-        List<File> arquivos = new ArrayList<>();
-        coletarArquivosRecursivamente(pastaRaiz, arquivos);
-        arquivos.sort(Comparator.comparing(f -> pastaRaiz.toPath().relativize(f.toPath()).toString()));
-        return arquivos;
+    // Recomeça a observação com a pasta, o servidor e a compressão atuais, ou só para, se desmarcada
+    private void atualizarSincronizacao() {
+        if (sincronizacao != null) {
+            sincronizacao.close();
+            sincronizacao = null;
+        }
+        if (!manterSincronizadaCheck.isSelected() || !conectado || pastaSelecionada == null) {
+            return;
+        }
+        try {
+            sincronizacao = clienteFtp.observar(pastaSelecionada, pastaSelecionadaId, comprimirUploadCheck.isSelected());
+            statusLabel.setText("Sincronizando " + pastaSelecionada.getName() + " continuamente");
+        } catch (IOException ex) {
+            manterSincronizadaCheck.setSelected(false);
+            mostrarErro("Não foi possível observar a pasta: " + ex.getMessage());
+        }
     }
 
-    private void coletarArquivosRecursivamente(File pasta, List<File> arquivos) {
-        File[] conteudo = pasta.listFiles();
-        if (conteudo == null) return;
-        Arrays.sort(conteudo, Comparator.comparing(File::getName));
-        for (File item : conteudo) if (item.isFile()) arquivos.add(item);
-        for (File item : conteudo) if (item.isDirectory()) coletarArquivosRecursivamente(item, arquivos);
+    private void atualizarPastasServidor() {
+        carregarPastas(null);
     }
 
-    private void enviarArquivosComConfirmacao(List<File> arquivos, Socket socket, PrintWriter saida, BufferedReader entrada) throws Exception {
-        int totalArquivos = arquivos.size();
-        for (int i = 0; i < totalArquivos; i++) {
-            File arquivo = arquivos.get(i);
-            String caminhoRelativo = pastaSelecionada.toPath().relativize(arquivo.toPath()).toString();
-            final int arquivoAtual = i + 1;
-            SwingUtilities.invokeLater(() -> statusLabel.setText("Enviando %d/%d: %s".formatted(arquivoAtual, totalArquivos, caminhoRelativo)));
-
-            saida.println("FILE:" + caminhoRelativo);
-            saida.println(arquivo.length());
-
-            try (FileInputStream fis = new FileInputStream(arquivo)) {
-                fis.transferTo(socket.getOutputStream());
-            }
-
-            String resposta = entrada.readLine();
-            if (!"OK".equals(resposta)) {
-                throw new Exception("Erro ao enviar arquivo " + caminhoRelativo);
-            }
+    // Sem cursor a lista recomeça; com cursor a página seguinte entra depois das linhas atuais
+    private void carregarPastas(String cursor) {
+        String prefixo = filtroField.getText().trim();
+        int ordem = ordemCombo.getSelectedIndex();
+        maisButton.setEnabled(false);
+        if (cursor == null) {
+            tableModel.setRowCount(0);
+            geracaoLista++;
         }
-    }
-
-    private void atualizarPastasServidor() {
+        int geracao = geracaoLista;
         new Thread(() -> {
             try {
-                SwingUtilities.invokeLater(() -> tableModel.setRowCount(0));
-
-                List<String[]> pastas = getPastasServidor();
+                SessaoFtp.PaginaPastas pagina = clienteFtp.listarPagina(prefixo, ORDENS_PASTAS[ordem],
+                        ORDENS_DECRESCENTES[ordem], cursor, PAGINA_PASTAS);
                 SwingUtilities.invokeLater(() -> {
-                    for (String[] pasta : pastas) {
-                        tableModel.addRow(pasta);
+                    if (geracao != geracaoLista) return;
+                    for (SessaoFtp.PastaRemota pasta : pagina.pastas()) {
+                        tableModel.addRow(new String[]{pasta.id(), pasta.nome(), SessaoFtp.formatarTamanho(pasta.tamanho())});
                     }
-                    gerarMensagemLog("Lista de pastas atualizada: " + pastas.size() + " itens.", COR_INFO);
+                    proximaPagina = pagina.proxima();
+                    maisButton.setEnabled(proximaPagina != null);
+                    gerarMensagemLog("Lista de pastas atualizada: " + tableModel.getRowCount() + " itens"
+                            + (proximaPagina != null ? " (há mais no servidor)." : "."), COR_INFO);
                 });
             } catch (Exception e) {
                 SwingUtilities.invokeLater(() -> mostrarErro("Erro ao atualizar lista: " + e.getMessage()));
@@ -461,46 +501,6 @@ public class Cliente extends JFrame {
         }).start();
     }
 
-    private List<String[]> getPastasServidor() throws Exception {
-        List<String[]> pastas = new ArrayList<>();
-
-        try (Socket socket = new Socket(hostAtual, portaAtual);
-             BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
-
-            entrada.readLine(); // "220 Servidor Pronto"
-            saida.println("LIST");
-
-            String line = entrada.readLine();
-            if (line == null || !line.startsWith("150")) {
-                throw new Exception("Não foi possível iniciar listagem: " + line);
-            }
-
-            while ((line = entrada.readLine()) != null) {
-                if (line.startsWith("226")) {
-                    break; // Fim da lista
-                }
-                if (line.startsWith("PASTA_INFO:")) {
-                    String[] parts = line.substring(11).split("\\|", 3);
-                    if (parts.length == 3) {
-                        String id = parts[0];
-                        String nome = parts[1];
-                        String tamanho = formatarTamanho(Long.parseLong(parts[2]));
-                        pastas.add(new String[]{id, nome, tamanho});
-                    }
-                }
-            }
-        }
-        return pastas;
-    }
-
-    private String formatarTamanho(long bytes) {
-        if (bytes < 1024) return bytes + " B";
-        int exp = (int) (Math.log(bytes) / Math.log(1024));
-        String pre = "KMGTPE".charAt(exp - 1) + "";
-        return String.format("%.1f %sB", bytes / Math.pow(1024, exp), pre);
-    }
-
     private void downloadPasta(ActionEvent e) {
         int selectedRow = pastasServidorTable.getSelectedRow();
         if (selectedRow == -1) {
@@ -519,12 +519,15 @@ public class Cliente extends JFrame {
         if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
 
         File localSalvamento = chooser.getSelectedFile();
+        int formato = formatoDownloadCombo.getSelectedIndex();
+        boolean semCompressao = formato == FORMATOS_DOWNLOAD.length - 1;
+        Integer nivel = NIVEIS_DOWNLOAD[formato];
         downloadButton.setEnabled(false);
         statusLabel.setText("Baixando pasta...");
 
         new Thread(() -> {
             try {
-                executarDownload(pastaServidor, localSalvamento);
+                executarDownload(pastaServidor, localSalvamento, semCompressao, nivel);
                 SwingUtilities.invokeLater(() -> {
                     mostrarSucesso("Pasta '" + nome + "' baixada com sucesso.");
                     downloadButton.setEnabled(true);
@@ -541,62 +544,24 @@ public class Cliente extends JFrame {
         }).start();
     }
 
-    private void executarDownload(String pasta, File localSalvamento) throws Exception {
-        gerarMensagemLog("=== INICIANDO DOWNLOAD ===", COR_INFO);
-        String nomeOriginal = FolderIdUtil.extrairNomeOriginal(pasta);
-        File pastaAlvo = new File(localSalvamento, nomeOriginal);
-        localSalvamento.mkdirs();
-
-        try (Socket socket = new Socket(hostAtual, portaAtual)) {
-            socket.setSoTimeout(180000);
-            PrintWriter saida = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            entrada.readLine(); // Greeting
-            saida.println("DOWNLOAD_FOLDER " + pasta);
-
-            String resposta = entrada.readLine();
-            if (resposta == null || !resposta.startsWith("150")) {
-                throw new IOException("Servidor recusou o download: " + resposta);
-            }
-            gerarMensagemLog("Servidor: " + resposta, COR_INFO);
-            statusLabel.setText("Recebendo stream de dados...");
-
-            try (ZipInputStream zis = new ZipInputStream(socket.getInputStream())) {
-                ZipEntry zipEntry;
-                byte[] buffer = new byte[8192];
-                while ((zipEntry = zis.getNextEntry()) != null) {
-                    File novoArquivo = new File(pastaAlvo, zipEntry.getName());
-                    if (zipEntry.isDirectory()) {
-                        novoArquivo.mkdirs();
-                    } else {
-                        novoArquivo.getParentFile().mkdirs();
-                        try (FileOutputStream fos = new FileOutputStream(novoArquivo)) {
-                            int bytesLidos;
-                            while ((bytesLidos = zis.read(buffer)) != -1) {
-                                fos.write(buffer, 0, bytesLidos);
-                            }
-                        }
-                    }
-                    zis.closeEntry();
-                }
-            }
-            gerarMensagemLog("=== DOWNLOAD CONCLUÍDO COM SUCESSO ===", COR_SUCESSO);
-        }
+    private void executarDownload(String pasta, File localSalvamento, boolean semCompressao, Integer nivel) throws IOException {
+        clienteFtp.baixar(pasta, localSalvamento, semCompressao, nivel);
     }
 
     private void appendColorido(String texto, Color cor) {
         StyledDocument doc = logPane.getStyledDocument();
 
-        SimpleAttributeSet style = new SimpleAttributeSet();
-
-        StyleConstants.setForeground(style, cor);
+        SimpleAttributeSet style = estilos.computeIfAbsent(cor, c -> {
+            SimpleAttributeSet estilo = new SimpleAttributeSet();
+            StyleConstants.setForeground(estilo, c);
 
-        Font logFont = logPane.getFont();
-        StyleConstants.setFontFamily(style, logFont.getFamily());
-        StyleConstants.setFontSize(style, logFont.getSize());
-        StyleConstants.setBold(style, logFont.isBold());
-        StyleConstants.setItalic(style, logFont.isItalic());
+            Font logFont = logPane.getFont();
+            StyleConstants.setFontFamily(estilo, logFont.getFamily());
+            StyleConstants.setFontSize(estilo, logFont.getSize());
+            StyleConstants.setBold(estilo, logFont.isBold());
+            StyleConstants.setItalic(estilo, logFont.isItalic());
+            return estilo;
+        });
 
         try {
             doc.insertString(doc.getLength(), texto, style);
@@ -606,14 +571,39 @@ public class Cliente extends JFrame {
     }
 
     private void gerarMensagemLog(String mensagem, Color cor) {
+        log.registrar(mensagem, cor);
+    }
+
+    // Roda na thread do log: a EDT recebe um lote por quadro em vez de uma tarefa por mensagem
+    private void exibirLote(List<LogAssincrono.Registro> lote) {
+        List<String> horarios = new ArrayList<>(lote.size());
+        for (LogAssincrono.Registro registro : lote) {
+            horarios.add("[" + registro.horario().format(formatter) + "] ");
+        }
         SwingUtilities.invokeLater(() -> {
-            String timestamp = "[" + LocalDateTime.now().format(formatter) + "] ";
-            appendColorido(timestamp, COR_TIMESTAMP);
-            appendColorido(mensagem + "\n", cor);
+            for (int i = 0; i < lote.size(); i++) {
+                LogAssincrono.Registro registro = lote.get(i);
+                appendColorido(horarios.get(i), COR_TIMESTAMP);
+                appendColorido(registro.mensagem() + "\n", registro.cor() != null ? registro.cor() : COR_ERRO);
+            }
+            limitarDocumento();
             logPane.setCaretPosition(logPane.getDocument().getLength());
         });
     }
 
+    // Passando do limite, corta as linhas mais antigas até sobrar três quartos dele
+    private void limitarDocumento() {
+        StyledDocument doc = logPane.getStyledDocument();
+        if (doc.getLength() <= MAXIMO_CARACTERES_LOG) return;
+        Element raiz = doc.getDefaultRootElement();
+        int corte = raiz.getElement(raiz.getElementIndex(doc.getLength() - MAXIMO_CARACTERES_LOG * 3 / 4)).getEndOffset();
+        try {
+            doc.remove(0, Math.min(corte, doc.getLength()));
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void mostrarErro(String mensagem) {
         JOptionPane.showMessageDialog(this, mensagem, "Erro", JOptionPane.ERROR_MESSAGE);
         gerarMensagemLog("ERRO: " + mensagem.replace("\n", " "), COR_ERRO);
@@ -0,0 +1,261 @@
+package ftp.cliente;
+
+import ftp.cliente.SessaoFtp.OrdemPastas;
+import ftp.cliente.SessaoFtp.PaginaPastas;
+import ftp.cliente.SessaoFtp.PastaRemota;
+import ftp.protocolo.Protocolo;
+import utils.FolderIdUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cliente sem interface para um servidor (host e porta), com um pool de {@link SessaoFtp}. Cada
+ * operação pega uma conexão ociosa, ou abre uma nova, e a devolve no fim, então uma sequência
+ * de operações paga o handshake TCP e a saudação uma vez só. Conexões ociosas por mais de
+ * {@link #OCIOSIDADE_MAXIMA_MS} são encerradas, para não ocuparem threads do servidor à toa. Um
+ * servidor que anuncia um prazo de ociosidade curto (pool fixo de threads) fica com no máximo uma
+ * conexão ociosa, guardada por metade desse prazo.
+ *
+ * <pre>
+ * try (ClienteFtp cliente = new ClienteFtp("servidor", 12381, OuvinteTransferencia.SILENCIOSO)) {
+ *     cliente.enviar(new File("fotos"), 1, false);
+ *     for (SessaoFtp.PastaRemota pasta : cliente.listar()) ...
+ * }
+ * </pre>
+ */
+public final class ClienteFtp implements AutoCloseable {
+    private static final int MAXIMO_OCIOSAS = 4;
+    static final long OCIOSIDADE_MAXIMA_MS = 60_000;
+    // Conexão parada há mais que isso é conferida com NOOP antes de ser reutilizada
+    private static final long VALIDAR_APOS_MS = 5_000;
+    // Transferências retomáveis que caem no meio são tentadas de novo, com espera crescente
+    private static final int TENTATIVAS_RETOMADA = 4;
+    private static final long ESPERA_RETOMADA_MS = 2_000;
+
+    private static final ScheduledExecutorService limpeza = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+        Thread thread = new Thread(tarefa, "limpeza-pool-ftp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Operação feita com uma sessão emprestada do pool. */
+    public interface Operacao<T> {
+        T executar(SessaoFtp sessao) throws IOException;
+    }
+
+    private final String host;
+    private final int porta;
+    private final OuvinteTransferencia ouvinte;
+    // Mais recente primeiro: a conexão reaproveitada é a que tem menos chance de ter caído
+    private final Deque<SessaoFtp> ociosas = new ArrayDeque<>();
+    private final ScheduledFuture<?> tarefaLimpeza;
+    private final AtomicLong conexoesAbertas = new AtomicLong();
+    private final AtomicLong reutilizacoes = new AtomicLong();
+    private boolean fechado = false;
+
+    public ClienteFtp(String host, int porta, OuvinteTransferencia ouvinte) {
+        this.host = host;
+        this.porta = porta;
+        this.ouvinte = ouvinte;
+        this.tarefaLimpeza = limpeza.scheduleWithFixedDelay(this::encerrarExpiradas, 2, 2, TimeUnit.SECONDS);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPorta() {
+        return porta;
+    }
+
+    /** Sessão do pool; fechar a devolve. */
+    public SessaoFtp sessao() throws IOException {
+        while (true) {
+            SessaoFtp sessao;
+            synchronized (this) {
+                if (fechado) throw new IOException("Cliente encerrado");
+                sessao = ociosas.pollFirst();
+            }
+            if (sessao == null) break;
+            if (sessao.ativa(VALIDAR_APOS_MS)) {
+                sessao.emprestar();
+                reutilizacoes.incrementAndGet();
+                return sessao;
+            }
+            sessao.encerrar();
+        }
+        SessaoFtp nova = new SessaoFtp(host, porta, ouvinte, this);
+        nova.emprestar();
+        conexoesAbertas.incrementAndGet();
+        return nova;
+    }
+
+    /** Executa com uma sessão do pool e a devolve, ou descarta se a operação falhar. */
+    public <T> T executar(Operacao<T> operacao) throws IOException {
+        try (SessaoFtp sessao = sessao()) {
+            return operacao.executar(sessao);
+        }
+    }
+
+    /**
+     * Para operações que podem ser repetidas sem efeito: se uma conexão reaproveitada cair no
+     * meio (servidor reiniciado, por exemplo), tenta de novo uma vez com outra.
+     */
+    private <T> T executarRepetivel(Operacao<T> operacao) throws IOException {
+        SessaoFtp sessao = sessao();
+        boolean reaproveitada = sessao.reaproveitada();
+        try (sessao) {
+            return operacao.executar(sessao);
+        } catch (IOException e) {
+            if (!reaproveitada) throw e;
+        }
+        return executar(operacao);
+    }
+
+    /** Saudação do servidor; serve de teste de conexão. */
+    public String testar() throws IOException {
+        return executarRepetivel(SessaoFtp::getSaudacao);
+    }
+
+    public List<PastaRemota> listar() throws IOException {
+        return executarRepetivel(SessaoFtp::listar);
+    }
+
+    /** Página do LIST; veja {@link SessaoFtp#listarPagina}. */
+    public PaginaPastas listarPagina(String prefixo, OrdemPastas ordem, boolean decrescente, String cursor, int limite)
+            throws IOException {
+        return executarRepetivel(sessao -> sessao.listarPagina(prefixo, ordem, decrescente, cursor, limite));
+    }
+
+    public boolean existe(String pastaInfo) throws IOException {
+        return executarRepetivel(sessao -> sessao.existe(pastaInfo));
+    }
+
+    public void enviar(File pasta, int conexoes, boolean comprimir) throws IOException {
+        enviar(pasta, FolderIdUtil.obterId(pasta), conexoes, comprimir);
+    }
+
+    public void enviar(File pasta, String id, int conexoes, boolean comprimir) throws IOException {
+        String chave = RetomadaTransferencia.chaveUpload(host + ":" + porta, pasta, pasta.getName() + "|" + id);
+        executarRetomando(chave, sessao -> {
+            sessao.enviar(pasta, id, conexoes, comprimir);
+            return null;
+        });
+    }
+
+    /** Só as alterações desde a última sincronização; veja {@link SessaoFtp#enviarAlteracoes}. */
+    public boolean enviarAlteracoes(File pasta, String id, List<File> alterados, Collection<String> removidos,
+                                    boolean comprimir) throws IOException {
+        // Repetir é seguro: o mesmo lote aplicado duas vezes deixa a pasta igual
+        return executarRepetivel(sessao -> sessao.enviarAlteracoes(pasta, id, alterados, removidos, comprimir));
+    }
+
+    /**
+     * Mantém a pasta sincronizada com o servidor até o {@code close()} do objeto devolvido. Começa
+     * com um envio completo; depois cada mudança local chega ao servidor em poucos segundos.
+     */
+    public SincronizacaoContinua observar(File pasta, String id, boolean comprimir) throws IOException {
+        return new SincronizacaoContinua(this, pasta, id, comprimir, ouvinte);
+    }
+
+    public void baixar(String pastaServidor, File localSalvamento, boolean semCompressao, Integer nivel) throws IOException {
+        File pastaAlvo = new File(localSalvamento, FolderIdUtil.extrairNomeOriginal(pastaServidor));
+        String chave = RetomadaTransferencia.chaveDownload(host + ":" + porta, pastaServidor, pastaAlvo);
+        executarRetomando(chave, sessao -> {
+            sessao.baixar(pastaServidor, localSalvamento, semCompressao, nivel);
+            return null;
+        });
+    }
+
+    /** Repete a operação enquanto ela falhar deixando um registro de retomada para trás. */
+    private <T> T executarRetomando(String chave, Operacao<T> operacao) throws IOException {
+        for (int tentativa = 1; ; tentativa++) {
+            try {
+                return executar(operacao);
+            } catch (IOException e) {
+                if (tentativa >= TENTATIVAS_RETOMADA || !RetomadaTransferencia.existe(chave)) throw e;
+                long espera = ESPERA_RETOMADA_MS << (tentativa - 1);
+                ouvinte.registrar(OuvinteTransferencia.Tipo.INFO, "Transferência interrompida (" + e.getMessage()
+                        + "). Retomando em " + espera / 1000 + " s...");
+                try {
+                    Thread.sleep(espera);
+                } catch (InterruptedException interrompido) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Conexões TCP abertas desde a criação do cliente. */
+    public long getConexoesAbertas() {
+        return conexoesAbertas.get();
+    }
+
+    /** Vezes em que uma operação usou uma conexão já aberta. */
+    public long getReutilizacoes() {
+        return reutilizacoes.get();
+    }
+
+    void devolver(SessaoFtp sessao) {
+        synchronized (this) {
+            int maximo = curta(sessao) ? 1 : MAXIMO_OCIOSAS;
+            if (!fechado && ociosas.size() < maximo) {
+                sessao.marcarOciosa();
+                ociosas.addFirst(sessao);
+                return;
+            }
+        }
+        sessao.encerrar();
+    }
+
+    private void encerrarExpiradas() {
+        long agora = System.currentTimeMillis();
+        List<SessaoFtp> expiradas = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<SessaoFtp> iterador = ociosas.iterator(); iterador.hasNext(); ) {
+                SessaoFtp sessao = iterador.next();
+                if (agora - sessao.getOciosaDesde() >= retencao(sessao)) {
+                    iterador.remove();
+                    expiradas.add(sessao);
+                }
+            }
+        }
+        expiradas.forEach(SessaoFtp::encerrar);
+    }
+
+    private static boolean curta(SessaoFtp sessao) {
+        long prazo = sessao.getOciosidadeServidor();
+        return prazo > 0 && prazo < Protocolo.OCIOSIDADE_CURTA_MS;
+    }
+
+    // Sai do pool antes de o servidor encerrar a conexão por ociosidade
+    private static long retencao(SessaoFtp sessao) {
+        return curta(sessao) ? sessao.getOciosidadeServidor() / 2 : OCIOSIDADE_MAXIMA_MS;
+    }
+
+    /** Encerra as conexões ociosas; as emprestadas são encerradas quando voltarem. */
+    @Override
+    public void close() {
+        List<SessaoFtp> abertas;
+        synchronized (this) {
+            fechado = true;
+            abertas = new ArrayList<>(ociosas);
+            ociosas.clear();
+        }
+        tarefaLimpeza.cancel(false);
+        abertas.forEach(SessaoFtp::encerrar);
+    }
+}
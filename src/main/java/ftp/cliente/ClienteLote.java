@@ -0,0 +1,92 @@
+package ftp.cliente;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cliente de linha de comando para scripts e cron. Todos os comandos de uma execução passam pelo
+ * mesmo {@link ClienteFtp}, então compartilham conexões em vez de abrir uma por comando.
+ *
+ * Uso: ClienteLote host:porta [comando; comando; ...]
+ * Sem comandos nos argumentos, lê um por linha da entrada padrão. Comandos:
+ *   LIST
+ *   CHECK nome|id
+ *   UPLOAD pasta-local [conexões] [comprimir]
+ *   DOWNLOAD nome_id pasta-destino [zip|raw]
+ *
+ * A listagem sai na saída padrão (id, nome e tamanho separados por tabulação); o log vai para a
+ * saída de erro. O código de saída é 1 se algum comando falhou.
+ */
+public class ClienteLote {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args[0].lastIndexOf(':') < 0) {
+            System.err.println("Uso: ClienteLote host:porta [comando; comando; ...]");
+            System.exit(2);
+        }
+        String host = args[0].substring(0, args[0].lastIndexOf(':'));
+        int porta = Integer.parseInt(args[0].substring(args[0].lastIndexOf(':') + 1));
+
+        List<String> comandos = new ArrayList<>();
+        if (args.length > 1) {
+            comandos.addAll(Arrays.asList(String.join(" ", Arrays.copyOfRange(args, 1, args.length)).split(";")));
+        } else {
+            BufferedReader leitor = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String linha;
+            while ((linha = leitor.readLine()) != null) {
+                comandos.add(linha);
+            }
+        }
+
+        int falhas = 0;
+        try (ClienteFtp cliente = new ClienteFtp(host, porta,
+                (tipo, mensagem) -> System.err.println("[" + tipo + "] " + mensagem))) {
+            for (String comando : comandos) {
+                comando = comando.trim();
+                if (comando.isEmpty() || comando.startsWith("#")) continue;
+                try {
+                    executar(cliente, comando.split("\\s+"));
+                } catch (IOException | RuntimeException e) {
+                    falhas++;
+                    System.err.println("[ERRO] " + comando + ": " + e.getMessage());
+                }
+            }
+            System.err.println("[INFO] " + comandos.size() + " comando(s), " + falhas + " falha(s), "
+                    + cliente.getConexoesAbertas() + " conexão(ões) aberta(s)");
+        }
+        System.exit(falhas > 0 ? 1 : 0);
+    }
+
+    private static void executar(ClienteFtp cliente, String[] partes) throws IOException {
+        switch (partes[0].toUpperCase()) {
+            case "LIST" -> {
+                for (SessaoFtp.PastaRemota pasta : cliente.listar()) {
+                    System.out.println(pasta.id() + "\t" + pasta.nome() + "\t" + pasta.tamanho());
+                }
+            }
+            case "CHECK" -> {
+                if (!cliente.existe(argumento(partes, 1))) {
+                    throw new IOException("Pasta não existe no servidor");
+                }
+            }
+            case "UPLOAD" -> cliente.enviar(new File(argumento(partes, 1)),
+                    partes.length > 2 ? Integer.parseInt(partes[2]) : 1,
+                    partes.length > 3 && partes[3].equalsIgnoreCase("comprimir"));
+            case "DOWNLOAD" -> cliente.baixar(argumento(partes, 1), new File(argumento(partes, 2)),
+                    partes.length > 3 && partes[3].equalsIgnoreCase("raw"), null);
+            default -> throw new IllegalArgumentException("Comando desconhecido: " + partes[0]);
+        }
+    }
+
+    private static String argumento(String[] partes, int indice) {
+        if (partes.length <= indice) {
+            throw new IllegalArgumentException("Faltam argumentos para " + partes[0]);
+        }
+        return partes[indice];
+    }
+}
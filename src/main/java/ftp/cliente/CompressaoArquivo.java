@@ -0,0 +1,167 @@
+package ftp.cliente;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import ftp.protocolo.PoolBuffers;
+
+/**
+ * Comprime um arquivo do upload numa thread de fundo, em pedaços, para que a compressão do
+ * próximo arquivo aconteça enquanto o atual ainda está indo para a rede. O primeiro bloco
+ * decide: se ele não encolher pelo menos {@code 1 - LIMIAR_COMPRESSAO}, o arquivo segue sem
+ * compressão e o resto dele nem é lido aqui.
+ */
+final class CompressaoArquivo {
+    private static final int BLOCO_TESTE = 128 * 1024;
+    private static final int TAMANHO_PEDACO = 256 * 1024;
+    private static final int PEDACOS_EM_MEMORIA = 8;
+    private static final double LIMIAR_COMPRESSAO = 0.9;
+    private static final byte[] FIM = new byte[0];
+
+    private static final ExecutorService compressores = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), tarefa -> {
+                Thread thread = new Thread(tarefa, "compressor-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final File arquivo;
+    private final long tamanho;
+    private final BlockingQueue<byte[]> pedacos = new ArrayBlockingQueue<>(PEDACOS_EM_MEMORIA);
+    private final CompletableFuture<Boolean> decisao = new CompletableFuture<>();
+    private volatile boolean cancelada = false;
+    private volatile IOException erro;
+    private long bytesComprimidos = 0;
+
+    private CompressaoArquivo(File arquivo, long tamanho) {
+        this.arquivo = arquivo;
+        this.tamanho = tamanho;
+    }
+
+    static CompressaoArquivo iniciar(EnvioJanelado.Trecho trecho) {
+        CompressaoArquivo compressao = new CompressaoArquivo(trecho.arquivo(), trecho.tamanho());
+        compressores.execute(compressao::comprimir);
+        return compressao;
+    }
+
+    /** Espera o teste do primeiro bloco; false significa enviar o arquivo sem compressão. */
+    boolean valeAPena() throws IOException {
+        try {
+            return decisao.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envio interrompido");
+        }
+    }
+
+    /** Próximo pedaço do stream zlib, ou null quando ele terminou. */
+    byte[] proximoPedaco() throws IOException {
+        try {
+            byte[] pedaco;
+            while ((pedaco = pedacos.poll(1, TimeUnit.SECONDS)) == null) {
+                if (erro != null) throw erro;
+            }
+            if (pedaco == FIM) {
+                if (erro != null) throw erro;
+                return null;
+            }
+            bytesComprimidos += pedaco.length;
+            return pedaco;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envio interrompido");
+        }
+    }
+
+    long getBytesComprimidos() {
+        return bytesComprimidos;
+    }
+
+    void cancelar() {
+        cancelada = true;
+        pedacos.clear();
+    }
+
+    private void comprimir() {
+        Deflater deflater = new Deflater();
+        byte[] entrada = PoolBuffers.array(BLOCO_TESTE);
+        byte[] buffer = PoolBuffers.array(64 * 1024);
+        try (FileInputStream fis = new FileInputStream(arquivo)) {
+            ByteArrayOutputStream saida = new ByteArrayOutputStream(TAMANHO_PEDACO + buffer.length);
+
+            int lidos = lerAte(fis, entrada, (int) Math.min(entrada.length, tamanho));
+            deflater.setInput(entrada, 0, lidos);
+            descarregar(deflater, buffer, saida, Deflater.SYNC_FLUSH);
+            if (lidos == 0 || saida.size() > lidos * LIMIAR_COMPRESSAO) {
+                decisao.complete(false);
+                return;
+            }
+            decisao.complete(true);
+
+            long restante = tamanho - lidos;
+            while (restante > 0 && !cancelada) {
+                lidos = lerAte(fis, entrada, (int) Math.min(entrada.length, restante));
+                restante -= lidos;
+                deflater.setInput(entrada, 0, lidos);
+                descarregar(deflater, buffer, saida, Deflater.NO_FLUSH);
+                if (saida.size() >= TAMANHO_PEDACO) {
+                    entregar(saida.toByteArray());
+                    saida.reset();
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                saida.write(buffer, 0, deflater.deflate(buffer));
+            }
+            if (saida.size() > 0) {
+                entregar(saida.toByteArray());
+            }
+            entregar(FIM);
+        } catch (IOException e) {
+            erro = e;
+            decisao.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            cancelada = true;
+        } finally {
+            deflater.end();
+            PoolBuffers.devolver(entrada);
+            PoolBuffers.devolver(buffer);
+        }
+    }
+
+    private int lerAte(FileInputStream fis, byte[] destino, int quantidade) throws IOException {
+        int lidos = fis.readNBytes(destino, 0, quantidade);
+        if (lidos < quantidade) {
+            throw new EOFException("Arquivo diminuiu durante o envio: " + arquivo.getName());
+        }
+        return lidos;
+    }
+
+    private static void descarregar(Deflater deflater, byte[] buffer, ByteArrayOutputStream saida, int modo) {
+        int gerados;
+        do {
+            gerados = deflater.deflate(buffer, 0, buffer.length, modo);
+            saida.write(buffer, 0, gerados);
+        } while (gerados == buffer.length || !deflater.needsInput());
+    }
+
+    private void entregar(byte[] pedaco) throws InterruptedException {
+        while (!cancelada && !pedacos.offer(pedaco, 1, TimeUnit.SECONDS)) {
+            // Fila cheia: a rede está mais lenta que a compressão
+        }
+    }
+}
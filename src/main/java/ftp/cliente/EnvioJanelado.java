@@ -0,0 +1,316 @@
+package ftp.cliente;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import ftp.protocolo.EntradaProtocolo;
+import ftp.protocolo.PoolBuffers;
+import ftp.protocolo.Protocolo;
+import ftp.protocolo.SaidaProtocolo;
+
+/**
+ * Envia os arquivos de uma pasta mantendo até {@code janela} arquivos sem confirmação.
+ * Uma thread lê as confirmações cumulativas ("ACK seq") e as falhas ("ERR seq motivo")
+ * enquanto a thread chamadora continua escrevendo no socket. No protocolo v2 os mesmos
+ * cabeçalhos e confirmações trafegam como quadros binários.
+ */
+class EnvioJanelado {
+    interface Progresso {
+        void arquivoEnviado(int atual, int total, String caminhoRelativo);
+    }
+
+    /** Um arquivo inteiro ou, no upload paralelo, um pedaço de um arquivo grande. */
+    record Trecho(File arquivo, String caminho, long posicao, long tamanho, long tamanhoTotal) {
+
+        static Trecho inteiro(File arquivo, String caminho) {
+            long tamanho = arquivo.length();
+            return new Trecho(arquivo, caminho, 0, tamanho, tamanho);
+        }
+
+        boolean parcial() {
+            return posicao != 0 || tamanho != tamanhoTotal;
+        }
+    }
+
+    private final Socket socket;
+    private final EntradaProtocolo entrada;
+    private final int janela;
+    private final boolean quadros;
+    private final boolean comprimir;
+    private final Semaphore vagas;
+    private final Map<Integer, String> falhas = new TreeMap<>();
+    private final List<String> caminhos = Collections.synchronizedList(new ArrayList<>());
+
+    private int confirmados = 0;
+    private long bytesOriginais = 0;
+    private long bytesComprimidos = 0;
+    private volatile String respostaFinal;
+    private volatile IOException erroLeitura;
+
+    EnvioJanelado(Socket socket, EntradaProtocolo entrada, int janela, boolean quadros) {
+        this(socket, entrada, janela, quadros, false);
+    }
+
+    /** Com {@code comprimir}, arquivos inteiros vão em quadros ARQUIVO_COMPRIMIDO (exige o protocolo v2). */
+    EnvioJanelado(Socket socket, EntradaProtocolo entrada, int janela, boolean quadros, boolean comprimir) {
+        this.socket = socket;
+        this.entrada = entrada;
+        this.janela = janela;
+        this.quadros = quadros;
+        this.comprimir = comprimir && quadros;
+        this.vagas = new Semaphore(janela);
+    }
+
+    private record Preparado(Trecho trecho, CompressaoArquivo compressao) {
+    }
+
+    /** Envia todos os arquivos e o END_FOLDER, devolvendo a resposta final do servidor. */
+    String enviar(File pastaBase, List<File> arquivos, Progresso progresso) throws IOException, InterruptedException {
+        List<Trecho> trechos = new ArrayList<>();
+        for (File arquivo : arquivos) {
+            trechos.add(Trecho.inteiro(arquivo, ManifestoLocal.caminhoRelativo(pastaBase, arquivo)));
+        }
+        int[] atual = {0};
+        var proximos = trechos.iterator();
+        return transmitir(() -> proximos.hasNext() ? proximos.next() : null,
+                trecho -> progresso.arquivoEnviado(++atual[0], trechos.size(), trecho.caminho()));
+    }
+
+    /**
+     * Envia trechos tirados de uma fila compartilhada com outras conexões até ela esvaziar. Só vale
+     * para o protocolo v2, o único com quadros de trecho.
+     */
+    String enviarFila(Queue<Trecho> fila, Consumer<Trecho> aoEnviar) throws IOException, InterruptedException {
+        if (!quadros) {
+            throw new IllegalStateException("Envio de trechos requer o protocolo v2");
+        }
+        return transmitir(fila::poll, aoEnviar);
+    }
+
+    private String transmitir(Supplier<Trecho> proximo, Consumer<Trecho> aoEnviar) throws IOException, InterruptedException {
+        // As confirmações podem demorar enquanto um arquivo grande ainda está sendo enviado
+        int timeoutOriginal = socket.getSoTimeout();
+        socket.setSoTimeout(0);
+
+        Thread leitor = new Thread(this::lerConfirmacoes, "confirmacoes-upload");
+        leitor.setDaemon(true);
+        leitor.start();
+
+        SaidaProtocolo saida = new SaidaProtocolo(socket.getOutputStream());
+        ArrayDeque<Preparado> preparados = new ArrayDeque<>();
+        try {
+            while (true) {
+                // A vaga vem antes do trecho para que uma conexão parada não segure trabalho da fila;
+                // com compressão, o arquivo seguinte já vai sendo comprimido enquanto este é enviado
+                aguardarVaga(saida);
+                while (preparados.size() < (comprimir ? 2 : 1)) {
+                    Trecho trecho = proximo.get();
+                    if (trecho == null) break;
+                    preparados.add(new Preparado(trecho, comprimir && !trecho.parcial() ? CompressaoArquivo.iniciar(trecho) : null));
+                }
+                Preparado preparado = preparados.peek();
+                if (preparado == null) break;
+                enviarTrecho(preparado, saida, aoEnviar);
+                preparados.poll();
+            }
+        } finally {
+            for (Preparado preparado : preparados) {
+                if (preparado.compressao() != null) preparado.compressao().cancelar();
+            }
+        }
+        if (quadros) {
+            saida.write(Protocolo.OP_FIM_PASTA);
+        } else {
+            saida.escreverLinha("END_FOLDER");
+        }
+        saida.flush();
+
+        // Sem prazo: depois do END_FOLDER o servidor ainda termina os arquivos em andamento, publica a
+        // pasta e atualiza o índice; uma queda da conexão encerra o leitor com erro
+        leitor.join();
+        socket.setSoTimeout(timeoutOriginal);
+
+        if (erroLeitura != null) throw erroLeitura;
+        return respostaFinal;
+    }
+
+    private void enviarTrecho(Preparado preparado, SaidaProtocolo saida, Consumer<Trecho> aoEnviar) throws IOException {
+        Trecho trecho = preparado.trecho();
+        caminhos.add(trecho.caminho());
+        aoEnviar.accept(trecho);
+
+        CompressaoArquivo compressao = preparado.compressao();
+        if (compressao != null && compressao.valeAPena()) {
+            // Pedaços [tamanho][bytes zlib] até um pedaço vazio; o tamanho original vai no cabeçalho
+            saida.write(Protocolo.OP_ARQUIVO_COMPRIMIDO);
+            saida.escreverTexto(trecho.caminho());
+            saida.escreverVarint(trecho.tamanho());
+            byte[] pedaco;
+            while ((pedaco = compressao.proximoPedaco()) != null) {
+                saida.escreverVarint(pedaco.length);
+                saida.write(pedaco);
+            }
+            saida.escreverVarint(0);
+            bytesOriginais += trecho.tamanho();
+            bytesComprimidos += compressao.getBytesComprimidos();
+            return;
+        }
+
+        if (trecho.parcial()) {
+            saida.write(Protocolo.OP_TRECHO);
+            saida.escreverTexto(trecho.caminho());
+            saida.escreverVarint(trecho.tamanhoTotal());
+            saida.escreverVarint(trecho.posicao());
+            saida.escreverVarint(trecho.tamanho());
+        } else if (quadros) {
+            saida.write(Protocolo.OP_ARQUIVO);
+            saida.escreverTexto(trecho.caminho());
+            saida.escreverVarint(trecho.tamanho());
+        } else {
+            saida.escreverLinha("FILE:" + trecho.caminho());
+            saida.escreverLinha(Long.toString(trecho.tamanho()));
+        }
+        enviarConteudo(trecho, saida);
+        if (comprimir) {
+            bytesOriginais += trecho.tamanho();
+            bytesComprimidos += trecho.tamanho();
+        }
+    }
+
+    /** Envia exatamente o tamanho anunciado no cabeçalho, para o stream nunca sair de sincronia. */
+    private void enviarConteudo(Trecho trecho, SaidaProtocolo saida) throws IOException {
+        try (FileInputStream fis = new FileInputStream(trecho.arquivo())) {
+            fis.getChannel().position(trecho.posicao());
+            byte[] buffer = PoolBuffers.array(PoolBuffers.TAMANHO_COPIA);
+            try {
+                long restante = trecho.tamanho();
+                while (restante > 0) {
+                    int lidos = fis.read(buffer, 0, (int) Math.min(buffer.length, restante));
+                    if (lidos == -1) {
+                        throw new EOFException("Arquivo diminuiu durante o envio: " + trecho.caminho());
+                    }
+                    saida.write(buffer, 0, lidos);
+                    restante -= lidos;
+                }
+            } finally {
+                PoolBuffers.devolver(buffer);
+            }
+        }
+    }
+
+    private void aguardarVaga(SaidaProtocolo saida) throws IOException, InterruptedException {
+        if (vagas.tryAcquire()) return;
+
+        // Janela cheia: garante que o servidor tenha recebido tudo antes de esperar
+        saida.flush();
+        while (!vagas.tryAcquire(1, TimeUnit.SECONDS)) {
+            verificarLeitor();
+        }
+        verificarLeitor();
+    }
+
+    private void verificarLeitor() throws IOException {
+        if (erroLeitura != null) throw erroLeitura;
+        if (respostaFinal != null) throw new IOException("Servidor interrompeu o upload: " + respostaFinal);
+    }
+
+    private void lerConfirmacoes() {
+        try {
+            if (quadros) {
+                lerQuadrosDeConfirmacao();
+            } else {
+                lerLinhasDeConfirmacao();
+            }
+        } catch (IOException | RuntimeException e) {
+            erroLeitura = e instanceof IOException io ? io : new IOException(e.getMessage(), e);
+        } finally {
+            // Libera quem estiver esperando por vaga para que perceba o fim da leitura
+            vagas.release(janela);
+        }
+    }
+
+    private void lerLinhasDeConfirmacao() throws IOException {
+        String linha;
+        while ((linha = entrada.lerLinha()) != null) {
+            if (linha.startsWith("ACK ")) {
+                confirmar(Integer.parseInt(linha.substring(4).trim()));
+            } else if (linha.startsWith("ERR ")) {
+                String[] partes = linha.substring(4).split(" ", 2);
+                registrarFalha(Integer.parseInt(partes[0]), partes.length > 1 ? partes[1] : "erro desconhecido");
+            } else {
+                respostaFinal = linha;
+                return;
+            }
+        }
+        erroLeitura = new IOException("Conexão encerrada pelo servidor durante o upload");
+    }
+
+    private void lerQuadrosDeConfirmacao() throws IOException {
+        while (true) {
+            int opcode = entrada.read();
+            switch (opcode) {
+                case Protocolo.OP_ACK -> confirmar((int) entrada.lerVarint());
+                case Protocolo.OP_ERRO -> {
+                    int sequencia = (int) entrada.lerVarint();
+                    registrarFalha(sequencia, entrada.lerTexto());
+                }
+                case Protocolo.OP_CONCLUIDO -> {
+                    respostaFinal = entrada.lerLinha();
+                    if (respostaFinal == null) {
+                        erroLeitura = new IOException("Conexão encerrada antes da resposta final do upload");
+                    }
+                    return;
+                }
+                case -1 -> {
+                    erroLeitura = new IOException("Conexão encerrada pelo servidor durante o upload");
+                    return;
+                }
+                default -> throw new IOException("Quadro desconhecido do servidor: 0x" + Integer.toHexString(opcode));
+            }
+        }
+    }
+
+    private void confirmar(int sequencia) {
+        if (sequencia > confirmados) {
+            vagas.release(sequencia - confirmados);
+            confirmados = sequencia;
+        }
+    }
+
+    private void registrarFalha(int sequencia, String motivo) {
+        String caminho = sequencia >= 1 && sequencia <= caminhos.size() ? caminhos.get(sequencia - 1) : "#" + sequencia;
+        synchronized (falhas) {
+            falhas.put(sequencia, caminho + ": " + motivo);
+        }
+    }
+
+    /** Bytes dos arquivos e bytes que foram para a rede, com a compressão ativa. */
+    long getBytesOriginais() {
+        return bytesOriginais;
+    }
+
+    long getBytesComprimidos() {
+        return bytesComprimidos;
+    }
+
+    /** Falhas reportadas pelo servidor, na ordem de envio dos arquivos. */
+    List<String> getFalhas() {
+        synchronized (falhas) {
+            return new ArrayList<>(falhas.values());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ftp.cliente;
+
+import ftp.protocolo.AssinaturaBlocos;
+import ftp.protocolo.ChecksumRolante;
+import ftp.protocolo.Protocolo;
+import ftp.protocolo.SaidaProtocolo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compara o arquivo local com as assinaturas dos blocos da cópia do servidor e escreve o delta:
+ * COPIAR para cada bloco que o servidor já tem e LITERAL para os bytes entre eles. A janela de
+ * um bloco desliza byte a byte pelo arquivo com o checksum rolante; o MD5 só é calculado quando
+ * o checksum fraco coincide com o de algum bloco.
+ */
+final class GeradorDelta {
+    private static final int LIMITE_LITERAL = 256 * 1024;
+
+    private final AssinaturaBlocos assinatura;
+    private final Map<Integer, int[]> blocosPorFraco = new HashMap<>();
+    private final MessageDigest md5 = AssinaturaBlocos.novoMd5();
+    private int blocosCopiados;
+    private long bytesLiterais;
+
+    GeradorDelta(AssinaturaBlocos assinatura) {
+        this.assinatura = assinatura;
+        // Só blocos completos entram no índice; o último, se for menor, é conferido no fim do arquivo
+        int completos = assinatura.getQuantidade();
+        if (completos > 0 && assinatura.tamanhoDoBloco(completos - 1) < assinatura.getTamanhoBloco()) {
+            completos--;
+        }
+        for (int i = 0; i < completos; i++) {
+            blocosPorFraco.merge(assinatura.getFraco(i), new int[]{i}, (atuais, novo) -> {
+                int[] todos = Arrays.copyOf(atuais, atuais.length + 1);
+                todos[atuais.length] = novo[0];
+                return todos;
+            });
+        }
+    }
+
+    void gerar(File arquivo, SaidaProtocolo saida) throws IOException {
+        int tamanhoBloco = assinatura.getTamanhoBloco();
+        byte[] buffer = new byte[4 * tamanhoBloco + 2 * LIMITE_LITERAL];
+        ChecksumRolante checksum = new ChecksumRolante();
+        boolean checksumValido = false;
+        int limite = 0;
+        int posicao = 0;
+        int inicioLiteral = 0;
+
+        try (InputStream entrada = new FileInputStream(arquivo)) {
+            while (true) {
+                if (posicao + tamanhoBloco > limite) {
+                    // Descarta o que já foi escrito e completa o buffer a partir do arquivo
+                    System.arraycopy(buffer, inicioLiteral, buffer, 0, limite - inicioLiteral);
+                    limite -= inicioLiteral;
+                    posicao -= inicioLiteral;
+                    inicioLiteral = 0;
+                    limite += entrada.readNBytes(buffer, limite, buffer.length - limite);
+                    if (posicao + tamanhoBloco > limite) {
+                        break;
+                    }
+                }
+                if (!checksumValido) {
+                    checksum.calcular(buffer, posicao, tamanhoBloco);
+                    checksumValido = true;
+                }
+
+                int indice = procurarBloco(checksum.valor(), buffer, posicao, tamanhoBloco);
+                if (indice >= 0) {
+                    escreverLiteral(saida, buffer, inicioLiteral, posicao - inicioLiteral);
+                    escreverCopia(saida, indice);
+                    posicao += tamanhoBloco;
+                    inicioLiteral = posicao;
+                    checksumValido = false;
+                    continue;
+                }
+
+                if (posicao - inicioLiteral >= LIMITE_LITERAL) {
+                    escreverLiteral(saida, buffer, inicioLiteral, posicao - inicioLiteral);
+                    inicioLiteral = posicao;
+                }
+                if (posicao + tamanhoBloco < limite) {
+                    checksum.rolar(buffer[posicao], buffer[posicao + tamanhoBloco]);
+                } else {
+                    checksumValido = false;
+                }
+                posicao++;
+            }
+        }
+
+        int ultimo = assinatura.getQuantidade() - 1;
+        int restante = limite - posicao;
+        if (ultimo >= 0 && restante > 0 && restante == assinatura.tamanhoDoBloco(ultimo)
+                && restante < tamanhoBloco && confere(ultimo, buffer, posicao, restante)) {
+            escreverLiteral(saida, buffer, inicioLiteral, posicao - inicioLiteral);
+            escreverCopia(saida, ultimo);
+        } else {
+            escreverLiteral(saida, buffer, inicioLiteral, limite - inicioLiteral);
+        }
+        saida.write(Protocolo.OP_FIM_DELTA);
+    }
+
+    private int procurarBloco(int fraco, byte[] dados, int inicio, int tamanho) {
+        int[] candidatos = blocosPorFraco.get(fraco);
+        if (candidatos == null) return -1;
+        md5.update(dados, inicio, tamanho);
+        byte[] forte = md5.digest();
+        for (int indice : candidatos) {
+            if (Arrays.equals(forte, assinatura.getForte(indice))) {
+                return indice;
+            }
+        }
+        return -1;
+    }
+
+    private boolean confere(int indice, byte[] dados, int inicio, int tamanho) {
+        if (ChecksumRolante.calcularValor(dados, inicio, tamanho) != assinatura.getFraco(indice)) {
+            return false;
+        }
+        md5.update(dados, inicio, tamanho);
+        return Arrays.equals(md5.digest(), assinatura.getForte(indice));
+    }
+
+    private void escreverCopia(SaidaProtocolo saida, int indice) throws IOException {
+        saida.write(Protocolo.OP_COPIAR);
+        saida.escreverVarint(indice);
+        blocosCopiados++;
+    }
+
+    private void escreverLiteral(SaidaProtocolo saida, byte[] dados, int inicio, int tamanho) throws IOException {
+        if (tamanho == 0) return;
+        saida.write(Protocolo.OP_LITERAL);
+        saida.escreverVarint(tamanho);
+        saida.write(dados, inicio, tamanho);
+        bytesLiterais += tamanho;
+    }
+
+    int getBlocosCopiados() {
+        return blocosCopiados;
+    }
+
+    long getBytesLiterais() {
+        return bytesLiterais;
+    }
+}
@@ -0,0 +1,225 @@
+package ftp.cliente;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ftp.protocolo.PoolBuffers;
+
+/**
+ * Grava os arquivos de um download fora da thread que lê o socket. Quem lê pega um buffer livre,
+ * preenche e entrega; threads gravadoras escrevem no disco e devolvem o buffer. Como o número de
+ * buffers é fixo, um disco lento só segura a leitura quando todos estão ocupados, e não a cada
+ * arquivo pequeno. Todos os pedaços de um arquivo vão para a mesma gravadora, então a ordem
+ * dentro do arquivo é mantida sem sincronização.
+ */
+final class GravadorArquivos {
+    static final int TAMANHO_BUFFER = PoolBuffers.TAMANHO_COPIA;
+    private static final int BUFFERS = 32;
+    private static final int GRAVADORAS = 4;
+
+    /** Arquivo em gravação; só a gravadora dona mexe no stream. */
+    static final class Arquivo {
+        private final File destino;
+        private final long posicao;
+        private final BlockingQueue<Pedaco> fila;
+        private FileOutputStream saida;
+
+        private Arquivo(File destino, long posicao, BlockingQueue<Pedaco> fila) {
+            this.destino = destino;
+            this.posicao = posicao;
+            this.fila = fila;
+        }
+    }
+
+    // dados == null marca o fim do arquivo; arquivo == null encerra a gravadora
+    private record Pedaco(Arquivo arquivo, byte[] dados, int tamanho) {
+    }
+
+    private static final Pedaco ENCERRAR = new Pedaco(null, null, 0);
+
+    private final Path pastaAlvo;
+    private final Set<Path> pastasCriadas = new HashSet<>();
+    private final BlockingQueue<byte[]> livres = new ArrayBlockingQueue<>(BUFFERS);
+    private final List<BlockingQueue<Pedaco>> filas = new ArrayList<>();
+    private final List<Thread> gravadoras = new ArrayList<>();
+    private volatile IOException erro;
+
+    GravadorArquivos(File pastaAlvo) {
+        this.pastaAlvo = pastaAlvo.toPath().toAbsolutePath().normalize();
+        for (int i = 0; i < BUFFERS; i++) {
+            livres.add(PoolBuffers.array(TAMANHO_BUFFER));
+        }
+        for (int i = 0; i < GRAVADORAS; i++) {
+            BlockingQueue<Pedaco> fila = new ArrayBlockingQueue<>(BUFFERS + 1);
+            Thread gravadora = new Thread(() -> gravar(fila), "gravador-download-" + (i + 1));
+            gravadora.setDaemon(true);
+            filas.add(fila);
+            gravadoras.add(gravadora);
+            gravadora.start();
+        }
+    }
+
+    /** Cria as pastas até o caminho (uma vez por pasta) e escolhe a gravadora menos ocupada. */
+    Arquivo abrir(String caminho) throws IOException {
+        return abrir(caminho, 0);
+    }
+
+    /** Continua um arquivo a partir de {@code posicao}: o que houver depois dela é descartado. */
+    Arquivo abrir(String caminho, long posicao) throws IOException {
+        verificarErro();
+        File destino = resolver(caminho);
+        criarPasta(destino.toPath().getParent());
+        BlockingQueue<Pedaco> menosOcupada = filas.get(0);
+        for (BlockingQueue<Pedaco> fila : filas) {
+            if (fila.size() < menosOcupada.size()) menosOcupada = fila;
+        }
+        return new Arquivo(destino, posicao, menosOcupada);
+    }
+
+    /** Entrada de pasta vazia no ZIP. */
+    void criarPasta(String caminho) throws IOException {
+        criarPasta(resolver(caminho).toPath());
+    }
+
+    /** Buffer livre para preencher; espera se todos estiverem com as gravadoras. */
+    byte[] buffer() throws IOException {
+        verificarErro();
+        try {
+            return livres.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrompido");
+        }
+    }
+
+    /** Entrega os primeiros {@code tamanho} bytes do buffer; o buffer deixa de pertencer a quem chamou. */
+    void escrever(Arquivo arquivo, byte[] buffer, int tamanho) throws IOException {
+        entregar(arquivo.fila, new Pedaco(arquivo, buffer, tamanho));
+    }
+
+    void fechar(Arquivo arquivo) throws IOException {
+        entregar(arquivo.fila, new Pedaco(arquivo, null, 0));
+    }
+
+    /** Espera as gravadoras terminarem e relança o primeiro erro de gravação. */
+    void concluir() throws IOException {
+        for (BlockingQueue<Pedaco> fila : filas) {
+            entregar(fila, ENCERRAR);
+        }
+        try {
+            for (Thread gravadora : gravadoras) {
+                gravadora.join();
+            }
+            // Sem gravadoras, todos os buffers voltaram para a fila de livres
+            byte[] buffer;
+            while ((buffer = livres.poll()) != null) {
+                PoolBuffers.devolver(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrompido");
+        }
+        verificarErro();
+    }
+
+    /** Abandona o download: as gravadoras param e os arquivos abertos são fechados. */
+    void cancelar() {
+        if (erro == null) {
+            erro = new IOException("Download cancelado");
+        }
+        for (Thread gravadora : gravadoras) {
+            gravadora.interrupt();
+        }
+    }
+
+    private void gravar(BlockingQueue<Pedaco> fila) {
+        List<Arquivo> abertos = new ArrayList<>();
+        try {
+            Pedaco pedaco;
+            while ((pedaco = fila.take()) != ENCERRAR) {
+                Arquivo arquivo = pedaco.arquivo();
+                try {
+                    // Depois de um erro os pedaços só são descartados, para a leitura não ficar presa
+                    if (erro == null) {
+                        if (arquivo.saida == null) {
+                            arquivo.saida = abrirSaida(arquivo);
+                            abertos.add(arquivo);
+                        }
+                        if (pedaco.dados() != null) {
+                            arquivo.saida.write(pedaco.dados(), 0, pedaco.tamanho());
+                        }
+                    }
+                    if (pedaco.dados() == null && arquivo.saida != null) {
+                        arquivo.saida.close();
+                        abertos.remove(arquivo);
+                    }
+                } catch (IOException e) {
+                    if (erro == null) {
+                        erro = new IOException("Erro ao gravar " + arquivo.destino.getName() + ": " + e.getMessage(), e);
+                    }
+                } finally {
+                    if (pedaco.dados() != null) livres.add(pedaco.dados());
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancelar()
+        } finally {
+            for (Arquivo arquivo : abertos) {
+                try {
+                    arquivo.saida.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static FileOutputStream abrirSaida(Arquivo arquivo) throws IOException {
+        if (arquivo.posicao == 0) {
+            return new FileOutputStream(arquivo.destino);
+        }
+        try (RandomAccessFile acesso = new RandomAccessFile(arquivo.destino, "rw")) {
+            if (acesso.length() < arquivo.posicao) {
+                throw new IOException("arquivo local menor que a posição da retomada");
+            }
+            acesso.setLength(arquivo.posicao);
+        }
+        return new FileOutputStream(arquivo.destino, true);
+    }
+
+    private void entregar(BlockingQueue<Pedaco> fila, Pedaco pedaco) throws IOException {
+        try {
+            fila.put(pedaco);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrompido");
+        }
+    }
+
+    private void verificarErro() throws IOException {
+        if (erro != null) throw erro;
+    }
+
+    private File resolver(String caminho) throws IOException {
+        Path destino = pastaAlvo.resolve(caminho).normalize();
+        if (!destino.startsWith(pastaAlvo)) {
+            throw new IOException("Caminho fora da pasta de destino: " + caminho);
+        }
+        return destino.toFile();
+    }
+
+    private void criarPasta(Path pasta) throws IOException {
+        if (pastasCriadas.add(pasta) && !pasta.toFile().isDirectory() && !pasta.toFile().mkdirs()) {
+            throw new IOException("Não foi possível criar a pasta " + pasta);
+        }
+    }
+}
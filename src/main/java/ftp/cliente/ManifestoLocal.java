@@ -0,0 +1,94 @@
+package ftp.cliente;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ftp.protocolo.EntradaManifesto;
+import utils.HashUtil;
+
+/**
+ * Monta o manifesto de uma pasta local para o SYNC_FOLDER. Os hashes ficam guardados em
+ * ~/.ftp-cliente/hashes, indexados por caminho absoluto, tamanho e data de modificação, para que
+ * uma nova sincronização só leia os arquivos que mudaram.
+ */
+class ManifestoLocal {
+    private static final Path ARQUIVO_CACHE = Paths.get(System.getProperty("user.home"), ".ftp-cliente", "hashes");
+
+    private record HashConhecido(long tamanho, long modificado, String hash) {
+    }
+
+    private final Map<String, HashConhecido> cache = new HashMap<>();
+    private boolean alterado = false;
+
+    static synchronized ManifestoLocal carregar() {
+        ManifestoLocal manifesto = new ManifestoLocal();
+        if (!Files.exists(ARQUIVO_CACHE)) {
+            return manifesto;
+        }
+        try {
+            for (String linha : Files.readAllLines(ARQUIVO_CACHE, StandardCharsets.UTF_8)) {
+                // tamanho|modificado|hash|caminho absoluto
+                String[] partes = linha.split("\\|", 4);
+                if (partes.length == 4) {
+                    manifesto.cache.put(partes[3], new HashConhecido(Long.parseLong(partes[0]), Long.parseLong(partes[1]), partes[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Cache corrompido: os hashes são recalculados
+            manifesto.cache.clear();
+        }
+        return manifesto;
+    }
+
+    List<EntradaManifesto> gerar(File pastaBase, List<File> arquivos) throws IOException {
+        List<EntradaManifesto> entradas = new ArrayList<>(arquivos.size());
+        for (File arquivo : arquivos) {
+            long tamanho = arquivo.length();
+            long modificado = arquivo.lastModified();
+            String chave = arquivo.getAbsolutePath();
+
+            HashConhecido conhecido = cache.get(chave);
+            String hash;
+            if (conhecido != null && conhecido.tamanho() == tamanho && conhecido.modificado() == modificado) {
+                hash = conhecido.hash();
+            } else {
+                hash = HashUtil.calcularHash(arquivo.toPath());
+                cache.put(chave, new HashConhecido(tamanho, modificado, hash));
+                alterado = true;
+            }
+            entradas.add(new EntradaManifesto(caminhoRelativo(pastaBase, arquivo), tamanho, modificado, hash));
+        }
+        return entradas;
+    }
+
+    void salvar() throws IOException {
+        if (!alterado) return;
+        synchronized (ManifestoLocal.class) {
+            Files.createDirectories(ARQUIVO_CACHE.getParent());
+            Path temporario = ARQUIVO_CACHE.resolveSibling("hashes.tmp");
+            try (BufferedWriter escritor = Files.newBufferedWriter(temporario, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, HashConhecido> item : cache.entrySet()) {
+                    HashConhecido conhecido = item.getValue();
+                    escritor.write(conhecido.tamanho() + "|" + conhecido.modificado() + "|" + conhecido.hash() + "|" + item.getKey());
+                    escritor.newLine();
+                }
+            }
+            Files.move(temporario, ARQUIVO_CACHE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        alterado = false;
+    }
+
+    static String caminhoRelativo(File pastaBase, File arquivo) {
+        return pastaBase.toPath().relativize(arquivo.toPath()).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,17 @@
+package ftp.cliente;
+
+/**
+ * Recebe as mensagens e o andamento das operações de uma {@link SessaoFtp}. A interface gráfica
+ * pinta o log conforme o tipo; execuções em lote podem só imprimir ou ignorar.
+ */
+public interface OuvinteTransferencia {
+    enum Tipo { PADRAO, INFO, SUCESSO, ERRO }
+
+    OuvinteTransferencia SILENCIOSO = (tipo, mensagem) -> { };
+
+    void registrar(Tipo tipo, String mensagem);
+
+    /** Texto curto sobre o passo atual ("Enviando 3/40: ..."); chamado com frequência. */
+    default void andamento(String texto) {
+    }
+}
@@ -0,0 +1,69 @@
+package ftp.cliente;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import ftp.protocolo.Protocolo;
+
+/**
+ * Desempacota os quadros enviados pelo servidor em resposta a DOWNLOAD_RAW ou RESUME_DOWNLOAD
+ * (em que cada quadro traz a posição a partir da qual o conteúdo segue). A gravação fica com o
+ * {@link GravadorArquivos}, para o socket continuar sendo lido enquanto o disco trabalha.
+ */
+class RecepcaoQuadros {
+    private final File pastaAlvo;
+    private final boolean comPosicao;
+
+    RecepcaoQuadros(File pastaAlvo, boolean comPosicao) {
+        this.pastaAlvo = pastaAlvo;
+        this.comPosicao = comPosicao;
+    }
+
+    /** Lê quadros até o marcador de fim e devolve o total de bytes de conteúdo gravados. */
+    long receber(InputStream entrada) throws IOException {
+        DataInputStream dados = new DataInputStream(entrada);
+        GravadorArquivos gravador = new GravadorArquivos(pastaAlvo);
+        long total = 0;
+
+        try {
+            while (true) {
+                int tamanhoCaminho = dados.readInt();
+                if (tamanhoCaminho == Protocolo.FIM_QUADROS) {
+                    gravador.concluir();
+                    return total;
+                }
+                if (tamanhoCaminho < 0 || tamanhoCaminho > 64 * 1024) {
+                    throw new IOException("Quadro inválido: caminho com " + tamanhoCaminho + " bytes");
+                }
+                String caminho = new String(dados.readNBytes(tamanhoCaminho), StandardCharsets.UTF_8);
+                long tamanhoTotal = dados.readLong();
+                long posicao = comPosicao ? dados.readLong() : 0;
+                if (posicao < 0 || posicao > tamanhoTotal) {
+                    throw new IOException("Quadro inválido: posição " + posicao + " em " + caminho);
+                }
+                long tamanho = tamanhoTotal - posicao;
+
+                GravadorArquivos.Arquivo arquivo = gravador.abrir(caminho, posicao);
+                long restante = tamanho;
+                while (restante > 0) {
+                    byte[] buffer = gravador.buffer();
+                    int lidos = dados.readNBytes(buffer, 0, (int) Math.min(buffer.length, restante));
+                    if (lidos < Math.min(buffer.length, restante)) {
+                        throw new EOFException("Conexão encerrada durante o recebimento de " + caminho);
+                    }
+                    gravador.escrever(arquivo, buffer, lidos);
+                    restante -= lidos;
+                }
+                gravador.fechar(arquivo);
+                total += tamanho;
+            }
+        } catch (IOException e) {
+            gravador.cancelar();
+            throw e;
+        }
+    }
+}
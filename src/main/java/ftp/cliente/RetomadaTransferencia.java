@@ -0,0 +1,119 @@
+package ftp.cliente;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Registro de uma transferência que pode ser retomada, em ~/.ftp-cliente/retomadas. Existe do
+ * início da transferência até ela terminar; se sobrar (queda de rede, cliente fechado), a próxima
+ * transferência igual retoma em vez de recomeçar. Num upload guarda o id da sessão no servidor e
+ * o tamanho e a data de cada arquivo, porque só os trechos de arquivos que não mudaram desde
+ * então podem ser aproveitados.
+ */
+final class RetomadaTransferencia {
+    private static final Path PASTA = Paths.get(System.getProperty("user.home"), ".ftp-cliente", "retomadas");
+
+    private final Path arquivo;
+    private final String sessao;
+    // caminho relativo -> {tamanho, modificado}
+    private final Map<String, long[]> arquivos;
+
+    private RetomadaTransferencia(Path arquivo, String sessao, Map<String, long[]> arquivos) {
+        this.arquivo = arquivo;
+        this.sessao = sessao;
+        this.arquivos = arquivos;
+    }
+
+    static String chaveUpload(String servidor, File pasta, String infoPasta) {
+        return "upload|" + servidor + "|" + infoPasta + "|" + pasta.getAbsolutePath();
+    }
+
+    static String chaveDownload(String servidor, String pastaServidor, File pastaAlvo) {
+        return "download|" + servidor + "|" + pastaServidor + "|" + pastaAlvo.getAbsolutePath();
+    }
+
+    static boolean existe(String chave) {
+        return Files.exists(caminho(chave));
+    }
+
+    /** Registro da transferência, ou null se não há nada para retomar (ou o registro está corrompido). */
+    static RetomadaTransferencia carregar(String chave) {
+        Path caminho = caminho(chave);
+        try {
+            List<String> linhas = Files.readAllLines(caminho, StandardCharsets.UTF_8);
+            if (linhas.size() < 2 || !linhas.get(0).equals(chave)) {
+                return null;
+            }
+            Map<String, long[]> arquivos = new HashMap<>();
+            for (String linha : linhas.subList(2, linhas.size())) {
+                // tamanho|modificado|caminho relativo
+                String[] partes = linha.split("\\|", 3);
+                arquivos.put(partes[2], new long[]{Long.parseLong(partes[0]), Long.parseLong(partes[1])});
+            }
+            return new RetomadaTransferencia(caminho, linhas.get(1), arquivos);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Grava o registro; {@code arquivos} pode ser vazio (downloads). */
+    static RetomadaTransferencia criar(String chave, String sessao, File pastaBase, List<File> arquivos) throws IOException {
+        Path caminho = caminho(chave);
+        Map<String, long[]> situacao = new HashMap<>();
+        Files.createDirectories(PASTA);
+        Path temporario = caminho.resolveSibling(caminho.getFileName() + ".tmp");
+        try (BufferedWriter escritor = Files.newBufferedWriter(temporario, StandardCharsets.UTF_8)) {
+            escritor.write(chave);
+            escritor.newLine();
+            escritor.write(sessao);
+            escritor.newLine();
+            for (File arquivo : arquivos) {
+                String relativo = ManifestoLocal.caminhoRelativo(pastaBase, arquivo);
+                long[] atual = {arquivo.length(), arquivo.lastModified()};
+                situacao.put(relativo, atual);
+                escritor.write(atual[0] + "|" + atual[1] + "|" + relativo);
+                escritor.newLine();
+            }
+        }
+        Files.move(temporario, caminho, StandardCopyOption.REPLACE_EXISTING);
+        return new RetomadaTransferencia(caminho, sessao, situacao);
+    }
+
+    static void descartar(String chave) {
+        try {
+            Files.deleteIfExists(caminho(chave));
+        } catch (IOException ignored) {
+        }
+    }
+
+    String getSessao() {
+        return sessao;
+    }
+
+    /** O arquivo está como estava quando a transferência começou. */
+    boolean inalterado(String caminhoRelativo, File atual) {
+        long[] registrado = arquivos.get(caminhoRelativo);
+        return registrado != null && registrado[0] == atual.length() && registrado[1] == atual.lastModified();
+    }
+
+    void apagar() {
+        try {
+            Files.deleteIfExists(arquivo);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static Path caminho(String chave) {
+        return PASTA.resolve(UUID.nameUUIDFromBytes(chave.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+}
@@ -0,0 +1,823 @@
+package ftp.cliente;
+
+import ftp.cliente.OuvinteTransferencia.Tipo;
+import ftp.protocolo.AssinaturaBlocos;
+import ftp.protocolo.EntradaManifesto;
+import ftp.protocolo.EntradaProtocolo;
+import ftp.protocolo.PoolBuffers;
+import ftp.protocolo.Protocolo;
+import ftp.protocolo.SaidaProtocolo;
+import utils.FolderIdUtil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Uma conexão de controle com o servidor, mantida aberta entre operações. As opções negociadas
+ * com OPTS valem para a conexão inteira, então cada uma é pedida só na primeira operação que
+ * precisa dela. Vinda de um {@link ClienteFtp}, fechar a sessão a devolve para o pool; uma
+ * operação que falha no meio, ou um download em ZIP (o servidor fecha a conexão no fim do
+ * stream), faz a conexão ser descartada em vez de reaproveitada.
+ */
+public class SessaoFtp implements AutoCloseable {
+    private static final int JANELA_UPLOAD = 64;
+    private static final int TIMEOUT_PADRAO = 30000;
+    private static final int TIMEOUT_DOWNLOAD = 180000;
+    // Primeiro envio de uma pasta a partir desse tamanho vai por sessão, para poder ser retomado
+    private static final long LIMIAR_RETOMADA = 256L * 1024 * 1024;
+
+    /** Uma linha do LIST; a pasta fica no servidor como {@code nome_id}. */
+    public record PastaRemota(String id, String nome, long tamanho) {
+        public String nomeNoServidor() {
+            return nome + "_" + id;
+        }
+    }
+
+    /** Ordens do LIST paginado; DATA é a do último upload. */
+    public enum OrdemPastas { NOME, TAMANHO, DATA }
+
+    /** Uma página do LIST; {@code proxima} é o cursor da página seguinte, ou null na última. */
+    public record PaginaPastas(List<PastaRemota> pastas, String proxima) {
+    }
+
+    private interface Acao<T> {
+        T executar() throws Exception;
+    }
+
+    private final String host;
+    private final int porta;
+    private final OuvinteTransferencia ouvinte;
+    private final ClienteFtp pool;
+    private final Socket socket;
+    private final EntradaProtocolo entrada;
+    private final PrintWriter saida;
+    private final String saudacao;
+    private final Set<String> recursos;
+
+    // Estado negociado nesta conexão; null = ainda não pedido
+    private Integer janela;
+    private Boolean quadros;
+    private boolean compressaoUpload = false;
+    private boolean deltaNegociado = false;
+
+    private boolean reutilizavel = true;
+    private long ociosaDesde;
+    private int emprestimos = 0;
+
+    /** Sessão avulsa, fora de um pool: fechar encerra a conexão. */
+    public SessaoFtp(String host, int porta, OuvinteTransferencia ouvinte) throws IOException {
+        this(host, porta, ouvinte, null);
+    }
+
+    SessaoFtp(String host, int porta, OuvinteTransferencia ouvinte, ClienteFtp pool) throws IOException {
+        this.host = host;
+        this.porta = porta;
+        this.ouvinte = ouvinte;
+        this.pool = pool;
+        this.socket = new Socket(host, porta);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_PADRAO);
+            entrada = new EntradaProtocolo(socket.getInputStream());
+            saida = new PrintWriter(socket.getOutputStream(), true);
+            saudacao = entrada.lerLinha();
+            if (saudacao == null || !saudacao.startsWith("220")) {
+                throw new IOException("Saudação inesperada do servidor: " + saudacao);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        recursos = Protocolo.recursosDaSaudacao(saudacao);
+    }
+
+    public String getSaudacao() {
+        return saudacao;
+    }
+
+    public Set<String> getRecursos() {
+        return recursos;
+    }
+
+    /** Prazo em que o servidor encerra esta conexão se ela ficar sem comandos; 0 se não anunciado. */
+    long getOciosidadeServidor() {
+        return Protocolo.ociosidadeDaSaudacao(recursos);
+    }
+
+    public List<PastaRemota> listar() throws IOException {
+        return executar(() -> lerListagem("LIST").pastas());
+    }
+
+    /**
+     * Até {@code limite} pastas cujo nome começa com {@code prefixo}, na ordem pedida, a partir do
+     * cursor da página anterior (null na primeira). Servidores sem LISTA_PAGINADA mandam tudo numa
+     * página só, filtrada e ordenada aqui; a ordem por data fica a do servidor.
+     */
+    public PaginaPastas listarPagina(String prefixo, OrdemPastas ordem, boolean decrescente, String cursor, int limite)
+            throws IOException {
+        if (!recursos.contains(Protocolo.RECURSO_LISTA_PAGINADA)) {
+            List<PastaRemota> pastas = new ArrayList<>();
+            for (PastaRemota pasta : listar()) {
+                if (pasta.nome().startsWith(prefixo)) pastas.add(pasta);
+            }
+            Comparator<PastaRemota> comparador = ordem == OrdemPastas.TAMANHO
+                    ? Comparator.comparingLong(PastaRemota::tamanho)
+                    : Comparator.comparing(PastaRemota::nomeNoServidor);
+            if (ordem != OrdemPastas.DATA) {
+                pastas.sort(decrescente ? comparador.reversed() : comparador);
+            }
+            return new PaginaPastas(pastas, null);
+        }
+        String comando = "LIST " + ordem + (decrescente ? "-" : "") + "|" + limite + "|"
+                + (cursor == null ? "" : cursor) + "|" + prefixo;
+        return executar(() -> lerListagem(comando));
+    }
+
+    private PaginaPastas lerListagem(String comando) throws IOException {
+        saida.println(comando);
+        String linha = entrada.lerLinha();
+        if (linha == null || !linha.startsWith("150")) {
+            throw new IOException("Não foi possível iniciar listagem: " + linha);
+        }
+
+        List<PastaRemota> pastas = new ArrayList<>();
+        String proxima = null;
+        while ((linha = entrada.lerLinha()) != null && !linha.startsWith("226")) {
+            if (linha.startsWith("PASTA_INFO:")) {
+                String[] parts = linha.substring(11).split("\\|", 3);
+                if (parts.length == 3) {
+                    pastas.add(new PastaRemota(parts[0], parts[1], Long.parseLong(parts[2])));
+                }
+            } else if (linha.startsWith("PROXIMA:")) {
+                proxima = linha.substring(8);
+            }
+        }
+        if (linha == null) {
+            throw new IOException("Conexão encerrada durante a listagem");
+        }
+        return new PaginaPastas(pastas, proxima);
+    }
+
+    /** CHECK_FOLDER nome|id. */
+    public boolean existe(String pastaInfo) throws IOException {
+        return executar(() -> {
+            saida.println("CHECK_FOLDER " + pastaInfo);
+            String resposta = entrada.lerLinha();
+            if (resposta != null && resposta.startsWith("250")) return true;
+            if (resposta != null && resposta.startsWith("450")) return false;
+            throw new IOException("Resposta inesperada ao CHECK_FOLDER: " + resposta);
+        });
+    }
+
+    /** Envia a pasta com o ID calculado pelo {@link FolderIdUtil}. */
+    public void enviar(File pasta, int conexoes, boolean comprimir) throws IOException {
+        enviar(pasta, FolderIdUtil.obterId(pasta), conexoes, comprimir);
+    }
+
+    /**
+     * Envia a pasta como {@code nome|id}. Usa a sincronização incremental quando o servidor
+     * anuncia o recurso e, com mais de uma conexão, o upload paralelo.
+     */
+    public void enviar(File pasta, String id, int conexoes, boolean comprimir) throws IOException {
+        executar(() -> {
+            registrar(Tipo.INFO, "=== INICIANDO UPLOAD ===");
+            try {
+                enviarPasta(pasta, pasta.getName() + "|" + id, conexoes, comprimir);
+            } catch (Exception e) {
+                registrar(Tipo.ERRO, "ERRO CRÍTICO: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+                throw e;
+            }
+            registrar(Tipo.SUCESSO, "=== UPLOAD CONCLUÍDO COM SUCESSO ===");
+            return null;
+        });
+    }
+
+    private void enviarPasta(File pasta, String infoPasta, int conexoes, boolean comprimir) throws Exception {
+        int janelaAtual = negociarJanela();
+        boolean v2 = negociarProtocoloV2();
+        boolean comprimirAtual = v2 && comprimir && negociarCompressaoUpload();
+
+        if (v2 && recursos.contains(Protocolo.RECURSO_PARALELO) && (conexoes > 1 || retomavel(pasta, infoPasta))) {
+            enviarEmSessao(pasta, infoPasta, conexoes, Math.max(1, janelaAtual), comprimirAtual);
+            return;
+        }
+
+        // Com SYNC o servidor recebe o manifesto e pede só os arquivos novos ou alterados
+        boolean incremental = recursos.contains(Protocolo.RECURSO_SYNC);
+        if (incremental) {
+            negociarDelta();
+        }
+
+        String comando = (incremental ? "SYNC_FOLDER " : "UPLOAD_FOLDER ") + infoPasta;
+        registrar(Tipo.INFO, "ENVIANDO: " + comando);
+        saida.println(comando);
+
+        String resposta = entrada.lerLinha();
+        registrar(Tipo.PADRAO, "SERVIDOR (upload): " + resposta);
+        if (resposta == null || !resposta.startsWith("150")) {
+            throw new IOException("Servidor recusou o upload: " + resposta);
+        }
+
+        List<File> todosArquivos = coletarTodosArquivos(pasta);
+        if (incremental) {
+            todosArquivos = negociarManifesto(pasta, todosArquivos, List.of());
+        }
+        enviarPedidos(pasta, todosArquivos, janelaAtual, v2, comprimirAtual);
+    }
+
+    private void enviarPedidos(File pasta, List<File> arquivos, int janelaAtual, boolean v2, boolean comprimir) throws Exception {
+        String resposta;
+        if (janelaAtual > 0 || v2) {
+            resposta = enviarArquivosComJanela(pasta, arquivos, Math.max(1, janelaAtual), v2, comprimir);
+        } else {
+            enviarArquivosComConfirmacao(pasta, arquivos);
+            saida.println("END_FOLDER");
+            resposta = entrada.lerLinha();
+        }
+        registrar(Tipo.PADRAO, "SERVIDOR (fim): " + resposta);
+
+        if (resposta == null || !resposta.startsWith("226")) {
+            throw new IOException("Upload falhou - resposta final: " + resposta);
+        }
+    }
+
+    /**
+     * Envia só os arquivos alterados e os caminhos removidos desde a última sincronização da pasta,
+     * sem o manifesto dela inteira (SYNC_CHANGES). Devolve false, sem enviar nada, quando o
+     * servidor não suporta o recurso ou não tem o manifesto salvo da pasta; aí é preciso um
+     * {@link #enviar} completo.
+     */
+    public boolean enviarAlteracoes(File pasta, String id, List<File> alterados, Collection<String> removidos,
+                                    boolean comprimir) throws IOException {
+        return executar(() -> {
+            if (!recursos.contains(Protocolo.RECURSO_ALTERACOES)) {
+                return false;
+            }
+            int janelaAtual = negociarJanela();
+            boolean v2 = negociarProtocoloV2();
+            boolean comprimirAtual = v2 && comprimir && negociarCompressaoUpload();
+            negociarDelta();
+
+            saida.println("SYNC_CHANGES " + pasta.getName() + "|" + id);
+            String resposta = entrada.lerLinha();
+            if (resposta != null && resposta.startsWith("450")) {
+                return false;
+            }
+            if (resposta == null || !resposta.startsWith("150")) {
+                throw new IOException("Servidor recusou as alterações: " + resposta);
+            }
+            enviarPedidos(pasta, negociarManifesto(pasta, alterados, removidos), janelaAtual, v2, comprimirAtual);
+            return true;
+        });
+    }
+
+    /*
+     * Com uma conexão só, a sessão só compensa quando pode haver o que retomar: um upload anterior
+     * interrompido, ou o primeiro envio de uma pasta grande (nos seguintes o SYNC já manda só o
+     * que mudou).
+     */
+    private boolean retomavel(File pasta, String infoPasta) throws IOException {
+        if (!recursos.contains(Protocolo.RECURSO_RETOMAR)) return false;
+        if (RetomadaTransferencia.existe(RetomadaTransferencia.chaveUpload(host + ":" + porta, pasta, infoPasta))) {
+            return true;
+        }
+        long total = 0;
+        for (File arquivo : coletarTodosArquivos(pasta)) {
+            total += arquivo.length();
+        }
+        return total >= LIMIAR_RETOMADA && !existe(infoPasta);
+    }
+
+    /**
+     * Abre a sessão pela conexão de controle (ou retoma a que ficou pela metade), envia os trechos
+     * pelas conexões de dados e confirma. Se uma conexão cair, a sessão fica suspensa no servidor
+     * e o registro local permite retomá-la; falhas de gravação no servidor abortam a sessão, e a
+     * pasta no servidor não muda.
+     */
+    private void enviarEmSessao(File pasta, String infoPasta, int conexoes, int janelaAtual, boolean comprimir) throws Exception {
+        List<File> todosArquivos = coletarTodosArquivos(pasta);
+        boolean retomar = recursos.contains(Protocolo.RECURSO_RETOMAR);
+        String chave = RetomadaTransferencia.chaveUpload(host + ":" + porta, pasta, infoPasta);
+        RetomadaTransferencia retomada = retomar ? RetomadaTransferencia.carregar(chave) : null;
+        Set<String> concluidos = new HashSet<>();
+        String[] sessao = null;
+
+        if (retomada != null) {
+            String comando = "RESUME_UPLOAD " + retomada.getSessao() + " " + conexoes;
+            registrar(Tipo.INFO, "ENVIANDO: " + comando);
+            saida.println(comando);
+            String resposta = entrada.lerLinha();
+            registrar(Tipo.PADRAO, "SERVIDOR (upload): " + resposta);
+            if (resposta != null && resposta.startsWith("150 SESSAO ")) {
+                sessao = resposta.split(" ");
+                int feitos = lerTrechosConcluidos(pasta, retomada, concluidos);
+                registrar(Tipo.INFO, "Retomando a sessão " + sessao[2] + ": " + concluidos.size() + " de " + feitos
+                        + " trecho(s) já gravados continuam válidos.");
+            } else if (resposta != null && resposta.startsWith("5")) {
+                registrar(Tipo.PADRAO, "A sessão anterior não pode ser retomada; o upload recomeça do início.");
+                retomada.apagar();
+                retomada = null;
+            } else {
+                throw new IOException("Resposta inesperada ao RESUME_UPLOAD: " + resposta);
+            }
+        }
+        if (sessao == null) {
+            String comando = "UPLOAD_PARALLEL " + infoPasta + " " + conexoes;
+            registrar(Tipo.INFO, "ENVIANDO: " + comando);
+            saida.println(comando);
+            String resposta = entrada.lerLinha();
+            registrar(Tipo.PADRAO, "SERVIDOR (upload): " + resposta);
+            if (resposta == null || !resposta.startsWith("150 SESSAO ")) {
+                throw new IOException("Servidor recusou o upload paralelo: " + resposta);
+            }
+            sessao = resposta.split(" ");
+            if (retomar) {
+                retomada = RetomadaTransferencia.criar(chave, sessao[2], pasta, todosArquivos);
+            }
+        }
+        int conexoesAceitas = Integer.parseInt(sessao[3]);
+
+        UploadParalelo upload = new UploadParalelo(host, porta, sessao[2], janelaAtual, comprimir);
+        List<String> falhas;
+        try {
+            upload.enviar(pasta, todosArquivos, concluidos, conexoesAceitas, (atual, total, caminhoRelativo) ->
+                    ouvinte.andamento("Enviando trecho %d/%d (%d conexões): %s"
+                            .formatted(atual, total, conexoesAceitas, caminhoRelativo)));
+            falhas = upload.getFalhas();
+        } catch (Exception e) {
+            if (retomada != null) {
+                // Sem ABORT: ao fechar a conexão de controle a sessão fica suspensa no servidor
+                registrar(Tipo.PADRAO, "Upload interrompido; a sessão " + sessao[2] + " pode ser retomada.");
+                throw e;
+            }
+            saida.println("ABORT");
+            entrada.lerLinha();
+            throw e;
+        }
+        if (!falhas.isEmpty()) {
+            for (String falha : falhas) {
+                registrar(Tipo.ERRO, "ERRO no servidor ao gravar " + falha);
+            }
+            saida.println("ABORT");
+            entrada.lerLinha();
+            if (retomada != null) retomada.apagar();
+            throw new IOException(falhas.size() + " trecho(s) não foram gravados pelo servidor");
+        }
+
+        // No armazenamento por blocos a confirmação ainda corta todos os arquivos em blocos
+        socket.setSoTimeout(0);
+        saida.println("COMMIT");
+        String resposta = entrada.lerLinha();
+        socket.setSoTimeout(TIMEOUT_PADRAO);
+        registrar(Tipo.PADRAO, "SERVIDOR (fim): " + resposta);
+        if (resposta == null) {
+            throw new IOException("Conexão encerrada antes da confirmação do upload");
+        }
+        // Confirmada ou descartada pelo servidor, a sessão não existe mais
+        if (retomada != null) retomada.apagar();
+        if (!resposta.startsWith("226")) {
+            throw new IOException("Upload paralelo falhou - resposta final: " + resposta);
+        }
+    }
+
+    /** Lê as linhas FEITO até END_FEITOS e guarda as dos arquivos que não mudaram; devolve quantas vieram. */
+    private int lerTrechosConcluidos(File pasta, RetomadaTransferencia retomada, Set<String> concluidos) throws IOException {
+        int feitos = 0;
+        String linha;
+        while ((linha = entrada.lerLinha()) != null && !linha.startsWith("END_FEITOS")) {
+            // FEITO:tamanho total|posição|tamanho|caminho
+            String[] campos = linha.substring(linha.indexOf(':') + 1).split("\\|", 4);
+            if (campos.length < 4) {
+                throw new IOException("Linha inválida na retomada: " + linha);
+            }
+            feitos++;
+            File arquivo = new File(pasta, campos[3]);
+            if (retomada.inalterado(campos[3], arquivo) && arquivo.length() == Long.parseLong(campos[0])) {
+                concluidos.add(UploadParalelo.chave(campos[3], Long.parseLong(campos[1])));
+            }
+        }
+        if (linha == null) {
+            throw new IOException("Conexão encerrada durante a retomada");
+        }
+        return feitos;
+    }
+
+    /** Envia o manifesto da pasta e devolve apenas os arquivos que o servidor pediu. */
+    private List<File> negociarManifesto(File pasta, List<File> arquivos, Collection<String> removidos) throws IOException {
+        ouvinte.andamento("Calculando manifesto de " + arquivos.size() + " arquivo(s)...");
+        ManifestoLocal manifestoLocal = ManifestoLocal.carregar();
+        List<EntradaManifesto> manifesto = manifestoLocal.gerar(pasta, arquivos);
+        manifestoLocal.salvar();
+
+        Map<String, File> porCaminho = new HashMap<>();
+        SaidaProtocolo saidaDados = new SaidaProtocolo(socket.getOutputStream());
+        for (int i = 0; i < manifesto.size(); i++) {
+            porCaminho.put(manifesto.get(i).caminho(), arquivos.get(i));
+            saidaDados.escreverLinha(manifesto.get(i).formatar());
+        }
+        for (String caminho : removidos) {
+            saidaDados.escreverLinha("REMOVER:" + caminho);
+        }
+        saidaDados.escreverLinha("END_MANIFEST");
+        saidaDados.flush();
+
+        // Na primeira sincronização o servidor pode precisar calcular os hashes da cópia dele
+        int timeoutOriginal = socket.getSoTimeout();
+        socket.setSoTimeout(0);
+        List<File> necessarios = new ArrayList<>();
+        List<File> deltas = new ArrayList<>();
+        String linha;
+        while ((linha = entrada.lerLinha()) != null && (linha.startsWith("NEED:") || linha.startsWith("DELTA:"))) {
+            boolean delta = linha.startsWith("DELTA:");
+            File arquivo = porCaminho.get(linha.substring(delta ? 6 : 5));
+            if (arquivo != null) (delta ? deltas : necessarios).add(arquivo);
+        }
+        if (linha == null || !linha.startsWith("END_NEED")) {
+            throw new IOException("Resposta inesperada ao manifesto: " + linha);
+        }
+
+        String[] totais = linha.split(" ");
+        String removidosServidor = totais.length > 2 ? totais[2] : "0";
+        registrar(Tipo.INFO, "Manifesto: " + (necessarios.size() + deltas.size()) + " de " + arquivos.size()
+                + " arquivo(s) a enviar (" + deltas.size() + " por delta), " + removidosServidor + " removido(s) no servidor.");
+
+        for (File arquivo : deltas) {
+            if (!enviarDelta(pasta, arquivo, saidaDados)) {
+                necessarios.add(arquivo);
+            }
+        }
+        socket.setSoTimeout(timeoutOriginal);
+        return necessarios;
+    }
+
+    /** Envia só as diferenças em relação à cópia do servidor; devolve false se ele pedir o arquivo inteiro. */
+    private boolean enviarDelta(File pasta, File arquivo, SaidaProtocolo saidaDados) throws IOException {
+        String caminhoRelativo = ManifestoLocal.caminhoRelativo(pasta, arquivo);
+        ouvinte.andamento("Calculando delta de " + caminhoRelativo + "...");
+
+        AssinaturaBlocos assinatura = AssinaturaBlocos.ler(entrada);
+        GeradorDelta gerador = new GeradorDelta(assinatura);
+        gerador.gerar(arquivo, saidaDados);
+        saidaDados.flush();
+
+        String resposta = entrada.lerLinha();
+        if ("DELTA_OK".equals(resposta)) {
+            registrar(Tipo.INFO, "Delta de " + caminhoRelativo + ": " + gerador.getBlocosCopiados() + " bloco(s) reaproveitado(s), "
+                    + gerador.getBytesLiterais() + " de " + arquivo.length() + " bytes enviados.");
+            return true;
+        }
+        if (resposta == null || !resposta.startsWith("DELTA_FALHOU")) {
+            throw new IOException("Resposta inesperada ao delta de " + caminhoRelativo + ": " + resposta);
+        }
+        registrar(Tipo.PADRAO, "Delta de " + caminhoRelativo + " recusado (" + resposta.substring(12).trim()
+                + "); o arquivo será enviado inteiro.");
+        return false;
+    }
+
+    private void enviarArquivosComConfirmacao(File pasta, List<File> arquivos) throws IOException {
+        int totalArquivos = arquivos.size();
+        for (int i = 0; i < totalArquivos; i++) {
+            File arquivo = arquivos.get(i);
+            String caminhoRelativo = ManifestoLocal.caminhoRelativo(pasta, arquivo);
+            ouvinte.andamento("Enviando %d/%d: %s".formatted(i + 1, totalArquivos, caminhoRelativo));
+
+            long tamanho = arquivo.length();
+            saida.println("FILE:" + caminhoRelativo);
+            saida.println(tamanho);
+
+            byte[] buffer = PoolBuffers.array(PoolBuffers.TAMANHO_COPIA);
+            try (FileInputStream fis = new FileInputStream(arquivo)) {
+                OutputStream destino = socket.getOutputStream();
+                long restante = tamanho;
+                while (restante > 0) {
+                    int lidos = fis.read(buffer, 0, (int) Math.min(buffer.length, restante));
+                    if (lidos == -1) {
+                        throw new EOFException("Arquivo diminuiu durante o envio: " + caminhoRelativo);
+                    }
+                    destino.write(buffer, 0, lidos);
+                    restante -= lidos;
+                }
+            } finally {
+                PoolBuffers.devolver(buffer);
+            }
+
+            String resposta = entrada.lerLinha();
+            if (!"OK".equals(resposta)) {
+                throw new IOException("Erro ao enviar arquivo " + caminhoRelativo);
+            }
+        }
+    }
+
+    private String enviarArquivosComJanela(File pasta, List<File> arquivos, int janelaAtual, boolean v2,
+                                           boolean comprimir) throws Exception {
+        EnvioJanelado envio = new EnvioJanelado(socket, entrada, janelaAtual, v2, comprimir);
+        String resposta = envio.enviar(pasta, arquivos, (atual, total, caminhoRelativo) ->
+                ouvinte.andamento("Enviando %d/%d: %s".formatted(atual, total, caminhoRelativo)));
+        if (comprimir && envio.getBytesOriginais() > 0) {
+            registrar(Tipo.INFO, "Compressão: %d bytes comprimidos para %d (%.1f%%).".formatted(envio.getBytesOriginais(),
+                    envio.getBytesComprimidos(), 100.0 * envio.getBytesComprimidos() / envio.getBytesOriginais()));
+        }
+
+        List<String> falhas = envio.getFalhas();
+        if (!falhas.isEmpty()) {
+            for (String falha : falhas) {
+                registrar(Tipo.ERRO, "ERRO no servidor ao gravar " + falha);
+            }
+            throw new IOException(falhas.size() + " arquivo(s) não foram gravados pelo servidor");
+        }
+        return resposta;
+    }
+
+    /** Ativa o upload com janela quando o servidor anuncia o recurso; devolve 0 para o modo antigo. */
+    private int negociarJanela() throws IOException {
+        if (janela != null) return janela;
+        janela = 0;
+        if (!recursos.contains(Protocolo.RECURSO_JANELA)) {
+            return 0;
+        }
+        saida.println("OPTS " + Protocolo.RECURSO_JANELA + " " + JANELA_UPLOAD);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !resposta.startsWith("200")) {
+            registrar(Tipo.PADRAO, "Servidor recusou o upload com janela: " + resposta);
+            return 0;
+        }
+        janela = Integer.parseInt(resposta.substring(resposta.lastIndexOf(' ') + 1));
+        registrar(Tipo.INFO, "Upload com janela de " + janela + " arquivo(s) em trânsito.");
+        return janela;
+    }
+
+    /** Ativa o delta por blocos na sincronização quando o servidor anuncia o recurso. */
+    private void negociarDelta() throws IOException {
+        if (deltaNegociado || !recursos.contains(Protocolo.RECURSO_DELTA)) {
+            return;
+        }
+        deltaNegociado = true;
+        saida.println("OPTS " + Protocolo.RECURSO_DELTA);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !resposta.startsWith("200")) {
+            registrar(Tipo.PADRAO, "Servidor recusou o delta por blocos: " + resposta);
+        }
+    }
+
+    /** Ativa os quadros binários do protocolo v2 quando o servidor os anuncia. */
+    private boolean negociarProtocoloV2() throws IOException {
+        if (quadros != null) return quadros;
+        quadros = false;
+        if (!recursos.contains(Protocolo.RECURSO_V2)) {
+            return false;
+        }
+        saida.println("OPTS " + Protocolo.RECURSO_V2);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !resposta.startsWith("200")) {
+            registrar(Tipo.PADRAO, "Servidor recusou o protocolo v2: " + resposta);
+            return false;
+        }
+        quadros = true;
+        registrar(Tipo.INFO, "Protocolo v2 (quadros binários) ativado.");
+        return true;
+    }
+
+    /** Ativa o envio de arquivos comprimidos; só é possível junto com os quadros do protocolo v2. */
+    private boolean negociarCompressaoUpload() throws IOException {
+        if (compressaoUpload) return true;
+        if (!recursos.contains(Protocolo.RECURSO_COMPRIMIR)) {
+            registrar(Tipo.PADRAO, "Servidor não aceita upload comprimido. Enviando sem compressão.");
+            return false;
+        }
+        saida.println("OPTS " + Protocolo.RECURSO_COMPRIMIR);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !resposta.startsWith("200")) {
+            registrar(Tipo.PADRAO, "Servidor recusou o upload comprimido: " + resposta);
+            return false;
+        }
+        compressaoUpload = true;
+        registrar(Tipo.INFO, "Upload comprimido ativado.");
+        return true;
+    }
+
+    /** Pede o nível de compressão do ZIP; sem o recurso, o servidor usa o nível padrão. */
+    private void negociarCompressao(int nivel) throws IOException {
+        if (!recursos.contains(Protocolo.RECURSO_COMPRESSAO)) {
+            registrar(Tipo.PADRAO, "Servidor não permite escolher a compressão. Usando o nível padrão.");
+            return;
+        }
+        saida.println("OPTS " + Protocolo.RECURSO_COMPRESSAO + " " + nivel);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !resposta.startsWith("200")) {
+            registrar(Tipo.PADRAO, "Servidor recusou o nível de compressão " + nivel + ": " + resposta);
+        }
+    }
+
+    /**
+     * Baixa {@code pastaServidor} (nome_id) para dentro de {@code localSalvamento}. Sem compressão
+     * usa os quadros do DOWNLOAD_RAW, que mantêm a conexão; o ZIP encerra a conexão no fim. Um
+     * download sem compressão interrompido é retomado na próxima vez, a partir do que já foi gravado.
+     */
+    public void baixar(String pastaServidor, File localSalvamento, boolean semCompressao, Integer nivel) throws IOException {
+        executar(() -> {
+            registrar(Tipo.INFO, "=== INICIANDO DOWNLOAD ===");
+            String nomeOriginal = FolderIdUtil.extrairNomeOriginal(pastaServidor);
+            File pastaAlvo = new File(localSalvamento, nomeOriginal);
+            localSalvamento.mkdirs();
+
+            boolean emQuadros = semCompressao && recursos.contains(Protocolo.RECURSO_QUADROS);
+            if (semCompressao && !emQuadros) {
+                registrar(Tipo.PADRAO, "Servidor não suporta download sem compressão. Usando ZIP.");
+            }
+            if (!emQuadros) {
+                // O servidor fecha a conexão depois do ZIP
+                reutilizavel = false;
+                if (nivel != null) {
+                    negociarCompressao(nivel);
+                }
+            }
+            String chave = RetomadaTransferencia.chaveDownload(host + ":" + porta, pastaServidor, pastaAlvo);
+            boolean retomar = emQuadros && recursos.contains(Protocolo.RECURSO_RETOMAR);
+            boolean pendente = retomar && RetomadaTransferencia.existe(chave) && pastaAlvo.isDirectory();
+            if (retomar && !pendente) {
+                RetomadaTransferencia.criar(chave, "-", pastaAlvo, List.of());
+            }
+            socket.setSoTimeout(TIMEOUT_DOWNLOAD);
+            saida.println((pendente ? "RESUME_DOWNLOAD " : emQuadros ? "DOWNLOAD_RAW " : "DOWNLOAD_FOLDER ") + pastaServidor);
+
+            String resposta = entrada.lerLinha();
+            if (resposta == null || !resposta.startsWith("150")) {
+                if (retomar && resposta != null) {
+                    RetomadaTransferencia.descartar(chave);
+                }
+                throw new IOException("Servidor recusou o download: " + resposta);
+            }
+            registrar(Tipo.INFO, "Servidor: " + resposta);
+            if (pendente) {
+                List<File> locais = coletarTodosArquivos(pastaAlvo);
+                for (File arquivo : locais) {
+                    saida.println("TEM:" + arquivo.length() + "|" + ManifestoLocal.caminhoRelativo(pastaAlvo, arquivo));
+                }
+                saida.println("END_TEM");
+                registrar(Tipo.INFO, "Retomando o download: " + locais.size() + " arquivo(s) já estão, inteiros ou em parte, em "
+                        + pastaAlvo.getName() + ".");
+            }
+            ouvinte.andamento("Recebendo stream de dados...");
+
+            if (emQuadros) {
+                long bytes = new RecepcaoQuadros(pastaAlvo, pendente).receber(entrada);
+                resposta = entrada.lerLinha();
+                if (resposta == null || !resposta.startsWith("226")) {
+                    throw new IOException("Download incompleto: " + resposta);
+                }
+                socket.setSoTimeout(TIMEOUT_PADRAO);
+                if (retomar) {
+                    RetomadaTransferencia.descartar(chave);
+                }
+                registrar(Tipo.INFO, "Recebidos " + formatarTamanho(bytes) + " sem compressão.");
+            } else {
+                extrairZip(entrada, pastaAlvo);
+            }
+            registrar(Tipo.SUCESSO, "=== DOWNLOAD CONCLUÍDO COM SUCESSO ===");
+            return null;
+        });
+    }
+
+    /**
+     * Descomprime o ZIP nesta thread e deixa a gravação com o {@link GravadorArquivos}, para que um
+     * disco lento ou muitos arquivos pequenos não parem a leitura do socket.
+     */
+    private static void extrairZip(InputStream entrada, File pastaAlvo) throws IOException {
+        GravadorArquivos gravador = new GravadorArquivos(pastaAlvo);
+        try (ZipInputStream zis = new ZipInputStream(entrada)) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zis.getNextEntry()) != null) {
+                if (zipEntry.isDirectory()) {
+                    gravador.criarPasta(zipEntry.getName());
+                    continue;
+                }
+                GravadorArquivos.Arquivo arquivo = gravador.abrir(zipEntry.getName());
+                int lidos;
+                do {
+                    byte[] buffer = gravador.buffer();
+                    lidos = zis.readNBytes(buffer, 0, buffer.length);
+                    gravador.escrever(arquivo, buffer, lidos);
+                } while (lidos == GravadorArquivos.TAMANHO_BUFFER);
+                gravador.fechar(arquivo);
+            }
+            gravador.concluir();
+        } catch (IOException e) {
+            gravador.cancelar();
+            throw e;
+        }
+    }
+
+    static List<File> coletarTodosArquivos(File pastaRaiz) {
+        List<File> arquivos = new ArrayList<>();
+        coletarArquivosRecursivamente(pastaRaiz, arquivos);
+        arquivos.sort(Comparator.comparing(f -> pastaRaiz.toPath().relativize(f.toPath()).toString()));
+        return arquivos;
+    }
+
+    private static void coletarArquivosRecursivamente(File pasta, List<File> arquivos) {
+        File[] conteudo = pasta.listFiles();
+        if (conteudo == null) return;
+        Arrays.sort(conteudo, Comparator.comparing(File::getName));
+        for (File item : conteudo) if (item.isFile()) arquivos.add(item);
+        for (File item : conteudo) if (item.isDirectory()) coletarArquivosRecursivamente(item, arquivos);
+    }
+
+    static String formatarTamanho(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        String pre = "KMGTPE".charAt(exp - 1) + "";
+        return String.format("%.1f %sB", bytes / Math.pow(1024, exp), pre);
+    }
+
+    /** Qualquer falha no meio de uma operação deixa o stream fora de sincronia: a conexão não volta ao pool. */
+    private <T> T executar(Acao<T> acao) throws IOException {
+        if (socket.isClosed()) {
+            throw new IOException("Sessão encerrada");
+        }
+        try {
+            return acao.executar();
+        } catch (InterruptedException e) {
+            reutilizavel = false;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Operação interrompida");
+        } catch (IOException | RuntimeException e) {
+            reutilizavel = false;
+            throw e;
+        } catch (Exception e) {
+            reutilizavel = false;
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void registrar(Tipo tipo, String mensagem) {
+        ouvinte.registrar(tipo, mensagem);
+    }
+
+    void emprestar() {
+        emprestimos++;
+    }
+
+    /** Já tinha sido usada por outra operação antes deste empréstimo. */
+    boolean reaproveitada() {
+        return emprestimos > 1;
+    }
+
+    void marcarOciosa() {
+        ociosaDesde = System.currentTimeMillis();
+    }
+
+    long getOciosaDesde() {
+        return ociosaDesde;
+    }
+
+    /** Confere com NOOP uma conexão parada há mais de {@code validarAposMs}; qualquer resposta serve. */
+    boolean ativa(long validarAposMs) {
+        if (socket.isClosed() || !reutilizavel) return false;
+        if (System.currentTimeMillis() - ociosaDesde < validarAposMs) return true;
+        try {
+            saida.println(Protocolo.NOOP);
+            return !saida.checkError() && entrada.lerLinha() != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Encerra a conexão de verdade, mesmo vinda de um pool. */
+    void encerrar() {
+        if (socket.isClosed()) return;
+        try {
+            if (reutilizavel) {
+                saida.println("QUIT");
+            }
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null && reutilizavel && !socket.isClosed()) {
+            pool.devolver(this);
+        } else {
+            encerrar();
+        }
+    }
+}
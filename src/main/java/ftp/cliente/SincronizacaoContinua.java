@@ -0,0 +1,281 @@
+package ftp.cliente;
+
+import ftp.cliente.OuvinteTransferencia.Tipo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mantém uma pasta local sincronizada com o servidor. Um WatchService observa a árvore; os
+ * eventos de uma rajada (um programa salvando vários arquivos, uma cópia em andamento) são
+ * juntados e enviados de uma vez com SYNC_CHANGES, só com os arquivos que mudaram e os caminhos
+ * removidos. Uma varredura completa de tempos em tempos compara a árvore com o que já foi
+ * enviado e pega o que o WatchService perdeu (OVERFLOW, arquivos criados numa pasta antes de ela
+ * ser registrada). Começa com uma sincronização completa, que também é usada quando o servidor
+ * não tem o manifesto da pasta.
+ */
+public final class SincronizacaoContinua implements AutoCloseable {
+    // Espera por silêncio antes de enviar; uma rajada contínua é enviada mesmo assim depois do máximo
+    private static final long JANELA_MS = 1_000;
+    private static final long JANELA_MAXIMA_MS = 10_000;
+    private static final long VARREDURA_MS = 60_000;
+    private static final long ESPERA_ERRO_MS = 5_000;
+
+    private final ClienteFtp cliente;
+    private final File pasta;
+    private final Path raiz;
+    private final String id;
+    private final boolean comprimir;
+    private final OuvinteTransferencia ouvinte;
+    private final WatchService observador;
+    private final Map<WatchKey, Path> pastasObservadas = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean ativa = true;
+
+    // Só a thread da sincronização mexe daqui para baixo
+    // caminho relativo -> {tamanho, modificado} do que o servidor já tem
+    private Map<String, long[]> enviados = new HashMap<>();
+    private final Set<Path> tocados = new HashSet<>();
+    private boolean varrer = false;
+    private boolean completa = true;
+
+    SincronizacaoContinua(ClienteFtp cliente, File pasta, String id, boolean comprimir, OuvinteTransferencia ouvinte)
+            throws IOException {
+        this.cliente = cliente;
+        this.pasta = pasta;
+        this.raiz = pasta.toPath().toAbsolutePath().normalize();
+        this.id = id;
+        this.comprimir = comprimir;
+        this.ouvinte = ouvinte;
+        this.observador = FileSystems.getDefault().newWatchService();
+        try {
+            registrarArvore(raiz);
+        } catch (IOException e) {
+            observador.close();
+            throw e;
+        }
+        thread = new Thread(this::executar, "sincronizacao-" + pasta.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public File getPasta() {
+        return pasta;
+    }
+
+    /** Para de observar; um envio em andamento termina antes de a thread sair. */
+    @Override
+    public void close() {
+        ativa = false;
+        try {
+            observador.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void executar() {
+        ouvinte.registrar(Tipo.INFO, "Sincronização contínua de " + pasta.getName() + " iniciada.");
+        long proximaVarredura = System.currentTimeMillis() + VARREDURA_MS;
+        try {
+            while (ativa) {
+                if (!completa && tocados.isEmpty() && !varrer) {
+                    long espera = Math.max(1, proximaVarredura - System.currentTimeMillis());
+                    WatchKey chave = observador.poll(espera, TimeUnit.MILLISECONDS);
+                    if (chave != null) {
+                        lerEventos(chave);
+                        juntarRajada();
+                    } else {
+                        varrer = true;
+                    }
+                }
+                if (varrer || completa) {
+                    proximaVarredura = System.currentTimeMillis() + VARREDURA_MS;
+                }
+                try {
+                    sincronizar();
+                } catch (IOException e) {
+                    // O lote fica pendente e vai de novo na próxima rodada, junto com o que mudar até lá
+                    ouvinte.registrar(Tipo.ERRO, "Sincronização contínua: " + e.getMessage() + ". Tentando de novo em "
+                            + ESPERA_ERRO_MS / 1000 + " s.");
+                    Thread.sleep(ESPERA_ERRO_MS);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // close()
+        }
+        ouvinte.registrar(Tipo.INFO, "Sincronização contínua de " + pasta.getName() + " encerrada.");
+    }
+
+    private void juntarRajada() throws InterruptedException {
+        long limite = System.currentTimeMillis() + JANELA_MAXIMA_MS;
+        WatchKey chave;
+        while (System.currentTimeMillis() < limite && (chave = observador.poll(JANELA_MS, TimeUnit.MILLISECONDS)) != null) {
+            lerEventos(chave);
+        }
+    }
+
+    private void lerEventos(WatchKey chave) {
+        Path base = pastasObservadas.get(chave);
+        for (WatchEvent<?> evento : chave.pollEvents()) {
+            if (evento.kind() == StandardWatchEventKinds.OVERFLOW || base == null) {
+                varrer = true;
+                continue;
+            }
+            Path caminho = base.resolve((Path) evento.context());
+            tocados.add(caminho);
+            if (evento.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(caminho)) {
+                try {
+                    registrarArvore(caminho);
+                } catch (IOException e) {
+                    varrer = true;
+                }
+            }
+        }
+        if (!chave.reset()) {
+            pastasObservadas.remove(chave);
+        }
+    }
+
+    private void sincronizar() throws IOException {
+        if (completa) {
+            tocados.clear();
+            varrer = false;
+            Map<String, long[]> estado = listar(raiz);
+            cliente.enviar(pasta, id, 1, comprimir);
+            enviados = estado;
+            completa = false;
+            return;
+        }
+
+        Map<String, File> alterados = new HashMap<>();
+        Set<String> removidos = new TreeSet<>();
+        if (varrer) {
+            Map<String, long[]> estado = listar(raiz);
+            for (Map.Entry<String, long[]> atual : estado.entrySet()) {
+                if (mudou(atual.getKey(), atual.getValue())) {
+                    alterados.put(atual.getKey(), arquivo(atual.getKey()));
+                }
+            }
+            for (String caminho : enviados.keySet()) {
+                if (!estado.containsKey(caminho)) removidos.add(caminho);
+            }
+        } else {
+            for (Path tocado : tocados) {
+                examinar(tocado, alterados, removidos);
+            }
+        }
+
+        if (!alterados.isEmpty() || !removidos.isEmpty()) {
+            Map<String, long[]> situacao = new HashMap<>();
+            for (Map.Entry<String, File> alterado : alterados.entrySet()) {
+                File arquivo = alterado.getValue();
+                situacao.put(alterado.getKey(), new long[]{arquivo.length(), arquivo.lastModified()});
+            }
+            if (!cliente.enviarAlteracoes(pasta, id, new ArrayList<>(alterados.values()), removidos, comprimir)) {
+                ouvinte.registrar(Tipo.INFO, "O servidor não aceitou só as alterações de " + pasta.getName() + "; sincronizando a pasta inteira.");
+                completa = true;
+                return;
+            }
+            enviados.putAll(situacao);
+            enviados.keySet().removeAll(removidos);
+            ouvinte.registrar(Tipo.SUCESSO, "Sincronização contínua: " + alterados.size() + " arquivo(s) enviado(s), "
+                    + removidos.size() + " removido(s).");
+        }
+        tocados.clear();
+        varrer = false;
+    }
+
+    // Um caminho com evento pode ser arquivo, pasta nova (com conteúdo) ou algo que sumiu, inclusive uma pasta
+    private void examinar(Path caminho, Map<String, File> alterados, Set<String> removidos) throws IOException {
+        if (!caminho.startsWith(raiz) || caminho.equals(raiz)) return;
+        String relativo = relativo(caminho);
+        if (Files.isRegularFile(caminho)) {
+            File arquivo = arquivo(relativo);
+            if (mudou(relativo, new long[]{arquivo.length(), arquivo.lastModified()})) {
+                alterados.put(relativo, arquivo);
+            }
+        } else if (Files.isDirectory(caminho)) {
+            for (Map.Entry<String, long[]> atual : listar(caminho).entrySet()) {
+                if (mudou(atual.getKey(), atual.getValue())) {
+                    alterados.put(atual.getKey(), arquivo(atual.getKey()));
+                }
+            }
+        } else {
+            String prefixo = relativo + "/";
+            for (String enviado : enviados.keySet()) {
+                if (enviado.equals(relativo) || enviado.startsWith(prefixo)) {
+                    removidos.add(enviado);
+                }
+            }
+        }
+    }
+
+    private boolean mudou(String relativo, long[] atual) {
+        long[] enviado = enviados.get(relativo);
+        return enviado == null || enviado[0] != atual[0] || enviado[1] != atual[1];
+    }
+
+    private Map<String, long[]> listar(Path inicio) throws IOException {
+        Map<String, long[]> arquivos = new HashMap<>();
+        Files.walkFileTree(inicio, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path arquivo, BasicFileAttributes atributos) {
+                if (atributos.isRegularFile()) {
+                    arquivos.put(relativo(arquivo), new long[]{atributos.size(), atributos.lastModifiedTime().toMillis()});
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path arquivo, IOException e) {
+                // Apagado durante a varredura
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return arquivos;
+    }
+
+    private void registrarArvore(Path inicio) throws IOException {
+        Files.walkFileTree(inicio, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path diretorio, BasicFileAttributes atributos) throws IOException {
+                WatchKey chave = diretorio.register(observador, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                pastasObservadas.put(chave, diretorio);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path arquivo, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private String relativo(Path caminho) {
+        return raiz.relativize(caminho).toString().replace(File.separatorChar, '/');
+    }
+
+    // Relativo à pasta como foi informada, que é a base dos caminhos do manifesto
+    private File arquivo(String relativo) {
+        return new File(pasta, relativo.replace('/', File.separatorChar));
+    }
+}
@@ -0,0 +1,148 @@
+package ftp.cliente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ftp.cliente.EnvioJanelado.Trecho;
+import ftp.protocolo.EntradaProtocolo;
+import ftp.protocolo.Protocolo;
+
+/**
+ * Parte de dados do upload paralelo: abre várias conexões numa sessão já criada pela conexão de
+ * controle e cada uma tira trechos de uma fila comum até ela esvaziar. Arquivos maiores que
+ * {@link Protocolo#TAMANHO_TRECHO} são divididos, e os trechos maiores saem primeiro para que
+ * nenhuma conexão fique sozinha com um arquivo grande no final.
+ */
+class UploadParalelo {
+    private final String host;
+    private final int porta;
+    private final String sessao;
+    private final int janela;
+    private final boolean comprimir;
+    private final Queue<Trecho> fila = new ConcurrentLinkedQueue<>();
+    private final List<String> falhas = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger enviados = new AtomicInteger();
+
+    UploadParalelo(String host, int porta, String sessao, int janela, boolean comprimir) {
+        this.host = host;
+        this.porta = porta;
+        this.sessao = sessao;
+        this.janela = janela;
+        this.comprimir = comprimir;
+    }
+
+    /**
+     * Envia os trechos que não estão em {@code concluidos} (chaves de {@link #chave}, de uma
+     * sessão retomada); uma conexão que falha esvazia a fila e o erro dela é relançado.
+     */
+    void enviar(File pastaBase, List<File> arquivos, Set<String> concluidos, int conexoes,
+                EnvioJanelado.Progresso progresso) throws IOException, InterruptedException {
+        List<Trecho> trechos = dividir(pastaBase, arquivos);
+        trechos.removeIf(trecho -> concluidos.contains(chave(trecho.caminho(), trecho.posicao())));
+        if (trechos.isEmpty()) return;
+        fila.addAll(trechos);
+        conexoes = Math.min(conexoes, trechos.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(conexoes);
+        try {
+            List<Future<Void>> envios = new ArrayList<>();
+            for (int i = 0; i < conexoes; i++) {
+                envios.add(executor.submit(() -> enviarPorConexao(trechos.size(), progresso)));
+            }
+            IOException erro = null;
+            for (Future<Void> envio : envios) {
+                try {
+                    envio.get();
+                } catch (ExecutionException e) {
+                    if (erro == null) {
+                        erro = e.getCause() instanceof IOException io ? io : new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+            if (erro != null) throw erro;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Void enviarPorConexao(int total, EnvioJanelado.Progresso progresso) throws Exception {
+        try (Socket socket = new Socket(host, porta);
+             EntradaProtocolo entrada = new EntradaProtocolo(socket.getInputStream());
+             PrintWriter saida = new PrintWriter(socket.getOutputStream(), true)) {
+
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(30000);
+            entrada.lerLinha(); // Saudação; os recursos já foram conferidos na conexão de controle
+            comando(saida, entrada, "OPTS " + Protocolo.RECURSO_V2, "200");
+            comando(saida, entrada, "OPTS " + Protocolo.RECURSO_JANELA + " " + janela, "200");
+            if (comprimir) {
+                comando(saida, entrada, "OPTS " + Protocolo.RECURSO_COMPRIMIR, "200");
+            }
+            comando(saida, entrada, "JOIN_UPLOAD " + sessao, "150");
+
+            EnvioJanelado envio = new EnvioJanelado(socket, entrada, janela, true, comprimir);
+            String resposta = envio.enviarFila(fila, trecho ->
+                    progresso.arquivoEnviado(enviados.incrementAndGet(), total, trecho.caminho()));
+            falhas.addAll(envio.getFalhas());
+            if (resposta == null || !resposta.startsWith("226")) {
+                throw new IOException("Conexão de dados terminou com: " + resposta);
+            }
+            saida.println("QUIT");
+            return null;
+        } catch (Exception e) {
+            // Sem esta conexão a sessão será abortada; as outras não precisam continuar enviando
+            fila.clear();
+            throw e;
+        }
+    }
+
+    private void comando(PrintWriter saida, EntradaProtocolo entrada, String comando, String esperado) throws IOException {
+        saida.println(comando);
+        String resposta = entrada.lerLinha();
+        if (resposta == null || !resposta.startsWith(esperado)) {
+            throw new IOException("Servidor recusou " + comando + ": " + resposta);
+        }
+    }
+
+    static String chave(String caminho, long posicao) {
+        return posicao + "|" + caminho;
+    }
+
+    static List<Trecho> dividir(File pastaBase, List<File> arquivos) {
+        List<Trecho> trechos = new ArrayList<>();
+        for (File arquivo : arquivos) {
+            String caminho = ManifestoLocal.caminhoRelativo(pastaBase, arquivo);
+            long tamanho = arquivo.length();
+            if (tamanho <= Protocolo.TAMANHO_TRECHO) {
+                trechos.add(new Trecho(arquivo, caminho, 0, tamanho, tamanho));
+                continue;
+            }
+            for (long posicao = 0; posicao < tamanho; posicao += Protocolo.TAMANHO_TRECHO) {
+                trechos.add(new Trecho(arquivo, caminho, posicao, Math.min(Protocolo.TAMANHO_TRECHO, tamanho - posicao), tamanho));
+            }
+        }
+        trechos.sort(Comparator.comparingLong(Trecho::tamanho).reversed());
+        return trechos;
+    }
+
+    /** Falhas de gravação reportadas pelo servidor em qualquer uma das conexões. */
+    List<String> getFalhas() {
+        synchronized (falhas) {
+            return new ArrayList<>(falhas);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ftp.protocolo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Assinaturas dos blocos de um arquivo, usadas na transferência por delta: para cada bloco de
+ * tamanho fixo, um checksum rolante (barato, com colisões) e um MD5 (confirma a igualdade).
+ */
+public final class AssinaturaBlocos {
+    public static final int TAMANHO_FORTE = 16;
+    private static final int BLOCO_MINIMO = 2 * 1024;
+    private static final int BLOCO_MAXIMO = 128 * 1024;
+
+    private final int tamanhoBloco;
+    private final long tamanhoArquivo;
+    private final int[] fracos;
+    private final byte[][] fortes;
+
+    private AssinaturaBlocos(int tamanhoBloco, long tamanhoArquivo, int[] fracos, byte[][] fortes) {
+        this.tamanhoBloco = tamanhoBloco;
+        this.tamanhoArquivo = tamanhoArquivo;
+        this.fracos = fracos;
+        this.fortes = fortes;
+    }
+
+    /** Blocos de aproximadamente raiz(tamanho) bytes, como no rsync, limitados entre 2 KB e 128 KB. */
+    public static int tamanhoBlocoPara(long tamanhoArquivo) {
+        long raiz = (long) Math.sqrt((double) tamanhoArquivo);
+        long bloco = Math.max(BLOCO_MINIMO, Math.min(BLOCO_MAXIMO, raiz));
+        return (int) (bloco / 1024 * 1024);
+    }
+
+    public static AssinaturaBlocos calcular(Path arquivo) throws IOException {
+        long tamanhoArquivo = Files.size(arquivo);
+        int tamanhoBloco = tamanhoBlocoPara(tamanhoArquivo);
+        int quantidade = (int) ((tamanhoArquivo + tamanhoBloco - 1) / tamanhoBloco);
+        int[] fracos = new int[quantidade];
+        byte[][] fortes = new byte[quantidade][];
+
+        MessageDigest md5 = novoMd5();
+        byte[] bloco = new byte[tamanhoBloco];
+        try (InputStream entrada = Files.newInputStream(arquivo)) {
+            for (int i = 0; i < quantidade; i++) {
+                int lidos = entrada.readNBytes(bloco, 0, tamanhoBloco);
+                if (lidos == 0) {
+                    throw new EOFException("Arquivo alterado durante o cálculo das assinaturas: " + arquivo);
+                }
+                fracos[i] = ChecksumRolante.calcularValor(bloco, 0, lidos);
+                md5.update(bloco, 0, lidos);
+                fortes[i] = md5.digest();
+            }
+        }
+        return new AssinaturaBlocos(tamanhoBloco, tamanhoArquivo, fracos, fortes);
+    }
+
+    public void escrever(SaidaProtocolo saida) throws IOException {
+        saida.escreverVarint(tamanhoBloco);
+        saida.escreverVarint(tamanhoArquivo);
+        saida.escreverVarint(fracos.length);
+        for (int i = 0; i < fracos.length; i++) {
+            int fraco = fracos[i];
+            saida.write(fraco >>> 24);
+            saida.write(fraco >>> 16);
+            saida.write(fraco >>> 8);
+            saida.write(fraco);
+            saida.write(fortes[i]);
+        }
+    }
+
+    public static AssinaturaBlocos ler(EntradaProtocolo entrada) throws IOException {
+        int tamanhoBloco = (int) entrada.lerVarint();
+        long tamanhoArquivo = entrada.lerVarint();
+        int quantidade = (int) entrada.lerVarint();
+        if (tamanhoBloco < 1 || quantidade != (tamanhoArquivo + tamanhoBloco - 1) / tamanhoBloco) {
+            throw new IOException("Assinaturas de blocos inconsistentes");
+        }
+        int[] fracos = new int[quantidade];
+        byte[][] fortes = new byte[quantidade][];
+        byte[] registro = new byte[Integer.BYTES + TAMANHO_FORTE];
+        for (int i = 0; i < quantidade; i++) {
+            if (entrada.readNBytes(registro, 0, registro.length) < registro.length) {
+                throw new EOFException("Conexão encerrada durante o envio das assinaturas");
+            }
+            fracos[i] = (registro[0] & 0xFF) << 24 | (registro[1] & 0xFF) << 16 | (registro[2] & 0xFF) << 8 | (registro[3] & 0xFF);
+            fortes[i] = Arrays.copyOfRange(registro, Integer.BYTES, registro.length);
+        }
+        return new AssinaturaBlocos(tamanhoBloco, tamanhoArquivo, fracos, fortes);
+    }
+
+    public int getTamanhoBloco() {
+        return tamanhoBloco;
+    }
+
+    public int getQuantidade() {
+        return fracos.length;
+    }
+
+    public int getFraco(int indice) {
+        return fracos[indice];
+    }
+
+    public byte[] getForte(int indice) {
+        return fortes[indice];
+    }
+
+    /** Tamanho do bloco no índice dado; só o último pode ser menor que o tamanho de bloco. */
+    public int tamanhoDoBloco(int indice) {
+        long inicio = (long) indice * tamanhoBloco;
+        return (int) Math.min(tamanhoBloco, tamanhoArquivo - inicio);
+    }
+
+    public static MessageDigest novoMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 indisponível", e);
+        }
+    }
+}
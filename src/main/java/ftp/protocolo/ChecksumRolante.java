@@ -0,0 +1,39 @@
+package ftp.protocolo;
+
+/**
+ * Checksum fraco no estilo do rsync (duas somas de 16 bits), que pode ser deslocado um byte
+ * por vez em O(1) ao percorrer o arquivo.
+ */
+public final class ChecksumRolante {
+    private int a;
+    private int b;
+    private int tamanho;
+
+    public void calcular(byte[] dados, int inicio, int tamanho) {
+        a = 0;
+        b = 0;
+        this.tamanho = tamanho;
+        for (int i = 0; i < tamanho; i++) {
+            int x = dados[inicio + i] & 0xFF;
+            a += x;
+            b += (tamanho - i) * x;
+        }
+    }
+
+    /** Desloca a janela: remove o byte que sai pela esquerda e inclui o que entra pela direita. */
+    public void rolar(byte sai, byte entra) {
+        int antigo = sai & 0xFF;
+        a += (entra & 0xFF) - antigo;
+        b += a - tamanho * antigo;
+    }
+
+    public int valor() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public static int calcularValor(byte[] dados, int inicio, int tamanho) {
+        ChecksumRolante checksum = new ChecksumRolante();
+        checksum.calcular(dados, inicio, tamanho);
+        return checksum.valor();
+    }
+}
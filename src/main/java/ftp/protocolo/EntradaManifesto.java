@@ -0,0 +1,26 @@
+package ftp.protocolo;
+
+/**
+ * Uma linha do manifesto usado pelo SYNC_FOLDER: caminho relativo (sempre com '/'), tamanho,
+ * data de modificação e hash SHA-256 do conteúdo.
+ * Formato na rede: {@code M:tamanho|modificado|hash|caminho} (o caminho vem por último porque
+ * pode conter '|').
+ */
+public record EntradaManifesto(String caminho, long tamanho, long modificado, String hash) {
+    private static final String PREFIXO = "M:";
+
+    public String formatar() {
+        return PREFIXO + tamanho + "|" + modificado + "|" + hash + "|" + caminho;
+    }
+
+    public static EntradaManifesto interpretar(String linha) {
+        if (!linha.startsWith(PREFIXO)) {
+            throw new IllegalArgumentException("Linha de manifesto inválida: " + linha);
+        }
+        String[] partes = linha.substring(PREFIXO.length()).split("\\|", 4);
+        if (partes.length != 4) {
+            throw new IllegalArgumentException("Linha de manifesto inválida: " + linha);
+        }
+        return new EntradaManifesto(partes[3], Long.parseLong(partes[0]), Long.parseLong(partes[1]), partes[2]);
+    }
+}
@@ -0,0 +1,138 @@
+package ftp.protocolo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Entrada do socket que lê linhas de controle, quadros binários e bytes de arquivo do mesmo buffer.
+ * Misturar um BufferedReader com leituras diretas do InputStream perde os bytes que o
+ * leitor já tinha trazido para o buffer dele.
+ *
+ * O buffer é próprio em vez de herdado de BufferedInputStream: as subclasses dele leem dentro de
+ * blocos synchronized, o que prende a thread portadora de uma thread virtual parada esperando um
+ * comando. Cada entrada é lida por uma thread só, então não há trava.
+ */
+public class EntradaProtocolo extends InputStream {
+    private static final int TAMANHO_BUFFER = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[TAMANHO_BUFFER];
+    private int pos;
+    private int count;
+    private boolean fechada = false;
+    private final ByteArrayOutputStream linha = new ByteArrayOutputStream(128);
+
+    public EntradaProtocolo(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= count && !preencher()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] destino, int inicio, int tamanho) throws IOException {
+        if (tamanho == 0) {
+            return 0;
+        }
+        if (pos >= count) {
+            // Leituras grandes vão direto para o destino, sem passar pelo buffer
+            if (tamanho >= buffer.length && !fechada) {
+                return in.read(destino, inicio, tamanho);
+            }
+            if (!preencher()) {
+                return -1;
+            }
+        }
+        int quantidade = Math.min(tamanho, count - pos);
+        System.arraycopy(buffer, pos, destino, inicio, quantidade);
+        pos += quantidade;
+        return quantidade;
+    }
+
+    private boolean preencher() throws IOException {
+        if (fechada) {
+            throw new IOException("Stream closed");
+        }
+        pos = 0;
+        count = 0;
+        int lidos = in.read(buffer, 0, buffer.length);
+        if (lidos <= 0) {
+            return false;
+        }
+        count = lidos;
+        return true;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (count - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fechada = true;
+        in.close();
+    }
+
+    /** Lê uma linha terminada em '\n' (ignorando um '\r' final), ou null no fim do stream. */
+    public String lerLinha() throws IOException {
+        linha.reset();
+        int b;
+        while ((b = read()) != -1) {
+            if (b == '\n') {
+                return decodificarLinha();
+            }
+            linha.write(b);
+        }
+        return linha.size() > 0 ? decodificarLinha() : null;
+    }
+
+    /** Lê um inteiro sem sinal em varint (7 bits por byte, menos significativos primeiro). */
+    public long lerVarint() throws IOException {
+        long valor = 0;
+        for (int deslocamento = 0; deslocamento < 64; deslocamento += 7) {
+            int b = read();
+            if (b == -1) {
+                throw new EOFException("Stream terminou no meio de um varint");
+            }
+            valor |= (long) (b & 0x7F) << deslocamento;
+            if ((b & 0x80) == 0) {
+                return valor;
+            }
+        }
+        throw new IOException("Varint com mais de 64 bits");
+    }
+
+    /** Lê um texto UTF-8 prefixado pelo tamanho em varint. */
+    public String lerTexto() throws IOException {
+        long tamanho = lerVarint();
+        if (tamanho > TAMANHO_BUFFER) {
+            throw new IOException("Texto de " + tamanho + " bytes excede o limite do protocolo");
+        }
+        byte[] bytes = readNBytes((int) tamanho);
+        if (bytes.length < tamanho) {
+            throw new EOFException("Stream terminou no meio de um texto");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Bytes que já foram lidos do socket e ainda estão no buffer desta entrada. */
+    public int bufferizados() {
+        return count - pos;
+    }
+
+    private String decodificarLinha() {
+        byte[] bytes = linha.toByteArray();
+        int fim = bytes.length;
+        if (fim > 0 && bytes[fim - 1] == '\r') fim--;
+        return new String(bytes, 0, fim, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,81 @@
+package ftp.protocolo;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers reaproveitados pelos laços de cópia do cliente e do servidor, para que cada comando,
+ * arquivo ou conexão não aloque os seus. Buffers diretos servem à leitura e escrita por canais
+ * (sem cópia intermediária na JVM); arrays servem aos streams. Cada tamanho tem uma reserva
+ * própria, limitada, então um pico de conexões não deixa memória presa depois que passa.
+ *
+ * Os tamanhos padrão podem ser ajustados com -Dftp.buffer.rede, -Dftp.buffer.copia e
+ * -Dftp.buffer.reserva (buffers ociosos guardados por tamanho).
+ */
+public final class PoolBuffers {
+    /** Recepção de uploads direto do socket para o disco. */
+    public static final int TAMANHO_REDE = Math.max(64 * 1024, Integer.getInteger("ftp.buffer.rede", 1024 * 1024));
+    /** Cópias entre arquivo e stream, lotes de quadros e buffers de gravação do download. */
+    public static final int TAMANHO_COPIA = Math.max(16 * 1024, Integer.getInteger("ftp.buffer.copia", 256 * 1024));
+    private static final int RESERVA_MAXIMA = Math.max(1, Integer.getInteger("ftp.buffer.reserva", 64));
+
+    private static final Map<Integer, BlockingDeque<ByteBuffer>> diretos = new ConcurrentHashMap<>();
+    private static final Map<Integer, BlockingDeque<byte[]>> arrays = new ConcurrentHashMap<>();
+    private static final AtomicLong criados = new AtomicLong();
+    private static final AtomicLong reaproveitados = new AtomicLong();
+
+    private PoolBuffers() {
+    }
+
+    /** Buffer direto limpo com exatamente {@code tamanho} bytes de capacidade. */
+    public static ByteBuffer direto(int tamanho) {
+        ByteBuffer buffer = reserva(diretos, tamanho).pollFirst();
+        if (buffer == null) {
+            criados.incrementAndGet();
+            return ByteBuffer.allocateDirect(tamanho);
+        }
+        reaproveitados.incrementAndGet();
+        return buffer;
+    }
+
+    /** Devolve para a reserva; quem devolve não pode mais usar o buffer. Aceita null. */
+    public static void devolver(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        buffer.clear();
+        reserva(diretos, buffer.capacity()).offerFirst(buffer);
+    }
+
+    public static byte[] array(int tamanho) {
+        byte[] buffer = reserva(arrays, tamanho).pollFirst();
+        if (buffer == null) {
+            criados.incrementAndGet();
+            return new byte[tamanho];
+        }
+        reaproveitados.incrementAndGet();
+        return buffer;
+    }
+
+    public static void devolver(byte[] buffer) {
+        if (buffer == null) return;
+        reserva(arrays, buffer.length).offerFirst(buffer);
+    }
+
+    /** Buffers alocados desde o início do processo. */
+    public static long getCriados() {
+        return criados.get();
+    }
+
+    /** Empréstimos atendidos com um buffer devolvido antes. */
+    public static long getReaproveitados() {
+        return reaproveitados.get();
+    }
+
+    // Mais recente primeiro: o buffer devolvido por último é o que ainda está no cache do processador
+    private static <T> BlockingDeque<T> reserva(Map<Integer, BlockingDeque<T>> reservas, int tamanho) {
+        return reservas.computeIfAbsent(tamanho, t -> new LinkedBlockingDeque<>(RESERVA_MAXIMA));
+    }
+}
@@ -0,0 +1,177 @@
+package ftp.protocolo;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Constantes do protocolo compartilhadas entre cliente e servidor.
+ *
+ * Os recursos opcionais são anunciados na própria saudação, depois do texto original, para que
+ * clientes antigos (que só leem e descartam a linha) continuem funcionando. Um cliente novo só
+ * ativa um recurso com OPTS quando o servidor o anunciou.
+ */
+public final class Protocolo {
+    public static final String SAUDACAO = "220 Servidor Pronto";
+    // NOOP responde "200 OK"; o cliente usa para conferir uma conexão ociosa antes de reutilizá-la
+    public static final String NOOP = "NOOP";
+    private static final String PREFIXO_RECURSOS = " | RECURSOS: ";
+
+    // Upload com várias confirmações pendentes: OPTS JANELA <n>
+    public static final String RECURSO_JANELA = "JANELA";
+    public static final int JANELA_MAXIMA = 256;
+
+    /*
+     * Download sem ZIP: DOWNLOAD_RAW <pasta>. Depois do "150", cada arquivo é um quadro
+     * [int tamanho do caminho][caminho UTF-8][long tamanho][conteúdo]; um tamanho de caminho
+     * igual a FIM_QUADROS encerra a pasta, seguido da linha "226".
+     */
+    public static final String RECURSO_QUADROS = "QUADROS";
+    public static final int FIM_QUADROS = -1;
+
+    /*
+     * Protocolo v2 (OPTS V2): a fase de dados do UPLOAD_FOLDER deixa de usar linhas de texto e
+     * passa a usar quadros binários [opcode][campos em varint][payload]. Os comandos e as
+     * respostas finais continuam em texto. A janela negociada com OPTS JANELA vale para o v2;
+     * sem ela, cada arquivo é confirmado antes do próximo.
+     */
+    public static final String RECURSO_V2 = "V2";
+    // Cliente -> servidor: ARQUIVO [caminho][tamanho][bytes], FIM_PASTA
+    public static final int OP_ARQUIVO = 0x01;
+    public static final int OP_FIM_PASTA = 0x02;
+    // Só em sessões paralelas: TRECHO [caminho][tamanho total][posição][tamanho][bytes]
+    public static final int OP_TRECHO = 0x03;
+    // Só com OPTS COMPRIMIR: ARQUIVO_COMPRIMIDO [caminho][tamanho original] ([tamanho][bytes zlib])* [0]
+    public static final int OP_ARQUIVO_COMPRIMIDO = 0x04;
+    // Servidor -> cliente: ACK [seq], ERRO [seq][motivo], CONCLUIDO (a linha de resposta vem em seguida)
+    public static final int OP_ACK = 0x10;
+    public static final int OP_ERRO = 0x11;
+    public static final int OP_CONCLUIDO = 0x12;
+
+    /*
+     * Envio incremental: SYNC_FOLDER nome|id. Depois do "150" o cliente manda o manifesto
+     * (linhas de EntradaManifesto e END_MANIFEST); o servidor apaga o que não está mais no
+     * manifesto e responde com "NEED:<caminho>" para cada arquivo novo ou alterado, seguido de
+     * "END_NEED <necessários> <removidos>". Os arquivos pedidos seguem como num UPLOAD_FOLDER.
+     */
+    public static final String RECURSO_SYNC = "SYNC";
+
+    /*
+     * Delta por blocos (OPTS DELTA), dentro do SYNC_FOLDER: para arquivos grandes que o servidor já
+     * tem numa versão anterior, ele responde "DELTA:<caminho>" em vez de "NEED:". Depois do
+     * END_NEED, para cada um desses arquivos, o servidor envia as AssinaturaBlocos da cópia dele e
+     * o cliente responde com quadros COPIAR [índice do bloco] e LITERAL [tamanho][bytes] até
+     * FIM_DELTA. O servidor reconstrói o arquivo ao lado do antigo, confere o hash do manifesto e
+     * responde "DELTA_OK" ou "DELTA_FALHOU <motivo>"; nesse caso o arquivo segue inteiro na fase
+     * de arquivos.
+     */
+    public static final String RECURSO_DELTA = "DELTA";
+    public static final long LIMIAR_DELTA = 1024 * 1024;
+    public static final int OP_COPIAR = 0x20;
+    public static final int OP_LITERAL = 0x21;
+    public static final int OP_FIM_DELTA = 0x22;
+
+    /*
+     * Upload paralelo: UPLOAD_PARALLEL nome|id <conexões> abre uma sessão e o servidor responde
+     * "150 SESSAO <id> <conexões>". Cada conexão de dados, com OPTS V2, manda JOIN_UPLOAD <id> e
+     * envia quadros ARQUIVO ou TRECHO tirados de uma fila comum no cliente, terminando com
+     * FIM_PASTA e a linha "226". Depois que todas terminam, o cliente manda COMMIT (ou ABORT) pela
+     * conexão de controle; a pasta só é trocada se todos os arquivos chegaram inteiros.
+     */
+    public static final String RECURSO_PARALELO = "PARALELO";
+    public static final int CONEXOES_PARALELAS_MAXIMO = 8;
+    public static final long TAMANHO_TRECHO = 8 * 1024 * 1024;
+
+    /*
+     * Retomada (RETOMAR). Se a conexão de controle de um upload paralelo cai, a sessão fica
+     * suspensa, com o diário dos trechos já gravados, em vez de ser descartada. Depois,
+     * RESUME_UPLOAD <id> <conexões> responde "150 SESSAO <id> <conexões>", uma linha
+     * "FEITO:<tamanho total>|<posição>|<tamanho>|<caminho>" por trecho já gravado e
+     * "END_FEITOS <quantidade>"; o restante segue como no UPLOAD_PARALLEL. No download,
+     * RESUME_DOWNLOAD <pasta> responde "150", o cliente manda "TEM:<tamanho>|<caminho>" para o que
+     * já tem e END_TEM, e o servidor envia só o que falta em quadros
+     * [int tamanho do caminho][caminho][long tamanho][long posição][conteúdo a partir da posição].
+     */
+    public static final String RECURSO_RETOMAR = "RETOMAR";
+    public static final long RETENCAO_SESSAO_MS = 24L * 60 * 60 * 1000;
+
+    /*
+     * Nível de compressão do DOWNLOAD_FOLDER: OPTS COMPRESSAO <0-9>, em que 0 guarda os arquivos sem
+     * compressão (STORED). Sem a opção vale o nível padrão do Deflater. Arquivos com extensões de
+     * formatos já comprimidos são sempre armazenados.
+     */
+    public static final String RECURSO_COMPRESSAO = "COMPRESSAO";
+
+    /*
+     * Upload comprimido (OPTS COMPRIMIR, junto com o v2): cada arquivo inteiro pode vir num quadro
+     * ARQUIVO_COMPRIMIDO, com o conteúdo em zlib dividido em pedaços prefixados pelo tamanho, para
+     * que o cliente comprima enquanto envia. Arquivos que não comprimem seguem em quadros ARQUIVO.
+     */
+    public static final String RECURSO_COMPRIMIR = "COMPRIMIR";
+
+    /*
+     * Listagem paginada: LIST <ordem>|<limite>|<cursor>|<prefixo>, com ordem NOME, TAMANHO ou DATA
+     * (do último upload), seguida de "-" para decrescente; cursor vazio na primeira página; o
+     * prefixo filtra pelo nome original. Se restarem pastas, a linha "PROXIMA:<cursor>" vem antes
+     * do "226". LIST sem argumentos continua listando tudo.
+     */
+    public static final String RECURSO_LISTA_PAGINADA = "LISTA_PAGINADA";
+    public static final int LIMITE_PAGINA_MAXIMO = 1000;
+
+    /*
+     * Alterações, para a sincronização contínua: SYNC_CHANGES nome|id segue como o SYNC_FOLDER, mas o
+     * manifesto traz só os arquivos alterados, mais linhas "REMOVER:<caminho>"; o resto da pasta
+     * fica como no último manifesto salvo. Sem manifesto salvo, ou se ele não confere com a pasta
+     * publicada, o servidor responde "450" e o cliente faz um SYNC_FOLDER completo.
+     */
+    public static final String RECURSO_ALTERACOES = "ALTERACOES";
+
+    /*
+     * Ociosidade (OCIOSIDADE=<segundos>, anunciado com o valor): o servidor encerra a conexão que
+     * passar esse tempo sem mandar comando. Um servidor com poucas threads por conexão anuncia um
+     * prazo curto, abaixo de OCIOSIDADE_CURTA_MS; o cliente então guarda no máximo uma conexão
+     * ociosa, e por menos tempo, para não segurar as threads de outros clientes.
+     */
+    public static final String RECURSO_OCIOSIDADE = "OCIOSIDADE";
+    public static final long OCIOSIDADE_CURTA_MS = 60_000;
+
+    private Protocolo() {
+    }
+
+    public static String saudacao(Collection<String> recursos) {
+        if (recursos.isEmpty()) {
+            return SAUDACAO;
+        }
+        return SAUDACAO + PREFIXO_RECURSOS + String.join(",", recursos);
+    }
+
+    /** Prazo de ociosidade anunciado, em milissegundos, ou 0 se o servidor não anunciou. */
+    public static long ociosidadeDaSaudacao(Set<String> recursos) {
+        String prefixo = RECURSO_OCIOSIDADE + "=";
+        for (String recurso : recursos) {
+            if (recurso.startsWith(prefixo)) {
+                try {
+                    return Long.parseLong(recurso.substring(prefixo.length())) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    public static Set<String> recursosDaSaudacao(String saudacao) {
+        Set<String> recursos = new LinkedHashSet<>();
+        if (saudacao == null) return recursos;
+
+        int inicio = saudacao.indexOf(PREFIXO_RECURSOS);
+        if (inicio < 0) return recursos;
+
+        for (String recurso : saudacao.substring(inicio + PREFIXO_RECURSOS.length()).split(",")) {
+            if (!recurso.isBlank()) {
+                recursos.add(recurso.trim().toUpperCase());
+            }
+        }
+        return recursos;
+    }
+}
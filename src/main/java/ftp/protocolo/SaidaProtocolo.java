@@ -0,0 +1,89 @@
+package ftp.protocolo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Saída do socket para quadros binários: cabeçalhos e conteúdo passam pelo mesmo buffer e só
+ * vão para a rede num flush explícito.
+ *
+ * Como na EntradaProtocolo, o buffer é próprio em vez de herdado de BufferedOutputStream, cujas
+ * subclasses escrevem dentro de blocos synchronized e prendem a thread portadora de uma thread
+ * virtual. Cada saída é escrita por uma thread só, então não há trava.
+ */
+public class SaidaProtocolo extends OutputStream {
+    private static final int TAMANHO_BUFFER = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[TAMANHO_BUFFER];
+    private int count;
+
+    public SaidaProtocolo(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count >= buffer.length) {
+            esvaziar();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] origem, int inicio, int tamanho) throws IOException {
+        // Escritas grandes vão direto para a rede, sem passar pelo buffer
+        if (tamanho >= buffer.length) {
+            esvaziar();
+            out.write(origem, inicio, tamanho);
+            return;
+        }
+        if (tamanho > buffer.length - count) {
+            esvaziar();
+        }
+        System.arraycopy(origem, inicio, buffer, count, tamanho);
+        count += tamanho;
+    }
+
+    private void esvaziar() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        esvaziar();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    public void escreverVarint(long valor) throws IOException {
+        while ((valor & ~0x7FL) != 0) {
+            write((int) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        write((int) valor);
+    }
+
+    public void escreverTexto(String texto) throws IOException {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        escreverVarint(bytes.length);
+        write(bytes);
+    }
+
+    public void escreverLinha(String linha) throws IOException {
+        write(linha.getBytes(StandardCharsets.UTF_8));
+        write('\n');
+    }
+}
@@ -0,0 +1,553 @@
+package ftp.servidor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import ftp.protocolo.PoolBuffers;
+import utils.HashUtil;
+
+/**
+ * Armazenamento opcional com deduplicação. O conteúdo dos arquivos é cortado em blocos
+ * definidos pelo próprio conteúdo (hash "gear", como no FastCDC), e cada bloco é gravado uma
+ * única vez em root/.blocos, com o SHA-256 como nome. Cada pasta vira um catálogo em
+ * root/.catalogo com o tamanho, o hash e a lista de blocos de cada arquivo.
+ *
+ * Os blocos têm contagem de referências: cada ocorrência num catálogo publicado ou numa gravação
+ * em andamento conta uma vez, e o bloco é apagado quando a contagem chega a zero e nenhum
+ * download iniciado antes disso ainda está em andamento (os downloads abrem os blocos um a um,
+ * à medida que chegam neles). As contagens
+ * são refeitas a partir dos catálogos quando o armazenamento é aberto, e blocos órfãos (de
+ * uploads interrompidos) são removidos nesse momento.
+ */
+final class ArmazenamentoBlocos {
+    static final String PASTA_BLOCOS = ".blocos";
+    static final String PASTA_CATALOGO = ".catalogo";
+    private static final String EXTENSAO_CATALOGO = ".pasta";
+
+    private static final int BLOCO_MINIMO = 256 * 1024;
+    private static final int BLOCO_MAXIMO = 4 * 1024 * 1024;
+    // O hash gear só depende dos últimos 64 bytes, então os primeiros bytes de cada bloco nem são olhados
+    private static final int JANELA_IMPRESSAO = Long.SIZE;
+    private static final long MASCARA_CORTE = (1L << 20) - 1;
+    private static final long[] ENGRENAGEM = new long[256];
+
+    static {
+        Random aleatorio = new Random(0x5EED_B10C);
+        for (int i = 0; i < ENGRENAGEM.length; i++) {
+            ENGRENAGEM[i] = aleatorio.nextLong();
+        }
+    }
+
+    private static volatile ArmazenamentoBlocos ativo;
+
+    /** Um arquivo no catálogo de uma pasta. */
+    record EntradaCatalogo(String caminho, long tamanho, String hash, List<String> blocos) {
+
+        // Formato: tamanho|hash|bloco1,bloco2,...|caminho (o caminho fica por último porque pode conter '|')
+        String formatar() {
+            return tamanho + "|" + hash + "|" + String.join(",", blocos) + "|" + caminho;
+        }
+
+        static EntradaCatalogo interpretar(String linha) {
+            String[] partes = linha.split("\\|", 4);
+            if (partes.length != 4) {
+                throw new IllegalArgumentException("Linha de catálogo inválida: " + linha);
+            }
+            List<String> blocos = partes[2].isEmpty() ? List.of() : List.of(partes[2].split(","));
+            return new EntradaCatalogo(partes[3], Long.parseLong(partes[0]), partes[1], blocos);
+        }
+    }
+
+    private static final class ArquivoConhecido {
+        final long tamanho;
+        final List<String> blocos;
+        int ocorrencias;
+
+        ArquivoConhecido(long tamanho, List<String> blocos) {
+            this.tamanho = tamanho;
+            this.blocos = blocos;
+        }
+    }
+
+    private final Map<String, Integer> referencias = new HashMap<>();
+    private final Map<String, ArquivoConhecido> arquivosPorHash = new HashMap<>();
+    private final Map<String, List<EntradaCatalogo>> catalogos = new HashMap<>();
+    // Leituras em andamento por época de início; um bloco liberado na época e só é apagado quando
+    // não resta leitura iniciada antes de e, que poderia ter o bloco na lista que leu do catálogo
+    private long epoca = 0;
+    private final TreeMap<Long, Integer> leituras = new TreeMap<>();
+    private final ArrayDeque<BlocoLiberado> liberados = new ArrayDeque<>();
+    // Última época em que cada bloco da fila foi liberado; um bloco reaproveitado e liberado de novo espera a nova
+    private final Map<String, Long> ultimaLiberacao = new HashMap<>();
+    private final Consumer<String> logger;
+
+    private record BlocoLiberado(String hash, long epoca) {
+    }
+
+    private ArmazenamentoBlocos(Consumer<String> logger) {
+        this.logger = logger;
+    }
+
+    static ArmazenamentoBlocos ativo() {
+        return ativo;
+    }
+
+    static synchronized void ativar(Consumer<String> logger) throws IOException {
+        if (ativo == null) {
+            ativo = abrir(logger);
+        }
+    }
+
+    static synchronized void desativar() {
+        ativo = null;
+    }
+
+    private static ArmazenamentoBlocos abrir(Consumer<String> logger) throws IOException {
+        ArmazenamentoBlocos armazenamento = new ArmazenamentoBlocos(logger);
+        Files.createDirectories(pastaBlocos());
+        Files.createDirectories(pastaCatalogo());
+
+        for (String nomePasta : listarCatalogos()) {
+            List<EntradaCatalogo> entradas = lerCatalogo(nomePasta);
+            armazenamento.catalogos.put(nomePasta, entradas);
+            for (EntradaCatalogo entrada : entradas) {
+                armazenamento.registrar(entrada);
+                for (String bloco : entrada.blocos()) {
+                    armazenamento.referencias.merge(bloco, 1, Integer::sum);
+                }
+            }
+        }
+
+        int orfaos = 0;
+        long bytes = 0;
+        try (DirectoryStream<Path> prefixos = Files.newDirectoryStream(pastaBlocos())) {
+            for (Path prefixo : prefixos) {
+                if (!Files.isDirectory(prefixo)) {
+                    Files.deleteIfExists(prefixo); // temporário de uma gravação interrompida
+                    orfaos++;
+                    continue;
+                }
+                try (DirectoryStream<Path> blocos = Files.newDirectoryStream(prefixo)) {
+                    for (Path bloco : blocos) {
+                        if (armazenamento.referencias.containsKey(bloco.getFileName().toString())) {
+                            bytes += Files.size(bloco);
+                        } else {
+                            Files.deleteIfExists(bloco);
+                            orfaos++;
+                        }
+                    }
+                }
+            }
+        }
+        logger.accept("Armazenamento por blocos: " + armazenamento.catalogos.size() + " pasta(s), "
+                + armazenamento.referencias.size() + " bloco(s) (" + bytes + " bytes), "
+                + orfaos + " bloco(s) órfão(s) removido(s).");
+        return armazenamento;
+    }
+
+    /* --- Leitura dos catálogos (funciona também com o armazenamento desativado) --- */
+
+    private static Path pastaBlocos() {
+        return Paths.get(Servidor.getRoot(), PASTA_BLOCOS);
+    }
+
+    private static Path pastaCatalogo() {
+        return Paths.get(Servidor.getRoot(), PASTA_CATALOGO);
+    }
+
+    private static Path arquivoCatalogo(String nomePasta) {
+        return pastaCatalogo().resolve(nomePasta + EXTENSAO_CATALOGO);
+    }
+
+    static Path caminhoBloco(String hash) {
+        return pastaBlocos().resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    static boolean possuiCatalogo(String nomePasta) {
+        return Files.isRegularFile(arquivoCatalogo(nomePasta));
+    }
+
+    static List<String> listarCatalogos() {
+        List<String> nomes = new ArrayList<>();
+        String[] arquivos = pastaCatalogo().toFile().list((pasta, nome) -> nome.endsWith(EXTENSAO_CATALOGO));
+        if (arquivos == null) return nomes;
+        for (String arquivo : arquivos) {
+            nomes.add(arquivo.substring(0, arquivo.length() - EXTENSAO_CATALOGO.length()));
+        }
+        return nomes;
+    }
+
+    static List<EntradaCatalogo> lerCatalogo(String nomePasta) throws IOException {
+        List<EntradaCatalogo> entradas = new ArrayList<>();
+        for (String linha : Files.readAllLines(arquivoCatalogo(nomePasta), StandardCharsets.UTF_8)) {
+            if (!linha.isBlank()) {
+                entradas.add(EntradaCatalogo.interpretar(linha));
+            }
+        }
+        return entradas;
+    }
+
+    /** Entradas do catálogo, da memória quando o armazenamento está ativo. */
+    static List<EntradaCatalogo> entradas(String nomePasta) throws IOException {
+        ArmazenamentoBlocos armazenamento = ativo;
+        if (armazenamento != null) {
+            synchronized (armazenamento) {
+                List<EntradaCatalogo> entradas = armazenamento.catalogos.get(nomePasta);
+                if (entradas != null) return entradas;
+            }
+        }
+        return lerCatalogo(nomePasta);
+    }
+
+    static List<ArquivoPasta> listarArquivos(String nomePasta) throws IOException {
+        List<ArquivoPasta> arquivos = new ArrayList<>();
+        for (EntradaCatalogo entrada : entradas(nomePasta)) {
+            List<File> partes = new ArrayList<>(entrada.blocos().size());
+            for (String bloco : entrada.blocos()) {
+                partes.add(caminhoBloco(bloco).toFile());
+            }
+            arquivos.add(new ArquivoPasta(entrada.caminho(), entrada.tamanho(), partes));
+        }
+        return arquivos;
+    }
+
+    /**
+     * Registra um download antes de ele ler o catálogo; fechar encerra o registro. Sem o
+     * armazenamento ativo nenhum bloco é apagado, e a leitura não registra nada.
+     */
+    static Leitura iniciarLeitura() {
+        ArmazenamentoBlocos armazenamento = ativo;
+        if (armazenamento == null) return new Leitura(null, 0);
+        synchronized (armazenamento) {
+            armazenamento.leituras.merge(armazenamento.epoca, 1, Integer::sum);
+            return new Leitura(armazenamento, armazenamento.epoca);
+        }
+    }
+
+    static final class Leitura implements AutoCloseable {
+        private ArmazenamentoBlocos armazenamento;
+        private final long inicio;
+
+        private Leitura(ArmazenamentoBlocos armazenamento, long inicio) {
+            this.armazenamento = armazenamento;
+            this.inicio = inicio;
+        }
+
+        @Override
+        public void close() {
+            if (armazenamento == null) return;
+            armazenamento.terminarLeitura(inicio);
+            armazenamento = null;
+        }
+    }
+
+    private synchronized void terminarLeitura(long inicio) {
+        leituras.computeIfPresent(inicio, (e, n) -> n == 1 ? null : n - 1);
+        apagarLiberados();
+    }
+
+    /** Apaga o catálogo sem o armazenamento ativo; os blocos ficam órfãos até a próxima abertura. */
+    static void removerCatalogo(String nomePasta) throws IOException {
+        ArmazenamentoBlocos armazenamento = ativo;
+        if (armazenamento != null) {
+            armazenamento.removerPasta(nomePasta);
+        } else {
+            Files.deleteIfExists(arquivoCatalogo(nomePasta));
+        }
+    }
+
+    /* --- Referências --- */
+
+    /** Diz se algum catálogo já tem um arquivo com esse conteúdo, que então não precisa ser transferido. */
+    synchronized boolean conhece(String hash, long tamanho) {
+        ArquivoConhecido conhecido = arquivosPorHash.get(hash);
+        return conhecido != null && conhecido.tamanho == tamanho;
+    }
+
+    /** Quantos arquivos do catálogo atual da pasta não aparecem no novo conjunto de caminhos. */
+    synchronized int contarAusentes(String nomePasta, Set<String> caminhos) {
+        int ausentes = 0;
+        for (EntradaCatalogo entrada : catalogos.getOrDefault(nomePasta, List.of())) {
+            if (!caminhos.contains(entrada.caminho())) ausentes++;
+        }
+        return ausentes;
+    }
+
+    synchronized void removerPasta(String nomePasta) throws IOException {
+        Files.deleteIfExists(arquivoCatalogo(nomePasta));
+        List<EntradaCatalogo> entradas = catalogos.remove(nomePasta);
+        if (entradas != null) {
+            liberarEntradas(entradas);
+        }
+    }
+
+    private void registrar(EntradaCatalogo entrada) {
+        arquivosPorHash.computeIfAbsent(entrada.hash(), hash -> new ArquivoConhecido(entrada.tamanho(), entrada.blocos()))
+                .ocorrencias++;
+    }
+
+    private void liberarEntradas(List<EntradaCatalogo> entradas) {
+        for (EntradaCatalogo entrada : entradas) {
+            ArquivoConhecido conhecido = arquivosPorHash.get(entrada.hash());
+            if (conhecido != null && --conhecido.ocorrencias == 0) {
+                arquivosPorHash.remove(entrada.hash());
+            }
+            liberar(entrada.blocos());
+        }
+    }
+
+    private synchronized void liberar(List<String> blocos) {
+        boolean algum = false;
+        for (String bloco : blocos) {
+            Integer restantes = referencias.computeIfPresent(bloco, (hash, n) -> n == 1 ? null : n - 1);
+            if (restantes == null) {
+                if (!algum) {
+                    epoca++;
+                    algum = true;
+                }
+                liberados.add(new BlocoLiberado(bloco, epoca));
+                ultimaLiberacao.put(bloco, epoca);
+            }
+        }
+        if (algum) apagarLiberados();
+    }
+
+    // Em ordem de época: para no primeiro que uma leitura ainda pode estar usando
+    private void apagarLiberados() {
+        long leituraMaisAntiga = leituras.isEmpty() ? Long.MAX_VALUE : leituras.firstKey();
+        while (!liberados.isEmpty() && liberados.peek().epoca() <= leituraMaisAntiga) {
+            BlocoLiberado liberado = liberados.poll();
+            String bloco = liberado.hash();
+            Long ultima = ultimaLiberacao.get(bloco);
+            if (ultima == null || ultima != liberado.epoca()) continue;
+            ultimaLiberacao.remove(bloco);
+            if (referencias.containsKey(bloco)) continue; // Voltou a ser usado enquanto esperava
+            try {
+                Files.deleteIfExists(caminhoBloco(bloco));
+            } catch (IOException e) {
+                logger.accept("ERRO ao apagar bloco " + bloco + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Um bloco novo é gravado num temporário fora do lock; só a troca para o nome definitivo e a
+     * contagem acontecem com o lock, para que um bloco nunca seja apagado entre ser encontrado e
+     * ser contado.
+     */
+    private void adquirir(String hash, byte[] dados, int inicio, int tamanho) throws IOException {
+        synchronized (this) {
+            Integer atuais = referencias.get(hash);
+            if (atuais != null) {
+                referencias.put(hash, atuais + 1);
+                return;
+            }
+        }
+        Path temporario = Files.createTempFile(pastaBlocos(), "bloco", ".tmp");
+        try {
+            try (OutputStream saida = Files.newOutputStream(temporario)) {
+                saida.write(dados, inicio, tamanho);
+            }
+            synchronized (this) {
+                Integer atuais = referencias.get(hash);
+                if (atuais != null) {
+                    referencias.put(hash, atuais + 1);
+                } else {
+                    Path destino = caminhoBloco(hash);
+                    Files.createDirectories(destino.getParent());
+                    Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    referencias.put(hash, 1);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temporario);
+        }
+    }
+
+    private synchronized List<String> adquirirArquivo(String hash, long tamanho) {
+        ArquivoConhecido conhecido = arquivosPorHash.get(hash);
+        if (conhecido == null || conhecido.tamanho != tamanho) {
+            return null;
+        }
+        for (String bloco : conhecido.blocos) {
+            referencias.merge(bloco, 1, Integer::sum);
+        }
+        return conhecido.blocos;
+    }
+
+    private synchronized void publicar(String nomePasta, List<EntradaCatalogo> entradas) throws IOException {
+        Path destino = arquivoCatalogo(nomePasta);
+        Path temporario = destino.resolveSibling(destino.getFileName() + ".tmp");
+        try (BufferedWriter escritor = Files.newBufferedWriter(temporario, StandardCharsets.UTF_8)) {
+            for (EntradaCatalogo entrada : entradas) {
+                escritor.write(entrada.formatar());
+                escritor.newLine();
+            }
+        }
+        Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (EntradaCatalogo entrada : entradas) {
+            registrar(entrada);
+        }
+        List<EntradaCatalogo> anteriores = catalogos.put(nomePasta, entradas);
+        if (anteriores != null) {
+            liberarEntradas(anteriores);
+        }
+    }
+
+    Gravacao novaGravacao() {
+        return new Gravacao();
+    }
+
+    /**
+     * Recebe os arquivos de um upload e corta cada um em blocos à medida que os bytes chegam. A
+     * pasta só muda quando a gravação é publicada; descartada, ela devolve as referências que
+     * adquiriu.
+     */
+    final class Gravacao implements WritableByteChannel {
+        private final Map<String, EntradaCatalogo> arquivos = new TreeMap<>();
+        private byte[] bloco = PoolBuffers.array(BLOCO_MAXIMO);
+        private final MessageDigest digestBloco = HashUtil.novoDigest();
+        private final MessageDigest digestArquivo = HashUtil.novoDigest();
+        private int preenchido;
+        private long impressao;
+        private String caminhoAtual;
+        private long tamanhoAtual;
+        private List<String> blocosAtuais = new ArrayList<>();
+        private boolean encerrada = false;
+
+        void iniciarArquivo(String caminho) {
+            caminhoAtual = caminho;
+            tamanhoAtual = 0;
+            preenchido = 0;
+            impressao = 0;
+            blocosAtuais = new ArrayList<>();
+            digestArquivo.reset();
+        }
+
+        @Override
+        public int write(ByteBuffer origem) throws IOException {
+            int total = origem.remaining();
+            while (origem.hasRemaining()) {
+                int quantidade = Math.min(origem.remaining(), bloco.length - preenchido);
+                origem.get(bloco, preenchido, quantidade);
+                int fim = preenchido + quantidade;
+                int inicio = 0;
+                int i = Math.max(preenchido, BLOCO_MINIMO - JANELA_IMPRESSAO);
+                while (i < fim) {
+                    impressao = (impressao << 1) + ENGRENAGEM[bloco[i] & 0xFF];
+                    i++;
+                    int tamanho = i - inicio;
+                    if (tamanho >= BLOCO_MAXIMO || (tamanho >= BLOCO_MINIMO && (impressao & MASCARA_CORTE) == 0)) {
+                        gravarBloco(inicio, tamanho);
+                        inicio = i;
+                        impressao = 0;
+                        i = Math.max(i, inicio + BLOCO_MINIMO - JANELA_IMPRESSAO);
+                    }
+                }
+                System.arraycopy(bloco, inicio, bloco, 0, fim - inicio);
+                preenchido = fim - inicio;
+            }
+            tamanhoAtual += total;
+            return total;
+        }
+
+        private void gravarBloco(int inicio, int tamanho) throws IOException {
+            digestArquivo.update(bloco, inicio, tamanho);
+            digestBloco.update(bloco, inicio, tamanho);
+            String hash = HexFormat.of().formatHex(digestBloco.digest());
+            adquirir(hash, bloco, inicio, tamanho);
+            blocosAtuais.add(hash);
+        }
+
+        EntradaCatalogo concluirArquivo() throws IOException {
+            if (preenchido > 0) {
+                gravarBloco(0, preenchido);
+                preenchido = 0;
+            }
+            EntradaCatalogo entrada = new EntradaCatalogo(caminhoAtual, tamanhoAtual,
+                    HexFormat.of().formatHex(digestArquivo.digest()), List.copyOf(blocosAtuais));
+            blocosAtuais = new ArrayList<>();
+            EntradaCatalogo anterior = arquivos.put(entrada.caminho(), entrada);
+            if (anterior != null) {
+                liberar(anterior.blocos());
+            }
+            return entrada;
+        }
+
+        /** Desiste do arquivo atual (por exemplo, depois de um erro de disco) e solta os blocos dele. */
+        void abandonarArquivo() {
+            liberar(blocosAtuais);
+            blocosAtuais = new ArrayList<>();
+            preenchido = 0;
+        }
+
+        /** Inclui na pasta um arquivo cujo conteúdo o armazenamento já tem, sem transferência. */
+        boolean reaproveitar(String caminho, String hash, long tamanho) {
+            List<String> blocos = adquirirArquivo(hash, tamanho);
+            if (blocos == null) {
+                return false;
+            }
+            EntradaCatalogo anterior = arquivos.put(caminho, new EntradaCatalogo(caminho, tamanho, hash, blocos));
+            if (anterior != null) {
+                liberar(anterior.blocos());
+            }
+            return true;
+        }
+
+        /** Troca o catálogo da pasta pelo desta gravação e apaga uma eventual cópia comum da pasta. */
+        void publicar(String nomePasta) throws IOException {
+            ArmazenamentoBlocos.this.publicar(nomePasta, new ArrayList<>(arquivos.values()));
+            encerrada = true;
+            liberarBloco();
+            LixeiraPastas.descartar(OperacoesPasta.resolverPasta(nomePasta));
+        }
+
+        void descartar() {
+            liberarBloco();
+            if (encerrada) return;
+            encerrada = true;
+            abandonarArquivo();
+            for (EntradaCatalogo entrada : arquivos.values()) {
+                liberar(entrada.blocos());
+            }
+            arquivos.clear();
+        }
+
+        private void liberarBloco() {
+            PoolBuffers.devolver(bloco);
+            bloco = null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !encerrada;
+        }
+
+        @Override
+        public void close() {
+            descartar();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ftp.servidor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Um arquivo de uma pasta do servidor como os downloads o enxergam: o caminho relativo e as
+ * partes em disco que, concatenadas, formam o conteúdo. Numa pasta comum é o próprio arquivo;
+ * no armazenamento por blocos são os blocos listados no catálogo. O arquivo de uma pasta comum é
+ * aberto pela leitura da árvore que o listou, que o encontra mesmo depois de a pasta ser trocada.
+ */
+record ArquivoPasta(String caminho, long tamanho, List<File> partes, LixeiraPastas.Leitura arvore) {
+
+    ArquivoPasta(String caminho, long tamanho, List<File> partes) {
+        this(caminho, tamanho, partes, null);
+    }
+
+    static ArquivoPasta deArquivo(String caminho, File arquivo, LixeiraPastas.Leitura arvore) {
+        return new ArquivoPasta(caminho, arquivo.length(), List.of(arquivo), arvore);
+    }
+
+    FileInputStream abrirParte(int indice) throws IOException {
+        if (arvore != null) {
+            return arvore.abrir(caminho);
+        }
+        return new FileInputStream(partes.get(indice));
+    }
+
+    /** Abre as partes em sequência, uma de cada vez, para não manter milhares de arquivos abertos. */
+    InputStream abrir() throws IOException {
+        if (partes.size() == 1) {
+            return abrirParte(0);
+        }
+        Iterator<File> restantes = partes.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return restantes.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return new FileInputStream(restantes.next());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+}
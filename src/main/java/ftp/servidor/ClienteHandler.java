@@ -2,40 +2,91 @@ package ftp.servidor;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Arrays;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
-import utils.FolderIdUtil;
+import ftp.protocolo.AssinaturaBlocos;
+import ftp.protocolo.EntradaManifesto;
+import ftp.protocolo.EntradaProtocolo;
+import ftp.protocolo.PoolBuffers;
+import ftp.protocolo.Protocolo;
+import ftp.protocolo.SaidaProtocolo;
+import utils.HashUtil;
 
 public class ClienteHandler implements Runnable {
     private final Socket cliente;
-    private BufferedReader entrada;
+    private EntradaProtocolo entrada;
     private PrintWriter saida;
+    private SaidaProtocolo saidaQuadros;
+    private ReadableByteChannel canalEntrada;
+    private ByteBuffer bufferRecepcao;
+    private int janelaUpload = 0;
+    private boolean protocoloV2 = false;
+    private boolean deltaAtivo = false;
+    private int nivelCompressao = ZipParalelo.NIVEL_PADRAO;
+    private boolean uploadComprimido = false;
+    private Inflater descompressor;
+    private byte[] bufferComprimido;
+    private byte[] bufferDescomprimido;
+    private ArmazenamentoBlocos.Gravacao gravacao;
+    private SessaoUploadParalelo sessao;
     private String pastaAtual = Servidor.getRoot();
     private final Consumer<String> logger;
-    private final String clienteId;
+    private final String prefixoLog;
+    private final long ociosidadeMs;
 
-    public ClienteHandler(Socket cliente, Consumer<String> logger) {
+    public ClienteHandler(Socket cliente, Consumer<String> logger, long ociosidadeMs) {
         this.cliente = cliente;
         this.logger = logger;
-        this.clienteId = cliente.getInetAddress().getHostAddress() + ":" + cliente.getPort();
+        this.ociosidadeMs = ociosidadeMs;
+        this.prefixoLog = "[" + cliente.getInetAddress().getHostAddress() + ":" + cliente.getPort() + "] ";
     }
 
     @Override
     public void run() {
         try {
-            entrada = new BufferedReader(new InputStreamReader(cliente.getInputStream()));
+            entrada = new EntradaProtocolo(cliente.getInputStream());
+            canalEntrada = Channels.newChannel(entrada);
             saida = new PrintWriter(cliente.getOutputStream(), true);
+            saidaQuadros = new SaidaProtocolo(cliente.getOutputStream());
 
-            saida.println("220 Servidor Pronto");
+            saida.println(Protocolo.saudacao(List.of(Protocolo.RECURSO_JANELA, Protocolo.RECURSO_QUADROS,
+                    Protocolo.RECURSO_V2, Protocolo.RECURSO_SYNC, Protocolo.RECURSO_DELTA,
+                    Protocolo.RECURSO_PARALELO, Protocolo.RECURSO_COMPRESSAO,
+                    Protocolo.RECURSO_COMPRIMIR, Protocolo.RECURSO_RETOMAR,
+                    Protocolo.RECURSO_LISTA_PAGINADA, Protocolo.RECURSO_ALTERACOES,
+                    Protocolo.RECURSO_OCIOSIDADE + "=" + ociosidadeMs / 1000)));
 
-            String comando;
-            while ((comando = entrada.readLine()) != null) {
-                log("Comando recebido: " + comando);
+            // O prazo vale só entre comandos; dentro de um comando as leituras esperam o cliente
+            String linha;
+            while ((linha = lerComando()) != null) {
+                String comando = linha;
+                logDetalhe(() -> "Comando recebido: " + comando);
                 processarComando(comando);
             }
+        } catch (SocketTimeoutException e) {
+            log("Conexão ociosa por mais de " + ociosidadeMs / 1000 + " s; encerrando.");
         } catch (IOException e) {
             log("ERRO na comunicação: " + e.getMessage());
         } finally {
@@ -44,28 +95,75 @@ public class ClienteHandler implements Runnable {
         }
     }
 
+    private String lerComando() throws IOException {
+        // O download em ZIP termina fechando a conexão
+        if (cliente.isClosed()) return null;
+        cliente.setSoTimeout((int) ociosidadeMs);
+        String linha = entrada.lerLinha();
+        cliente.setSoTimeout(0);
+        return linha;
+    }
+
     private void log(String mensagem) {
-        logger.accept(String.format("[%s] %s", clienteId, mensagem));
+        logger.accept(prefixoLog + mensagem);
+    }
+
+    // Mensagens por comando e por arquivo: só são montadas com o log detalhado ligado
+    private void logDetalhe(Supplier<String> mensagem) {
+        if (Servidor.isLogDetalhado()) {
+            logger.accept(prefixoLog + mensagem.get());
+        }
     }
 
     private void processarComando(String comando) {
         String[] partes = comando.split(" ", 2);
         String cmd = partes[0].toUpperCase();
         String args = partes.length > 1 ? partes[1] : "";
+        long inicio = System.nanoTime();
 
         switch (cmd) {
             case "LIST":
-                handleComandoLista();
+                handleComandoLista(args);
                 break;
             case "UPLOAD_FOLDER":
                 handleUploadPasta(args);
                 break;
+            case "SYNC_FOLDER":
+                handleSincronizarPasta(args, false);
+                break;
+            case "SYNC_CHANGES":
+                handleSincronizarPasta(args, true);
+                break;
+            case "UPLOAD_PARALLEL":
+                handleUploadParalelo(args);
+                break;
+            case "JOIN_UPLOAD":
+                handleParteUpload(args);
+                break;
+            case "RESUME_UPLOAD":
+                handleRetomarUpload(args);
+                break;
             case "DOWNLOAD_FOLDER":
                 handleDownloadPasta(args);
                 break;
+            case "DOWNLOAD_RAW":
+                handleDownloadQuadros(args, false);
+                break;
+            case "RESUME_DOWNLOAD":
+                handleDownloadQuadros(args, true);
+                break;
             case "CHECK_FOLDER":
                 handleChecarPasta(args);
                 break;
+            case "OPTS":
+                handleOpcoes(args);
+                break;
+            case "STATS":
+                handleEstatisticas();
+                break;
+            case "NOOP":
+                saida.println("200 OK");
+                break;
             case "QUIT":
                 saida.println("221 Conexão encerrada");
                 fecharConexao();
@@ -74,33 +172,97 @@ public class ClienteHandler implements Runnable {
                 saida.println("500 Comando não reconhecido");
                 log("Comando não reconhecido: " + cmd);
         }
+        MetricasServidor.registrarLatencia(cmd, System.nanoTime() - inicio);
+    }
+
+    private void handleEstatisticas() {
+        saida.println("150 Estatísticas do servidor");
+        for (String linha : MetricasServidor.get().relatorio()) {
+            saida.println(linha);
+        }
+        saida.println("226 Estatísticas completas");
     }
 
-    private void handleComandoLista() {
+    private void handleOpcoes(String args) {
+        String[] partes = args.trim().split("\\s+");
+        if (partes[0].equalsIgnoreCase(Protocolo.RECURSO_JANELA) && partes.length == 2) {
+            try {
+                int janela = Integer.parseInt(partes[1]);
+                if (janela < 1) throw new NumberFormatException("Janela deve ser positiva");
+                janelaUpload = Math.min(janela, Protocolo.JANELA_MAXIMA);
+                saida.println("200 " + Protocolo.RECURSO_JANELA + " " + janelaUpload);
+                log("Upload com janela de " + janelaUpload + " arquivo(s) ativado.");
+            } catch (NumberFormatException e) {
+                saida.println("501 Tamanho de janela inválido: " + partes[1]);
+            }
+            return;
+        }
+        if (partes[0].equalsIgnoreCase(Protocolo.RECURSO_V2) && partes.length == 1) {
+            protocoloV2 = true;
+            saida.println("200 " + Protocolo.RECURSO_V2);
+            log("Protocolo v2 (quadros binários) ativado para uploads.");
+            return;
+        }
+        if (partes[0].equalsIgnoreCase(Protocolo.RECURSO_DELTA) && partes.length == 1) {
+            deltaAtivo = true;
+            saida.println("200 " + Protocolo.RECURSO_DELTA);
+            log("Delta por blocos ativado para sincronizações.");
+            return;
+        }
+        if (partes[0].equalsIgnoreCase(Protocolo.RECURSO_COMPRIMIR) && partes.length == 1) {
+            uploadComprimido = true;
+            saida.println("200 " + Protocolo.RECURSO_COMPRIMIR);
+            log("Upload com arquivos comprimidos ativado.");
+            return;
+        }
+        if (partes[0].equalsIgnoreCase(Protocolo.RECURSO_COMPRESSAO) && partes.length == 2) {
+            try {
+                int nivel = Integer.parseInt(partes[1]);
+                if (!ZipParalelo.nivelValido(nivel)) throw new NumberFormatException("Nível fora do intervalo");
+                nivelCompressao = nivel;
+                saida.println("200 " + Protocolo.RECURSO_COMPRESSAO + " " + nivelCompressao);
+                log("Downloads em ZIP com nível de compressão " + nivelCompressao + ".");
+            } catch (NumberFormatException e) {
+                saida.println("501 Nível de compressão inválido: " + partes[1]);
+            }
+            return;
+        }
+        saida.println("504 Opção não suportada: " + args);
+        log("Opção não suportada: " + args);
+    }
+
+    private void handleComandoLista(String args) {
         try {
-            File pastaServidor = new File(Servidor.getRoot());
-            File[] pastas = pastaServidor.listFiles(File::isDirectory);
+            IndicePastas.Consulta consulta;
+            try {
+                consulta = IndicePastas.Consulta.interpretar(args);
+            } catch (IllegalArgumentException e) {
+                saida.println("500 Formato inválido para LIST: " + e.getMessage());
+                return;
+            }
+            Iterator<IndicePastas.InfoPasta> pastas = IndicePastas.consultar(consulta);
 
-            if (pastas == null || pastas.length == 0) {
+            if (!pastas.hasNext()) {
                 saida.println("150 Nenhuma pasta encontrada");
                 saida.println("226 Lista completa");
                 log("Nenhuma pasta encontrada para listar.");
                 return;
             }
 
-            saida.println("150 Listando pastas com detalhes");
-            log("Listando " + pastas.length + " pasta(s) com detalhes.");
-
-            for (File pasta : pastas) {
-                String nomeComId = pasta.getName();
-                String id = FolderIdUtil.extrairId(nomeComId);
-                String nomeOriginal = FolderIdUtil.extrairNomeOriginal(nomeComId);
-                long tamanho = FolderIdUtil.calcularTamanhoPasta(pasta); // Calcula o tamanho
-
-                // Novo formato: PASTA_INFO:id|nomeOriginal|tamanho
-                saida.println(String.format("PASTA_INFO:%s|%s|%d", id, nomeOriginal, tamanho));
+            // Sem println até o 226: o autoflush mandaria um pacote por linha, e o Nagle seguraria o segundo
+            saida.write("150 Listando pastas com detalhes" + System.lineSeparator());
+            int enviadas = 0;
+            IndicePastas.InfoPasta ultima = null;
+            while (enviadas < consulta.limite() && pastas.hasNext()) {
+                ultima = pastas.next();
+                saida.write(ultima.formatar() + System.lineSeparator());
+                enviadas++;
+            }
+            if (pastas.hasNext()) {
+                saida.write("PROXIMA:" + consulta.cursor(ultima) + System.lineSeparator());
             }
             saida.println("226 Lista completa");
+            log("Listadas " + enviadas + " pasta(s) com detalhes.");
         } catch (Exception e) {
             saida.println("550 Erro ao listar pastas: " + e.getMessage());
             log("ERRO ao listar pastas: " + e.getMessage());
@@ -109,19 +271,14 @@ public class ClienteHandler implements Runnable {
 
     private void handleChecarPasta(String pastaInfo) {
         try {
-            String[] info = pastaInfo.split("\\|");
-            if (info.length != 2) {
+            String nomeAlvo = OperacoesPasta.nomeAlvo(pastaInfo);
+            if (nomeAlvo == null) {
                 saida.println("500 Formato inválido. Use: nome|id");
                 log("Formato inválido para CHECK_FOLDER: " + pastaInfo);
                 return;
             }
 
-            String nomePasta = info[0];
-            String idPasta = info[1];
-            String nomeAlvo = nomePasta + "_" + idPasta;
-
-            File pastaAlvo = new File(Servidor.getRoot(), nomeAlvo);
-            if (pastaAlvo.exists()) {
+            if (OperacoesPasta.existePasta(nomeAlvo)) {
                 saida.println("250 Pasta existe: " + nomeAlvo);
                 log("Pasta '" + nomeAlvo + "' já existe.");
             } else {
@@ -135,84 +292,890 @@ public class ClienteHandler implements Runnable {
     }
 
     private void handleUploadPasta(String pastaInfo) {
+        boolean emQuadros = false;
+        File preparada = null;
         try {
-            String[] info = pastaInfo.split("\\|");
-            if (info.length != 2) {
+            String nomeAlvo = OperacoesPasta.nomeAlvo(pastaInfo);
+            if (nomeAlvo == null) {
                 saida.println("500 Formato inválido. Use: nome|id");
                 log("Formato inválido para UPLOAD_FOLDER: " + pastaInfo);
                 return;
             }
-
-            String nomePasta = info[0];
-            String idPasta = info[1];
-            String nomeAlvo = nomePasta + "_" + idPasta;
             log("Iniciando upload para: " + nomeAlvo);
 
-            File pastaAlvo = new File(Servidor.getRoot(), nomeAlvo);
-
-            if (pastaAlvo.exists()) {
-                log("Pasta '" + nomeAlvo + "' já existe. Deletando a versão antiga.");
-                deletarPasta(pastaAlvo);
+            // Nas duas formas a versão antiga continua disponível até a nova ser publicada
+            File pastaAlvo = OperacoesPasta.resolverPasta(nomeAlvo);
+            ArmazenamentoBlocos armazenamento = ArmazenamentoBlocos.ativo();
+            if (armazenamento != null) {
+                gravacao = armazenamento.novaGravacao();
+            } else {
+                preparada = LixeiraPastas.preparar(nomeAlvo);
+                pastaAlvo = preparada;
             }
 
-            pastaAlvo.mkdirs();
             saida.println("150 Pronto para receber pasta: " + nomeAlvo);
-            receberArquivos(pastaAlvo);
+            bufferRecepcao = PoolBuffers.direto(PoolBuffers.TAMANHO_REDE);
+            emQuadros = protocoloV2;
+            try {
+                receberArquivos(pastaAlvo);
+                if (gravacao != null) {
+                    gravacao.publicar(nomeAlvo);
+                    RepositorioManifestos.remover(nomeAlvo);
+                } else {
+                    LixeiraPastas.publicar(preparada, nomeAlvo);
+                }
+            } finally {
+                PoolBuffers.devolver(bufferRecepcao);
+                bufferRecepcao = null;
+                descartarGravacao();
+            }
+            emQuadros = false;
+            IndicePastas.atualizar(nomeAlvo, this::log);
             saida.println("226 Upload da pasta concluído com sucesso");
             log("Upload da pasta '" + nomeAlvo + "' concluído com sucesso.");
         } catch (Exception e) {
+            if (emQuadros) {
+                // O cliente só volta a ler linhas depois do quadro CONCLUIDO
+                encerrarQuadros();
+            }
             saida.println("550 Erro no upload: " + e.getMessage());
             log("ERRO no upload: " + e.getMessage());
+        } finally {
+            if (preparada != null) {
+                LixeiraPastas.descartar(preparada);
+            }
+        }
+    }
+
+    /*
+     * Conexão de controle do upload paralelo: cria a sessão, espera o COMMIT do cliente (enviado
+     * depois que todas as conexões de dados receberam o "226") e só então troca a pasta.
+     */
+    private void handleUploadParalelo(String args) {
+        int espaco = args.lastIndexOf(' ');
+        String nomeAlvo = espaco > 0 ? OperacoesPasta.nomeAlvo(args.substring(0, espaco)) : null;
+        if (nomeAlvo == null) {
+            saida.println("500 Formato inválido. Use: nome|id <conexões>");
+            log("Formato inválido para UPLOAD_PARALLEL: " + args);
+            return;
+        }
+        int conexoes;
+        try {
+            conexoes = Integer.parseInt(args.substring(espaco + 1));
+            if (conexoes < 1) throw new NumberFormatException("Quantidade de conexões deve ser positiva");
+        } catch (NumberFormatException e) {
+            saida.println("501 Quantidade de conexões inválida: " + args.substring(espaco + 1));
+            return;
+        }
+
+        SessaoUploadParalelo paralelo;
+        try {
+            paralelo = SessaoUploadParalelo.criar(nomeAlvo, Math.min(conexoes, Protocolo.CONEXOES_PARALELAS_MAXIMO), cliente);
+        } catch (IOException e) {
+            saida.println("550 Erro ao criar sessão de upload: " + e.getMessage());
+            log("ERRO ao criar sessão de upload paralelo: " + e.getMessage());
+            return;
+        }
+        saida.println("150 SESSAO " + paralelo.getId() + " " + paralelo.getConexoes());
+        log("Sessão de upload paralelo " + paralelo.getId() + " aberta para '" + nomeAlvo + "' com "
+                + paralelo.getConexoes() + " conexão(ões).");
+
+        aguardarConfirmacao(paralelo);
+    }
+
+    /*
+     * RESUME_UPLOAD <id> <conexões>: assume uma sessão suspensa (ou ainda presa a uma conexão de
+     * controle que caiu sem o servidor perceber) e informa os trechos que já estão gravados.
+     */
+    private void handleRetomarUpload(String args) {
+        String[] partes = args.trim().split("\\s+");
+        SessaoUploadParalelo paralelo = SessaoUploadParalelo.buscar(partes[0]);
+        int conexoes;
+        try {
+            conexoes = partes.length == 2 ? Integer.parseInt(partes[1]) : 0;
+        } catch (NumberFormatException e) {
+            conexoes = 0;
+        }
+        if (conexoes < 1) {
+            saida.println("500 Formato inválido. Use: <id> <conexões>");
+            return;
+        }
+        if (paralelo == null || !paralelo.retomar(cliente, Math.min(conexoes, Protocolo.CONEXOES_PARALELAS_MAXIMO))) {
+            saida.println("550 Sessão de upload inexistente ou expirada: " + partes[0]);
+            log("Tentativa de retomar a sessão " + partes[0] + ", que não existe mais.");
+            return;
+        }
+        List<String> feitos = paralelo.trechosConcluidos();
+        saida.println("150 SESSAO " + paralelo.getId() + " " + paralelo.getConexoes());
+        for (String feito : feitos) {
+            saida.println("FEITO:" + feito);
+        }
+        saida.println("END_FEITOS " + feitos.size());
+        log("Sessão de upload " + paralelo.getId() + " para '" + paralelo.getNomeAlvo() + "' retomada com "
+                + feitos.size() + " trecho(s) já gravado(s).");
+        aguardarConfirmacao(paralelo);
+    }
+
+    /*
+     * Espera o COMMIT do cliente, enviado depois que todas as conexões de dados receberam o "226",
+     * e só então troca a pasta. Se a conexão de controle cai antes, a sessão fica suspensa para
+     * um RESUME_UPLOAD; só o ABORT (ou outro comando) a descarta.
+     */
+    private void aguardarConfirmacao(SessaoUploadParalelo paralelo) {
+        String nomeAlvo = paralelo.getNomeAlvo();
+        try {
+            String confirmacao;
+            try {
+                confirmacao = entrada.lerLinha();
+            } catch (IOException e) {
+                confirmacao = null;
+            }
+            if (confirmacao == null) {
+                if (paralelo.suspender(cliente)) {
+                    log("Conexão de controle caiu; sessão " + paralelo.getId() + " suspensa até ser retomada.");
+                }
+                return;
+            }
+            if (!"COMMIT".equalsIgnoreCase(confirmacao)) {
+                paralelo.descartar();
+                saida.println("426 Upload paralelo cancelado");
+                log("Sessão " + paralelo.getId() + " cancelada pelo cliente.");
+                return;
+            }
+            String motivo = paralelo.aguardarConexoes();
+            if (motivo != null) {
+                paralelo.descartar();
+                saida.println("550 Upload paralelo incompleto: " + motivo);
+                log("ERRO: sessão " + paralelo.getId() + " descartada: " + motivo);
+                return;
+            }
+            int arquivos = paralelo.getQuantidadeArquivos();
+            paralelo.confirmar(this::log);
+            IndicePastas.atualizar(nomeAlvo, this::log);
+            saida.println("226 Upload paralelo concluído: " + arquivos + " arquivo(s)");
+            log("Upload paralelo da pasta '" + nomeAlvo + "' concluído com " + arquivos + " arquivo(s).");
+        } catch (IOException | InterruptedException e) {
+            paralelo.descartar();
+            IndicePastas.atualizar(nomeAlvo, this::log);
+            saida.println("550 Erro no upload paralelo: " + e.getMessage());
+            log("ERRO no upload paralelo: " + e.getMessage());
         }
     }
 
-    private void receberArquivos(File pastaAlvo) throws IOException {
+    /** Conexão de dados de uma sessão paralela: recebe quadros até o FIM_PASTA. */
+    private void handleParteUpload(String id) {
+        if (!protocoloV2) {
+            saida.println("503 JOIN_UPLOAD requer OPTS " + Protocolo.RECURSO_V2);
+            return;
+        }
+        SessaoUploadParalelo paralelo = SessaoUploadParalelo.buscar(id.trim());
+        if (paralelo == null || !paralelo.entrar(cliente)) {
+            saida.println("550 Sessão de upload inexistente ou completa: " + id);
+            log("ERRO: tentativa de entrar na sessão " + id);
+            return;
+        }
+        sessao = paralelo;
+        String erro = null;
+        boolean emQuadros = true;
+        try {
+            saida.println("150 Pronto para receber parte da sessão " + paralelo.getId());
+            bufferRecepcao = PoolBuffers.direto(PoolBuffers.TAMANHO_REDE);
+            receberArquivos(paralelo.getPastaTemporaria());
+            emQuadros = false;
+            saida.println("226 Parte da sessão recebida");
+        } catch (IOException e) {
+            erro = e.getMessage();
+            if (emQuadros) {
+                encerrarQuadros();
+            }
+            saida.println("550 Erro na parte do upload: " + erro);
+            log("ERRO na parte da sessão " + paralelo.getId() + ": " + erro);
+        } finally {
+            PoolBuffers.devolver(bufferRecepcao);
+            bufferRecepcao = null;
+            sessao = null;
+            paralelo.sair(cliente, erro);
+        }
+    }
+
+    /*
+     * SYNC_FOLDER recebe o manifesto da pasta inteira; SYNC_CHANGES (parcial) recebe só o que mudou
+     * e as remoções, e o resto da pasta fica como no manifesto salvo da última sincronização.
+     * Como no UPLOAD_FOLDER, a versão nova é montada à parte (links para os arquivos que não
+     * mudaram, mais os recebidos) e publicada com um rename; até lá a versão publicada não muda.
+     */
+    private void handleSincronizarPasta(String pastaInfo, boolean parcial) {
+        boolean emQuadros = false;
+        File preparada = null;
+        try {
+            String nomeAlvo = OperacoesPasta.nomeAlvo(pastaInfo);
+            if (nomeAlvo == null) {
+                saida.println("500 Formato inválido. Use: nome|id");
+                log("Formato inválido para " + (parcial ? "SYNC_CHANGES" : "SYNC_FOLDER") + ": " + pastaInfo);
+                return;
+            }
+            Map<String, EntradaManifesto> anterior = RepositorioManifestos.carregar(nomeAlvo);
+            ArmazenamentoBlocos armazenamento = ArmazenamentoBlocos.ativo();
+            if (parcial && !manifestoConfere(nomeAlvo, anterior, armazenamento)) {
+                saida.println("450 Manifesto salvo não confere com a pasta; sincronize a pasta inteira");
+                return;
+            }
+            if (parcial) {
+                logDetalhe(() -> "Recebendo alterações de: " + nomeAlvo);
+            } else {
+                log("Iniciando sincronização incremental de: " + nomeAlvo);
+            }
+
+            // Versão publicada: só é lida. Uma pasta ainda em blocos de uma execução anterior não
+            // tem diretório, então tudo é pedido, e a publicação remove o catálogo
+            File pastaAtual = OperacoesPasta.resolverPasta(nomeAlvo);
+            if (armazenamento != null) {
+                gravacao = armazenamento.novaGravacao();
+            } else {
+                preparada = LixeiraPastas.preparar(nomeAlvo);
+            }
+            saida.println("150 Envie o manifesto da pasta: " + nomeAlvo);
+
+            Map<String, EntradaManifesto> manifesto = parcial ? new LinkedHashMap<>(anterior) : new LinkedHashMap<>();
+            List<EntradaManifesto> informados = new ArrayList<>();
+            Set<String> removerPedidos = new HashSet<>();
+            String linha;
+            while ((linha = entrada.lerLinha()) != null && !linha.equals("END_MANIFEST")) {
+                if (parcial && linha.startsWith("REMOVER:")) {
+                    removerPedidos.add(linha.substring(8));
+                    continue;
+                }
+                EntradaManifesto entradaManifesto = EntradaManifesto.interpretar(linha);
+                informados.add(entradaManifesto);
+                manifesto.put(entradaManifesto.caminho(), entradaManifesto);
+            }
+            if (linha == null) {
+                throw new EOFException("Conexão encerrada durante o envio do manifesto");
+            }
+            manifesto.keySet().removeAll(removerPedidos);
+
+            List<String> necessarios = new ArrayList<>();
+            for (EntradaManifesto novo : informados) {
+                boolean disponivel = armazenamento != null
+                        ? armazenamento.conhece(novo.hash(), novo.tamanho())
+                        : inalterado(pastaAtual, novo, anterior.get(novo.caminho()));
+                if (!disponivel) {
+                    necessarios.add(novo.caminho());
+                }
+            }
+            int removidos = armazenamento != null
+                    ? armazenamento.contarAusentes(nomeAlvo, manifesto.keySet())
+                    : aproveitarPublicados(pastaAtual, preparada, manifesto.keySet(), new HashSet<>(necessarios));
+            log("Manifesto de '" + nomeAlvo + "': " + manifesto.size() + " arquivo(s), "
+                    + necessarios.size() + " a receber, " + removidos + " removido(s).");
+
+            List<EntradaManifesto> deltas = new ArrayList<>();
+            for (String caminho : necessarios) {
+                if (candidatoDelta(pastaAtual, manifesto.get(caminho))) {
+                    deltas.add(manifesto.get(caminho));
+                    saida.println("DELTA:" + caminho);
+                } else {
+                    saida.println("NEED:" + caminho);
+                }
+            }
+            saida.println("END_NEED " + necessarios.size() + " " + removidos);
+
+            bufferRecepcao = PoolBuffers.direto(PoolBuffers.TAMANHO_REDE);
+            Set<String> recebidos = new HashSet<>();
+            try {
+                for (EntradaManifesto novo : deltas) {
+                    if (receberDelta(pastaAtual, preparada, novo)) {
+                        recebidos.add(novo.caminho());
+                    }
+                }
+                emQuadros = protocoloV2;
+                recebidos.addAll(receberArquivos(preparada != null ? preparada : pastaAtual));
+            } finally {
+                PoolBuffers.devolver(bufferRecepcao);
+                bufferRecepcao = null;
+            }
+            emQuadros = false;
+
+            // Só entra no manifesto salvo o que de fato está no servidor; o resto é pedido de novo no próximo SYNC
+            Set<String> pendentes = new HashSet<>(necessarios);
+            pendentes.removeAll(recebidos);
+            if (gravacao != null) {
+                try {
+                    for (EntradaManifesto entradaManifesto : manifesto.values()) {
+                        String caminho = entradaManifesto.caminho();
+                        if (!recebidos.contains(caminho) && !pendentes.contains(caminho)
+                                && !gravacao.reaproveitar(caminho, entradaManifesto.hash(), entradaManifesto.tamanho())) {
+                            pendentes.add(caminho);
+                        }
+                    }
+                    gravacao.publicar(nomeAlvo);
+                } finally {
+                    descartarGravacao();
+                }
+            } else {
+                for (String caminho : pendentes) {
+                    manterVersaoPublicada(pastaAtual, preparada, caminho);
+                }
+                LixeiraPastas.publicar(preparada, nomeAlvo);
+                preparada = null;
+            }
+            List<EntradaManifesto> sincronizados = new ArrayList<>();
+            for (EntradaManifesto entradaManifesto : manifesto.values()) {
+                if (!pendentes.contains(entradaManifesto.caminho())) {
+                    sincronizados.add(entradaManifesto);
+                }
+            }
+            RepositorioManifestos.salvar(nomeAlvo, sincronizados);
+
+            IndicePastas.atualizar(nomeAlvo, this::log);
+            saida.println("226 Sincronização concluída: " + recebidos.size() + " recebido(s), " + removidos + " removido(s)");
+            log("Sincronização da pasta '" + nomeAlvo + "' concluída com sucesso.");
+        } catch (Exception e) {
+            descartarGravacao();
+            if (preparada != null) {
+                LixeiraPastas.descartar(preparada);
+            }
+            if (emQuadros) {
+                encerrarQuadros();
+            }
+            atualizarIndice(pastaInfo);
+            saida.println("550 Erro na sincronização: " + e.getMessage());
+            log("ERRO na sincronização: " + e.getMessage());
+        }
+    }
+
+    /*
+     * SYNC_CHANGES completa a pasta com o manifesto salvo, então ele precisa descrever o que está
+     * publicado: a pasta tem de estar no mesmo modo (catálogo ou diretório) do armazenamento atual e
+     * cada arquivo do manifesto tem de existir lá. Basta o tamanho; o hash é conferido no SYNC_FOLDER.
+     */
+    private static boolean manifestoConfere(String nomeAlvo, Map<String, EntradaManifesto> anterior,
+                                            ArmazenamentoBlocos armazenamento) {
+        if (anterior.isEmpty() || ArmazenamentoBlocos.possuiCatalogo(nomeAlvo) != (armazenamento != null)) {
+            return false;
+        }
+        File pasta = OperacoesPasta.resolverPasta(nomeAlvo);
+        if (armazenamento == null && !pasta.isDirectory()) {
+            return false;
+        }
+        for (EntradaManifesto entradaManifesto : anterior.values()) {
+            if (armazenamento != null) {
+                if (!armazenamento.conhece(entradaManifesto.hash(), entradaManifesto.tamanho())) return false;
+            } else {
+                File arquivo = OperacoesPasta.resolverArquivo(pasta, entradaManifesto.caminho());
+                if (arquivo == null || !arquivo.isFile() || arquivo.length() != entradaManifesto.tamanho()) return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Põe na pasta preparada os arquivos publicados que continuam no manifesto e não serão
+     * recebidos, como links (ou cópias, num disco sem links). Devolve quantos arquivos publicados
+     * ficam de fora da versão nova.
+     */
+    private int aproveitarPublicados(File pastaAtual, File preparada, Set<String> manifesto, Set<String> necessarios)
+            throws IOException {
+        int removidos = 0;
+        for (File arquivo : OperacoesPasta.listarArquivosParaDownload(pastaAtual)) {
+            String caminho = OperacoesPasta.caminhoRelativo(pastaAtual, arquivo);
+            if (!manifesto.contains(caminho)) {
+                removidos++;
+            } else if (!necessarios.contains(caminho)) {
+                vincular(arquivo, new File(preparada, caminho));
+            }
+        }
+        return removidos;
+    }
+
+    // Um arquivo que não chegou fica com a versão publicada em vez de sumir ou ficar pela metade
+    private void manterVersaoPublicada(File pastaAtual, File preparada, String caminho) throws IOException {
+        File publicado = OperacoesPasta.resolverArquivo(pastaAtual, caminho);
+        File destino = OperacoesPasta.resolverArquivo(preparada, caminho);
+        if (destino == null) return;
+        Files.deleteIfExists(destino.toPath());
+        if (publicado != null && publicado.isFile()) {
+            vincular(publicado, destino);
+        }
+    }
+
+    private static void vincular(File publicado, File destino) throws IOException {
+        Files.createDirectories(destino.getParentFile().toPath());
+        try {
+            Files.createLink(destino.toPath(), publicado.toPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(publicado.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void atualizarIndice(String pastaInfo) {
+        String nomeAlvo = OperacoesPasta.nomeAlvo(pastaInfo);
+        if (nomeAlvo != null) {
+            IndicePastas.atualizar(nomeAlvo, this::log);
+        }
+    }
+
+    /*
+     * Um arquivo não precisa ser reenviado se o servidor tem uma cópia do mesmo tamanho e o hash
+     * bate com o do último manifesto sincronizado. Sem manifesto anterior (pasta enviada por
+     * UPLOAD_FOLDER), o hash da cópia do servidor é calculado uma única vez.
+     */
+    private boolean inalterado(File pastaAlvo, EntradaManifesto novo, EntradaManifesto anterior) throws IOException {
+        File arquivo = OperacoesPasta.resolverArquivo(pastaAlvo, novo.caminho());
+        if (arquivo == null || !arquivo.isFile() || arquivo.length() != novo.tamanho()) {
+            return false;
+        }
+        if (anterior != null && anterior.tamanho() == novo.tamanho()) {
+            return anterior.hash().equals(novo.hash());
+        }
+        return HashUtil.calcularHash(arquivo.toPath()).equals(novo.hash());
+    }
+
+    private boolean candidatoDelta(File pastaAlvo, EntradaManifesto novo) {
+        // No armazenamento por blocos não há cópia comum do arquivo para servir de base ao delta
+        if (!deltaAtivo || gravacao != null || novo.tamanho() < Protocolo.LIMIAR_DELTA) {
+            return false;
+        }
+        File arquivo = OperacoesPasta.resolverArquivo(pastaAlvo, novo.caminho());
+        return arquivo != null && arquivo.isFile() && arquivo.length() >= Protocolo.LIMIAR_DELTA;
+    }
+
+    /*
+     * Envia as assinaturas dos blocos da cópia publicada e reconstrói o arquivo novo num
+     * temporário na pasta preparada, copiando os blocos reaproveitados do arquivo antigo e os
+     * literais do socket. O temporário só vira o arquivo se o hash bater com o do manifesto; senão
+     * o cliente manda o arquivo inteiro na fase de arquivos.
+     */
+    private boolean receberDelta(File pastaAtual, File preparada, EntradaManifesto novo) throws IOException {
+        File arquivo = OperacoesPasta.resolverArquivo(pastaAtual, novo.caminho());
+        File alvo = OperacoesPasta.resolverArquivo(preparada, novo.caminho());
+        AssinaturaBlocos assinatura = AssinaturaBlocos.calcular(arquivo.toPath());
+        assinatura.escrever(saidaQuadros);
+        saidaQuadros.flush();
+        logDetalhe(() -> "Recebendo delta de: " + novo.caminho() + " (" + assinatura.getQuantidade() + " bloco(s) de "
+                + assinatura.getTamanhoBloco() + " bytes)");
+
+        alvo.getParentFile().mkdirs();
+        File temporario = new File(alvo.getParentFile(), "." + alvo.getName() + ".delta");
+        String erro = null;
+        int blocosCopiados = 0;
+        long bytesLiterais = 0;
+        FileChannel origem = null;
+        FileChannel destino = null;
+        try {
+            origem = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ);
+            destino = FileChannel.open(temporario.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            erro = e.getMessage();
+        }
+
+        try {
+            int opcode;
+            while ((opcode = entrada.read()) != Protocolo.OP_FIM_DELTA) {
+                switch (opcode) {
+                    case Protocolo.OP_COPIAR:
+                        long indice = entrada.lerVarint();
+                        if (erro != null) break;
+                        if (indice >= assinatura.getQuantidade()) {
+                            erro = "Bloco inexistente no delta: " + indice;
+                            break;
+                        }
+                        erro = copiarBloco(origem, destino, indice * assinatura.getTamanhoBloco(),
+                                assinatura.tamanhoDoBloco((int) indice));
+                        blocosCopiados++;
+                        break;
+                    case Protocolo.OP_LITERAL:
+                        long tamanho = entrada.lerVarint();
+                        erro = gravarDoSocket(destino, tamanho, novo.caminho(), erro);
+                        bytesLiterais += tamanho;
+                        break;
+                    case -1:
+                        throw new EOFException("Conexão encerrada durante o delta de " + novo.caminho());
+                    default:
+                        throw new IOException("Quadro desconhecido no delta: 0x" + Integer.toHexString(opcode));
+                }
+            }
+        } finally {
+            fecharSilenciosamente(origem);
+            fecharSilenciosamente(destino);
+        }
+
+        try {
+            if (erro == null && !HashUtil.calcularHash(temporario.toPath()).equals(novo.hash())) {
+                erro = "hash do arquivo reconstruído não confere";
+            }
+            if (erro == null) {
+                Files.move(temporario.toPath(), alvo.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            erro = e.getMessage();
+        }
+
+        if (erro != null) {
+            temporario.delete();
+            saida.println("DELTA_FALHOU " + erro);
+            log("ERRO no delta de " + novo.caminho() + ": " + erro + " (arquivo será reenviado inteiro)");
+            return false;
+        }
+        saida.println("DELTA_OK");
+        log("Delta de " + novo.caminho() + " aplicado: " + blocosCopiados + " bloco(s) reaproveitado(s), "
+                + bytesLiterais + " bytes recebidos.");
+        return true;
+    }
+
+    private String copiarBloco(FileChannel origem, FileChannel destino, long posicao, long tamanho) {
+        try {
+            while (tamanho > 0) {
+                long copiados = origem.transferTo(posicao, tamanho, destino);
+                if (copiados <= 0) {
+                    return "Arquivo antigo menor que o esperado";
+                }
+                posicao += copiados;
+                tamanho -= copiados;
+            }
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    private void descartarGravacao() {
+        if (gravacao != null) {
+            gravacao.descartar();
+            gravacao = null;
+        }
+    }
+
+    private void fecharSilenciosamente(Closeable recurso) {
+        if (recurso == null) return;
+        try {
+            recurso.close();
+        } catch (IOException e) {
+            log("ERRO ao fechar arquivo: " + e.getMessage());
+        }
+    }
+
+    private record Cabecalho(String caminho, long tamanho, long posicao, long tamanhoTotal, boolean comprimido) {
+
+        static Cabecalho arquivo(String caminho, long tamanho) {
+            return new Cabecalho(caminho, tamanho, 0, tamanho, false);
+        }
+
+        boolean trecho() {
+            return posicao != 0 || tamanho != tamanhoTotal;
+        }
+    }
+
+    /*
+     * Sem janela, cada arquivo é confirmado com "OK" antes do cliente enviar o próximo.
+     * Com janela, o cliente mantém vários arquivos em trânsito e o servidor responde com
+     * confirmações cumulativas "ACK <seq>" e falhas individuais "ERR <seq> <motivo>".
+     * No protocolo v2 os cabeçalhos e as confirmações são quadros binários, e o fim da fase de
+     * dados é sinalizado por um quadro CONCLUIDO antes da linha de resposta.
+     */
+    private Set<String> receberArquivos(File pastaAlvo) throws IOException {
+        Set<String> recebidos = new HashSet<>();
+        int janela = protocoloV2 ? Math.max(1, janelaUpload) : janelaUpload;
+        int intervaloConfirmacao = Math.max(1, janela / 2);
+        int sequencia = 0;
+        int ultimaConfirmada = 0;
+
+        Cabecalho cabecalho;
+        while ((cabecalho = protocoloV2 ? lerCabecalhoQuadro() : lerCabecalhoTexto()) != null) {
+            sequencia++;
+            Cabecalho atual = cabecalho;
+            logDetalhe(() -> "Recebendo arquivo: " + atual.caminho() + " (" + atual.tamanho() + " bytes)");
+
+            String erro = receberArquivo(pastaAlvo, cabecalho);
+            if (erro == null) {
+                recebidos.add(cabecalho.caminho());
+                MetricasServidor.arquivoRecebido();
+            }
+
+            if (janela == 0) {
+                if (erro != null) throw new IOException(erro);
+                saida.println("OK"); // Confirmação de recebimento
+                continue;
+            }
+
+            if (erro != null) {
+                confirmarFalha(sequencia, erro);
+                log("ERRO ao gravar " + cabecalho.caminho() + ": " + erro);
+            }
+            // Confirma quando não há mais nada chegando, para o cliente nunca esperar com a janela cheia
+            if (sequencia - ultimaConfirmada >= intervaloConfirmacao || entrada.available() == 0) {
+                confirmar(sequencia);
+                ultimaConfirmada = sequencia;
+            }
+        }
+
+        if (janela > 0 && ultimaConfirmada < sequencia) {
+            confirmar(sequencia);
+        }
+        if (protocoloV2) {
+            encerrarQuadros();
+        }
+        return recebidos;
+    }
+
+    private Cabecalho lerCabecalhoTexto() throws IOException {
         String linha;
-        while ((linha = entrada.readLine()) != null) {
+        while ((linha = entrada.lerLinha()) != null) {
             if (linha.equals("END_FOLDER")) {
-                break;
+                return null;
             }
-
             if (linha.startsWith("FILE:")) {
                 String nomeArquivo = linha.substring(5);
-                int tamanhoArquivo = Integer.parseInt(entrada.readLine());
-                log("Recebendo arquivo: " + nomeArquivo + " (" + tamanhoArquivo + " bytes)");
+                long tamanhoArquivo = Long.parseLong(entrada.lerLinha().trim());
+                return Cabecalho.arquivo(nomeArquivo, tamanhoArquivo);
+            }
+        }
+        return null;
+    }
 
-                File arquivoAlvo = new File(pastaAlvo, nomeArquivo);
+    private Cabecalho lerCabecalhoQuadro() throws IOException {
+        int opcode = entrada.read();
+        switch (opcode) {
+            case Protocolo.OP_ARQUIVO:
+                String caminho = entrada.lerTexto();
+                return Cabecalho.arquivo(caminho, entrada.lerVarint());
+            case Protocolo.OP_TRECHO:
+                String caminhoTrecho = entrada.lerTexto();
+                long tamanhoTotal = entrada.lerVarint();
+                long posicao = entrada.lerVarint();
+                return new Cabecalho(caminhoTrecho, entrada.lerVarint(), posicao, tamanhoTotal, false);
+            case Protocolo.OP_ARQUIVO_COMPRIMIDO:
+                if (!uploadComprimido) {
+                    throw new IOException("Quadro comprimido sem OPTS " + Protocolo.RECURSO_COMPRIMIR);
+                }
+                String caminhoComprimido = entrada.lerTexto();
+                long tamanhoOriginal = entrada.lerVarint();
+                return new Cabecalho(caminhoComprimido, tamanhoOriginal, 0, tamanhoOriginal, true);
+            case Protocolo.OP_FIM_PASTA:
+                return null;
+            case -1:
+                throw new EOFException("Conexão encerrada antes do fim da pasta");
+            default:
+                throw new IOException("Quadro desconhecido no upload: 0x" + Integer.toHexString(opcode));
+        }
+    }
+
+    private void confirmar(int sequencia) throws IOException {
+        if (protocoloV2) {
+            saidaQuadros.write(Protocolo.OP_ACK);
+            saidaQuadros.escreverVarint(sequencia);
+            saidaQuadros.flush();
+        } else {
+            saida.println("ACK " + sequencia);
+        }
+    }
+
+    private void confirmarFalha(int sequencia, String erro) throws IOException {
+        if (protocoloV2) {
+            saidaQuadros.write(Protocolo.OP_ERRO);
+            saidaQuadros.escreverVarint(sequencia);
+            saidaQuadros.escreverTexto(erro);
+        } else {
+            saida.println("ERR " + sequencia + " " + erro);
+        }
+    }
+
+    private void encerrarQuadros() {
+        try {
+            saidaQuadros.write(Protocolo.OP_CONCLUIDO);
+            saidaQuadros.flush();
+        } catch (IOException e) {
+            log("ERRO ao encerrar a fase de dados do upload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Grava os próximos bytes do socket no arquivo. Uma falha de disco não interrompe a leitura:
+     * o restante do arquivo é descartado para manter o stream sincronizado e o erro é devolvido.
+     */
+    private String receberArquivo(File pastaAlvo, Cabecalho cabecalho) throws IOException {
+        String caminho = cabecalho.caminho();
+        String erro = null;
+        FileChannel destino = null;
+        File arquivoAlvo = OperacoesPasta.resolverArquivo(pastaAlvo, caminho);
+        if (arquivoAlvo == null) {
+            erro = "Caminho fora da pasta de destino: " + caminho;
+        } else if (cabecalho.trecho() && sessao == null) {
+            erro = "Trecho recebido fora de uma sessão de upload paralelo";
+        } else if (gravacao != null) {
+            return receberEmBlocos(cabecalho);
+        } else {
+            try {
                 arquivoAlvo.getParentFile().mkdirs();
+                // Numa sessão paralela os outros trechos do arquivo podem estar chegando por outras conexões.
+                // Fora dela o arquivo é recriado: na sincronização ele pode ser um link para a versão publicada
+                if (sessao == null) {
+                    Files.deleteIfExists(arquivoAlvo.toPath());
+                }
+                destino = FileChannel.open(arquivoAlvo.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                destino.position(cabecalho.posicao());
+            } catch (IOException e) {
+                erro = e.getMessage();
+            }
+        }
+
+        try {
+            erro = gravar(destino, cabecalho, erro);
+        } finally {
+            if (destino != null) {
+                try {
+                    destino.close();
+                } catch (IOException e) {
+                    if (erro == null) erro = e.getMessage();
+                }
+            }
+        }
+        if (sessao != null) {
+            if (erro == null) {
+                sessao.registrar(caminho, cabecalho.tamanhoTotal(), cabecalho.posicao(), cabecalho.tamanho());
+            } else {
+                sessao.registrarFalha(caminho, erro);
+            }
+        }
+        return erro;
+    }
+
+    private String receberEmBlocos(Cabecalho cabecalho) throws IOException {
+        gravacao.iniciarArquivo(cabecalho.caminho());
+        String erro = gravar(gravacao, cabecalho, null);
+        if (erro == null) {
+            try {
+                gravacao.concluirArquivo();
+            } catch (IOException e) {
+                erro = e.getMessage();
+            }
+        }
+        if (erro != null) {
+            gravacao.abandonarArquivo();
+        }
+        return erro;
+    }
+
+    private String gravar(WritableByteChannel destino, Cabecalho cabecalho, String erro) throws IOException {
+        if (cabecalho.comprimido()) {
+            return gravarComprimido(destino, cabecalho.tamanho(), cabecalho.caminho(), erro);
+        }
+        return gravarDoSocket(destino, cabecalho.tamanho(), cabecalho.caminho(), erro);
+    }
 
-                try (FileOutputStream fos = new FileOutputStream(arquivoAlvo)) {
-                    byte[] buffer = new byte[8192];
-                    int totalRecebido = 0;
-                    while (totalRecebido < tamanhoArquivo) {
-                        int bytesParaLer = Math.min(buffer.length, tamanhoArquivo - totalRecebido);
-                        int bytesLidos = cliente.getInputStream().read(buffer, 0, bytesParaLer);
-                        if (bytesLidos == -1) break;
-                        fos.write(buffer, 0, bytesLidos);
-                        totalRecebido += bytesLidos;
+    /**
+     * Lê os pedaços zlib de um quadro ARQUIVO_COMPRIMIDO até o pedaço vazio, descomprimindo direto
+     * para o destino. Como cada pedaço traz o próprio tamanho, um erro de gravação ou de conteúdo
+     * só faz o restante ser descartado, sem perder a sincronia do stream.
+     */
+    private String gravarComprimido(WritableByteChannel destino, long tamanho, String caminho, String erro) throws IOException {
+        if (descompressor == null) {
+            descompressor = new Inflater();
+            bufferComprimido = PoolBuffers.array(64 * 1024);
+            bufferDescomprimido = PoolBuffers.array(PoolBuffers.TAMANHO_COPIA);
+        }
+        descompressor.reset();
+        long produzidos = 0;
+        long pedaco;
+        while ((pedaco = entrada.lerVarint()) > 0) {
+            long restante = pedaco;
+            while (restante > 0) {
+                int lidos = entrada.read(bufferComprimido, 0, (int) Math.min(bufferComprimido.length, restante));
+                if (lidos == -1) {
+                    throw new EOFException("Conexão encerrada durante o envio de " + caminho);
+                }
+                restante -= lidos;
+                MetricasServidor.bytesRecebidos(lidos);
+                if (erro != null) continue;
+                descompressor.setInput(bufferComprimido, 0, lidos);
+                try {
+                    int gerados;
+                    while ((gerados = descompressor.inflate(bufferDescomprimido)) > 0) {
+                        produzidos += gerados;
+                        if (produzidos > tamanho) {
+                            erro = "Conteúdo descomprimido maior que o anunciado";
+                            break;
+                        }
+                        ByteBuffer bloco = ByteBuffer.wrap(bufferDescomprimido, 0, gerados);
+                        while (bloco.hasRemaining()) {
+                            destino.write(bloco);
+                        }
                     }
+                } catch (DataFormatException e) {
+                    erro = "Conteúdo comprimido inválido: " + e.getMessage();
+                } catch (IOException e) {
+                    erro = e.getMessage();
                 }
-                saida.println("OK"); // Confirmação de recebimento
             }
         }
+        if (erro == null && (!descompressor.finished() || produzidos != tamanho)) {
+            erro = "Conteúdo comprimido incompleto: " + produzidos + " de " + tamanho + " bytes";
+        }
+        return erro;
+    }
+
+    /** Passa os próximos bytes do socket para o destino; com erro já registrado, só os descarta. */
+    private String gravarDoSocket(WritableByteChannel destino, long tamanho, String caminho, String erro) throws IOException {
+        long restante = tamanho;
+        while (restante > 0) {
+            bufferRecepcao.clear();
+            bufferRecepcao.limit((int) Math.min(bufferRecepcao.capacity(), restante));
+            int lidos = origemDados().read(bufferRecepcao);
+            if (lidos == -1) {
+                throw new EOFException("Conexão encerrada durante o envio de " + caminho);
+            }
+            restante -= lidos;
+            MetricasServidor.bytesRecebidos(lidos);
+            if (erro == null) {
+                bufferRecepcao.flip();
+                try {
+                    while (bufferRecepcao.hasRemaining()) {
+                        destino.write(bufferRecepcao);
+                    }
+                } catch (IOException e) {
+                    erro = e.getMessage();
+                }
+            }
+        }
+        return erro;
+    }
+
+    /*
+     * Os bytes que a entrada já trouxe para o buffer dela são consumidos primeiro; depois os dados
+     * vão do SocketChannel direto para o buffer nativo e dele para o FileChannel, em blocos grandes
+     * e sem cópias para arrays da heap. (O FileChannel.transferFrom do JDK 21, quando a origem não é
+     * um arquivo, copia por um buffer nativo temporário de 8 KB; lendo aqui no buffer do pool, de
+     * TAMANHO_REDE, cada volta move um bloco do tamanho que escolhemos.)
+     */
+    private ReadableByteChannel origemDados() {
+        SocketChannel canalSocket = cliente.getChannel();
+        if (canalSocket == null || entrada.bufferizados() > 0) {
+            return canalEntrada;
+        }
+        return canalSocket;
     }
 
     private void handleDownloadPasta(String nomePasta) {
         log("Iniciando download da pasta: " + nomePasta);
-        try {
-            File pastaFonte = new File(Servidor.getRoot(), nomePasta);
-            if (!pastaFonte.exists() || !pastaFonte.isDirectory()) {
+        // Blocos e árvore de uma pasta trocada durante o download só são apagados quando ele termina
+        try (ArmazenamentoBlocos.Leitura leitura = ArmazenamentoBlocos.iniciarLeitura();
+                LixeiraPastas.Leitura arvore = LixeiraPastas.iniciarLeitura(nomePasta)) {
+            if (!OperacoesPasta.existePasta(nomePasta)) {
                 saida.println("550 Pasta não encontrada: " + nomePasta);
                 log("ERRO: Tentativa de baixar pasta inexistente: " + nomePasta);
                 return;
             }
+            List<ArquivoPasta> arquivos = OperacoesPasta.listarArquivos(nomePasta, arvore);
 
             saida.println("150 Iniciando streaming da pasta como arquivo ZIP.");
             saida.flush();
 
-            try (ZipOutputStream zos = new ZipOutputStream(cliente.getOutputStream())) {
-                adicionarPastaAoZip(pastaFonte, pastaFonte, zos);
+            try (OutputStream destino = new BufferedOutputStream(MetricasServidor.contarEnviados(cliente.getOutputStream()), 64 * 1024)) {
+                new ZipParalelo(destino, nivelCompressao).escrever(arquivos);
             }
+            MetricasServidor.arquivosEnviados(arquivos.size());
             log("Transferência por stream para o cliente concluída.");
 
         } catch (IOException e) {
@@ -222,51 +1185,91 @@ public class ClienteHandler implements Runnable {
         }
     }
 
-    private void adicionarPastaAoZip(File pasta, File pastaBase, ZipOutputStream zos) throws IOException {
-        File[] arquivos = pasta.listFiles();
-        if (arquivos == null) return;
-        Arrays.sort(arquivos);
-
-        byte[] buffer = new byte[8192];
-
-        for (File arquivo : arquivos) {
-            if (arquivo.isDirectory()) {
-                adicionarPastaAoZip(arquivo, pastaBase, zos);
-                continue;
+    /*
+     * DOWNLOAD_RAW, ou RESUME_DOWNLOAD para continuar um download interrompido: nesse caso o
+     * cliente informa o que já tem, os arquivos completos são pulados e os outros seguem a partir
+     * do tamanho que o cliente já gravou.
+     */
+    private void handleDownloadQuadros(String nomePasta, boolean retomar) {
+        log("Iniciando download da pasta em quadros: " + nomePasta + (retomar ? " (retomada)" : ""));
+        try (ArmazenamentoBlocos.Leitura leitura = ArmazenamentoBlocos.iniciarLeitura();
+                LixeiraPastas.Leitura arvore = LixeiraPastas.iniciarLeitura(nomePasta)) {
+            if (!OperacoesPasta.existePasta(nomePasta)) {
+                saida.println("550 Pasta não encontrada: " + nomePasta);
+                log("ERRO: Tentativa de baixar pasta inexistente: " + nomePasta);
+                return;
             }
+            List<ArquivoPasta> arquivos = OperacoesPasta.listarArquivos(nomePasta, arvore);
 
-            String caminhoRelativo = pastaBase.toPath().relativize(arquivo.toPath()).toString().replace(File.separator, "/");
-            ZipEntry zipEntry = new ZipEntry(caminhoRelativo);
-            zos.putNextEntry(zipEntry);
+            Map<String, Long> recebidos = Map.of();
+            if (retomar) {
+                saida.println("150 Envie os arquivos já recebidos.");
+                recebidos = lerArquivosRecebidos();
+            } else {
+                saida.println("150 Iniciando envio da pasta em quadros.");
+            }
+            // Os cabeçalhos já saem agrupados; sem isso o Nagle seguraria o último pacote de cada lote
+            cliente.setTcpNoDelay(true);
 
-            try (FileInputStream fis = new FileInputStream(arquivo)) {
-                int bytesLidos;
-                while ((bytesLidos = fis.read(buffer)) != -1) {
-                    zos.write(buffer, 0, bytesLidos);
+            SocketChannel canalSocket = cliente.getChannel();
+            WritableByteChannel destino = canalSocket != null ? canalSocket : Channels.newChannel(cliente.getOutputStream());
+            long bytes;
+            int enviados = 0;
+            try (EnvioQuadros envio = new EnvioQuadros(destino, retomar)) {
+                for (ArquivoPasta arquivo : arquivos) {
+                    long posicao = recebidos.getOrDefault(arquivo.caminho(), 0L);
+                    if (retomar && posicao == arquivo.tamanho()) {
+                        continue;
+                    }
+                    envio.enviarArquivo(arquivo, posicao > arquivo.tamanho() ? 0 : posicao);
+                    enviados++;
                 }
+                envio.finalizar();
+                bytes = envio.getBytesEnviados();
             }
-            zos.closeEntry();
+            MetricasServidor.bytesEnviados(bytes);
+            MetricasServidor.arquivosEnviados(enviados);
+
+            saida.println("226 Download da pasta concluído");
+            log("Envio em quadros concluído: " + bytes + " bytes"
+                    + (retomar ? ", " + (arquivos.size() - enviados) + " arquivo(s) já estavam no cliente." : "."));
+        } catch (IOException e) {
+            log("ERRO durante o envio em quadros para o cliente: " + e.getMessage());
+            fecharConexao();
         }
     }
 
-    private void deletarPasta(File pasta) {
-        File[] arquivos = pasta.listFiles();
-        if (arquivos != null) {
-            for (File arquivo : arquivos) {
-                if (arquivo.isDirectory()) {
-                    deletarPasta(arquivo);
-                } else {
-                    arquivo.delete();
-                }
+    // Linhas TEM:<tamanho>|<caminho> até END_TEM
+    private Map<String, Long> lerArquivosRecebidos() throws IOException {
+        Map<String, Long> recebidos = new HashMap<>();
+        String linha;
+        while ((linha = entrada.lerLinha()) != null && !linha.equals("END_TEM")) {
+            int separador = linha.indexOf('|');
+            if (!linha.startsWith("TEM:") || separador < 0) {
+                throw new IOException("Linha inválida na retomada do download: " + linha);
+            }
+            try {
+                recebidos.put(linha.substring(separador + 1), Long.parseLong(linha.substring(4, separador)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Tamanho inválido na retomada do download: " + linha);
             }
         }
-        pasta.delete();
+        if (linha == null) {
+            throw new EOFException("Conexão encerrada antes do END_TEM");
+        }
+        return recebidos;
     }
 
     private void fecharConexao() {
         try {
             if (entrada != null) entrada.close();
             if (saida != null) saida.close();
+            if (descompressor != null) {
+                descompressor.end();
+                descompressor = null;
+                PoolBuffers.devolver(bufferComprimido);
+                PoolBuffers.devolver(bufferDescomprimido);
+            }
             if (cliente != null && !cliente.isClosed()) cliente.close();
         } catch (Exception e) {
             log("ERRO ao fechar conexão: " + e.getMessage());
@@ -0,0 +1,625 @@
+package ftp.servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import ftp.protocolo.PoolBuffers;
+import ftp.protocolo.Protocolo;
+
+/**
+ * Estado de uma conexão atendida pelo motor NIO. Os comandos são interpretados
+ * incrementalmente a partir dos bytes que chegam no buffer de leitura, sem nenhuma
+ * thread dedicada à conexão. O que vai ao disco (abrir e gravar arquivos, montar e publicar
+ * pastas, ler o ZIP do download) roda no executor de disco; enquanto isso a conexão não lê nem
+ * escreve, e a continuação volta ao laço de eventos dela.
+ */
+final class ConexaoNio {
+    // Um comando ou linha de upload maior que isso encerra a conexão
+    private static final int LINHA_MAXIMA = 64 * 1024;
+
+    private enum Estado { COMANDO, UPLOAD_CABECALHO, UPLOAD_TAMANHO, UPLOAD_DADOS, DOWNLOAD, ENCERRANDO }
+
+    private final SocketChannel canal;
+    private final SelectionKey chave;
+    private final Consumer<String> logger;
+    private final Runnable aoFechar;
+    private final String prefixoLog;
+    private final Executor disco;
+    private final Executor laco;
+
+    // Volta ao pool quando a conexão fecha, para as conexões curtas (LIST, CHECK) não alocarem o seu
+    private ByteBuffer leitura = PoolBuffers.direto(64 * 1024);
+    private boolean lendo = false;
+    private final ByteArrayOutputStream linhaParcial = new ByteArrayOutputStream();
+    private final Deque<ByteBuffer> pendentes = new ArrayDeque<>();
+    private Estado estado = Estado.COMANDO;
+    private boolean fechada = false;
+
+    // Trabalho de disco em andamento. aguardandoDisco é do laço e só cai quando a continuação roda;
+    // discoEmUso cai assim que o trabalho termina e decide, com fechada, quem limpa a conexão
+    private boolean aguardandoDisco = false;
+    private boolean discoEmUso = false;
+    // Bytes que chegaram durante o trabalho: o buffer fica virado para leitura até a continuação
+    private boolean entradaPendente = false;
+    private String comandoEmCurso;
+    private long inicioComando;
+
+    // Upload em andamento
+    private File pastaUpload;
+    // Pasta em montagem do upload em disco; vai para a lixeira se a conexão cair antes do END_FOLDER
+    private File preparada;
+    private String nomeUpload;
+    private String arquivoUpload;
+    private File arquivoAlvo;
+    private WritableByteChannel arquivoCanal;
+    private ArmazenamentoBlocos.Gravacao gravacao;
+    private long bytesRestantes;
+    private String falhaUpload;
+
+    // Download em andamento
+    private ProdutorZip produtorZip;
+    private ArmazenamentoBlocos.Leitura leituraBlocos; // Do início do download até a conexão fechar
+    private LixeiraPastas.Leitura leituraArvore;
+
+    ConexaoNio(SocketChannel canal, SelectionKey chave, Consumer<String> logger, Runnable aoFechar,
+               Executor disco, Executor laco) {
+        this.canal = canal;
+        this.chave = chave;
+        this.logger = logger;
+        this.aoFechar = aoFechar;
+        this.disco = disco;
+        this.laco = laco;
+        InetSocketAddress remoto = (InetSocketAddress) canal.socket().getRemoteSocketAddress();
+        this.prefixoLog = "[" + remoto.getAddress().getHostAddress() + ":" + remoto.getPort() + "] ";
+    }
+
+    void iniciar() throws IOException {
+        // Dos recursos opcionais, este motor só atende a listagem paginada
+        responder(Protocolo.saudacao(List.of(Protocolo.RECURSO_LISTA_PAGINADA)));
+    }
+
+    private void log(String mensagem) {
+        logger.accept(prefixoLog + mensagem);
+    }
+
+    // Mensagens por comando e por arquivo: só são montadas com o log detalhado ligado
+    private void logDetalhe(Supplier<String> mensagem) {
+        if (Servidor.isLogDetalhado()) {
+            logger.accept(prefixoLog + mensagem.get());
+        }
+    }
+
+    void aoLer() throws IOException {
+        if (fechada || aguardandoDisco) return;
+        int lidos = canal.read(leitura);
+        if (lidos == -1) {
+            if (estado == Estado.UPLOAD_DADOS || estado == Estado.UPLOAD_CABECALHO || estado == Estado.UPLOAD_TAMANHO) {
+                log("ERRO no upload: conexão encerrada antes do fim da pasta.");
+            }
+            fechar();
+            return;
+        }
+        leitura.flip();
+        processar();
+    }
+
+    private void processar() throws IOException {
+        lendo = true;
+        try {
+            processarEntrada();
+        } finally {
+            lendo = false;
+            if (fechada) {
+                // Fechada no meio do processamento: o buffer só volta ao pool depois de não ser mais usado
+                if (!isDiscoEmUso()) liberarLeitura();
+            } else if (aguardandoDisco) {
+                entradaPendente = true;
+            } else {
+                leitura.compact();
+            }
+        }
+    }
+
+    // Pode ser chamado pelo laço e pela thread de disco que termina depois do fechamento
+    private synchronized void liberarLeitura() {
+        if (leitura == null) return;
+        PoolBuffers.devolver(leitura);
+        leitura = null;
+    }
+
+    private void processarEntrada() throws IOException {
+        while (leitura.hasRemaining() && !fechada && !aguardandoDisco
+                && estado != Estado.DOWNLOAD && estado != Estado.ENCERRANDO) {
+            if (estado != Estado.COMANDO) {
+                emSegundoPlano(this::receberUpload, this::responderUpload);
+                return;
+            }
+            String linha = extrairLinha();
+            if (linha == null) {
+                if (linhaParcial.size() > LINHA_MAXIMA) {
+                    linhaParcial.reset();
+                    responder("500 Linha longa demais");
+                    log("ERRO: linha com mais de " + LINHA_MAXIMA + " bytes; encerrando a conexão.");
+                    encerrarAposEscrita();
+                }
+                return;
+            }
+            processarComando(linha);
+        }
+    }
+
+    /** Consome bytes até o fim de linha; devolve null se a linha ainda não chegou inteira ou passou do limite. */
+    private String extrairLinha() {
+        while (leitura.hasRemaining() && linhaParcial.size() <= LINHA_MAXIMA) {
+            byte b = leitura.get();
+            if (b == '\n') {
+                byte[] bytes = linhaParcial.toByteArray();
+                linhaParcial.reset();
+                int fim = bytes.length;
+                if (fim > 0 && bytes[fim - 1] == '\r') fim--;
+                return new String(bytes, 0, fim, StandardCharsets.UTF_8);
+            }
+            linhaParcial.write(b);
+        }
+        return null;
+    }
+
+    private void processarComando(String comando) throws IOException {
+        logDetalhe(() -> "Comando recebido: " + comando);
+        String[] partes = comando.split(" ", 2);
+        String cmd = partes[0].toUpperCase();
+        String args = partes.length > 1 ? partes[1] : "";
+        long inicio = System.nanoTime();
+
+        switch (cmd) {
+            case "LIST" -> handleComandoLista(args);
+            case "UPLOAD_FOLDER" -> handleUploadPasta(args);
+            case "DOWNLOAD_FOLDER" -> handleDownloadPasta(args);
+            case "CHECK_FOLDER" -> handleChecarPasta(args);
+            case "STATS" -> {
+                responder("150 Estatísticas do servidor");
+                for (String linha : MetricasServidor.get().relatorio()) {
+                    responder(linha);
+                }
+                responder("226 Estatísticas completas");
+            }
+            case "NOOP" -> responder("200 OK");
+            case "QUIT" -> {
+                responder("221 Conexão encerrada");
+                encerrarAposEscrita();
+            }
+            default -> {
+                responder("500 Comando não reconhecido");
+                log("Comando não reconhecido: " + cmd);
+            }
+        }
+        // Upload e download continuam depois daqui; para eles fica medida só a preparação, que
+        // termina na continuação quando vai ao disco
+        if (aguardandoDisco) {
+            comandoEmCurso = cmd;
+            inicioComando = inicio;
+        } else {
+            MetricasServidor.registrarLatencia(cmd, System.nanoTime() - inicio);
+        }
+    }
+
+    private void handleComandoLista(String args) throws IOException {
+        try {
+            IndicePastas.Consulta consulta;
+            try {
+                consulta = IndicePastas.Consulta.interpretar(args);
+            } catch (IllegalArgumentException e) {
+                responder("500 Formato inválido para LIST: " + e.getMessage());
+                return;
+            }
+            Iterator<IndicePastas.InfoPasta> pastas = IndicePastas.consultar(consulta);
+            if (!pastas.hasNext()) {
+                responder("150 Nenhuma pasta encontrada");
+                responder("226 Lista completa");
+                log("Nenhuma pasta encontrada para listar.");
+                return;
+            }
+
+            // A página inteira vai num único buffer de saída
+            StringBuilder resposta = new StringBuilder("150 Listando pastas com detalhes\n");
+            int enviadas = 0;
+            IndicePastas.InfoPasta ultima = null;
+            while (enviadas < consulta.limite() && pastas.hasNext()) {
+                ultima = pastas.next();
+                resposta.append(ultima.formatar()).append('\n');
+                enviadas++;
+            }
+            if (pastas.hasNext()) {
+                resposta.append("PROXIMA:").append(consulta.cursor(ultima)).append('\n');
+            }
+            responder(resposta.append("226 Lista completa").toString());
+            log("Listadas " + enviadas + " pasta(s) com detalhes.");
+        } catch (RuntimeException e) {
+            responder("550 Erro ao listar pastas: " + e.getMessage());
+            log("ERRO ao listar pastas: " + e.getMessage());
+        }
+    }
+
+    private void handleChecarPasta(String pastaInfo) throws IOException {
+        String nomeAlvo = OperacoesPasta.nomeAlvo(pastaInfo);
+        if (nomeAlvo == null) {
+            responder("500 Formato inválido. Use: nome|id");
+            log("Formato inválido para CHECK_FOLDER: " + pastaInfo);
+            return;
+        }
+
+        emSegundoPlano(() -> OperacoesPasta.existePasta(nomeAlvo), existe -> {
+            if (existe) {
+                responder("250 Pasta existe: " + nomeAlvo);
+                log("Pasta '" + nomeAlvo + "' já existe.");
+            } else {
+                responder("450 Pasta não existe");
+                log("Pasta '" + nomeAlvo + "' não existe.");
+            }
+        });
+    }
+
+    private void handleUploadPasta(String pastaInfo) throws IOException {
+        String nomeAlvo = OperacoesPasta.nomeAlvo(pastaInfo);
+        if (nomeAlvo == null) {
+            responder("500 Formato inválido. Use: nome|id");
+            log("Formato inválido para UPLOAD_FOLDER: " + pastaInfo);
+            return;
+        }
+        log("Iniciando upload para: " + nomeAlvo);
+
+        emSegundoPlano(() -> {
+            ArmazenamentoBlocos armazenamento = ArmazenamentoBlocos.ativo();
+            if (armazenamento != null) {
+                gravacao = armazenamento.novaGravacao();
+                pastaUpload = OperacoesPasta.resolverPasta(nomeAlvo);
+            } else {
+                preparada = LixeiraPastas.preparar(nomeAlvo);
+                pastaUpload = preparada;
+            }
+            return null;
+        }, ignorado -> {
+            nomeUpload = nomeAlvo;
+            estado = Estado.UPLOAD_CABECALHO;
+            responder("150 Pronto para receber pasta: " + nomeAlvo);
+        });
+    }
+
+    /*
+     * No executor de disco: consome do buffer tudo o que já chegou do upload (cabeçalhos, dados e o
+     * END_FOLDER), com uma ida ao disco por leitura do socket e não por arquivo. Devolve as
+     * respostas para o laço enviar; um erro de protocolo fica em falhaUpload.
+     */
+    private List<String> receberUpload() throws IOException {
+        List<String> respostas = new ArrayList<>();
+        while (falhaUpload == null && estado != Estado.COMANDO) {
+            if (estado == Estado.UPLOAD_DADOS) {
+                if (bytesRestantes > 0 && !leitura.hasRemaining()) break;
+                if (gravarDados()) {
+                    respostas.add("OK"); // Confirmação de recebimento
+                }
+                continue;
+            }
+            String linha = extrairLinha();
+            if (linha == null) {
+                if (linhaParcial.size() > LINHA_MAXIMA) {
+                    falhaUpload = "Linha com mais de " + LINHA_MAXIMA + " bytes";
+                }
+                break;
+            }
+            if (estado == Estado.UPLOAD_CABECALHO) {
+                processarCabecalhoUpload(linha, respostas);
+            } else {
+                processarTamanhoUpload(linha);
+            }
+        }
+        return respostas;
+    }
+
+    private void responderUpload(List<String> respostas) throws IOException {
+        if (!respostas.isEmpty()) {
+            responder(String.join("\n", respostas));
+        }
+        if (falhaUpload != null) {
+            falharUpload(falhaUpload);
+        }
+    }
+
+    private void processarCabecalhoUpload(String linha, List<String> respostas) throws IOException {
+        if (linha.equals("END_FOLDER")) {
+            if (gravacao != null) {
+                gravacao.publicar(nomeUpload);
+                gravacao = null;
+                RepositorioManifestos.remover(nomeUpload);
+            } else {
+                LixeiraPastas.publicar(preparada, nomeUpload);
+                preparada = null;
+            }
+            IndicePastas.atualizar(nomeUpload, this::log);
+            respostas.add("226 Upload da pasta concluído com sucesso");
+            log("Upload da pasta '" + nomeUpload + "' concluído com sucesso.");
+            pastaUpload = null;
+            nomeUpload = null;
+            estado = Estado.COMANDO;
+        } else if (linha.startsWith("FILE:")) {
+            arquivoUpload = linha.substring(5);
+            estado = Estado.UPLOAD_TAMANHO;
+        }
+    }
+
+    private void processarTamanhoUpload(String linha) {
+        try {
+            bytesRestantes = Long.parseLong(linha.trim());
+        } catch (NumberFormatException e) {
+            falhaUpload = "Tamanho inválido para " + arquivoUpload + ": " + linha;
+            return;
+        }
+        logDetalhe(() -> "Recebendo arquivo: " + arquivoUpload + " (" + bytesRestantes + " bytes)");
+
+        arquivoAlvo = OperacoesPasta.resolverArquivo(pastaUpload, arquivoUpload);
+        if (arquivoAlvo == null) {
+            falhaUpload = "Caminho fora da pasta de destino: " + arquivoUpload;
+            return;
+        }
+        estado = Estado.UPLOAD_DADOS;
+    }
+
+    /** Abre o arquivo com a primeira parte, grava o que já chegou dele e devolve true quando ele termina. */
+    private boolean gravarDados() throws IOException {
+        if (arquivoCanal == null) {
+            if (gravacao != null) {
+                gravacao.iniciarArquivo(arquivoUpload);
+                arquivoCanal = gravacao;
+            } else {
+                arquivoAlvo.getParentFile().mkdirs();
+                arquivoCanal = new FileOutputStream(arquivoAlvo).getChannel();
+            }
+        }
+        int limiteOriginal = leitura.limit();
+        if (leitura.remaining() > bytesRestantes) {
+            leitura.limit(leitura.position() + (int) bytesRestantes);
+        }
+        try {
+            while (leitura.hasRemaining()) {
+                int gravados = arquivoCanal.write(leitura);
+                bytesRestantes -= gravados;
+                MetricasServidor.bytesRecebidos(gravados);
+            }
+        } finally {
+            leitura.limit(limiteOriginal);
+        }
+        if (bytesRestantes > 0) {
+            return false;
+        }
+        if (gravacao != null) {
+            gravacao.concluirArquivo();
+        } else {
+            arquivoCanal.close();
+        }
+        arquivoCanal = null;
+        MetricasServidor.arquivoRecebido();
+        estado = Estado.UPLOAD_CABECALHO;
+        return true;
+    }
+
+    private void falharUpload(String mensagem) throws IOException {
+        responder("550 Erro no upload: " + mensagem);
+        log("ERRO no upload: " + mensagem);
+        encerrarAposEscrita();
+    }
+
+    private void handleDownloadPasta(String nomePasta) throws IOException {
+        log("Iniciando download da pasta: " + nomePasta);
+        emSegundoPlano(() -> {
+            if (!OperacoesPasta.existePasta(nomePasta)) {
+                return null;
+            }
+            leituraBlocos = ArmazenamentoBlocos.iniciarLeitura();
+            leituraArvore = LixeiraPastas.iniciarLeitura(nomePasta);
+            return OperacoesPasta.listarArquivos(nomePasta, leituraArvore);
+        }, arquivos -> {
+            if (arquivos == null) {
+                responder("550 Pasta não encontrada: " + nomePasta);
+                log("ERRO: Tentativa de baixar pasta inexistente: " + nomePasta);
+                return;
+            }
+            responder("150 Iniciando streaming da pasta como arquivo ZIP.");
+            produtorZip = new ProdutorZip(arquivos);
+            MetricasServidor.arquivosEnviados(arquivos.size());
+            estado = Estado.DOWNLOAD;
+        });
+    }
+
+    /*
+     * Roda o trabalho no executor de disco e a continuação de volta no laço. Até lá a conexão não
+     * lê nem escreve; falhas de um ou de outro encerram a conexão, como as dos comandos.
+     */
+    private <T> void emSegundoPlano(TrabalhoDisco<T> trabalho, Continuacao<T> continuacao) throws IOException {
+        aguardandoDisco = true;
+        synchronized (this) {
+            discoEmUso = true;
+        }
+        chave.interestOps(0);
+        try {
+            disco.execute(() -> executarNoDisco(trabalho, continuacao));
+        } catch (RejectedExecutionException e) {
+            aguardandoDisco = false;
+            synchronized (this) {
+                discoEmUso = false;
+            }
+            throw new IOException("Servidor encerrando", e);
+        }
+    }
+
+    private <T> void executarNoDisco(TrabalhoDisco<T> trabalho, Continuacao<T> continuacao) {
+        T resultado = null;
+        Exception erro = null;
+        try {
+            resultado = trabalho.executar();
+        } catch (IOException | RuntimeException e) {
+            erro = e;
+        }
+        boolean jaFechada;
+        synchronized (this) {
+            discoEmUso = false;
+            jaFechada = fechada;
+        }
+        if (jaFechada) {
+            // fechar() viu o trabalho em andamento e deixou a limpeza para cá
+            liberarRecursos();
+            liberarLeitura();
+            return;
+        }
+        T pronto = resultado;
+        Exception falha = erro;
+        laco.execute(() -> retomar(pronto, falha, continuacao));
+    }
+
+    private <T> void retomar(T resultado, Exception erro, Continuacao<T> continuacao) {
+        aguardandoDisco = false;
+        if (fechada) return;
+        try {
+            if (erro != null) {
+                falhar(erro);
+                return;
+            }
+            continuacao.aceitar(resultado);
+            if (fechada || aguardandoDisco) return;
+            if (comandoEmCurso != null) {
+                MetricasServidor.registrarLatencia(comandoEmCurso, System.nanoTime() - inicioComando);
+                comandoEmCurso = null;
+            }
+            if (entradaPendente) {
+                entradaPendente = false;
+                processar();
+            }
+            aoEscrever();
+        } catch (IOException | RuntimeException e) {
+            falhar(e);
+        }
+    }
+
+    private synchronized boolean isDiscoEmUso() {
+        return discoEmUso;
+    }
+
+    private void responder(String linha) throws IOException {
+        pendentes.add(ByteBuffer.wrap((linha + "\n").getBytes(StandardCharsets.UTF_8)));
+        aoEscrever();
+    }
+
+    private void encerrarAposEscrita() throws IOException {
+        estado = Estado.ENCERRANDO;
+        aoEscrever();
+    }
+
+    void aoEscrever() throws IOException {
+        while (!fechada && !aguardandoDisco) {
+            ByteBuffer atual = pendentes.peek();
+            if (atual == null) {
+                if (estado == Estado.DOWNLOAD && !produtorZip.isConcluido()) {
+                    // Ler e comprimir o próximo bloco vai ao disco; a escrita continua na volta
+                    emSegundoPlano(produtorZip::proximoBloco, bloco -> {
+                        if (bloco.hasRemaining()) pendentes.add(bloco);
+                    });
+                    return;
+                }
+                if (estado == Estado.DOWNLOAD) {
+                    log("Transferência por stream para o cliente concluída.");
+                    fechar();
+                } else if (estado == Estado.ENCERRANDO) {
+                    fechar();
+                } else {
+                    chave.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            MetricasServidor.bytesEnviados(canal.write(atual));
+            if (atual.hasRemaining()) {
+                // Socket cheio: continua quando o selector sinalizar que é possível escrever
+                chave.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pendentes.poll();
+        }
+    }
+
+    void fechar() {
+        if (fechada) return;
+        boolean adiar;
+        synchronized (this) {
+            fechada = true;
+            adiar = discoEmUso;
+        }
+        log("Conexão encerrada.");
+        try {
+            chave.cancel();
+            canal.close();
+        } catch (IOException e) {
+            log("ERRO ao fechar conexão: " + e.getMessage());
+        } finally {
+            // Com um trabalho de disco em andamento, quem limpa é a thread dele quando terminar
+            if (!adiar) {
+                if (!lendo) liberarLeitura();
+                try {
+                    disco.execute(this::liberarRecursos);
+                } catch (RejectedExecutionException e) {
+                    liberarRecursos();
+                }
+            }
+            aoFechar.run();
+        }
+    }
+
+    // Desfaz o que ficou aberto no disco: arquivo, gravação, pasta em montagem e ZIP
+    private void liberarRecursos() {
+        try {
+            if (gravacao != null) gravacao.descartar();
+            else if (arquivoCanal != null) arquivoCanal.close();
+            if (preparada != null) LixeiraPastas.descartar(preparada);
+            if (produtorZip != null) produtorZip.close();
+        } catch (IOException e) {
+            log("ERRO ao fechar conexão: " + e.getMessage());
+        } finally {
+            if (leituraBlocos != null) leituraBlocos.close();
+            if (leituraArvore != null) leituraArvore.close();
+        }
+    }
+
+    boolean isFechada() {
+        return fechada;
+    }
+
+    void falhar(Exception e) {
+        log("ERRO na comunicação: " + e.getMessage());
+        fechar();
+    }
+
+    @FunctionalInterface
+    private interface TrabalhoDisco<T> {
+        T executar() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Continuacao<T> {
+        void aceitar(T resultado) throws IOException;
+    }
+}
@@ -0,0 +1,127 @@
+package ftp.servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import ftp.protocolo.PoolBuffers;
+import ftp.protocolo.Protocolo;
+
+/**
+ * Envia arquivos como quadros com prefixo de tamanho, sem compressão. Arquivos pequenos são
+ * agrupados junto com seus cabeçalhos num único buffer nativo; os grandes seguem por
+ * FileChannel.transferTo, que no Linux usa sendfile e não passa os bytes pela JVM.
+ *
+ * Na retomada de um download cada quadro leva também a posição a partir da qual o conteúdo segue.
+ */
+final class EnvioQuadros implements AutoCloseable {
+    private static final int TAMANHO_LOTE = PoolBuffers.TAMANHO_COPIA;
+
+    private final WritableByteChannel destino;
+    private final boolean comPosicao;
+    private final ByteBuffer lote = PoolBuffers.direto(TAMANHO_LOTE);
+    private long bytesEnviados = 0;
+
+    EnvioQuadros(WritableByteChannel destino, boolean comPosicao) {
+        this.destino = destino;
+        this.comPosicao = comPosicao;
+    }
+
+    /*
+     * O quadro leva exatamente o tamanho listado, mesmo que as partes tenham mudado desde a
+     * listagem; um arquivo que encolheu interrompe o envio, porque o stream perderia o alinhamento.
+     */
+    void enviarArquivo(ArquivoPasta arquivo, long posicao) throws IOException {
+        byte[] caminho = arquivo.caminho().getBytes(StandardCharsets.UTF_8);
+        long tamanho = arquivo.tamanho() - posicao;
+        int cabecalho = Integer.BYTES + caminho.length + Long.BYTES + (comPosicao ? Long.BYTES : 0);
+        boolean cabeNoLote = cabecalho + tamanho <= TAMANHO_LOTE;
+
+        if (lote.remaining() < cabecalho + (cabeNoLote ? tamanho : 0)) {
+            descarregar();
+        }
+        lote.putInt(caminho.length).put(caminho).putLong(arquivo.tamanho());
+        if (comPosicao) {
+            lote.putLong(posicao);
+        }
+        if (!cabeNoLote) {
+            descarregar();
+        }
+
+        long restante = tamanho;
+        long pular = posicao;
+        for (int parte = 0; parte < arquivo.partes().size(); parte++) {
+            if (restante == 0) break;
+            try (FileChannel origem = arquivo.abrirParte(parte).getChannel()) {
+                // As partes anteriores à posição são puladas inteiras, sem leitura
+                if (pular >= origem.size()) {
+                    pular -= origem.size();
+                    continue;
+                }
+                restante -= cabeNoLote ? lerNoLote(origem, pular, restante) : transferir(origem, pular, restante);
+                pular = 0;
+            }
+        }
+        if (restante > 0) {
+            throw new IOException("Arquivo alterado durante o envio: " + arquivo.caminho());
+        }
+        bytesEnviados += tamanho;
+    }
+
+    private long lerNoLote(FileChannel origem, long inicio, long maximo) throws IOException {
+        origem.position(inicio);
+        int limite = lote.limit();
+        lote.limit(lote.position() + (int) maximo);
+        long lidos = 0;
+        try {
+            int n;
+            while (lote.hasRemaining() && (n = origem.read(lote)) >= 0) {
+                lidos += n;
+            }
+        } finally {
+            lote.limit(limite);
+        }
+        return lidos;
+    }
+
+    private long transferir(FileChannel origem, long inicio, long maximo) throws IOException {
+        long fim = inicio + Math.min(maximo, origem.size() - inicio);
+        long posicao = inicio;
+        while (posicao < fim) {
+            long enviados = origem.transferTo(posicao, fim - posicao, destino);
+            if (enviados == 0 && posicao >= origem.size()) {
+                break;
+            }
+            posicao += enviados;
+        }
+        return posicao - inicio;
+    }
+
+    void finalizar() throws IOException {
+        if (lote.remaining() < Integer.BYTES) {
+            descarregar();
+        }
+        lote.putInt(Protocolo.FIM_QUADROS);
+        descarregar();
+    }
+
+    long getBytesEnviados() {
+        return bytesEnviados;
+    }
+
+    /** Devolve o lote ao {@link PoolBuffers}; o envio não pode mais ser usado. */
+    @Override
+    public void close() {
+        PoolBuffers.devolver(lote);
+    }
+
+    private void descarregar() throws IOException {
+        lote.flip();
+        while (lote.hasRemaining()) {
+            destino.write(lote);
+        }
+        lote.clear();
+    }
+}
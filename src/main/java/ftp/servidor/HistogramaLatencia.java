@@ -0,0 +1,66 @@
+package ftp.servidor;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latências em faixas de potências de dois (em microssegundos). Cada faixa é um
+ * LongAdder, então várias conexões registram ao mesmo tempo sem disputar a mesma variável; os
+ * percentis saem do limite superior da faixa, com erro de no máximo 2x.
+ */
+final class HistogramaLatencia {
+    private static final int FAIXAS = 40;
+
+    private final LongAdder[] faixas = new LongAdder[FAIXAS];
+    private final LongAdder contagem = new LongAdder();
+    private final LongAdder somaMicros = new LongAdder();
+    private final LongAccumulator maximoMicros = new LongAccumulator(Math::max, 0);
+
+    HistogramaLatencia() {
+        for (int i = 0; i < FAIXAS; i++) {
+            faixas[i] = new LongAdder();
+        }
+    }
+
+    void registrar(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        // Faixa i guarda [2^(i-1), 2^i) µs; a faixa 0 guarda o que levou menos de 1 µs
+        faixas[Math.min(FAIXAS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        contagem.increment();
+        somaMicros.add(micros);
+        maximoMicros.accumulate(micros);
+    }
+
+    long getContagem() {
+        return contagem.sum();
+    }
+
+    double getMediaMs() {
+        long n = contagem.sum();
+        return n == 0 ? 0 : somaMicros.sum() / 1000.0 / n;
+    }
+
+    double getMaximoMs() {
+        return maximoMicros.get() / 1000.0;
+    }
+
+    /** Limite superior da faixa onde cai o percentil pedido (0 a 100), em ms. */
+    double percentilMs(double percentil) {
+        long[] copia = new long[FAIXAS];
+        long total = 0;
+        for (int i = 0; i < FAIXAS; i++) {
+            copia[i] = faixas[i].sum();
+            total += copia[i];
+        }
+        if (total == 0) return 0;
+        long alvo = (long) Math.ceil(total * percentil / 100.0);
+        long acumulado = 0;
+        for (int i = 0; i < FAIXAS; i++) {
+            acumulado += copia[i];
+            if (acumulado >= alvo) {
+                return Math.min(1L << i, Math.max(1, maximoMicros.get())) / 1000.0;
+            }
+        }
+        return getMaximoMs();
+    }
+}
@@ -0,0 +1,309 @@
+package ftp.servidor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.stream.StreamSupport;
+
+import ftp.protocolo.Protocolo;
+import ftp.servidor.ArmazenamentoBlocos.EntradaCatalogo;
+import utils.FolderIdUtil;
+
+/**
+ * Metadados das pastas da raiz (id, nome original, tamanho, quantidade de arquivos e último
+ * upload), mantidos em memória para que o LIST não percorra as árvores de arquivos. Cada upload
+ * atualiza só a própria pasta, e o índice é gravado em root/.indice/pastas. Ao abrir, o índice
+ * salvo é conciliado com uma listagem da raiz: só pastas novas são percorridas, e sem arquivo
+ * salvo (ou com ele corrompido) tudo é recalculado.
+ *
+ * Além da ordem por nome, o índice mantém as pastas ordenadas por tamanho e por data do último
+ * upload, para que uma página do LIST em qualquer ordem saia sem ordenar nem copiar a raiz.
+ */
+final class IndicePastas {
+    static final String PASTA_INDICE = ".indice";
+
+    /** Uma pasta da raiz como o LIST a apresenta. */
+    record InfoPasta(String nomePasta, String id, String nomeOriginal, long tamanho, int arquivos, long ultimoUpload) {
+
+        static InfoPasta de(String nomePasta, long tamanho, int arquivos, long ultimoUpload) {
+            return new InfoPasta(nomePasta, FolderIdUtil.extrairId(nomePasta), FolderIdUtil.extrairNomeOriginal(nomePasta),
+                    tamanho, arquivos, ultimoUpload);
+        }
+
+        // Formato: PASTA_INFO:id|nomeOriginal|tamanho
+        String formatar() {
+            return String.format("PASTA_INFO:%s|%s|%d", id, nomeOriginal, tamanho);
+        }
+
+        // Formato salvo: tamanho|arquivos|ultimoUpload|nomePasta
+        String serializar() {
+            return tamanho + "|" + arquivos + "|" + ultimoUpload + "|" + nomePasta;
+        }
+
+        static InfoPasta interpretar(String linha) {
+            String[] partes = linha.split("\\|", 4);
+            if (partes.length != 4) {
+                throw new IllegalArgumentException("Linha de índice inválida: " + linha);
+            }
+            return de(partes[3], Long.parseLong(partes[0]), Integer.parseInt(partes[1]), Long.parseLong(partes[2]));
+        }
+    }
+
+    enum Ordem { NOME, TAMANHO, DATA }
+
+    /*
+     * Argumentos do LIST paginado: ordem|limite|cursor|prefixo, com "-" depois da ordem para
+     * decrescente. O cursor é o da linha PROXIMA da página anterior; o prefixo vem por último
+     * porque é texto livre.
+     */
+    record Consulta(Ordem ordem, boolean decrescente, int limite, String cursor, String prefixo) {
+        static final Consulta TUDO = new Consulta(Ordem.NOME, false, Integer.MAX_VALUE, "", "");
+
+        static Consulta interpretar(String args) {
+            if (args.isBlank()) {
+                return TUDO;
+            }
+            String[] partes = args.split("\\|", 4);
+            if (partes.length != 4) {
+                throw new IllegalArgumentException("Use: ordem|limite|cursor|prefixo");
+            }
+            String ordem = partes[0].trim().toUpperCase();
+            boolean decrescente = ordem.endsWith("-");
+            int limite = Integer.parseInt(partes[1].trim());
+            if (limite < 1) {
+                throw new IllegalArgumentException("Limite inválido: " + limite);
+            }
+            Consulta consulta = new Consulta(Ordem.valueOf(decrescente ? ordem.substring(0, ordem.length() - 1) : ordem),
+                    decrescente, Math.min(limite, Protocolo.LIMITE_PAGINA_MAXIMO), partes[2], partes[3]);
+            if (consulta.ordem() != Ordem.NOME && !consulta.cursor().isEmpty()) {
+                posicaoCursor(consulta);
+            }
+            return consulta;
+        }
+
+        /** Cursor que continua a listagem depois da pasta. */
+        String cursor(InfoPasta ultima) {
+            return switch (ordem) {
+                case NOME -> ultima.nomePasta();
+                case TAMANHO -> ultima.tamanho() + "/" + ultima.nomePasta();
+                case DATA -> ultima.ultimoUpload() + "/" + ultima.nomePasta();
+            };
+        }
+    }
+
+    private static final Comparator<InfoPasta> POR_TAMANHO =
+            Comparator.comparingLong(InfoPasta::tamanho).thenComparing(InfoPasta::nomePasta);
+    private static final Comparator<InfoPasta> POR_DATA =
+            Comparator.comparingLong(InfoPasta::ultimoUpload).thenComparing(InfoPasta::nomePasta);
+
+    private static final ConcurrentNavigableMap<String, InfoPasta> pastas = new ConcurrentSkipListMap<>();
+    private static final NavigableSet<InfoPasta> porTamanho = new ConcurrentSkipListSet<>(POR_TAMANHO);
+    private static final NavigableSet<InfoPasta> porData = new ConcurrentSkipListSet<>(POR_DATA);
+    private static volatile boolean aberto = false;
+
+    private IndicePastas() {
+    }
+
+    private static Path arquivoIndice() {
+        return Paths.get(Servidor.getRoot(), PASTA_INDICE, "pastas");
+    }
+
+    static synchronized void abrir(Consumer<String> logger) {
+        limpar();
+        int salvas = 0;
+        Path arquivo = arquivoIndice();
+        if (Files.exists(arquivo)) {
+            try {
+                for (String linha : Files.readAllLines(arquivo, StandardCharsets.UTF_8)) {
+                    if (linha.isBlank()) continue;
+                    guardar(InfoPasta.interpretar(linha));
+                }
+                salvas = pastas.size();
+            } catch (IOException | RuntimeException e) {
+                logger.accept("ERRO ao ler o índice de pastas, recalculando: " + e.getMessage());
+                limpar();
+            }
+        }
+
+        Set<String> existentes = new HashSet<>(OperacoesPasta.listarPastas());
+        int removidas = 0;
+        for (String nomePasta : new ArrayList<>(pastas.keySet())) {
+            if (!existentes.contains(nomePasta)) {
+                retirar(nomePasta);
+                removidas++;
+            }
+        }
+        int calculadas = 0;
+        for (String nomePasta : existentes) {
+            if (!pastas.containsKey(nomePasta)) {
+                InfoPasta info = calcular(nomePasta, ultimaModificacao(nomePasta));
+                if (info != null) {
+                    guardar(info);
+                    calculadas++;
+                }
+            }
+        }
+        aberto = true;
+        if (removidas > 0 || calculadas > 0) {
+            salvar(logger);
+        }
+        logger.accept("Índice de pastas: " + pastas.size() + " pasta(s), " + salvas + " do índice salvo, "
+                + calculadas + " recalculada(s).");
+    }
+
+    private static void garantirAberto() {
+        if (!aberto) {
+            abrir(mensagem -> { });
+        }
+    }
+
+    /**
+     * Pastas depois do cursor, na ordem pedida, cujo nome original começa com o prefixo. O
+     * iterador anda direto sobre o índice; quem chama para no limite da página.
+     */
+    static Iterator<InfoPasta> consultar(Consulta consulta) {
+        garantirAberto();
+        String prefixo = consulta.prefixo();
+        Iterable<InfoPasta> visao;
+        if (consulta.ordem() == Ordem.NOME) {
+            // nome_id começa com o prefixo sempre que o nome original começa
+            ConcurrentNavigableMap<String, InfoPasta> faixa = prefixo.isEmpty() ? pastas
+                    : pastas.subMap(prefixo, true, prefixo + Character.MAX_VALUE, false);
+            if (consulta.decrescente()) faixa = faixa.descendingMap();
+            if (!consulta.cursor().isEmpty()) faixa = faixa.tailMap(consulta.cursor(), false);
+            visao = faixa.values();
+        } else {
+            NavigableSet<InfoPasta> faixa = consulta.ordem() == Ordem.TAMANHO ? porTamanho : porData;
+            if (consulta.decrescente()) faixa = faixa.descendingSet();
+            if (!consulta.cursor().isEmpty()) faixa = faixa.tailSet(posicaoCursor(consulta), false);
+            visao = faixa;
+        }
+        return StreamSupport.stream(visao.spliterator(), false)
+                .filter(info -> info.nomeOriginal().startsWith(prefixo))
+                .iterator();
+    }
+
+    // "valor/nome_id": só os campos usados pelo comparador da ordem importam
+    private static InfoPasta posicaoCursor(Consulta consulta) {
+        String cursor = consulta.cursor();
+        int barra = cursor.indexOf('/');
+        if (barra < 0) {
+            throw new IllegalArgumentException("Cursor inválido: " + cursor);
+        }
+        long valor = Long.parseLong(cursor.substring(0, barra));
+        String nomePasta = cursor.substring(barra + 1);
+        return consulta.ordem() == Ordem.TAMANHO
+                ? InfoPasta.de(nomePasta, valor, 0, 0)
+                : InfoPasta.de(nomePasta, 0, 0, valor);
+    }
+
+    /** Recalcula a pasta depois de um upload ou sincronização, tenha ele terminado bem ou não. */
+    static void atualizar(String nomePasta, Consumer<String> logger) {
+        garantirAberto();
+        InfoPasta info = calcular(nomePasta, System.currentTimeMillis());
+        if (info != null) {
+            guardar(info);
+        } else {
+            retirar(nomePasta);
+        }
+        salvar(logger);
+    }
+
+    // As três ordens mudam juntas; leitores concorrentes podem ver uma pasta só em parte delas
+    private static synchronized void guardar(InfoPasta info) {
+        InfoPasta anterior = pastas.put(info.nomePasta(), info);
+        if (anterior != null) {
+            porTamanho.remove(anterior);
+            porData.remove(anterior);
+        }
+        porTamanho.add(info);
+        porData.add(info);
+    }
+
+    private static synchronized void retirar(String nomePasta) {
+        InfoPasta anterior = pastas.remove(nomePasta);
+        if (anterior != null) {
+            porTamanho.remove(anterior);
+            porData.remove(anterior);
+        }
+    }
+
+    private static synchronized void limpar() {
+        pastas.clear();
+        porTamanho.clear();
+        porData.clear();
+    }
+
+    private static InfoPasta calcular(String nomePasta, long ultimoUpload) {
+        try {
+            if (ArmazenamentoBlocos.possuiCatalogo(nomePasta)) {
+                long tamanho = 0;
+                List<EntradaCatalogo> entradas = ArmazenamentoBlocos.entradas(nomePasta);
+                for (EntradaCatalogo entrada : entradas) {
+                    tamanho += entrada.tamanho();
+                }
+                return InfoPasta.de(nomePasta, tamanho, entradas.size(), ultimoUpload);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        File pasta = OperacoesPasta.resolverPasta(nomePasta);
+        if (!pasta.isDirectory()) {
+            return null;
+        }
+        long[] totais = new long[2];
+        somar(pasta, totais);
+        return InfoPasta.de(nomePasta, totais[0], (int) totais[1], ultimoUpload);
+    }
+
+    private static void somar(File pasta, long[] totais) {
+        File[] conteudo = pasta.listFiles();
+        if (conteudo == null) return;
+        for (File item : conteudo) {
+            if (item.isDirectory()) {
+                somar(item, totais);
+            } else {
+                totais[0] += item.length();
+                totais[1]++;
+            }
+        }
+    }
+
+    private static long ultimaModificacao(String nomePasta) {
+        File pasta = OperacoesPasta.resolverPasta(nomePasta);
+        return pasta.isDirectory() ? pasta.lastModified() : System.currentTimeMillis();
+    }
+
+    private static synchronized void salvar(Consumer<String> logger) {
+        Path destino = arquivoIndice();
+        try {
+            Files.createDirectories(destino.getParent());
+            Path temporario = destino.resolveSibling("pastas.tmp");
+            try (BufferedWriter escritor = Files.newBufferedWriter(temporario, StandardCharsets.UTF_8)) {
+                for (InfoPasta info : pastas.values()) {
+                    escritor.write(info.serializar());
+                    escritor.newLine();
+                }
+            }
+            Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.accept("ERRO ao salvar o índice de pastas: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ftp.servidor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Preparação e lixeira das pastas em disco. Um upload é montado em root/.preparacao e entra no
+ * lugar da pasta com um rename; a versão substituída vai para root/.lixeira, que uma thread de
+ * baixa prioridade esvazia. Assim apagar uma pasta grande nunca fica no caminho de um upload.
+ *
+ * Um download registra uma {@link Leitura} da árvore que listou e abre cada arquivo por ela. Se a
+ * pasta for trocada no meio, a leitura acompanha a árvore antiga até a lixeira, e o recolhedor só
+ * a apaga quando a última leitura fecha; o download termina inteiro na versão que listou.
+ */
+final class LixeiraPastas {
+    private static final String PASTA_PREPARACAO = ".preparacao";
+    private static final String PASTA_LIXEIRA = ".lixeira";
+
+    private static final AtomicLong sequencia = new AtomicLong();
+    /*
+     * Os renames de publicar e descartar tomam a escrita; listar e abrir arquivos de uma leitura
+     * tomam a leitura, para nunca resolver um caminho no meio de uma troca. Entre uploads
+     * simultâneos da mesma pasta vence o último publicado.
+     */
+    private static final ReentrantReadWriteLock trocas = new ReentrantReadWriteLock();
+    // Árvores com leituras abertas, pelo lugar onde estão agora: na raiz ou na lixeira
+    private static final Map<File, Arvore> emLeitura = new HashMap<>();
+    private static final ExecutorService recolhedor = Executors.newSingleThreadExecutor(tarefa -> {
+        Thread thread = new Thread(tarefa, "recolhedor-lixeira");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static volatile Consumer<String> logger = mensagem -> {
+    };
+
+    private LixeiraPastas() {
+    }
+
+    /** Ao iniciar o servidor: preparações interrompidas por uma queda vão para a lixeira, que é esvaziada. */
+    static void iniciar(Consumer<String> logger) {
+        LixeiraPastas.logger = logger;
+        File[] sobras = new File(Servidor.getRoot(), PASTA_PREPARACAO).listFiles();
+        if (sobras != null) {
+            for (File sobra : sobras) {
+                descartar(sobra);
+            }
+        }
+        recolher();
+    }
+
+    /** Pasta vazia, no mesmo disco da raiz, onde o upload de {@code nomeAlvo} é montado. */
+    static File preparar(String nomeAlvo) throws IOException {
+        File pasta = new File(new File(Servidor.getRoot(), PASTA_PREPARACAO), nomeUnico(nomeAlvo));
+        Files.createDirectories(pasta.toPath());
+        return pasta;
+    }
+
+    /*
+     * Põe a pasta preparada no lugar de nomeAlvo. A versão antiga sai por rename antes, então a
+     * pasta só fica ausente entre dois renames; se o segundo falhar, ela volta para o lugar.
+     */
+    static void publicar(File preparada, String nomeAlvo) throws IOException {
+        File destino = OperacoesPasta.resolverPasta(nomeAlvo);
+        trocas.writeLock().lock();
+        try {
+            File antiga = null;
+            if (destino.exists()) {
+                antiga = new File(lixeira(), nomeUnico(nomeAlvo));
+                moverArvore(destino, antiga);
+            }
+            try {
+                mover(preparada, destino);
+            } catch (IOException e) {
+                if (antiga != null) moverArvore(antiga, destino);
+                throw e;
+            }
+            ArmazenamentoBlocos.removerCatalogo(nomeAlvo);
+            RepositorioManifestos.remover(nomeAlvo);
+        } finally {
+            trocas.writeLock().unlock();
+        }
+        recolher();
+    }
+
+    /** Tira a pasta do lugar na hora e deixa a remoção dos arquivos para o recolhedor. */
+    static void descartar(File pasta) {
+        if (!pasta.exists()) return;
+        trocas.writeLock().lock();
+        try {
+            moverArvore(pasta, new File(lixeira(), nomeUnico(pasta.getName())));
+        } catch (IOException e) {
+            // Outro disco (raiz montada em partes): não há como evitar a remoção aqui
+            OperacoesPasta.deletarPasta(pasta);
+            return;
+        } finally {
+            trocas.writeLock().unlock();
+        }
+        recolher();
+    }
+
+    /*
+     * As leituras da árvore passam a apontar para o destino antes do rename, para o recolhedor
+     * nunca ver na lixeira uma árvore ainda sem dono; se o rename falhar, voltam para a origem.
+     */
+    private static void moverArvore(File origem, File destino) throws IOException {
+        reapontar(origem, destino);
+        try {
+            mover(origem, destino);
+        } catch (IOException e) {
+            reapontar(destino, origem);
+            throw e;
+        }
+    }
+
+    private static void reapontar(File origem, File destino) {
+        synchronized (emLeitura) {
+            Arvore arvore = emLeitura.remove(origem);
+            if (arvore == null) return;
+            arvore.raiz = destino;
+            emLeitura.put(destino, arvore);
+        }
+    }
+
+    /**
+     * Registra um download da pasta antes de ele listá-la; fechar encerra o registro. Numa pasta
+     * do armazenamento por blocos o registro não é usado, quem protege os blocos é a leitura do
+     * {@link ArmazenamentoBlocos}.
+     */
+    static Leitura iniciarLeitura(String nomePasta) {
+        File raiz = OperacoesPasta.resolverPasta(nomePasta);
+        trocas.readLock().lock();
+        try {
+            synchronized (emLeitura) {
+                Arvore arvore = emLeitura.computeIfAbsent(raiz, Arvore::new);
+                arvore.leitores++;
+                return new Leitura(arvore);
+            }
+        } finally {
+            trocas.readLock().unlock();
+        }
+    }
+
+    static final class Leitura implements AutoCloseable {
+        private Arvore arvore;
+
+        private Leitura(Arvore arvore) {
+            this.arvore = arvore;
+        }
+
+        /** Arquivos da árvore na ordem do download, cada um aberto depois por esta leitura. */
+        List<ArquivoPasta> listar() {
+            trocas.readLock().lock();
+            try {
+                List<ArquivoPasta> arquivos = new ArrayList<>();
+                for (File arquivo : OperacoesPasta.listarArquivosParaDownload(arvore.raiz)) {
+                    arquivos.add(ArquivoPasta.deArquivo(OperacoesPasta.caminhoRelativo(arvore.raiz, arquivo), arquivo, this));
+                }
+                return arquivos;
+            } finally {
+                trocas.readLock().unlock();
+            }
+        }
+
+        // Depois de aberto, o arquivo segue a árvore em qualquer rename
+        FileInputStream abrir(String caminho) throws IOException {
+            trocas.readLock().lock();
+            try {
+                return new FileInputStream(new File(arvore.raiz, caminho));
+            } finally {
+                trocas.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (arvore == null) return;
+            boolean naLixeira;
+            synchronized (emLeitura) {
+                if (--arvore.leitores > 0) {
+                    arvore = null;
+                    return;
+                }
+                emLeitura.remove(arvore.raiz);
+                naLixeira = !arvore.raiz.equals(arvore.original);
+            }
+            arvore = null;
+            if (naLixeira) recolher();
+        }
+    }
+
+    private static final class Arvore {
+        final File original;
+        File raiz;
+        int leitores;
+
+        Arvore(File raiz) {
+            this.original = raiz;
+            this.raiz = raiz;
+        }
+    }
+
+    private static void recolher() {
+        recolhedor.execute(LixeiraPastas::esvaziar);
+    }
+
+    private static void esvaziar() {
+        File[] itens = new File(Servidor.getRoot(), PASTA_LIXEIRA).listFiles();
+        if (itens == null) return;
+        for (File item : itens) {
+            synchronized (emLeitura) {
+                if (emLeitura.containsKey(item)) continue;
+            }
+            OperacoesPasta.deletarPasta(item);
+            if (item.exists()) {
+                logger.accept("AVISO: Não foi possível apagar " + item.getPath() + " da lixeira.");
+            }
+        }
+    }
+
+    private static File lixeira() throws IOException {
+        File pasta = new File(Servidor.getRoot(), PASTA_LIXEIRA);
+        Files.createDirectories(pasta.toPath());
+        return pasta;
+    }
+
+    private static String nomeUnico(String nome) {
+        return nome + "." + System.currentTimeMillis() + "." + sequencia.incrementAndGet();
+    }
+
+    private static void mover(File origem, File destino) throws IOException {
+        Files.move(origem.toPath(), destino.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,242 @@
+package ftp.servidor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ftp.protocolo.PoolBuffers;
+
+/**
+ * Contadores do servidor, compartilhados por todas as conexões. Os totais são LongAdders, que
+ * espalham as somas entre células para as threads de transferência não disputarem a mesma linha
+ * de cache; as taxas por segundo são calculadas por uma thread própria a cada segundo. Os
+ * valores ficam disponíveis por JMX, pelo comando STATS e no painel do ServidorGUI.
+ */
+final class MetricasServidor implements MetricasServidorMXBean {
+    static final String NOME_JMX = "ftp.servidor:type=Metricas";
+    // Comandos com histograma de latência; os demais não são medidos
+    static final List<String> COMANDOS_MEDIDOS = List.of("LIST", "CHECK_FOLDER", "UPLOAD_FOLDER", "SYNC_FOLDER",
+            "UPLOAD_PARALLEL", "DOWNLOAD_FOLDER", "DOWNLOAD_RAW");
+
+    private static final MetricasServidor instancia = new MetricasServidor();
+
+    private final LongAdder conexoesAceitas = new LongAdder();
+    private final LongAdder conexoesRecusadas = new LongAdder();
+    private final LongAdder bytesRecebidos = new LongAdder();
+    private final LongAdder bytesEnviados = new LongAdder();
+    private final LongAdder arquivosRecebidos = new LongAdder();
+    private final LongAdder arquivosEnviados = new LongAdder();
+    private final Map<String, HistogramaLatencia> latencias = new LinkedHashMap<>();
+
+    // Totais da última amostra e taxas calculadas a partir dela
+    private final long[] amostraAnterior = new long[4];
+    private long instanteAnterior = System.nanoTime();
+    private volatile double[] taxas = new double[4];
+
+    private volatile Servidor servidor;
+    private ScheduledExecutorService amostrador;
+
+    private MetricasServidor() {
+        for (String comando : COMANDOS_MEDIDOS) {
+            latencias.put(comando, new HistogramaLatencia());
+        }
+    }
+
+    static MetricasServidor get() {
+        return instancia;
+    }
+
+    /** Passa a ler conexões e fila deste servidor; na primeira vez registra o bean e inicia as taxas. */
+    static synchronized void iniciar(Servidor servidor, Consumer<String> logger) {
+        instancia.servidor = servidor;
+        if (instancia.amostrador != null) {
+            return;
+        }
+        instancia.amostrador = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "metricas-servidor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        instancia.amostrador.scheduleAtFixedRate(instancia::amostrar, 1, 1, TimeUnit.SECONDS);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instancia, new ObjectName(NOME_JMX));
+        } catch (JMException e) {
+            logger.accept("AVISO: Métricas não publicadas por JMX: " + e.getMessage());
+        }
+    }
+
+    static void conexaoAceita() {
+        instancia.conexoesAceitas.increment();
+    }
+
+    static void conexaoRecusada() {
+        instancia.conexoesRecusadas.increment();
+    }
+
+    static void bytesRecebidos(long bytes) {
+        instancia.bytesRecebidos.add(bytes);
+    }
+
+    static void bytesEnviados(long bytes) {
+        instancia.bytesEnviados.add(bytes);
+    }
+
+    /** Stream que soma nos bytes enviados tudo o que passa por ele. */
+    static OutputStream contarEnviados(OutputStream destino) {
+        return new FilterOutputStream(destino) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                instancia.bytesEnviados.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int inicio, int tamanho) throws IOException {
+                out.write(b, inicio, tamanho);
+                instancia.bytesEnviados.add(tamanho);
+            }
+        };
+    }
+
+    static void arquivoRecebido() {
+        instancia.arquivosRecebidos.increment();
+    }
+
+    static void arquivosEnviados(int quantidade) {
+        instancia.arquivosEnviados.add(quantidade);
+    }
+
+    static void registrarLatencia(String comando, long nanos) {
+        HistogramaLatencia histograma = instancia.latencias.get(comando);
+        if (histograma != null) {
+            histograma.registrar(nanos);
+        }
+    }
+
+    HistogramaLatencia getHistograma(String comando) {
+        return latencias.get(comando);
+    }
+
+    private void amostrar() {
+        long agora = System.nanoTime();
+        long[] atual = {bytesRecebidos.sum(), bytesEnviados.sum(), arquivosRecebidos.sum(), arquivosEnviados.sum()};
+        double segundos = (agora - instanteAnterior) / 1e9;
+        double[] novas = new double[atual.length];
+        for (int i = 0; i < atual.length; i++) {
+            novas[i] = (atual[i] - amostraAnterior[i]) / segundos;
+            amostraAnterior[i] = atual[i];
+        }
+        instanteAnterior = agora;
+        taxas = novas;
+    }
+
+    /** Linhas "STAT:nome|valor" e "LATENCIA:comando|n|média|p50|p95|p99|máx" da resposta ao STATS. */
+    List<String> relatorio() {
+        List<String> linhas = new ArrayList<>();
+        linhas.add("STAT:conexoes_ativas|" + getConexoesAtivas());
+        linhas.add("STAT:fila_executor|" + getFilaExecutor());
+        linhas.add("STAT:conexoes_aceitas|" + getConexoesAceitas());
+        linhas.add("STAT:conexoes_recusadas|" + getConexoesRecusadas());
+        linhas.add("STAT:bytes_recebidos|" + getBytesRecebidos());
+        linhas.add("STAT:bytes_enviados|" + getBytesEnviados());
+        linhas.add("STAT:arquivos_recebidos|" + getArquivosRecebidos());
+        linhas.add("STAT:arquivos_enviados|" + getArquivosEnviados());
+        linhas.add("STAT:bytes_recebidos_s|" + Math.round(getBytesRecebidosPorSegundo()));
+        linhas.add("STAT:bytes_enviados_s|" + Math.round(getBytesEnviadosPorSegundo()));
+        linhas.add("STAT:arquivos_recebidos_s|" + Math.round(getArquivosRecebidosPorSegundo()));
+        linhas.add("STAT:arquivos_enviados_s|" + Math.round(getArquivosEnviadosPorSegundo()));
+        linhas.add("STAT:buffers_criados|" + PoolBuffers.getCriados());
+        linhas.add("STAT:buffers_reaproveitados|" + PoolBuffers.getReaproveitados());
+        for (String latencia : getLatencias()) {
+            linhas.add("LATENCIA:" + latencia.replace(' ', '|'));
+        }
+        return linhas;
+    }
+
+    @Override
+    public int getConexoesAtivas() {
+        Servidor atual = servidor;
+        return atual != null ? atual.getConexoesAtivas() : 0;
+    }
+
+    @Override
+    public int getFilaExecutor() {
+        Servidor atual = servidor;
+        return atual != null ? atual.getFilaExecutor() : 0;
+    }
+
+    @Override
+    public long getConexoesAceitas() {
+        return conexoesAceitas.sum();
+    }
+
+    @Override
+    public long getConexoesRecusadas() {
+        return conexoesRecusadas.sum();
+    }
+
+    @Override
+    public long getBytesRecebidos() {
+        return bytesRecebidos.sum();
+    }
+
+    @Override
+    public long getBytesEnviados() {
+        return bytesEnviados.sum();
+    }
+
+    @Override
+    public long getArquivosRecebidos() {
+        return arquivosRecebidos.sum();
+    }
+
+    @Override
+    public long getArquivosEnviados() {
+        return arquivosEnviados.sum();
+    }
+
+    @Override
+    public double getBytesRecebidosPorSegundo() {
+        return taxas[0];
+    }
+
+    @Override
+    public double getBytesEnviadosPorSegundo() {
+        return taxas[1];
+    }
+
+    @Override
+    public double getArquivosRecebidosPorSegundo() {
+        return taxas[2];
+    }
+
+    @Override
+    public double getArquivosEnviadosPorSegundo() {
+        return taxas[3];
+    }
+
+    @Override
+    public String[] getLatencias() {
+        List<String> linhas = new ArrayList<>();
+        for (Map.Entry<String, HistogramaLatencia> entrada : latencias.entrySet()) {
+            HistogramaLatencia h = entrada.getValue();
+            linhas.add(String.format(Locale.ROOT, "%s %d %.3f %.3f %.3f %.3f %.3f", entrada.getKey(), h.getContagem(),
+                    h.getMediaMs(), h.percentilMs(50), h.percentilMs(95), h.percentilMs(99), h.getMaximoMs()));
+        }
+        return linhas.toArray(new String[0]);
+    }
+}
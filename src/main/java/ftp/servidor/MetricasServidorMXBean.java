@@ -0,0 +1,33 @@
+package ftp.servidor;
+
+/**
+ * Métricas do servidor publicadas por JMX em {@code ftp.servidor:type=Metricas}. As taxas são
+ * recalculadas a cada segundo; as latências vêm em linhas "COMANDO n média p50 p95 p99 máx", em ms.
+ */
+public interface MetricasServidorMXBean {
+    int getConexoesAtivas();
+
+    int getFilaExecutor();
+
+    long getConexoesAceitas();
+
+    long getConexoesRecusadas();
+
+    long getBytesRecebidos();
+
+    long getBytesEnviados();
+
+    long getArquivosRecebidos();
+
+    long getArquivosEnviados();
+
+    double getBytesRecebidosPorSegundo();
+
+    double getBytesEnviadosPorSegundo();
+
+    double getArquivosRecebidosPorSegundo();
+
+    double getArquivosEnviadosPorSegundo();
+
+    String[] getLatencias();
+}
@@ -0,0 +1,18 @@
+package ftp.servidor;
+
+public enum MotorConexoes {
+    POOL_FIXO("Pool fixo (" + Servidor.TAMANHO_POOL_FIXO + " threads)"),
+    THREADS_VIRTUAIS("Threads virtuais"),
+    NIO_SELECTOR("NIO com Selector (" + ServidorNio.LACOS_EVENTOS + " laços)");
+
+    private final String descricao;
+
+    MotorConexoes(String descricao) {
+        this.descricao = descricao;
+    }
+
+    @Override
+    public String toString() {
+        return descricao;
+    }
+}
@@ -0,0 +1,125 @@
+package ftp.servidor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Operações sobre a pasta raiz compartilhadas pelos motores de conexão do servidor.
+ */
+final class OperacoesPasta {
+    private OperacoesPasta() {
+    }
+
+    /*
+     * Pastas começando com '.' são de uso interno do servidor (manifestos, blocos etc.) e não são
+     * listadas. Uma pasta pode estar gravada como diretório comum ou como catálogo no
+     * armazenamento por blocos; para os clientes as duas formas são iguais.
+     */
+    static List<String> listarPastas() {
+        TreeSet<String> nomes = new TreeSet<>(ArmazenamentoBlocos.listarCatalogos());
+        File[] pastas = new File(Servidor.getRoot()).listFiles(pasta -> pasta.isDirectory() && !pasta.getName().startsWith("."));
+        if (pastas != null) {
+            for (File pasta : pastas) {
+                nomes.add(pasta.getName());
+            }
+        }
+        return new ArrayList<>(nomes);
+    }
+
+    static boolean existePasta(String nomePasta) {
+        return nomeValido(nomePasta)
+                && (ArmazenamentoBlocos.possuiCatalogo(nomePasta) || resolverPasta(nomePasta).isDirectory());
+    }
+
+    /*
+     * Nome de pasta vindo do cliente. Os que começam com '.' são das pastas internas (blocos,
+     * sessões, índice, lixeira...) e um separador ou ".." sairia da raiz. Os comandos que recebem um
+     * nome passam por aqui: os de upload pelo nomeAlvo, os de download e CHECK pelo existePasta.
+     */
+    static boolean nomeValido(String nomePasta) {
+        return nomePasta != null && !nomePasta.isEmpty() && !nomePasta.startsWith(".")
+                && nomePasta.indexOf('/') < 0 && nomePasta.indexOf('\\') < 0 && !nomePasta.contains("..");
+    }
+
+    /**
+     * Arquivos da pasta na ordem do download, esteja ela em disco ou no armazenamento por blocos.
+     * Os de uma pasta em disco são listados e depois abertos pela leitura da árvore.
+     */
+    static List<ArquivoPasta> listarArquivos(String nomePasta, LixeiraPastas.Leitura arvore) throws IOException {
+        if (ArmazenamentoBlocos.possuiCatalogo(nomePasta)) {
+            return ArmazenamentoBlocos.listarArquivos(nomePasta);
+        }
+        return arvore.listar();
+    }
+
+    /** Remove a pasta nas duas formas de armazenamento, junto com o manifesto de sincronização. */
+    static void removerPasta(String nomePasta) throws IOException {
+        LixeiraPastas.descartar(resolverPasta(nomePasta));
+        ArmazenamentoBlocos.removerCatalogo(nomePasta);
+        RepositorioManifestos.remover(nomePasta);
+    }
+
+    /** Converte o argumento "nome|id" em "nome_id", ou devolve null se o formato ou o nome for inválido. */
+    static String nomeAlvo(String pastaInfo) {
+        String[] info = pastaInfo.split("\\|");
+        if (info.length != 2) {
+            return null;
+        }
+        String nome = info[0] + "_" + info[1];
+        return nomeValido(nome) ? nome : null;
+    }
+
+    static File resolverPasta(String nomePasta) {
+        return new File(Servidor.getRoot(), nomePasta);
+    }
+
+    /** Resolve um caminho enviado pelo cliente dentro da pasta, ou devolve null se ele escapar dela. */
+    static File resolverArquivo(File pasta, String caminhoRelativo) {
+        Path base = pasta.toPath().toAbsolutePath().normalize();
+        Path destino = base.resolve(caminhoRelativo).normalize();
+        return destino.startsWith(base) && !destino.equals(base) ? destino.toFile() : null;
+    }
+
+    /** Lista os arquivos da pasta na mesma ordem usada para montar o ZIP de download. */
+    static List<File> listarArquivosParaDownload(File pasta) {
+        List<File> arquivos = new ArrayList<>();
+        coletarArquivos(pasta, arquivos);
+        return arquivos;
+    }
+
+    private static void coletarArquivos(File pasta, List<File> arquivos) {
+        File[] conteudo = pasta.listFiles();
+        if (conteudo == null) return;
+        Arrays.sort(conteudo);
+        for (File item : conteudo) {
+            if (item.isDirectory()) {
+                coletarArquivos(item, arquivos);
+            } else {
+                arquivos.add(item);
+            }
+        }
+    }
+
+    static String caminhoRelativo(File pastaBase, File arquivo) {
+        return pastaBase.toPath().relativize(arquivo.toPath()).toString().replace(File.separator, "/");
+    }
+
+    static void deletarPasta(File pasta) {
+        File[] arquivos = pasta.listFiles();
+        if (arquivos != null) {
+            for (File arquivo : arquivos) {
+                if (arquivo.isDirectory()) {
+                    deletarPasta(arquivo);
+                } else {
+                    arquivo.delete();
+                }
+            }
+        }
+        pasta.delete();
+    }
+}
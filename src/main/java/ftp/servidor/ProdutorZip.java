@@ -0,0 +1,74 @@
+package ftp.servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import ftp.protocolo.PoolBuffers;
+
+/**
+ * Gera o ZIP de uma pasta sob demanda, em blocos, para que o motor NIO só leia e comprima
+ * quando o socket do cliente puder receber mais dados.
+ */
+final class ProdutorZip implements AutoCloseable {
+    private static final int TAMANHO_BLOCO = 64 * 1024;
+
+    private final Iterator<ArquivoPasta> arquivos;
+    private final ByteArrayOutputStream destino = new ByteArrayOutputStream(TAMANHO_BLOCO * 2);
+    private final ZipOutputStream zos = new ZipOutputStream(destino);
+    private byte[] buffer = PoolBuffers.array(TAMANHO_BLOCO);
+    private InputStream arquivoAtual;
+    private boolean concluido = false;
+
+    ProdutorZip(List<ArquivoPasta> arquivos) {
+        this.arquivos = arquivos.iterator();
+    }
+
+    boolean isConcluido() {
+        return concluido && destino.size() == 0;
+    }
+
+    /** Comprime arquivos até acumular um bloco e devolve os bytes prontos para o socket. */
+    ByteBuffer proximoBloco() throws IOException {
+        while (destino.size() < TAMANHO_BLOCO && !concluido) {
+            if (arquivoAtual == null) {
+                if (!arquivos.hasNext()) {
+                    zos.finish();
+                    concluido = true;
+                    break;
+                }
+                ArquivoPasta arquivo = arquivos.next();
+                zos.putNextEntry(new ZipEntry(arquivo.caminho()));
+                arquivoAtual = arquivo.abrir();
+            }
+
+            int bytesLidos = arquivoAtual.read(buffer);
+            if (bytesLidos == -1) {
+                arquivoAtual.close();
+                arquivoAtual = null;
+                zos.closeEntry();
+            } else {
+                zos.write(buffer, 0, bytesLidos);
+            }
+        }
+
+        ByteBuffer bloco = ByteBuffer.wrap(destino.toByteArray());
+        destino.reset();
+        return bloco;
+    }
+
+    @Override
+    public void close() throws IOException {
+        PoolBuffers.devolver(buffer);
+        buffer = null;
+        if (arquivoAtual != null) {
+            arquivoAtual.close();
+            arquivoAtual = null;
+        }
+    }
+}
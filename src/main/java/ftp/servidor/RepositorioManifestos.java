@@ -0,0 +1,63 @@
+package ftp.servidor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ftp.protocolo.EntradaManifesto;
+
+/**
+ * Guarda o último manifesto sincronizado de cada pasta em root/.manifestos, fora das pastas
+ * listadas para os clientes.
+ */
+final class RepositorioManifestos {
+    static final String PASTA_MANIFESTOS = ".manifestos";
+
+    private RepositorioManifestos() {
+    }
+
+    private static Path arquivo(String nomeAlvo) {
+        return Paths.get(Servidor.getRoot(), PASTA_MANIFESTOS, nomeAlvo + ".manifesto");
+    }
+
+    static Map<String, EntradaManifesto> carregar(String nomeAlvo) throws IOException {
+        Map<String, EntradaManifesto> manifesto = new HashMap<>();
+        Path caminho = arquivo(nomeAlvo);
+        if (!Files.exists(caminho)) {
+            return manifesto;
+        }
+        List<String> linhas = Files.readAllLines(caminho, StandardCharsets.UTF_8);
+        for (String linha : linhas) {
+            if (linha.isBlank()) continue;
+            EntradaManifesto entrada = EntradaManifesto.interpretar(linha);
+            manifesto.put(entrada.caminho(), entrada);
+        }
+        return manifesto;
+    }
+
+    static void salvar(String nomeAlvo, Collection<EntradaManifesto> entradas) throws IOException {
+        Path destino = arquivo(nomeAlvo);
+        Files.createDirectories(destino.getParent());
+        Path temporario = destino.resolveSibling(destino.getFileName() + ".tmp");
+        try (BufferedWriter escritor = Files.newBufferedWriter(temporario, StandardCharsets.UTF_8)) {
+            for (EntradaManifesto entrada : entradas) {
+                escritor.write(entrada.formatar());
+                escritor.newLine();
+            }
+        }
+        Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Um upload completo substitui a pasta sem manifesto; o próximo SYNC recalcula os hashes. */
+    static void remover(String nomeAlvo) throws IOException {
+        Files.deleteIfExists(arquivo(nomeAlvo));
+    }
+}
@@ -2,27 +2,68 @@ package ftp.servidor;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.Consumer;
 
 public class Servidor {
+    public static final int TAMANHO_POOL_FIXO = 10;
+    public static final int LIMITE_CONEXOES_PADRAO = 1000;
+    private static final int BACKLOG = 1024;
+    // Conexão sem comando por esse tempo é encerrada; no pool fixo cada conexão parada prende uma das poucas threads
+    static final long OCIOSIDADE_POOL_FIXO_MS = 15_000;
+    static final long OCIOSIDADE_MS = 5 * 60_000;
+
     private final int porta;
     private static final String ROOT = "root";
     private ServerSocket servidorSocket;
     private final ExecutorService pool;
+    private final ServidorNio servidorNio;
+    private final MotorConexoes motor;
+    private final Semaphore permissoes;
+    private final int limiteConexoes;
+    private final boolean armazenamentoBlocos;
     private volatile boolean running = false;
+    // Uma linha por comando e por arquivo; desligar alivia o log em pastas com muitos arquivos pequenos
+    private static volatile boolean logDetalhado = !"false".equalsIgnoreCase(System.getProperty("ftp.log.detalhado"));
     private final Consumer<String> logger;
 
     public Servidor(int porta, Consumer<String> logger) {
+        this(porta, logger, MotorConexoes.POOL_FIXO, LIMITE_CONEXOES_PADRAO);
+    }
+
+    public Servidor(int porta, Consumer<String> logger, MotorConexoes motor, int limiteConexoes) {
+        this(porta, logger, motor, limiteConexoes, false);
+    }
+
+    public Servidor(int porta, Consumer<String> logger, MotorConexoes motor, int limiteConexoes, boolean armazenamentoBlocos) {
+        if (limiteConexoes < 1) {
+            throw new IllegalArgumentException("O limite de conexões deve ser positivo: " + limiteConexoes);
+        }
         this.porta = porta;
         this.logger = logger;
-        this.pool = Executors.newFixedThreadPool(10);
+        this.motor = motor;
+        this.limiteConexoes = limiteConexoes;
+        this.armazenamentoBlocos = armazenamentoBlocos;
+        this.permissoes = new Semaphore(limiteConexoes);
+        this.pool = switch (motor) {
+            case POOL_FIXO -> Executors.newFixedThreadPool(TAMANHO_POOL_FIXO);
+            case THREADS_VIRTUAIS -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ftp-cliente-", 0).factory());
+            // O primeiro laço roda na thread do start()
+            case NIO_SELECTOR -> Executors.newFixedThreadPool(ServidorNio.LACOS_EVENTOS - 1);
+        };
+        this.servidorNio = motor == MotorConexoes.NIO_SELECTOR ? new ServidorNio(logger) : null;
         try {
             Files.createDirectories(Paths.get(ROOT));
         } catch (IOException e) {
@@ -36,16 +77,31 @@ public class Servidor {
             return;
         }
         try {
-            servidorSocket = new ServerSocket(porta);
+            servidorSocket = abrirSocketEscuta();
+            if (armazenamentoBlocos) {
+                ArmazenamentoBlocos.ativar(logger);
+            }
+            IndicePastas.abrir(logger);
+            LixeiraPastas.iniciar(logger);
+            SessaoUploadParalelo.recuperarSuspensas(logger);
+            if (servidorNio != null) {
+                servidorNio.iniciar(pool, servidorSocket.getChannel(), this::aceitarNio);
+            }
             running = true;
-            logger.accept("Servidor iniciado na porta " + porta);
+            MetricasServidor.iniciar(this, logger);
+            logger.accept("Servidor iniciado na porta " + servidorSocket.getLocalPort());
+            logger.accept("Motor de conexões: " + motor + " | limite de " + limiteConexoes + " conexões simultâneas");
             logger.accept("Pasta raiz: " + new File(ROOT).getAbsolutePath());
 
-            while (running) {
+            if (servidorNio != null) {
+                servidorNio.executarLacoPrincipal();
+                logger.accept("Servidor foi parado. Fechando socket de escuta.");
+            }
+            while (running && servidorNio == null) {
                 try {
                     Socket clienteSocket = servidorSocket.accept();
                     logger.accept("Nova conexão aceita: " + clienteSocket.getInetAddress().getHostAddress());
-                    pool.submit(new ClienteHandler(clienteSocket, logger));
+                    despachar(clienteSocket);
                 } catch (SocketException e) {
                     if (!running) {
                         logger.accept("Servidor foi parado. Fechando socket de escuta.");
@@ -68,6 +124,52 @@ public class Servidor {
         }
     }
 
+    private ServerSocket abrirSocketEscuta() throws IOException {
+        // Nos motores com threads o accept é bloqueante, mas cada socket aceito expõe seu
+        // SocketChannel, usado pela recepção de uploads direto para o arquivo; no NIO o canal de
+        // escuta vai para o primeiro laço de eventos
+        ServerSocketChannel canal = ServerSocketChannel.open();
+        canal.bind(new InetSocketAddress(porta), BACKLOG);
+        return canal.socket();
+    }
+
+    private void aceitarNio(SocketChannel canal) {
+        try {
+            logger.accept("Nova conexão aceita: " + canal.socket().getInetAddress().getHostAddress());
+            despachar(canal.socket());
+        } catch (IOException e) {
+            logger.accept("ERRO: Falha ao aceitar conexão de cliente: " + e.getMessage());
+        }
+    }
+
+    private void despachar(Socket clienteSocket) throws IOException {
+        // Com o limite atingido o cliente recebe uma resposta imediata em vez de esperar numa fila sem retorno
+        if (!permissoes.tryAcquire()) {
+            MetricasServidor.conexaoRecusada();
+            logger.accept("AVISO: Limite de " + limiteConexoes + " conexões atingido. Recusando " + clienteSocket.getInetAddress().getHostAddress());
+            try (clienteSocket; PrintWriter saida = new PrintWriter(clienteSocket.getOutputStream(), true)) {
+                saida.println("421 Servidor ocupado, tente novamente mais tarde");
+            }
+            return;
+        }
+        MetricasServidor.conexaoAceita();
+
+        if (servidorNio != null) {
+            servidorNio.registrar(clienteSocket.getChannel(), permissoes::release);
+            return;
+        }
+
+        long ociosidade = motor == MotorConexoes.POOL_FIXO ? OCIOSIDADE_POOL_FIXO_MS : OCIOSIDADE_MS;
+        ClienteHandler handler = new ClienteHandler(clienteSocket, logger, ociosidade);
+        pool.submit(() -> {
+            try {
+                handler.run();
+            } finally {
+                permissoes.release();
+            }
+        });
+    }
+
     public void stop() {
         if (!running) {
             logger.accept("AVISO: Servidor já está parado.");
@@ -81,6 +183,12 @@ public class Servidor {
         } catch (IOException e) {
             logger.accept("ERRO: Problema ao fechar o socket do servidor: " + e.getMessage());
         } finally {
+            if (servidorNio != null) {
+                servidorNio.parar();
+            }
+            if (armazenamentoBlocos) {
+                ArmazenamentoBlocos.desativar();
+            }
             pool.shutdownNow();
             logger.accept("Processo de parada do servidor iniciado.");
         }
@@ -90,7 +198,36 @@ public class Servidor {
         return running;
     }
 
+    public int getPortaLocal() {
+        return servidorSocket != null ? servidorSocket.getLocalPort() : porta;
+    }
+
+    public int getConexoesAtivas() {
+        return limiteConexoes - permissoes.availablePermits();
+    }
+
+    /** Sessões aceitas que ainda esperam uma thread do pool fixo; nos outros motores é sempre 0. */
+    public int getFilaExecutor() {
+        return pool instanceof ThreadPoolExecutor executor ? executor.getQueue().size() : 0;
+    }
+
+    public MotorConexoes getMotor() {
+        return motor;
+    }
+
+    public boolean isArmazenamentoBlocos() {
+        return armazenamentoBlocos;
+    }
+
+    public static boolean isLogDetalhado() {
+        return logDetalhado;
+    }
+
+    public static void setLogDetalhado(boolean detalhado) {
+        logDetalhado = detalhado;
+    }
+
     public static String getRoot() {
         return ROOT;
     }
-}
\ No newline at end of file
+}
@@ -2,21 +2,35 @@ package ftp.servidor;
 
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.table.DefaultTableModel;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.LogAssincrono;
 
 public class ServidorGUI extends JFrame {
     private final JTextPane logPane;
     private final JTextField portaField;
+    private final JComboBox<MotorConexoes> motorCombo;
+    private final JTextField limiteField;
+    private final JCheckBox blocosCheck;
     private final JButton toggleButton;
+    private JLabel metricasLabel;
+    private DefaultTableModel latenciasModel;
 
     private Servidor servidor;
     private int portaAtual = 12381;
 
+    private static final int MAXIMO_CARACTERES_LOG = 1_000_000;
+    private final Map<Color, AttributeSet> estilos = new HashMap<>(); // Só usado na EDT
+
     private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy, HH:mm:ss");
 
     // Define as cores para os logs
@@ -27,6 +41,9 @@ public class ServidorGUI extends JFrame {
     private final Color COR_PADRAO = Color.BLACK; // Preto
     private final Color COR_TIMESTAMP = Color.GRAY; // Cinza para o horário
 
+    // Declarado depois das cores: a thread do log já pode chamar exibirLote
+    private final LogAssincrono log = new LogAssincrono("log-servidor", this::exibirLote);
+
     public ServidorGUI() {
         setTitle("Painel de Controle do Servidor FTP");
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
@@ -39,6 +56,25 @@ public class ServidorGUI extends JFrame {
         portaField = new JTextField(String.valueOf(portaAtual), 6);
         controlPanel.add(portaField);
 
+        controlPanel.add(new JLabel("Motor:"));
+        motorCombo = new JComboBox<>(MotorConexoes.values());
+        motorCombo.setToolTipText("Como as conexões dos clientes são atendidas");
+        controlPanel.add(motorCombo);
+
+        controlPanel.add(new JLabel("Limite de conexões:"));
+        limiteField = new JTextField(String.valueOf(Servidor.LIMITE_CONEXOES_PADRAO), 6);
+        limiteField.setToolTipText("Máximo de sessões simultâneas antes de recusar novas conexões");
+        controlPanel.add(limiteField);
+
+        blocosCheck = new JCheckBox("Deduplicar em blocos");
+        blocosCheck.setToolTipText("Guarda o conteúdo dos arquivos em blocos compartilhados entre as pastas (root/.blocos)");
+        controlPanel.add(blocosCheck);
+
+        JCheckBox detalheCheck = new JCheckBox("Log detalhado", Servidor.isLogDetalhado());
+        detalheCheck.setToolTipText("Registra cada comando e cada arquivo recebido; pode ser mudado com o servidor rodando");
+        detalheCheck.addActionListener(e -> Servidor.setLogDetalhado(detalheCheck.isSelected()));
+        controlPanel.add(detalheCheck);
+
         toggleButton = new JButton("Iniciar Servidor");
         toggleButton.addActionListener(e -> toggleServidor());
         controlPanel.add(toggleButton);
@@ -57,6 +93,8 @@ public class ServidorGUI extends JFrame {
         scrollPane.setBorder(new TitledBorder("Log de Atividade"));
         add(scrollPane, BorderLayout.CENTER);
 
+        add(criarPainelMetricas(), BorderLayout.SOUTH);
+
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
@@ -64,10 +102,64 @@ public class ServidorGUI extends JFrame {
             }
         });
 
-        setSize(800, 600);
+        setSize(1100, 760);
         setLocationRelativeTo(null); // Centralizar na tela
     }
 
+    private JPanel criarPainelMetricas() {
+        JPanel painel = new JPanel(new BorderLayout());
+        painel.setBorder(new TitledBorder("Métricas"));
+
+        metricasLabel = new JLabel(" ");
+        painel.add(metricasLabel, BorderLayout.NORTH);
+
+        latenciasModel = new DefaultTableModel(new String[]{"Comando", "Execuções", "Média (ms)", "p50 (ms)", "p95 (ms)", "p99 (ms)", "Máx (ms)"}, 0) {
+            @Override
+            public boolean isCellEditable(int linha, int coluna) {
+                return false;
+            }
+        };
+        for (String comando : MetricasServidor.COMANDOS_MEDIDOS) {
+            latenciasModel.addRow(new Object[]{comando, 0, "", "", "", "", ""});
+        }
+        JTable latenciasTable = new JTable(latenciasModel);
+        JScrollPane scroll = new JScrollPane(latenciasTable);
+        scroll.setPreferredSize(new Dimension(0, latenciasTable.getRowHeight() * (MetricasServidor.COMANDOS_MEDIDOS.size() + 2)));
+        painel.add(scroll, BorderLayout.CENTER);
+
+        // Lê os contadores direto do servidor, que roda nesta mesma JVM
+        new Timer(1000, e -> atualizarMetricas()).start();
+        return painel;
+    }
+
+    private void atualizarMetricas() {
+        MetricasServidor metricas = MetricasServidor.get();
+        metricasLabel.setText(String.format("Conexões ativas: %d  |  Fila: %d  |  Recebendo: %s/s (%.0f arq/s)  |  Enviando: %s/s (%.0f arq/s)  |  Total: %s recebidos, %s enviados",
+                metricas.getConexoesAtivas(), metricas.getFilaExecutor(),
+                formatarBytes(metricas.getBytesRecebidosPorSegundo()), metricas.getArquivosRecebidosPorSegundo(),
+                formatarBytes(metricas.getBytesEnviadosPorSegundo()), metricas.getArquivosEnviadosPorSegundo(),
+                formatarBytes(metricas.getBytesRecebidos()), formatarBytes(metricas.getBytesEnviados())));
+        for (int i = 0; i < MetricasServidor.COMANDOS_MEDIDOS.size(); i++) {
+            HistogramaLatencia h = metricas.getHistograma(MetricasServidor.COMANDOS_MEDIDOS.get(i));
+            latenciasModel.setValueAt(h.getContagem(), i, 1);
+            latenciasModel.setValueAt(String.format("%.2f", h.getMediaMs()), i, 2);
+            latenciasModel.setValueAt(String.format("%.2f", h.percentilMs(50)), i, 3);
+            latenciasModel.setValueAt(String.format("%.2f", h.percentilMs(95)), i, 4);
+            latenciasModel.setValueAt(String.format("%.2f", h.percentilMs(99)), i, 5);
+            latenciasModel.setValueAt(String.format("%.2f", h.getMaximoMs()), i, 6);
+        }
+    }
+
+    private static String formatarBytes(double bytes) {
+        String[] unidades = {"B", "KB", "MB", "GB", "TB"};
+        int unidade = 0;
+        while (bytes >= 1024 && unidade < unidades.length - 1) {
+            bytes /= 1024;
+            unidade++;
+        }
+        return String.format("%.1f %s", bytes, unidades[unidade]);
+    }
+
     private void toggleServidor() {
         if (servidor != null && servidor.isRunning()) {
             pararServidor();
@@ -83,18 +175,27 @@ public class ServidorGUI extends JFrame {
                 JOptionPane.showMessageDialog(this, "Porta inválida. Use um valor entre 1 e 65535.", "Erro", JOptionPane.ERROR_MESSAGE);
                 return;
             }
+            int limite = Integer.parseInt(limiteField.getText().trim());
+            if (limite < 1) {
+                JOptionPane.showMessageDialog(this, "O limite de conexões deve ser maior que zero.", "Erro", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
             portaAtual = novaPorta;
 
-            servidor = new Servidor(portaAtual, this::adicionarLog);
+            MotorConexoes motor = (MotorConexoes) motorCombo.getSelectedItem();
+            servidor = new Servidor(portaAtual, this::adicionarLog, motor, limite, blocosCheck.isSelected());
             new Thread(servidor::start).start();
 
             toggleButton.setText("Parar Servidor");
             toggleButton.setForeground(Color.WHITE);
             toggleButton.setForeground(COR_ERRO);
             portaField.setEnabled(false);
+            motorCombo.setEnabled(false);
+            limiteField.setEnabled(false);
+            blocosCheck.setEnabled(false);
 
         } catch (NumberFormatException ex) {
-            JOptionPane.showMessageDialog(this, "O valor da porta deve ser um número.", "Erro de Formato", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(this, "Os valores de porta e limite devem ser números.", "Erro de Formato", JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -105,6 +206,9 @@ public class ServidorGUI extends JFrame {
             toggleButton.setForeground(COR_PADRAO);
             toggleButton.setBackground(null);
             portaField.setEnabled(true);
+            motorCombo.setEnabled(true);
+            limiteField.setEnabled(true);
+            blocosCheck.setEnabled(true);
         }
     }
 
@@ -125,10 +229,12 @@ public class ServidorGUI extends JFrame {
     }
 
     private void appendColorido(String texto, Color cor) {
-        StyleContext sc = StyleContext.getDefaultStyleContext();
-        AttributeSet aset = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, cor);
-        aset = sc.addAttribute(aset, StyleConstants.FontFamily, "Arial");
-        aset = sc.addAttribute(aset, StyleConstants.FontSize, 12);
+        AttributeSet aset = estilos.computeIfAbsent(cor, c -> {
+            StyleContext sc = StyleContext.getDefaultStyleContext();
+            AttributeSet estilo = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, c);
+            estilo = sc.addAttribute(estilo, StyleConstants.FontFamily, "Arial");
+            return sc.addAttribute(estilo, StyleConstants.FontSize, 12);
+        });
 
         StyledDocument doc = logPane.getStyledDocument();
         try {
@@ -139,31 +245,62 @@ public class ServidorGUI extends JFrame {
     }
 
     public void adicionarLog(String mensagem) {
+        log.accept(mensagem);
+    }
+
+    // Roda na thread do log: cores e horários são resolvidos fora da EDT, que só insere o lote
+    private void exibirLote(List<LogAssincrono.Registro> lote) {
+        List<String> textos = new ArrayList<>(lote.size() * 2);
+        List<Color> cores = new ArrayList<>(lote.size() * 2);
+        for (LogAssincrono.Registro registro : lote) {
+            textos.add(String.format("[%s] ", registro.horario().format(formatter)));
+            cores.add(COR_TIMESTAMP);
+            textos.add(registro.mensagem() + "\n");
+            cores.add(corDa(registro.mensagem()));
+        }
         SwingUtilities.invokeLater(() -> {
-            String timestamp = String.format("[%s] ", LocalDateTime.now().format(formatter));
-            appendColorido(timestamp, COR_TIMESTAMP); // Adiciona o timestamp em cinza
-
-            String lowerCaseMsg = mensagem.toLowerCase();
-            Color cor;
-
-            if (lowerCaseMsg.contains("erro")) {
-                cor = COR_ERRO;
-            } else if (lowerCaseMsg.contains("aviso")) {
-                cor = COR_AVISO;
-            } else if (lowerCaseMsg.contains("sucesso") || lowerCaseMsg.contains("concluído")) {
-                cor = COR_SUCESSO;
-            } else if (lowerCaseMsg.contains("conexão") || lowerCaseMsg.contains("iniciado") || lowerCaseMsg.contains("aceita")) {
-                cor = COR_INFO;
-            } else {
-                cor = COR_PADRAO;
+            for (int i = 0; i < textos.size(); i++) {
+                appendColorido(textos.get(i), cores.get(i));
             }
-
-            appendColorido(mensagem + "\n", cor); // Adiciona a mensagem com a cor escolhida
-
+            limitarDocumento();
             logPane.setCaretPosition(logPane.getDocument().getLength());
         });
     }
 
+    private Color corDa(String mensagem) {
+        if (contem(mensagem, "erro")) {
+            return COR_ERRO;
+        } else if (contem(mensagem, "aviso")) {
+            return COR_AVISO;
+        } else if (contem(mensagem, "sucesso") || contem(mensagem, "concluído")) {
+            return COR_SUCESSO;
+        } else if (contem(mensagem, "conexão") || contem(mensagem, "iniciado") || contem(mensagem, "aceita")) {
+            return COR_INFO;
+        }
+        return COR_PADRAO;
+    }
+
+    // contains sem diferenciar maiúsculas e sem criar uma cópia da mensagem em minúsculas
+    private static boolean contem(String mensagem, String termo) {
+        for (int i = 0; i <= mensagem.length() - termo.length(); i++) {
+            if (mensagem.regionMatches(true, i, termo, 0, termo.length())) return true;
+        }
+        return false;
+    }
+
+    // Passando do limite, corta as linhas mais antigas até sobrar três quartos dele
+    private void limitarDocumento() {
+        StyledDocument doc = logPane.getStyledDocument();
+        if (doc.getLength() <= MAXIMO_CARACTERES_LOG) return;
+        Element raiz = doc.getDefaultRootElement();
+        int corte = raiz.getElement(raiz.getElementIndex(doc.getLength() - MAXIMO_CARACTERES_LOG * 3 / 4)).getEndOffset();
+        try {
+            doc.remove(0, Math.min(corte, doc.getLength()));
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void main(String[] args) {
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -0,0 +1,201 @@
+package ftp.servidor;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Motor não bloqueante: as conexões aceitas são distribuídas entre alguns laços de eventos,
+ * cada um com seu próprio Selector, de modo que o número de conexões não determina o número
+ * de threads. O trabalho de disco das conexões vai para threads virtuais à parte, para um
+ * arquivo lento não parar as outras conexões do mesmo laço.
+ */
+final class ServidorNio {
+    static final int LACOS_EVENTOS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final LacoEventos[] lacos = new LacoEventos[LACOS_EVENTOS];
+    private final AtomicInteger proximoLaco = new AtomicInteger();
+    private final ExecutorService disco = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ftp-nio-disco-", 0).factory());
+    private final Consumer<String> logger;
+
+    ServidorNio(Consumer<String> logger) {
+        this.logger = logger;
+    }
+
+    /*
+     * O socket de escuta fica no primeiro laço, com OP_ACCEPT: as conexões são aceitas pelo mesmo
+     * select que atende as outras, sem uma thread parada num accept bloqueante. Esse laço roda na
+     * thread de quem chama executarLacoPrincipal; os demais vão para o pool.
+     */
+    void iniciar(ExecutorService pool, ServerSocketChannel escuta, Consumer<SocketChannel> aoAceitar) throws IOException {
+        for (int i = 0; i < lacos.length; i++) {
+            lacos[i] = new LacoEventos(Selector.open());
+        }
+        escuta.configureBlocking(false);
+        lacos[0].escuta = escuta;
+        lacos[0].aoAceitar = aoAceitar;
+        escuta.register(lacos[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 1; i < lacos.length; i++) {
+            pool.submit(lacos[i]);
+        }
+    }
+
+    /** Roda o laço que aceita as conexões até o servidor parar. */
+    void executarLacoPrincipal() {
+        lacos[0].run();
+    }
+
+    /** Entrega a conexão a um laço de eventos; aoFechar é chamado quando ela terminar. */
+    void registrar(SocketChannel canal, Runnable aoFechar) {
+        LacoEventos laco = lacos[Math.floorMod(proximoLaco.getAndIncrement(), lacos.length)];
+        laco.novos.add(new Registro(canal, aoFechar));
+        laco.selector.wakeup();
+    }
+
+    void parar() {
+        for (LacoEventos laco : lacos) {
+            if (laco != null) laco.parar();
+        }
+        disco.shutdown();
+    }
+
+    private record Registro(SocketChannel canal, Runnable aoFechar) {
+    }
+
+    private final class LacoEventos implements Runnable, Executor {
+        private final Selector selector;
+        private final Queue<Registro> novos = new ConcurrentLinkedQueue<>();
+        // Continuações do trabalho de disco, rodadas no laço
+        private final Queue<Runnable> retornos = new ConcurrentLinkedQueue<>();
+        private volatile boolean ativo = true;
+        // Só no primeiro laço
+        private ServerSocketChannel escuta;
+        private Consumer<SocketChannel> aoAceitar;
+
+        private LacoEventos(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (ativo) {
+                    selector.select();
+                    registrarPendentes();
+                    Runnable retorno;
+                    while ((retorno = retornos.poll()) != null) {
+                        retorno.run();
+                    }
+
+                    Iterator<SelectionKey> chaves = selector.selectedKeys().iterator();
+                    while (chaves.hasNext()) {
+                        SelectionKey chave = chaves.next();
+                        chaves.remove();
+                        if (chave.channel() == escuta) {
+                            aceitarPendentes();
+                            continue;
+                        }
+                        ConexaoNio conexao = (ConexaoNio) chave.attachment();
+                        try {
+                            if (chave.isValid() && chave.isReadable()) conexao.aoLer();
+                            if (chave.isValid() && chave.isWritable()) conexao.aoEscrever();
+                        } catch (IOException | RuntimeException e) {
+                            conexao.falhar(e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (ativo) {
+                    logger.accept("ERRO: Laço de eventos interrompido: " + e.getMessage());
+                }
+            } finally {
+                fecharTudo();
+            }
+        }
+
+        private void aceitarPendentes() {
+            try {
+                SocketChannel aceito;
+                while ((aceito = escuta.accept()) != null) {
+                    aoAceitar.accept(aceito);
+                }
+            } catch (IOException e) {
+                if (ativo && escuta.isOpen()) {
+                    logger.accept("ERRO: Falha ao aceitar conexão de cliente: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registrarPendentes() {
+            Registro registro;
+            while ((registro = novos.poll()) != null) {
+                ConexaoNio conexao;
+                try {
+                    registro.canal().configureBlocking(false);
+                    SelectionKey chave = registro.canal().register(selector, SelectionKey.OP_READ);
+                    conexao = new ConexaoNio(registro.canal(), chave, logger, registro.aoFechar(), disco, this);
+                    chave.attach(conexao);
+                } catch (IOException e) {
+                    logger.accept("ERRO: Falha ao registrar conexão no laço de eventos: " + e.getMessage());
+                    try {
+                        registro.canal().close();
+                    } catch (IOException ignorada) {
+                        // A conexão já está sendo descartada
+                    }
+                    registro.aoFechar().run();
+                    continue;
+                }
+
+                try {
+                    conexao.iniciar();
+                } catch (IOException e) {
+                    conexao.falhar(e);
+                }
+            }
+        }
+
+        @Override
+        public void execute(Runnable retorno) {
+            retornos.add(retorno);
+            selector.wakeup();
+        }
+
+        private void parar() {
+            ativo = false;
+            selector.wakeup();
+        }
+
+        private void fecharTudo() {
+            try {
+                for (SelectionKey chave : selector.keys()) {
+                    if (chave.attachment() instanceof ConexaoNio conexao) {
+                        conexao.fechar();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.accept("ERRO: Falha ao fechar o laço de eventos: " + e.getMessage());
+            }
+            Registro registro;
+            while ((registro = novos.poll()) != null) {
+                try {
+                    registro.canal().close();
+                } catch (IOException ignorada) {
+                    // Servidor já está parando
+                }
+                registro.aoFechar().run();
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package ftp.servidor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import ftp.protocolo.Protocolo;
+
+/**
+ * Upload de uma pasta dividido entre várias conexões de dados. Os arquivos (ou trechos de
+ * arquivos grandes) chegam por qualquer conexão em root/.sessoes/&lt;id&gt;; a pasta só é trocada
+ * quando a conexão de controle confirma a sessão, todas as conexões de dados terminaram e cada
+ * arquivo chegou por inteiro.
+ *
+ * Cada trecho gravado vai para o diário root/.sessoes/&lt;id&gt;.diario. Se a conexão de controle
+ * cai, a sessão fica suspensa por {@link Protocolo#RETENCAO_SESSAO_MS} e o cliente pode retomá-la
+ * mandando só o que falta, inclusive depois de um reinício do servidor.
+ */
+final class SessaoUploadParalelo {
+    static final String PASTA_SESSOES = ".sessoes";
+    private static final String EXTENSAO_DIARIO = ".diario";
+
+    private static final Map<String, SessaoUploadParalelo> sessoes = new ConcurrentHashMap<>();
+
+    /** Trechos já gravados de um arquivo, por posição; um trecho reenviado não conta duas vezes. */
+    private static final class ArquivoSessao {
+        final long tamanhoTotal;
+        final int tentativa;
+        final TreeMap<Long, Long> trechos = new TreeMap<>();
+
+        ArquivoSessao(long tamanhoTotal, int tentativa) {
+            this.tamanhoTotal = tamanhoTotal;
+            this.tentativa = tentativa;
+        }
+
+        long recebidos() {
+            long total = 0;
+            for (long tamanho : trechos.values()) total += tamanho;
+            return total;
+        }
+    }
+
+    private final String id;
+    private final String nomeAlvo;
+    private final File pastaTemporaria;
+    private final File diario;
+    private final Map<String, ArquivoSessao> arquivos = new TreeMap<>();
+    private final List<String> falhas = new ArrayList<>();
+    // Conexões de dados da tentativa atual; as de tentativas anteriores são fechadas na retomada
+    private final Set<Closeable> dados = new HashSet<>();
+    private BufferedWriter escritorDiario;
+    private Closeable controle;
+    private int conexoes;
+    private int entradas = 0;
+    private int tentativa = 0;
+    private boolean encerrada = false;
+    private long suspensaDesde = 0;
+
+    private SessaoUploadParalelo(String id, String nomeAlvo, int conexoes) {
+        this.id = id;
+        this.nomeAlvo = nomeAlvo;
+        this.conexoes = conexoes;
+        File pasta = new File(Servidor.getRoot(), PASTA_SESSOES);
+        this.pastaTemporaria = new File(pasta, id);
+        this.diario = new File(pasta, id + EXTENSAO_DIARIO);
+    }
+
+    static SessaoUploadParalelo criar(String nomeAlvo, int conexoes, Closeable controle) throws IOException {
+        descartarExpiradas();
+        String id = UUID.randomUUID().toString().replace("-", "");
+        SessaoUploadParalelo sessao = new SessaoUploadParalelo(id, nomeAlvo, conexoes);
+        Files.createDirectories(sessao.pastaTemporaria.toPath());
+        sessao.escritorDiario = Files.newBufferedWriter(sessao.diario.toPath(), StandardCharsets.UTF_8);
+        sessao.escritorDiario.write(nomeAlvo);
+        sessao.escritorDiario.newLine();
+        sessao.escritorDiario.flush();
+        sessao.controle = controle;
+        sessoes.put(id, sessao);
+        return sessao;
+    }
+
+    static SessaoUploadParalelo buscar(String id) {
+        return sessoes.get(id);
+    }
+
+    /*
+     * Recarrega as sessões suspensas pelo diário, ao iniciar o servidor. Sessões vencidas e pastas
+     * sem diário (de versões antigas, ou de uma sessão já encerrada) são apagadas.
+     */
+    static void recuperarSuspensas(Consumer<String> logger) {
+        File pasta = new File(Servidor.getRoot(), PASTA_SESSOES);
+        File[] itens = pasta.listFiles();
+        if (itens == null) return;
+
+        long limite = System.currentTimeMillis() - Protocolo.RETENCAO_SESSAO_MS;
+        for (File item : itens) {
+            String nome = item.getName();
+            if (item.isFile() && nome.endsWith(EXTENSAO_DIARIO)) {
+                String id = nome.substring(0, nome.length() - EXTENSAO_DIARIO.length());
+                if (sessoes.containsKey(id)) continue;
+                try {
+                    if (item.lastModified() < limite) {
+                        throw new IOException("sessão vencida");
+                    }
+                    SessaoUploadParalelo sessao = carregar(id, item);
+                    sessoes.put(id, sessao);
+                    logger.accept("Sessão de upload " + id + " para '" + sessao.nomeAlvo + "' recuperada com "
+                            + sessao.arquivos.size() + " arquivo(s) em andamento.");
+                } catch (IOException e) {
+                    logger.accept("Sessão de upload " + id + " descartada: " + e.getMessage());
+                    item.delete();
+                    LixeiraPastas.descartar(new File(pasta, id));
+                }
+            }
+        }
+        for (File item : itens) {
+            if (item.isDirectory() && !sessoes.containsKey(item.getName())) {
+                LixeiraPastas.descartar(item);
+            }
+        }
+    }
+
+    private static SessaoUploadParalelo carregar(String id, File diario) throws IOException {
+        SessaoUploadParalelo sessao;
+        try (BufferedReader leitor = Files.newBufferedReader(diario.toPath(), StandardCharsets.UTF_8)) {
+            String nomeAlvo = leitor.readLine();
+            if (nomeAlvo == null || nomeAlvo.isBlank()) {
+                throw new IOException("diário sem pasta de destino");
+            }
+            sessao = new SessaoUploadParalelo(id, nomeAlvo, 1);
+            if (!sessao.pastaTemporaria.isDirectory()) {
+                throw new IOException("pasta temporária ausente");
+            }
+            String linha;
+            while ((linha = leitor.readLine()) != null) {
+                // A última linha pode ter ficado pela metade se o servidor caiu enquanto a escrevia
+                String[] campos = linha.split("\\|", 4);
+                if (campos.length < 4) continue;
+                try {
+                    sessao.anotar(campos[3], Long.parseLong(campos[0]), Long.parseLong(campos[1]), Long.parseLong(campos[2]));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        sessao.suspensaDesde = diario.lastModified();
+        boolean linhaAberta;
+        try (RandomAccessFile acesso = new RandomAccessFile(diario, "r")) {
+            acesso.seek(acesso.length() - 1);
+            linhaAberta = acesso.read() != '\n';
+        }
+        sessao.escritorDiario = Files.newBufferedWriter(diario.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        if (linhaAberta) {
+            sessao.escritorDiario.newLine();
+        }
+        return sessao;
+    }
+
+    private static void descartarExpiradas() {
+        long limite = System.currentTimeMillis() - Protocolo.RETENCAO_SESSAO_MS;
+        for (SessaoUploadParalelo sessao : sessoes.values()) {
+            boolean expirada;
+            synchronized (sessao) {
+                expirada = sessao.controle == null && sessao.dados.isEmpty() && sessao.suspensaDesde < limite;
+            }
+            if (expirada) {
+                sessao.descartar();
+            }
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getNomeAlvo() {
+        return nomeAlvo;
+    }
+
+    synchronized int getConexoes() {
+        return conexoes;
+    }
+
+    File getPastaTemporaria() {
+        return pastaTemporaria;
+    }
+
+    /*
+     * Uma nova conexão de controle assume a sessão: a anterior (se ainda não percebeu que caiu) e
+     * as conexões de dados dela são fechadas, e as falhas da tentativa anterior são esquecidas,
+     * já que os trechos com falha não entraram no diário e serão reenviados.
+     */
+    boolean retomar(Closeable novoControle, int novasConexoes) {
+        List<Closeable> antigas = new ArrayList<>();
+        synchronized (this) {
+            if (encerrada) return false;
+            if (controle != null) antigas.add(controle);
+            antigas.addAll(dados);
+            dados.clear();
+            falhas.clear();
+            entradas = 0;
+            tentativa++;
+            conexoes = novasConexoes;
+            controle = novoControle;
+            notifyAll();
+        }
+        for (Closeable antiga : antigas) {
+            try {
+                antiga.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return true;
+    }
+
+    /** A conexão de controle caiu: a sessão fica à espera de um RESUME_UPLOAD. */
+    synchronized boolean suspender(Closeable controleAtual) {
+        if (encerrada || controle != controleAtual) {
+            return false;
+        }
+        controle = null;
+        suspensaDesde = System.currentTimeMillis();
+        return true;
+    }
+
+    /** Trechos gravados, no formato das linhas FEITO. */
+    synchronized List<String> trechosConcluidos() {
+        List<String> feitos = new ArrayList<>();
+        for (Map.Entry<String, ArquivoSessao> arquivo : arquivos.entrySet()) {
+            ArquivoSessao situacao = arquivo.getValue();
+            for (Map.Entry<Long, Long> trecho : situacao.trechos.entrySet()) {
+                feitos.add(situacao.tamanhoTotal + "|" + trecho.getKey() + "|" + trecho.getValue() + "|" + arquivo.getKey());
+            }
+        }
+        return feitos;
+    }
+
+    /** Registra uma conexão de dados; recusa se a sessão acabou ou se todas as conexões já entraram. */
+    synchronized boolean entrar(Closeable conexao) {
+        if (encerrada || entradas >= conexoes) {
+            return false;
+        }
+        entradas++;
+        dados.add(conexao);
+        return true;
+    }
+
+    synchronized void sair(Closeable conexao, String erro) {
+        // Conexão de uma tentativa anterior, já fechada pela retomada
+        if (!dados.remove(conexao)) {
+            return;
+        }
+        if (erro != null) {
+            falhas.add("conexão de dados: " + erro);
+        }
+        notifyAll();
+        if (encerrada && dados.isEmpty()) {
+            LixeiraPastas.descartar(pastaTemporaria);
+        }
+    }
+
+    synchronized void registrar(String caminho, long tamanhoTotal, long posicao, long tamanho) {
+        if (encerrada) return;
+        ArquivoSessao situacao = arquivos.get(caminho);
+        if (situacao != null && situacao.tamanhoTotal != tamanhoTotal && situacao.tentativa == tentativa) {
+            falhas.add(caminho + ": tamanho divergente entre os trechos");
+            return;
+        }
+        anotar(caminho, tamanhoTotal, posicao, tamanho);
+        try {
+            escritorDiario.write(tamanhoTotal + "|" + posicao + "|" + tamanho + "|" + caminho);
+            escritorDiario.newLine();
+            escritorDiario.flush();
+        } catch (IOException e) {
+            falhas.add("diário da sessão: " + e.getMessage());
+        }
+    }
+
+    // Um arquivo que mudou de tamanho entre tentativas recomeça do zero
+    private void anotar(String caminho, long tamanhoTotal, long posicao, long tamanho) {
+        ArquivoSessao situacao = arquivos.get(caminho);
+        if (situacao == null || situacao.tamanhoTotal != tamanhoTotal) {
+            situacao = new ArquivoSessao(tamanhoTotal, tentativa);
+            arquivos.put(caminho, situacao);
+        }
+        situacao.trechos.put(posicao, tamanho);
+    }
+
+    synchronized void registrarFalha(String caminho, String erro) {
+        falhas.add(caminho + ": " + erro);
+    }
+
+    /** Espera as conexões de dados e devolve o motivo pelo qual a sessão não pode ser confirmada, ou null. */
+    synchronized String aguardarConexoes() throws InterruptedException {
+        while (!dados.isEmpty()) {
+            wait();
+        }
+        if (!falhas.isEmpty()) {
+            return falhas.size() + " falha(s), a primeira em " + falhas.get(0);
+        }
+        for (Map.Entry<String, ArquivoSessao> arquivo : arquivos.entrySet()) {
+            ArquivoSessao situacao = arquivo.getValue();
+            long recebidos = situacao.recebidos();
+            if (recebidos != situacao.tamanhoTotal) {
+                return "arquivo incompleto: " + arquivo.getKey() + " (" + recebidos + " de " + situacao.tamanhoTotal + " bytes)";
+            }
+        }
+        return null;
+    }
+
+    synchronized int getQuantidadeArquivos() {
+        return arquivos.size();
+    }
+
+    /** Troca a pasta de destino pelo conteúdo recebido. Só deve ser chamado depois de aguardarConexoes. */
+    void confirmar(Consumer<String> logger) throws IOException {
+        synchronized (this) {
+            encerrada = true;
+        }
+        sessoes.remove(id);
+        try {
+            cortarSobras();
+            ArmazenamentoBlocos armazenamento = ArmazenamentoBlocos.ativo();
+            if (armazenamento != null) {
+                publicarEmBlocos(armazenamento);
+                RepositorioManifestos.remover(nomeAlvo);
+            } else {
+                if (OperacoesPasta.existePasta(nomeAlvo)) {
+                    logger.accept("Pasta '" + nomeAlvo + "' já existe. Substituindo pela versão da sessão " + id + ".");
+                }
+                LixeiraPastas.publicar(pastaTemporaria, nomeAlvo);
+            }
+        } finally {
+            apagarDiario();
+            LixeiraPastas.descartar(pastaTemporaria);
+        }
+    }
+
+    // Um arquivo que encolheu entre tentativas ainda tem no disco o fim da versão anterior
+    private void cortarSobras() throws IOException {
+        for (Map.Entry<String, ArquivoSessao> arquivo : arquivos.entrySet()) {
+            File gravado = OperacoesPasta.resolverArquivo(pastaTemporaria, arquivo.getKey());
+            if (gravado != null && gravado.length() > arquivo.getValue().tamanhoTotal) {
+                try (RandomAccessFile acesso = new RandomAccessFile(gravado, "rw")) {
+                    acesso.setLength(arquivo.getValue().tamanhoTotal);
+                }
+            }
+        }
+    }
+
+    private void publicarEmBlocos(ArmazenamentoBlocos armazenamento) throws IOException {
+        ArmazenamentoBlocos.Gravacao gravacao = armazenamento.novaGravacao();
+        try {
+            for (File arquivo : OperacoesPasta.listarArquivosParaDownload(pastaTemporaria)) {
+                gravacao.iniciarArquivo(OperacoesPasta.caminhoRelativo(pastaTemporaria, arquivo));
+                try (FileChannel origem = FileChannel.open(arquivo.toPath())) {
+                    long posicao = 0;
+                    long tamanho = origem.size();
+                    while (posicao < tamanho) {
+                        posicao += origem.transferTo(posicao, tamanho - posicao, gravacao);
+                    }
+                }
+                gravacao.concluirArquivo();
+            }
+            gravacao.publicar(nomeAlvo);
+        } finally {
+            gravacao.descartar();
+        }
+    }
+
+    /** Abandona a sessão; os arquivos recebidos são apagados quando a última conexão de dados sair. */
+    void descartar() {
+        sessoes.remove(id);
+        synchronized (this) {
+            encerrada = true;
+            apagarDiario();
+            if (dados.isEmpty()) {
+                LixeiraPastas.descartar(pastaTemporaria);
+            }
+        }
+    }
+
+    private synchronized void apagarDiario() {
+        try {
+            if (escritorDiario != null) escritorDiario.close();
+        } catch (IOException ignored) {
+        }
+        escritorDiario = null;
+        diario.delete();
+    }
+}
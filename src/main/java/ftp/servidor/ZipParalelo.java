@@ -0,0 +1,510 @@
+package ftp.servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import ftp.protocolo.PoolBuffers;
+
+/**
+ * Gera o ZIP de download com a compressão distribuída entre as threads de um pool compartilhado.
+ * Cada arquivo é dividido em blocos de {@value #TAMANHO_BLOCO} bytes comprimidos de forma
+ * independente (como no pigz: blocos intermediários terminam com SYNC_FLUSH e usam os últimos
+ * 32 KB do bloco anterior como dicionário) e os resultados são escritos na ordem. Enquanto um
+ * bloco é escrito, os próximos, inclusive dos arquivos seguintes, já estão sendo lidos e
+ * comprimidos, até um limite de blocos em memória.
+ *
+ * Entradas comprimidas usam descritor de dados, então o tamanho não precisa ser conhecido antes;
+ * entradas armazenadas (nível 0 ou extensões já comprimidas) têm o CRC calculado antes e o
+ * conteúdo copiado direto do disco. Tamanhos e deslocamentos acima de 4 GB usam ZIP64.
+ */
+final class ZipParalelo {
+    static final int NIVEL_ARMAZENAR = 0;
+    static final int NIVEL_PADRAO = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int TAMANHO_BLOCO = 1024 * 1024;
+    private static final int TAMANHO_DICIONARIO = 32 * 1024;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int BLOCOS_ADIANTADOS = Math.max(4, THREADS * 2);
+    private static final long LIMITE_32_BITS = 0xFFFFFFFFL;
+
+    private static final Set<String> EXTENSOES_COMPRIMIDAS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "epub", "woff", "woff2");
+
+    private static final ExecutorService compressores = Executors.newFixedThreadPool(THREADS, tarefa -> {
+        Thread thread = new Thread(tarefa, "compressor-zip");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record Bloco(Origem origem, int indice, long posicao, int tamanho, boolean ultimo) {
+    }
+
+    // Para entradas armazenadas só o CRC é calculado; os dados vêm junto apenas se o arquivo cabe num bloco
+    private record Resultado(Bloco bloco, long crc, byte[] dados, int tamanhoDados) {
+    }
+
+    private record EntradaCentral(byte[] nome, int metodo, int flags, long crc, long tamanhoComprimido, long tamanho, long deslocamento) {
+    }
+
+    private final OutputStream saida;
+    private final int nivel;
+    private final int dataDos;
+    private final List<EntradaCentral> central = new ArrayList<>();
+    private long posicaoSaida = 0;
+
+    // Entrada sendo escrita
+    private long crcAtual;
+    private long tamanhoAtual;
+    private long comprimidoAtual;
+    private long deslocamentoAtual;
+
+    ZipParalelo(OutputStream saida, int nivel) {
+        this.saida = saida;
+        this.nivel = nivel;
+        this.dataDos = dataDos(LocalDateTime.now());
+    }
+
+    static boolean nivelValido(int nivel) {
+        return nivel == NIVEL_PADRAO || (nivel >= NIVEL_ARMAZENAR && nivel <= Deflater.BEST_COMPRESSION);
+    }
+
+    /** Escreve o ZIP completo dos arquivos, na ordem da lista. */
+    void escrever(List<ArquivoPasta> arquivos) throws IOException {
+        Iterator<Bloco> blocos = new GeradorBlocos(arquivos);
+        ArrayDeque<Future<Resultado>> pendentes = new ArrayDeque<>();
+        try {
+            while (pendentes.size() < BLOCOS_ADIANTADOS && blocos.hasNext()) {
+                pendentes.add(submeter(blocos.next()));
+            }
+            while (!pendentes.isEmpty()) {
+                Resultado resultado = aguardar(pendentes.poll());
+                if (blocos.hasNext()) {
+                    pendentes.add(submeter(blocos.next()));
+                }
+                escreverBloco(resultado);
+            }
+            escreverDiretorioCentral();
+            saida.flush();
+        } finally {
+            for (Future<Resultado> pendente : pendentes) {
+                pendente.cancel(true);
+            }
+        }
+    }
+
+    private Future<Resultado> submeter(Bloco bloco) {
+        return compressores.submit(() -> bloco.origem().armazenar ? calcularCrc(bloco) : comprimir(bloco));
+    }
+
+    private Resultado aguardar(Future<Resultado> pendente) throws IOException {
+        try {
+            return pendente.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compressão interrompida", e);
+        }
+    }
+
+    private Resultado comprimir(Bloco bloco) throws IOException {
+        int dicionario = (int) Math.min(TAMANHO_DICIONARIO, bloco.posicao());
+        byte[] entrada = PoolBuffers.array(TAMANHO_DICIONARIO + TAMANHO_BLOCO);
+        byte[] buffer = PoolBuffers.array(64 * 1024);
+        Deflater deflater = new Deflater(nivel, true);
+        try {
+            bloco.origem().ler(bloco.posicao() - dicionario, entrada, dicionario + bloco.tamanho());
+
+            CRC32 crc = new CRC32();
+            crc.update(entrada, dicionario, bloco.tamanho());
+
+            if (dicionario > 0) {
+                deflater.setDictionary(entrada, 0, dicionario);
+            }
+            deflater.setInput(entrada, dicionario, bloco.tamanho());
+            ByteArrayOutputStream comprimido = new ByteArrayOutputStream(bloco.tamanho() / 2 + 64);
+            if (bloco.ultimo()) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    comprimido.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // SYNC_FLUSH termina o bloco num limite de byte sem marcar o fim do stream
+                int gerados;
+                do {
+                    gerados = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    comprimido.write(buffer, 0, gerados);
+                } while (gerados == buffer.length);
+            }
+            return new Resultado(bloco, crc.getValue(), comprimido.toByteArray(), comprimido.size());
+        } finally {
+            deflater.end();
+            PoolBuffers.devolver(entrada);
+            PoolBuffers.devolver(buffer);
+        }
+    }
+
+    private Resultado calcularCrc(Bloco bloco) throws IOException {
+        byte[] dados = new byte[bloco.tamanho()];
+        bloco.origem().ler(bloco.posicao(), dados, dados.length);
+        CRC32 crc = new CRC32();
+        crc.update(dados);
+        boolean unico = bloco.indice() == 0 && bloco.ultimo();
+        return new Resultado(bloco, crc.getValue(), unico ? dados : null, dados.length);
+    }
+
+    private void escreverBloco(Resultado resultado) throws IOException {
+        Bloco bloco = resultado.bloco();
+        Origem origem = bloco.origem();
+        if (bloco.indice() == 0) {
+            crcAtual = 0;
+            tamanhoAtual = 0;
+            comprimidoAtual = 0;
+            deslocamentoAtual = posicaoSaida;
+            if (!origem.armazenar) {
+                escreverCabecalhoLocal(origem, Deflater.DEFLATED, 0, 0, 0);
+            }
+        }
+        crcAtual = combinarCrc(crcAtual, resultado.crc(), bloco.tamanho());
+        tamanhoAtual += bloco.tamanho();
+
+        if (!origem.armazenar) {
+            escreverBytes(resultado.dados(), resultado.tamanhoDados());
+            comprimidoAtual += resultado.tamanhoDados();
+            if (bloco.ultimo()) {
+                escreverDescritor();
+                central.add(new EntradaCentral(origem.nome, Deflater.DEFLATED, flagsDeflate(), crcAtual,
+                        comprimidoAtual, tamanhoAtual, deslocamentoAtual));
+            }
+            return;
+        }
+
+        if (bloco.ultimo()) {
+            // Entrada armazenada: o cabeçalho precisa do CRC, então o conteúdo só sai depois do último bloco
+            escreverCabecalhoLocal(origem, 0, crcAtual, tamanhoAtual, tamanhoAtual);
+            if (resultado.dados() != null) {
+                escreverBytes(resultado.dados(), resultado.tamanhoDados());
+            } else {
+                copiarArquivo(origem);
+            }
+            central.add(new EntradaCentral(origem.nome, 0, FLAG_UTF8, crcAtual, tamanhoAtual, tamanhoAtual, deslocamentoAtual));
+        }
+    }
+
+    private void copiarArquivo(Origem origem) throws IOException {
+        byte[] buffer = PoolBuffers.array(PoolBuffers.TAMANHO_COPIA);
+        long restante = origem.arquivo.tamanho();
+        try (InputStream entrada = origem.arquivo.abrir()) {
+            while (restante > 0) {
+                int lidos = entrada.read(buffer, 0, (int) Math.min(buffer.length, restante));
+                if (lidos == -1) {
+                    throw new EOFException("Arquivo diminuiu durante o download: " + origem.arquivo.caminho());
+                }
+                escreverBytes(buffer, lidos);
+                restante -= lidos;
+            }
+        } finally {
+            PoolBuffers.devolver(buffer);
+        }
+    }
+
+    // ---- Estruturas do formato ZIP (APPNOTE 4.3) ----
+
+    private static final int FLAG_DESCRITOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static int flagsDeflate() {
+        return FLAG_DESCRITOR | FLAG_UTF8;
+    }
+
+    private void escreverCabecalhoLocal(Origem origem, int metodo, long crc, long tamanhoComprimido, long tamanho) throws IOException {
+        boolean zip64 = tamanho >= LIMITE_32_BITS || tamanhoComprimido >= LIMITE_32_BITS;
+        ByteBuffer cabecalho = novoBuffer(30 + origem.nome.length + (zip64 ? 20 : 0));
+        cabecalho.putInt(0x04034b50);
+        cabecalho.putShort((short) (zip64 ? 45 : 20));
+        cabecalho.putShort((short) (metodo == Deflater.DEFLATED ? flagsDeflate() : FLAG_UTF8));
+        cabecalho.putShort((short) metodo);
+        cabecalho.putInt(dataDos);
+        cabecalho.putInt((int) crc);
+        cabecalho.putInt((int) (zip64 ? LIMITE_32_BITS : tamanhoComprimido));
+        cabecalho.putInt((int) (zip64 ? LIMITE_32_BITS : tamanho));
+        cabecalho.putShort((short) origem.nome.length);
+        cabecalho.putShort((short) (zip64 ? 20 : 0));
+        cabecalho.put(origem.nome);
+        if (zip64) {
+            cabecalho.putShort((short) 0x0001);
+            cabecalho.putShort((short) 16);
+            cabecalho.putLong(tamanho);
+            cabecalho.putLong(tamanhoComprimido);
+        }
+        escreverBuffer(cabecalho);
+    }
+
+    // O ZipInputStream espera tamanhos de 8 bytes no descritor só quando algum deles passa de 4 GB
+    private void escreverDescritor() throws IOException {
+        boolean zip64 = tamanhoAtual > LIMITE_32_BITS || comprimidoAtual > LIMITE_32_BITS;
+        ByteBuffer descritor = novoBuffer(zip64 ? 24 : 16);
+        descritor.putInt(0x08074b50);
+        descritor.putInt((int) crcAtual);
+        if (zip64) {
+            descritor.putLong(comprimidoAtual);
+            descritor.putLong(tamanhoAtual);
+        } else {
+            descritor.putInt((int) comprimidoAtual);
+            descritor.putInt((int) tamanhoAtual);
+        }
+        escreverBuffer(descritor);
+    }
+
+    private void escreverDiretorioCentral() throws IOException {
+        long inicioCentral = posicaoSaida;
+        for (EntradaCentral entrada : central) {
+            boolean grandeTamanho = entrada.tamanho() >= LIMITE_32_BITS;
+            boolean grandeComprimido = entrada.tamanhoComprimido() >= LIMITE_32_BITS;
+            boolean grandeDeslocamento = entrada.deslocamento() >= LIMITE_32_BITS;
+            int extra = (grandeTamanho ? 8 : 0) + (grandeComprimido ? 8 : 0) + (grandeDeslocamento ? 8 : 0);
+            boolean zip64 = extra > 0;
+
+            ByteBuffer cabecalho = novoBuffer(46 + entrada.nome().length + (zip64 ? 4 + extra : 0));
+            cabecalho.putInt(0x02014b50);
+            cabecalho.putShort((short) (zip64 ? 45 : 20));
+            cabecalho.putShort((short) (zip64 ? 45 : 20));
+            cabecalho.putShort((short) entrada.flags());
+            cabecalho.putShort((short) entrada.metodo());
+            cabecalho.putInt(dataDos);
+            cabecalho.putInt((int) entrada.crc());
+            cabecalho.putInt((int) (grandeComprimido ? LIMITE_32_BITS : entrada.tamanhoComprimido()));
+            cabecalho.putInt((int) (grandeTamanho ? LIMITE_32_BITS : entrada.tamanho()));
+            cabecalho.putShort((short) entrada.nome().length);
+            cabecalho.putShort((short) (zip64 ? 4 + extra : 0));
+            cabecalho.putShort((short) 0); // comentário
+            cabecalho.putShort((short) 0); // disco
+            cabecalho.putShort((short) 0); // atributos internos
+            cabecalho.putInt(0); // atributos externos
+            cabecalho.putInt((int) (grandeDeslocamento ? LIMITE_32_BITS : entrada.deslocamento()));
+            cabecalho.put(entrada.nome());
+            if (zip64) {
+                cabecalho.putShort((short) 0x0001);
+                cabecalho.putShort((short) extra);
+                if (grandeTamanho) cabecalho.putLong(entrada.tamanho());
+                if (grandeComprimido) cabecalho.putLong(entrada.tamanhoComprimido());
+                if (grandeDeslocamento) cabecalho.putLong(entrada.deslocamento());
+            }
+            escreverBuffer(cabecalho);
+        }
+        long tamanhoCentral = posicaoSaida - inicioCentral;
+        int quantidade = central.size();
+
+        boolean zip64 = quantidade >= 0xFFFF || inicioCentral >= LIMITE_32_BITS || tamanhoCentral >= LIMITE_32_BITS;
+        if (zip64) {
+            long inicioFim64 = posicaoSaida;
+            ByteBuffer fim64 = novoBuffer(56 + 20);
+            fim64.putInt(0x06064b50);
+            fim64.putLong(44);
+            fim64.putShort((short) 45);
+            fim64.putShort((short) 45);
+            fim64.putInt(0);
+            fim64.putInt(0);
+            fim64.putLong(quantidade);
+            fim64.putLong(quantidade);
+            fim64.putLong(tamanhoCentral);
+            fim64.putLong(inicioCentral);
+            fim64.putInt(0x07064b50);
+            fim64.putInt(0);
+            fim64.putLong(inicioFim64);
+            fim64.putInt(1);
+            escreverBuffer(fim64);
+        }
+        ByteBuffer fim = novoBuffer(22);
+        fim.putInt(0x06054b50);
+        fim.putShort((short) 0);
+        fim.putShort((short) 0);
+        fim.putShort((short) Math.min(quantidade, 0xFFFF));
+        fim.putShort((short) Math.min(quantidade, 0xFFFF));
+        fim.putInt((int) Math.min(tamanhoCentral, LIMITE_32_BITS));
+        fim.putInt((int) Math.min(inicioCentral, LIMITE_32_BITS));
+        fim.putShort((short) 0);
+        escreverBuffer(fim);
+    }
+
+    private static ByteBuffer novoBuffer(int tamanho) {
+        return ByteBuffer.allocate(tamanho).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void escreverBuffer(ByteBuffer buffer) throws IOException {
+        escreverBytes(buffer.array(), buffer.position());
+    }
+
+    private void escreverBytes(byte[] dados, int tamanho) throws IOException {
+        saida.write(dados, 0, tamanho);
+        posicaoSaida += tamanho;
+    }
+
+    private static int dataDos(LocalDateTime data) {
+        int ano = Math.max(data.getYear(), 1980) - 1980;
+        return ano << 25 | data.getMonthValue() << 21 | data.getDayOfMonth() << 16
+                | data.getHour() << 11 | data.getMinute() << 5 | data.getSecond() >> 1;
+    }
+
+    /*
+     * CRC-32 de A seguido de B a partir dos CRCs de A e de B e do tamanho de B (crc32_combine do
+     * zlib), para que cada bloco calcule o próprio CRC em paralelo.
+     */
+    static long combinarCrc(long crc1, long crc2, long tamanho2) {
+        if (tamanho2 <= 0) {
+            return crc1;
+        }
+        long[] par = new long[32];
+        long[] impar = new long[32];
+        impar[0] = 0xEDB88320L;
+        long linha = 1;
+        for (int n = 1; n < 32; n++) {
+            impar[n] = linha;
+            linha <<= 1;
+        }
+        quadrado(par, impar);
+        quadrado(impar, par);
+        do {
+            quadrado(par, impar);
+            if ((tamanho2 & 1) != 0) {
+                crc1 = multiplicar(par, crc1);
+            }
+            tamanho2 >>= 1;
+            if (tamanho2 == 0) {
+                break;
+            }
+            quadrado(impar, par);
+            if ((tamanho2 & 1) != 0) {
+                crc1 = multiplicar(impar, crc1);
+            }
+            tamanho2 >>= 1;
+        } while (tamanho2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long multiplicar(long[] matriz, long vetor) {
+        long soma = 0;
+        for (int i = 0; vetor != 0; i++, vetor >>>= 1) {
+            if ((vetor & 1) != 0) {
+                soma ^= matriz[i];
+            }
+        }
+        return soma;
+    }
+
+    private static void quadrado(long[] destino, long[] matriz) {
+        for (int n = 0; n < 32; n++) {
+            destino[n] = multiplicar(matriz, matriz[n]);
+        }
+    }
+
+    /** Um arquivo do ZIP: nome, decisão de armazenar e leitura por posição através das partes. */
+    private final class Origem {
+        final ArquivoPasta arquivo;
+        final byte[] nome;
+        final boolean armazenar;
+        private final long[] inicios;
+
+        Origem(ArquivoPasta arquivo) {
+            this.arquivo = arquivo;
+            this.nome = arquivo.caminho().getBytes(StandardCharsets.UTF_8);
+            this.armazenar = nivel == NIVEL_ARMAZENAR || extensaoComprimida(arquivo.caminho());
+            List<File> partes = arquivo.partes();
+            this.inicios = new long[partes.size() + 1];
+            for (int i = 0; i < partes.size(); i++) {
+                inicios[i + 1] = inicios[i] + (partes.size() == 1 ? arquivo.tamanho() : partes.get(i).length());
+            }
+        }
+
+        void ler(long posicao, byte[] destino, int tamanho) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(destino, 0, tamanho);
+            int parte = 0;
+            while (parte < inicios.length - 2 && inicios[parte + 1] <= posicao) {
+                parte++;
+            }
+            while (buffer.hasRemaining() && parte < inicios.length - 1) {
+                try (FileChannel canal = arquivo.abrirParte(parte).getChannel()) {
+                    long deslocamento = posicao - inicios[parte];
+                    while (buffer.hasRemaining()) {
+                        int lidos = canal.read(buffer, deslocamento);
+                        if (lidos == -1) break;
+                        deslocamento += lidos;
+                        posicao += lidos;
+                    }
+                }
+                parte++;
+            }
+            if (buffer.hasRemaining()) {
+                throw new EOFException("Arquivo diminuiu durante o download: " + arquivo.caminho());
+            }
+        }
+    }
+
+    private static boolean extensaoComprimida(String caminho) {
+        int ponto = caminho.lastIndexOf('.');
+        if (ponto < 0 || ponto < caminho.lastIndexOf('/')) {
+            return false;
+        }
+        return EXTENSOES_COMPRIMIDAS.contains(caminho.substring(ponto + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /** Percorre os arquivos gerando os blocos sob demanda, para não montar a lista inteira de uma vez. */
+    private final class GeradorBlocos implements Iterator<Bloco> {
+        private final Iterator<ArquivoPasta> arquivos;
+        private Origem atual;
+        private int indice;
+
+        GeradorBlocos(List<ArquivoPasta> arquivos) {
+            this.arquivos = arquivos.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return atual != null || arquivos.hasNext();
+        }
+
+        @Override
+        public Bloco next() {
+            if (atual == null) {
+                if (!arquivos.hasNext()) throw new NoSuchElementException();
+                atual = new Origem(arquivos.next());
+                indice = 0;
+            }
+            long posicao = (long) indice * TAMANHO_BLOCO;
+            long tamanhoArquivo = atual.arquivo.tamanho();
+            int tamanho = (int) Math.min(TAMANHO_BLOCO, tamanhoArquivo - posicao);
+            boolean ultimo = posicao + tamanho >= tamanhoArquivo;
+            Bloco bloco = new Bloco(atual, indice++, posicao, tamanho, ultimo);
+            if (ultimo) {
+                atual = null;
+            }
+            return bloco;
+        }
+    }
+}
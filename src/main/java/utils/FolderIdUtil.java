@@ -5,36 +5,98 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FolderIdUtil {
-    private static final ConcurrentHashMap<Path, String> cache = new ConcurrentHashMap<>();
+    private static final int MAXIMO_ENTRADAS = 256;
+    private static final long VALIDADE_MS = 10 * 60 * 1000;
 
-    public static String obterId(File pasta) throws IOException {
-        Path caminho = pasta.toPath();
+    /*
+     * Uma entrada vencida, ou de uma pasta com outra data, é conferida de novo. Com fileKey o ID sai
+     * dele, e uma pasta recriada no mesmo caminho (outro fileKey) ganha outro ID. Sem fileKey (NTFS,
+     * por exemplo) o ID gerado fica guardado na entrada e é mantido na conferência: refazê-lo pela
+     * data ou pelo tamanho mandaria o próximo upload da mesma pasta para outra pasta no servidor.
+     */
+    private record Entrada(String id, Object fileKey, long modificacao, long criadaEm) {
+        boolean confere(Object fileKeyAtual, long modificacaoAtual, long agora) {
+            return Objects.equals(fileKey, fileKeyAtual) && modificacao == modificacaoAtual
+                    && agora - criadaEm < VALIDADE_MS;
+        }
+    }
 
-        if (cache.containsKey(caminho)) {
-            return cache.get(caminho);
+    // LinkedHashMap em ordem de acesso: a entrada usada há mais tempo sai quando o limite é atingido
+    private static final Map<Path, Entrada> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Entrada> maisAntiga) {
+            return size() > MAXIMO_ENTRADAS;
         }
+    };
+    private static final AtomicLong acertos = new AtomicLong();
+    private static final AtomicLong falhas = new AtomicLong();
 
-        String id;
-        try {
-            BasicFileAttributes attrs = Files.readAttributes(caminho, BasicFileAttributes.class);
-            Object fileKey = attrs.fileKey();
+    public static String obterId(File pasta) throws IOException {
+        Path caminho = pasta.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attrs = lerAtributos(caminho);
+        Object fileKey = attrs != null ? attrs.fileKey() : null;
+        long modificacao = attrs != null ? attrs.lastModifiedTime().toMillis() : 0;
 
-            if (fileKey != null) {
-                id = Integer.toString(Math.abs(fileKey.hashCode()));
-            } else {
-                id = gerarIdPorFallback(pasta);
+        Entrada anterior;
+        synchronized (cache) {
+            anterior = cache.get(caminho);
+            if (anterior != null && anterior.confere(fileKey, modificacao, System.currentTimeMillis())) {
+                acertos.incrementAndGet();
+                return anterior.id();
             }
-        } catch (Exception e) {
+        }
+        falhas.incrementAndGet();
+
+        // Fora do lock: percorrer uma pasta grande no fallback não segura as outras chamadas
+        String id;
+        if (fileKey != null) {
+            id = Integer.toString(Math.abs(fileKey.hashCode()));
+        } else if (anterior != null && anterior.fileKey() == null) {
+            id = anterior.id();
+        } else {
             id = gerarIdPorFallback(pasta);
         }
+        Entrada nova = new Entrada(id, fileKey, modificacao, System.currentTimeMillis());
 
-        cache.put(caminho, id);
+        // Se outra chamada já publicou uma entrada válida enquanto isso, vale a dela
+        synchronized (cache) {
+            Entrada atual = cache.get(caminho);
+            if (atual != null && atual != anterior && atual.confere(fileKey, modificacao, System.currentTimeMillis())) {
+                return atual.id();
+            }
+            cache.put(caminho, nova);
+        }
         return id;
     }
 
+    public static long getAcertosCache() {
+        return acertos.get();
+    }
+
+    public static long getFalhasCache() {
+        return falhas.get();
+    }
+
+    public static int getTamanhoCache() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static BasicFileAttributes lerAtributos(Path caminho) {
+        try {
+            return Files.readAttributes(caminho, BasicFileAttributes.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private static String gerarIdPorFallback(File pasta) {
         try {
             String caminhoAbsoluto = pasta.getAbsolutePath();
@@ -53,7 +115,7 @@ public class FolderIdUtil {
         int ultimoUnderline = nomeComId.lastIndexOf('_');
         if (ultimoUnderline > 0) {
             String supostoId = nomeComId.substring(ultimoUnderline + 1);
-            if (supostoId.matches("\\d+")) {
+            if (apenasDigitos(supostoId)) {
                 return nomeComId.substring(0, ultimoUnderline);
             }
         }
@@ -65,13 +127,22 @@ public class FolderIdUtil {
         if (ultimoUnderline > 0) {
             String supostoId = nomeComId.substring(ultimoUnderline + 1);
             // Garante que estamos extraindo algo que parece um ID
-            if (supostoId.matches("\\d+")) {
+            if (apenasDigitos(supostoId)) {
                 return supostoId;
             }
         }
         return "";
     }
 
+    // Equivale a matches("\\d+"), sem compilar uma expressão regular a cada chamada
+    private static boolean apenasDigitos(String texto) {
+        if (texto.isEmpty()) return false;
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
 
     public static long calcularTamanhoPasta(File pasta) {
         long tamanho = 0;
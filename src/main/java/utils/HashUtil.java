@@ -0,0 +1,33 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+public class HashUtil {
+    private static final int TAMANHO_BUFFER = 64 * 1024;
+
+    public static String calcularHash(Path arquivo) throws IOException {
+        MessageDigest digest = novoDigest();
+        try (InputStream entrada = Files.newInputStream(arquivo)) {
+            byte[] buffer = new byte[TAMANHO_BUFFER];
+            int lidos;
+            while ((lidos = entrada.read(buffer)) != -1) {
+                digest.update(buffer, 0, lidos);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static MessageDigest novoDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponível", e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package utils;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Log que não segura quem registra: as mensagens vão para um buffer circular sem lock e uma
+ * thread própria entrega o que acumulou, em lotes, algumas dezenas de vezes por segundo. Com o
+ * buffer cheio a mensagem é descartada e o destino recebe um aviso com a quantidade perdida no
+ * lote seguinte, em vez de a transferência esperar pela interface. Um lote que o destino não
+ * consegue receber entra na mesma contagem.
+ */
+public final class LogAssincrono implements Consumer<String> {
+    public static final int CAPACIDADE_PADRAO = 16 * 1024;
+    private static final long INTERVALO_NS = TimeUnit.MILLISECONDS.toNanos(1000 / 30);
+
+    /** Cor null deixa a escolha para o destino. */
+    public record Registro(long instante, String mensagem, Color cor) {
+        public LocalDateTime horario() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(instante), ZoneId.systemDefault());
+        }
+    }
+
+    private final AtomicReferenceArray<Registro> registros;
+    private final int mascara;
+    private final AtomicLong escrita = new AtomicLong();
+    private volatile long leitura = 0;
+    private final AtomicLong descartadas = new AtomicLong();
+    private final Consumer<List<Registro>> destino;
+    private final Closeable recurso; // Fechado depois do último lote; null se o destino não tem o que fechar
+    private final Thread entregador;
+    private volatile boolean fechado = false;
+
+    public LogAssincrono(String nome, Consumer<List<Registro>> destino) {
+        this(nome, CAPACIDADE_PADRAO, destino);
+    }
+
+    /** A capacidade é arredondada para a próxima potência de dois. */
+    public LogAssincrono(String nome, int capacidade, Consumer<List<Registro>> destino) {
+        this(nome, capacidade, destino, null);
+    }
+
+    private LogAssincrono(String nome, int capacidade, Consumer<List<Registro>> destino, Closeable recurso) {
+        int tamanho = Integer.highestOneBit(Math.max(2, capacidade - 1)) << 1;
+        this.registros = new AtomicReferenceArray<>(tamanho);
+        this.mascara = tamanho - 1;
+        this.destino = destino;
+        this.recurso = recurso;
+        this.entregador = new Thread(this::entregar, nome);
+        entregador.setDaemon(true);
+        entregador.start();
+    }
+
+    /** Log que grava em arquivo, para execuções sem interface. */
+    public static LogAssincrono paraArquivo(Path arquivo) throws IOException {
+        DateTimeFormatter formato = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss.SSS");
+        BufferedWriter escritor = Files.newBufferedWriter(arquivo, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new LogAssincrono("log-" + arquivo.getFileName(), CAPACIDADE_PADRAO, lote -> {
+            try {
+                for (Registro registro : lote) {
+                    escritor.write("[" + registro.horario().format(formato) + "] " + registro.mensagem());
+                    escritor.newLine();
+                }
+                escritor.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, escritor);
+    }
+
+    @Override
+    public void accept(String mensagem) {
+        registrar(mensagem, null);
+    }
+
+    /** Nunca bloqueia: reserva uma posição livre do buffer ou descarta a mensagem. */
+    public void registrar(String mensagem, Color cor) {
+        long posicao;
+        do {
+            posicao = escrita.get();
+            if (posicao - leitura >= registros.length()) {
+                descartadas.incrementAndGet();
+                return;
+            }
+        } while (!escrita.compareAndSet(posicao, posicao + 1));
+        registros.set((int) (posicao & mascara), new Registro(System.currentTimeMillis(), mensagem, cor));
+    }
+
+    public long getDescartadas() {
+        return descartadas.get();
+    }
+
+    /** Entrega o que ainda está no buffer, para a thread de entrega e fecha o arquivo, se houver. */
+    public void fechar() {
+        fechado = true;
+        LockSupport.unpark(entregador);
+        try {
+            entregador.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void entregar() {
+        long avisadas = 0;
+        while (true) {
+            boolean ultimo = fechado;
+            List<Registro> lote = new ArrayList<>();
+            long posicao = leitura;
+            Registro registro;
+            // Uma posição reservada mas ainda não preenchida encerra o lote; ela vem no próximo
+            while ((registro = registros.get((int) (posicao & mascara))) != null) {
+                registros.set((int) (posicao & mascara), null);
+                lote.add(registro);
+                leitura = ++posicao;
+            }
+            int entregues = lote.size();
+            long perdidas = descartadas.get() - avisadas;
+            if (perdidas > 0) {
+                avisadas += perdidas;
+                lote.add(new Registro(System.currentTimeMillis(),
+                        "AVISO: " + perdidas + " mensagem(ns) de log descartada(s) por excesso de volume ou falha na entrega", null));
+            }
+            if (!lote.isEmpty()) {
+                try {
+                    destino.accept(lote);
+                } catch (RuntimeException e) {
+                    // O lote se perde; o aviso vai de novo, somado a ele, no próximo que o destino aceitar
+                    descartadas.addAndGet(entregues);
+                    avisadas -= Math.max(perdidas, 0);
+                }
+            }
+            if (ultimo) {
+                fecharRecurso();
+                return;
+            }
+            LockSupport.parkNanos(INTERVALO_NS);
+        }
+    }
+
+    private void fecharRecurso() {
+        if (recurso == null) return;
+        try {
+            recurso.close();
+        } catch (IOException ignored) {
+            // Não sobrou a quem avisar
+        }
+    }
+}